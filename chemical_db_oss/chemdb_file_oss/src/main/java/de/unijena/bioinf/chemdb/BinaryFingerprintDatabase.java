@@ -0,0 +1,452 @@
+/*
+ *
+ *  This file is part of the SIRIUS library for analyzing MS and MS/MS data
+ *
+ *  Copyright (C) 2013-2020 Kai Dührkop, Markus Fleischauer, Marcus Ludwig, Martin A. Hoffman and Sebastian Böcker,
+ *  Chair of Bioinformatics, Friedrich-Schilller University.
+ *
+ *  This library is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public
+ *  License as published by the Free Software Foundation; either
+ *  version 3 of the License, or (at your option) any later version.
+ *
+ *  This library is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License along with SIRIUS. If not, see <https://www.gnu.org/licenses/lgpl-3.0.txt>
+ */
+
+package de.unijena.bioinf.chemdb;
+
+import de.unijena.bioinf.ChemistryBase.chem.InChI;
+import de.unijena.bioinf.ChemistryBase.chem.InChIs;
+import de.unijena.bioinf.ChemistryBase.chem.MolecularFormula;
+import de.unijena.bioinf.ChemistryBase.chem.PrecursorIonType;
+import de.unijena.bioinf.ChemistryBase.fp.ArrayFingerprint;
+import de.unijena.bioinf.ChemistryBase.fp.Fingerprint;
+import de.unijena.bioinf.ChemistryBase.fp.FingerprintVersion;
+import de.unijena.bioinf.ChemistryBase.fp.PackedFingerprint;
+import de.unijena.bioinf.ChemistryBase.ms.Deviation;
+import de.unijena.bioinf.babelms.CloseableIterator;
+import gnu.trove.map.hash.TObjectIntHashMap;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.*;
+
+import static de.unijena.bioinf.ChemistryBase.chem.InChIs.newInChI;
+
+/*
+    A read-only database stored in a single binary file which is memory mapped on opening. The file is created with
+    {@link BinaryFingerprintDatabaseWriter}, e.g. by converting the directory of a {@link FilebasedDatabase}.
+
+    Layout (all numbers big endian, all sections aligned to 8 bytes):
+    - header with magic number, format version, fingerprint length, number of formulas and compounds and section offsets
+    - formula table: columns with a heap pointer to the formula string, index of the first compound and number of compounds.
+      Compounds of the same formula are stored consecutively.
+    - compound table: one column per property (fingerprint start, bitset, xlogp, pLayer, qLayer and heap pointers to
+      InChI, InChIKey, smiles, name, links and pubmed ids)
+    - fingerprints: the index arrays of all compounds, concatenated
+    - heap: length-prefixed UTF-8 strings
+ */
+public class BinaryFingerprintDatabase extends AbstractChemicalDatabase {
+
+    protected static final int MAGIC = 0x53464442; // SFDB
+    protected static final int FORMAT_VERSION = 1;
+    protected static final int HEADER_SIZE = 64;
+    protected static final long NULL_POINTER = -1L;
+
+    // column order of the compound table. Every column is padded to 8 bytes.
+    protected static final int COL_FP_START = 0, COL_BITSET = 1, COL_XLOGP = 2, COL_PLAYER = 3, COL_QLAYER = 4,
+            COL_INCHI = 5, COL_INCHIKEY = 6, COL_SMILES = 7, COL_NAME = 8, COL_LINKS = 9, COL_PUBMED = 10;
+    protected static final int[] COLUMN_WIDTHS = new int[]{8, 8, 8, 4, 4, 8, 8, 8, 8, 8, 8};
+
+    private final File file;
+    private final MappedFile mapped;
+    protected final FingerprintVersion version;
+
+    private final MolecularFormula[] formulas; // ordered by mass
+    private final long[] firstCompound;
+    private final int[] numberOfCompounds;
+    private final TObjectIntHashMap<MolecularFormula> formulaIndex;
+
+    private final long[] columnOffsets;
+    private final long fingerprintOffset, heapOffset;
+    private final long totalNumberOfCompounds;
+
+    public BinaryFingerprintDatabase(FingerprintVersion version, File file) throws IOException {
+        this.file = file;
+        this.version = version;
+        this.mapped = new MappedFile(file);
+        try {
+            if (mapped.size() < HEADER_SIZE || mapped.getInt(0) != MAGIC)
+                throw new IOException("'" + file + "' is not a binary fingerprint database.");
+            if (mapped.getInt(4) != FORMAT_VERSION)
+                throw new IOException("Unsupported database format version " + mapped.getInt(4) + " in '" + file + "'.");
+            final int fpLength = mapped.getInt(8);
+            if (fpLength != version.size())
+                throw new IOException("Database was created with a fingerprint of length " + fpLength + " but given fingerprint version has length " + version.size());
+            final int numberOfFormulas = mapped.getInt(12);
+            this.totalNumberOfCompounds = mapped.getLong(16);
+            final long formulaTableOffset = mapped.getLong(24);
+            final long compoundTableOffset = mapped.getLong(32);
+            this.fingerprintOffset = mapped.getLong(40);
+            this.heapOffset = mapped.getLong(48);
+
+            this.columnOffsets = compoundColumnOffsets(compoundTableOffset, totalNumberOfCompounds);
+
+            // formula table is small, so we read it eagerly
+            this.formulas = new MolecularFormula[numberOfFormulas];
+            this.firstCompound = new long[numberOfFormulas];
+            this.numberOfCompounds = new int[numberOfFormulas];
+            this.formulaIndex = new TObjectIntHashMap<>(numberOfFormulas, 0.75f, -1);
+            final long firstColumn = formulaTableOffset + align(8L * numberOfFormulas);
+            final long countColumn = firstColumn + align(8L * numberOfFormulas);
+            for (int k = 0; k < numberOfFormulas; ++k) {
+                formulas[k] = MolecularFormula.parseOrThrow(mapped.getString(heapOffset + mapped.getLong(formulaTableOffset + 8L * k)));
+                firstCompound[k] = mapped.getLong(firstColumn + 8L * k);
+                numberOfCompounds[k] = mapped.getInt(countColumn + 4L * k);
+                formulaIndex.put(formulas[k], k);
+            }
+        } catch (IOException | RuntimeException e) {
+            mapped.close();
+            throw e;
+        }
+    }
+
+    protected static long align(long numberOfBytes) {
+        return (numberOfBytes + 7L) & ~7L;
+    }
+
+    protected static long[] compoundColumnOffsets(long compoundTableOffset, long numberOfCompounds) {
+        final long[] offsets = new long[COLUMN_WIDTHS.length + 1];
+        offsets[0] = compoundTableOffset;
+        for (int k = 0; k < COLUMN_WIDTHS.length; ++k) {
+            // fingerprint start column has one additional entry for the end of the last fingerprint
+            final long entries = k == COL_FP_START ? numberOfCompounds + 1 : numberOfCompounds;
+            offsets[k + 1] = offsets[k] + align(entries * COLUMN_WIDTHS[k]);
+        }
+        return offsets;
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    public long getNumberOfCompounds() {
+        return totalNumberOfCompounds;
+    }
+
+    public MolecularFormula[] getFormulas() {
+        return formulas.clone();
+    }
+
+    /**
+     * @return number of compounds with the given molecular formula
+     */
+    public int getNumberOfCompounds(MolecularFormula formula) {
+        final int k = formulaIndex.get(formula);
+        return k < 0 ? 0 : numberOfCompounds[k];
+    }
+
+    /**
+     * Returns a cursor over all compounds with the given molecular formula. Reading fingerprints and
+     * numerical properties from the cursor does not allocate any strings. Strings (InChI, name, smiles...) are
+     * only decoded if the corresponding getter is called.
+     */
+    public CandidateCursor cursor(MolecularFormula formula) {
+        final int k = formulaIndex.get(formula);
+        if (k < 0) return new CandidateCursor(0, 0);
+        return new CandidateCursor(firstCompound[k], numberOfCompounds[k]);
+    }
+
+    @Override
+    public List<FormulaCandidate> lookupMolecularFormulas(double ionMass, Deviation deviation, PrecursorIonType ionType) throws ChemicalDatabaseException {
+        final double mass = ionType.precursorMassToNeutralMass(ionMass);
+        final double min = mass - deviation.absoluteFor(ionMass), max = mass + deviation.absoluteFor(ionMass);
+        int lo = 0, hi = formulas.length;
+        while (lo < hi) {
+            final int mid = (lo + hi) >>> 1;
+            if (formulas[mid].getMass() < min) lo = mid + 1;
+            else hi = mid;
+        }
+        final ArrayList<FormulaCandidate> candidates = new ArrayList<>();
+        while (lo < formulas.length && formulas[lo].getMass() <= max) {
+            candidates.add(new FormulaCandidate(formulas[lo++], ionType, 0));
+        }
+        return candidates;
+    }
+
+    @Override
+    public List<CompoundCandidate> lookupStructuresByFormula(MolecularFormula formula) throws ChemicalDatabaseException {
+        final CandidateCursor cursor = cursor(formula);
+        final ArrayList<CompoundCandidate> candidates = new ArrayList<>(cursor.size());
+        while (cursor.next()) candidates.add(cursor.toCompoundCandidate());
+        return candidates;
+    }
+
+    @Override
+    public <T extends Collection<FingerprintCandidate>> T lookupStructuresAndFingerprintsByFormula(MolecularFormula formula, T fingerprintCandidates) throws ChemicalDatabaseException {
+        final CandidateCursor cursor = cursor(formula);
+        while (cursor.next()) fingerprintCandidates.add(cursor.toFingerprintCandidate());
+        return fingerprintCandidates;
+    }
+
+    @Override
+    public CloseableIterator<FingerprintCandidate> iterateStructuresAndFingerprintsByFormula(MolecularFormula formula) throws ChemicalDatabaseException {
+        final CandidateCursor cursor = cursor(formula);
+        return new CloseableIterator<FingerprintCandidate>() {
+            private boolean hasNext = cursor.next();
+
+            @Override
+            public boolean hasNext() {
+                return hasNext;
+            }
+
+            @Override
+            public FingerprintCandidate next() {
+                if (!hasNext) throw new NoSuchElementException();
+                final FingerprintCandidate candidate = cursor.toFingerprintCandidate();
+                hasNext = cursor.next();
+                return candidate;
+            }
+
+            @Override
+            public void close() {
+                // the mapped file is owned by the database
+            }
+        };
+    }
+
+    /**
+     * Reads the fingerprints of a block directly from the mapped file. Only the candidates requested with
+     * {@link FingerprintCandidateCursor#getCandidate(int)} are created.
+     */
+    @Override
+    public FingerprintCandidateCursor cursorByFormula(MolecularFormula formula) throws ChemicalDatabaseException {
+        final CandidateCursor cursor = cursor(formula);
+        return new FingerprintCandidateCursor() {
+            private final short[] buffer = new short[version.size()];
+            private int blockStart = 0, blockSize = 0;
+
+            @Override
+            public int nextBlock(int maxSize, List<Fingerprint> fingerprints) {
+                fingerprints.clear();
+                blockStart += blockSize;
+                blockSize = Math.max(0, Math.min(maxSize, cursor.size() - blockStart));
+                for (int i = 0; i < blockSize; ++i) {
+                    cursor.moveTo(blockStart + i);
+                    fingerprints.add(PackedFingerprint.fromIndizes(version, buffer, cursor.getFingerprintIndizes(buffer)));
+                }
+                return blockSize;
+            }
+
+            @Override
+            public FingerprintCandidate getCandidate(int i) {
+                if (i < 0 || i >= blockSize) throw new IndexOutOfBoundsException(i + " is not in the current block of size " + blockSize);
+                cursor.moveTo(blockStart + i);
+                return cursor.toFingerprintCandidate();
+            }
+
+            @Override
+            public void close() {
+                // the mapped file is owned by the database
+            }
+        };
+    }
+
+    @Override
+    public List<FingerprintCandidate> lookupFingerprintsByInchi(Iterable<CompoundCandidate> compounds) throws ChemicalDatabaseException {
+        final ArrayList<FingerprintCandidate> candidates = new ArrayList<>();
+        final HashMap<MolecularFormula, HashMap<String, CompoundCandidate>> formulas2Candidates = new HashMap<>();
+        for (CompoundCandidate c : compounds) {
+            formulas2Candidates.computeIfAbsent(c.getInchi().extractFormulaOrThrow(), f -> new HashMap<>()).put(c.getInchiKey2D(), c);
+        }
+        for (Map.Entry<MolecularFormula, HashMap<String, CompoundCandidate>> entry : formulas2Candidates.entrySet()) {
+            final CandidateCursor cursor = cursor(entry.getKey());
+            while (cursor.next()) {
+                // only the key is decoded, the remaining strings are taken from the given compound
+                final CompoundCandidate c = entry.getValue().get(cursor.getInchiKey2D());
+                if (c != null) candidates.add(new FingerprintCandidate(c, cursor.getFingerprint()));
+            }
+        }
+        return candidates;
+    }
+
+    @Override
+    public List<FingerprintCandidate> lookupFingerprintsByInchis(Iterable<String> inchi_keys) throws ChemicalDatabaseException {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public List<InChI> lookupManyInchisByInchiKeys(Iterable<String> inchi_keys) throws ChemicalDatabaseException {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public List<FingerprintCandidate> lookupManyFingerprintsByInchis(Iterable<String> inchi_keys) throws ChemicalDatabaseException {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void annotateCompounds(List<? extends CompoundCandidate> sublist) throws ChemicalDatabaseException {
+        // compounds are already annotated
+    }
+
+    @Override
+    public List<InChI> findInchiByNames(List<String> names) throws ChemicalDatabaseException {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void close() throws IOException {
+        mapped.close();
+    }
+
+    private String readString(int column, long compound) {
+        final long pointer = mapped.getLong(columnOffsets[column] + 8L * compound);
+        return pointer == NULL_POINTER ? null : mapped.getString(heapOffset + pointer);
+    }
+
+    /**
+     * Iterates over the compounds of a single molecular formula. A cursor is cheap to create but is not thread safe.
+     * The database itself can be used from several threads in parallel.
+     */
+    public class CandidateCursor {
+        private final long from;
+        private final int size;
+        private long current;
+
+        private CandidateCursor(long from, int size) {
+            this.from = from;
+            this.size = size;
+            this.current = from - 1;
+        }
+
+        public int size() {
+            return size;
+        }
+
+        /**
+         * moves the cursor to the next compound
+         * @return false if there are no more compounds left
+         */
+        public boolean next() {
+            if (current + 1 >= from + size) return false;
+            ++current;
+            return true;
+        }
+
+        /**
+         * moves the cursor to the index-th compound of its formula
+         */
+        public void moveTo(int index) {
+            if (index < 0 || index >= size) throw new IndexOutOfBoundsException(index + " is not in the range of " + size + " compounds");
+            current = from + index;
+        }
+
+        public int getFingerprintLength() {
+            final long start = mapped.getLong(columnOffsets[COL_FP_START] + 8L * current);
+            final long end = mapped.getLong(columnOffsets[COL_FP_START] + 8L * (current + 1));
+            return (int) (end - start);
+        }
+
+        /**
+         * copies the fingerprint indizes of the current compound into the given buffer. The buffer has to have
+         * at least {@link #getFingerprintLength()} entries.
+         * @return number of indizes written into the buffer
+         */
+        public int getFingerprintIndizes(short[] buffer) {
+            final long start = mapped.getLong(columnOffsets[COL_FP_START] + 8L * current);
+            final int length = getFingerprintLength();
+            mapped.getShorts(fingerprintOffset + 2L * start, buffer, length);
+            return length;
+        }
+
+        public ArrayFingerprint getFingerprint() {
+            final long start = mapped.getLong(columnOffsets[COL_FP_START] + 8L * current);
+            final short[] indizes = new short[getFingerprintLength()];
+            mapped.getShorts(fingerprintOffset + 2L * start, indizes);
+            return new ArrayFingerprint(version, indizes);
+        }
+
+        public long getBitset() {
+            return mapped.getLong(columnOffsets[COL_BITSET] + 8L * current);
+        }
+
+        public double getXlogp() {
+            return mapped.getDouble(columnOffsets[COL_XLOGP] + 8L * current);
+        }
+
+        public int getpLayer() {
+            return mapped.getInt(columnOffsets[COL_PLAYER] + 4L * current);
+        }
+
+        public int getqLayer() {
+            return mapped.getInt(columnOffsets[COL_QLAYER] + 4L * current);
+        }
+
+        public String getInchiKey() {
+            return readString(COL_INCHIKEY, current);
+        }
+
+        public String getInchiKey2D() {
+            return InChIs.inChIKey2D(getInchiKey());
+        }
+
+        public InChI getInchi() {
+            return newInChI(getInchiKey(), readString(COL_INCHI, current));
+        }
+
+        public String getSmiles() {
+            return readString(COL_SMILES, current);
+        }
+
+        public String getName() {
+            return readString(COL_NAME, current);
+        }
+
+        public DBLink[] getLinks() {
+            final String links = readString(COL_LINKS, current);
+            if (links == null) return null;
+            if (links.isEmpty()) return new DBLink[0];
+            final String[] parts = links.split("\n");
+            final DBLink[] result = new DBLink[parts.length];
+            for (int k = 0; k < parts.length; ++k) {
+                final int sep = parts[k].indexOf('\t');
+                result[k] = sep < 0 ? new DBLink(parts[k], null) : new DBLink(parts[k].substring(0, sep), parts[k].substring(sep + 1));
+            }
+            return result;
+        }
+
+        public PubmedLinks getPubmedIDs() {
+            final String ids = readString(COL_PUBMED, current);
+            return ids == null ? null : PubmedLinks.fromString(ids);
+        }
+
+        public CompoundCandidate toCompoundCandidate() {
+            final CompoundCandidate c = new CompoundCandidate(getInchi());
+            fill(c);
+            return c;
+        }
+
+        public FingerprintCandidate toFingerprintCandidate() {
+            final FingerprintCandidate c = new FingerprintCandidate(getInchi(), getFingerprint());
+            fill(c);
+            return c;
+        }
+
+        private void fill(CompoundCandidate c) {
+            c.setBitset(getBitset());
+            c.setXlogp(getXlogp());
+            c.setpLayer(getpLayer());
+            c.setqLayer(getqLayer());
+            c.setSmiles(getSmiles());
+            c.setName(getName());
+            c.setLinks(getLinks());
+            c.setPubmedIDs(getPubmedIDs());
+        }
+    }
+}
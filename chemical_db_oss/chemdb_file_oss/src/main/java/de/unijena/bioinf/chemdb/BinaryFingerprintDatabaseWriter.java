@@ -0,0 +1,231 @@
+/*
+ *
+ *  This file is part of the SIRIUS library for analyzing MS and MS/MS data
+ *
+ *  Copyright (C) 2013-2020 Kai Dührkop, Markus Fleischauer, Marcus Ludwig, Martin A. Hoffman and Sebastian Böcker,
+ *  Chair of Bioinformatics, Friedrich-Schilller University.
+ *
+ *  This library is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public
+ *  License as published by the Free Software Foundation; either
+ *  version 3 of the License, or (at your option) any later version.
+ *
+ *  This library is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License along with SIRIUS. If not, see <https://www.gnu.org/licenses/lgpl-3.0.txt>
+ */
+
+package de.unijena.bioinf.chemdb;
+
+import de.unijena.bioinf.ChemistryBase.chem.MolecularFormula;
+import de.unijena.bioinf.ChemistryBase.fp.FPIter;
+import de.unijena.bioinf.ChemistryBase.fp.Fingerprint;
+import de.unijena.bioinf.ChemistryBase.fp.FingerprintVersion;
+import org.slf4j.LoggerFactory;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+
+import static de.unijena.bioinf.chemdb.BinaryFingerprintDatabase.*;
+
+/**
+ * Writes a {@link BinaryFingerprintDatabase}. Compounds are added formula by formula, every formula might only be added once.
+ * The columns are buffered in temporary files and are concatenated into the target file on {@link #close()}.
+ */
+public class BinaryFingerprintDatabaseWriter implements Closeable {
+
+    private final FingerprintVersion version;
+    private final File target;
+
+    private final Column[] columns;
+    private final Column fingerprints, heap;
+    private final Column formulaNames, formulaFirst, formulaCount;
+
+    private final HashSet<MolecularFormula> written;
+    private final ArrayList<MolecularFormula> formulas;
+    private final ArrayList<long[]> formulaEntries; // heap pointer, first compound, number of compounds
+
+    private long numberOfCompounds = 0, numberOfIndizes = 0, heapSize = 0;
+    private boolean closed = false;
+
+    public BinaryFingerprintDatabaseWriter(FingerprintVersion version, File target) throws IOException {
+        this.version = version;
+        this.target = target;
+        this.columns = new Column[COLUMN_WIDTHS.length];
+        for (int k = 0; k < columns.length; ++k) columns[k] = new Column();
+        this.fingerprints = new Column();
+        this.heap = new Column();
+        this.formulaNames = new Column();
+        this.formulaFirst = new Column();
+        this.formulaCount = new Column();
+        this.written = new HashSet<>();
+        this.formulas = new ArrayList<>();
+        this.formulaEntries = new ArrayList<>();
+        columns[COL_FP_START].out.writeLong(0L);
+    }
+
+    /**
+     * Converts the given file based database (a directory of csv or json files) into a single binary database file
+     */
+    public static void convert(FilebasedDatabase source, File target) throws IOException {
+        try (final BinaryFingerprintDatabaseWriter writer = new BinaryFingerprintDatabaseWriter(source.version, target)) {
+            for (MolecularFormula formula : source.getFormulas()) {
+                try {
+                    writer.write(formula, source.lookupStructuresAndFingerprintsByFormula(formula));
+                } catch (ChemicalDatabaseException e) {
+                    throw new IOException("Cannot read compounds with formula " + formula + " from '" + source.getDir() + "'.", e);
+                }
+            }
+        }
+    }
+
+    public void write(MolecularFormula formula, Collection<FingerprintCandidate> candidates) throws IOException {
+        if (closed) throw new IllegalStateException("Writer is already closed.");
+        if (!written.add(formula))
+            throw new IllegalArgumentException("Compounds with formula " + formula + " are already written.");
+        formulas.add(formula);
+        formulaEntries.add(new long[]{writeString(formula.toString()), numberOfCompounds, candidates.size()});
+        for (FingerprintCandidate c : candidates) {
+            writeCandidate(c);
+        }
+    }
+
+    private void writeCandidate(FingerprintCandidate c) throws IOException {
+        final Fingerprint fp = c.getFingerprint();
+        if (fp.getFingerprintVersion().size() != version.size())
+            throw new IllegalArgumentException("Fingerprint of " + c.getInchiKey2D() + " is incompatible to the fingerprint version of the database.");
+        for (FPIter iter : fp.presentFingerprints()) {
+            fingerprints.out.writeShort(iter.getIndex());
+            ++numberOfIndizes;
+        }
+        columns[COL_FP_START].out.writeLong(numberOfIndizes);
+        columns[COL_BITSET].out.writeLong(c.getBitset());
+        columns[COL_XLOGP].out.writeDouble(c.getXlogp());
+        columns[COL_PLAYER].out.writeInt(c.getpLayer());
+        columns[COL_QLAYER].out.writeInt(c.getqLayer());
+        columns[COL_INCHI].out.writeLong(writeString(c.getInchi().in3D));
+        columns[COL_INCHIKEY].out.writeLong(writeString(c.getInchi().key));
+        columns[COL_SMILES].out.writeLong(writeString(c.getSmiles()));
+        columns[COL_NAME].out.writeLong(writeString(c.getName()));
+        columns[COL_LINKS].out.writeLong(writeString(encodeLinks(c.getLinks())));
+        columns[COL_PUBMED].out.writeLong(writeString(c.getPubmedIDs() == null ? null : c.getPubmedIDs().toString()));
+        ++numberOfCompounds;
+    }
+
+    private static String encodeLinks(DBLink[] links) {
+        if (links == null) return null;
+        final StringBuilder buf = new StringBuilder();
+        for (DBLink link : links) {
+            if (buf.length() > 0) buf.append('\n');
+            buf.append(link.name);
+            if (link.id != null) buf.append('\t').append(link.id);
+        }
+        return buf.toString();
+    }
+
+    /*
+        strings are padded to 4 bytes, such that the length prefix is always aligned
+     */
+    private long writeString(String value) throws IOException {
+        if (value == null) return NULL_POINTER;
+        final long pointer = heapSize;
+        final byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        heap.out.writeInt(bytes.length);
+        heap.out.write(bytes);
+        final int padding = (4 - (bytes.length & 3)) & 3;
+        for (int k = 0; k < padding; ++k) heap.out.write(0);
+        heapSize += 4 + bytes.length + padding;
+        return pointer;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (closed) return;
+        closed = true;
+        try {
+            // formula table has to be ordered by mass
+            final Integer[] order = new Integer[formulas.size()];
+            for (int k = 0; k < order.length; ++k) order[k] = k;
+            Arrays.sort(order, Comparator.comparing(formulas::get));
+            for (int k : order) {
+                final long[] entry = formulaEntries.get(k);
+                formulaNames.out.writeLong(entry[0]);
+                formulaFirst.out.writeLong(entry[1]);
+                formulaCount.out.writeInt((int) entry[2]);
+            }
+
+            final long formulaTableOffset = HEADER_SIZE;
+            final long compoundTableOffset = formulaTableOffset + align(8L * order.length) * 2 + align(4L * order.length);
+            final long fingerprintOffset = compoundColumnOffsets(compoundTableOffset, numberOfCompounds)[COLUMN_WIDTHS.length];
+            final long heapOffset = fingerprintOffset + align(2L * numberOfIndizes);
+
+            try (final FileChannel out = FileChannel.open(target.toPath(), StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+                final ByteArrayOutputStream headerBytes = new ByteArrayOutputStream(HEADER_SIZE);
+                try (final DataOutputStream header = new DataOutputStream(headerBytes)) {
+                    header.writeInt(MAGIC);
+                    header.writeInt(FORMAT_VERSION);
+                    header.writeInt(version.size());
+                    header.writeInt(order.length);
+                    header.writeLong(numberOfCompounds);
+                    header.writeLong(formulaTableOffset);
+                    header.writeLong(compoundTableOffset);
+                    header.writeLong(fingerprintOffset);
+                    header.writeLong(heapOffset);
+                    while (header.size() < HEADER_SIZE) header.writeByte(0);
+                }
+                out.write(ByteBuffer.wrap(headerBytes.toByteArray()));
+                formulaNames.appendTo(out);
+                formulaFirst.appendTo(out);
+                formulaCount.appendTo(out);
+                for (Column column : columns) column.appendTo(out);
+                fingerprints.appendTo(out);
+                heap.appendTo(out);
+            }
+            LoggerFactory.getLogger(BinaryFingerprintDatabaseWriter.class).info("Wrote " + numberOfCompounds + " compounds with " + order.length + " formulas into '" + target + "'.");
+        } finally {
+            for (Column column : columns) column.delete();
+            fingerprints.delete();
+            heap.delete();
+            formulaNames.delete();
+            formulaFirst.delete();
+            formulaCount.delete();
+        }
+    }
+
+    private static class Column {
+        private final File file;
+        private final DataOutputStream out;
+
+        private Column() throws IOException {
+            this.file = File.createTempFile("sirius_fpdb", ".column");
+            this.out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 1 << 16));
+        }
+
+        /*
+            appends the column to the given channel and pads it to 8 bytes
+         */
+        private void appendTo(FileChannel target) throws IOException {
+            out.close();
+            try (final FileChannel in = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+                final long size = in.size();
+                long position = 0;
+                while (position < size) position += in.transferTo(position, size - position, target);
+                final int padding = (int) (align(size) - size);
+                if (padding > 0) target.write(ByteBuffer.allocate(padding));
+            }
+        }
+
+        private void delete() throws IOException {
+            out.close();
+            Files.deleteIfExists(file.toPath());
+        }
+    }
+}
@@ -61,6 +61,13 @@ public class FilebasedDatabase extends AbstractChemicalDatabase {
     }
 
 
+    /**
+     * @return all molecular formulas contained in this database, ordered by mass
+     */
+    public MolecularFormula[] getFormulas() {
+        return formulas.clone();
+    }
+
     public File getDir() {
         return dir;
     }
@@ -178,6 +185,18 @@ public class FilebasedDatabase extends AbstractChemicalDatabase {
         } else return fingerprintCandidates;
     }
 
+    @Override
+    public CloseableIterator<FingerprintCandidate> iterateStructuresAndFingerprintsByFormula(MolecularFormula formula) throws ChemicalDatabaseException {
+        final File structureFile = getFileFor(formula);
+        if (structureFile.exists()) {
+            try {
+                return reader.readFingerprints(version, getReaderFor(structureFile));
+            } catch (IOException e) {
+                throw new ChemicalDatabaseException(e);
+            }
+        } else return CloseableIterator.of(Collections.emptyIterator());
+    }
+
     /*@Override
     public <T extends Collection<FingerprintCandidate>> T lookupStructuresAndFingerprintsByFormula(MolecularFormula formula, T fingerprintCandidates) throws ChemicalDatabaseException {
 
@@ -0,0 +1,126 @@
+/*
+ *
+ *  This file is part of the SIRIUS library for analyzing MS and MS/MS data
+ *
+ *  Copyright (C) 2013-2020 Kai Dührkop, Markus Fleischauer, Marcus Ludwig, Martin A. Hoffman and Sebastian Böcker,
+ *  Chair of Bioinformatics, Friedrich-Schilller University.
+ *
+ *  This library is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public
+ *  License as published by the Free Software Foundation; either
+ *  version 3 of the License, or (at your option) any later version.
+ *
+ *  This library is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License along with SIRIUS. If not, see <https://www.gnu.org/licenses/lgpl-3.0.txt>
+ */
+
+package de.unijena.bioinf.chemdb;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+
+/*
+    Read-only view on a file that is memory mapped in chunks of 1 GB, so files larger than 2 GB can be addressed
+    with long offsets. All reads are absolute and do not change the state of the underlying buffers, so a single
+    instance can be shared by several threads.
+    Primitives have to be aligned to their own width, such that they never cross a chunk border.
+ */
+final class MappedFile implements Closeable {
+
+    private static final int CHUNK_BITS = 30;
+    private static final long CHUNK_SIZE = 1L << CHUNK_BITS;
+    private static final long CHUNK_MASK = CHUNK_SIZE - 1;
+
+    private final FileChannel channel;
+    private final MappedByteBuffer[] chunks;
+    private final long size;
+
+    MappedFile(File file) throws IOException {
+        this.channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        this.size = channel.size();
+        this.chunks = new MappedByteBuffer[(int) ((size + CHUNK_MASK) >>> CHUNK_BITS)];
+        for (int k = 0; k < chunks.length; ++k) {
+            final long offset = k * CHUNK_SIZE;
+            chunks[k] = channel.map(FileChannel.MapMode.READ_ONLY, offset, Math.min(CHUNK_SIZE, size - offset));
+        }
+    }
+
+    long size() {
+        return size;
+    }
+
+    long getLong(long position) {
+        return chunks[(int) (position >>> CHUNK_BITS)].getLong((int) (position & CHUNK_MASK));
+    }
+
+    double getDouble(long position) {
+        return chunks[(int) (position >>> CHUNK_BITS)].getDouble((int) (position & CHUNK_MASK));
+    }
+
+    int getInt(long position) {
+        return chunks[(int) (position >>> CHUNK_BITS)].getInt((int) (position & CHUNK_MASK));
+    }
+
+    short getShort(long position) {
+        return chunks[(int) (position >>> CHUNK_BITS)].getShort((int) (position & CHUNK_MASK));
+    }
+
+    byte getByte(long position) {
+        return chunks[(int) (position >>> CHUNK_BITS)].get((int) (position & CHUNK_MASK));
+    }
+
+    void getShorts(long position, short[] target) {
+        getShorts(position, target, target.length);
+    }
+
+    /**
+     * reads the given number of shorts into the first entries of target
+     */
+    void getShorts(long position, short[] target, int length) {
+        final int chunk = (int) (position >>> CHUNK_BITS);
+        final int offset = (int) (position & CHUNK_MASK);
+        if (chunk < chunks.length && offset + 2L * length <= chunks[chunk].limit()) {
+            final ByteBuffer view = chunks[chunk].duplicate();
+            view.position(offset);
+            view.asShortBuffer().get(target, 0, length);
+        } else {
+            for (int k = 0; k < length; ++k)
+                target[k] = getShort(position + 2L * k);
+        }
+    }
+
+    /**
+     * reads a string which is encoded as int length followed by the UTF-8 bytes
+     */
+    String getString(long position) {
+        final int length = getInt(position);
+        final byte[] bytes = new byte[length];
+        final long start = position + 4;
+        final int chunk = (int) (start >>> CHUNK_BITS);
+        final int offset = (int) (start & CHUNK_MASK);
+        if (chunk < chunks.length && offset + length <= chunks[chunk].limit()) {
+            final ByteBuffer view = chunks[chunk].duplicate();
+            view.position(offset);
+            view.get(bytes);
+        } else {
+            for (int k = 0; k < length; ++k)
+                bytes[k] = getByte(start + k);
+        }
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+}
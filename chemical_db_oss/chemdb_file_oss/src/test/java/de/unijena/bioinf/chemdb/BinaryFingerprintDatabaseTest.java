@@ -0,0 +1,181 @@
+package de.unijena.bioinf.chemdb;
+
+import de.unijena.bioinf.ChemistryBase.chem.InChIs;
+import de.unijena.bioinf.ChemistryBase.chem.MolecularFormula;
+import de.unijena.bioinf.ChemistryBase.chem.PrecursorIonType;
+import de.unijena.bioinf.ChemistryBase.fp.ArrayFingerprint;
+import de.unijena.bioinf.ChemistryBase.fp.CdkFingerprintVersion;
+import de.unijena.bioinf.ChemistryBase.fp.Fingerprint;
+import de.unijena.bioinf.ChemistryBase.ms.Deviation;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+public class BinaryFingerprintDatabaseTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static final CdkFingerprintVersion VERSION = CdkFingerprintVersion.getDefault();
+
+    private static MolecularFormula formula(int i) {
+        return MolecularFormula.parseOrThrow("C" + (i + 1) + "H" + (2 * i + 4) + "O");
+    }
+
+    private static List<FingerprintCandidate> candidates(int n, long seed) {
+        final Random r = new Random(seed);
+        final ArrayList<FingerprintCandidate> xs = new ArrayList<>(n);
+        for (int i = 0; i < n; ++i) {
+            // the last candidate has an empty fingerprint and no optional fields
+            final int[] bits = i == n - 1 ? new int[0] : r.ints(0, VERSION.size()).distinct().limit(1 + r.nextInt(200)).sorted().toArray();
+            final short[] indizes = new short[bits.length];
+            for (int k = 0; k < bits.length; ++k) indizes[k] = (short) bits[k];
+            final String key = String.format("%014d-UHFFFAOYSA-N", 1000 * seed + i);
+            final FingerprintCandidate c = new FingerprintCandidate(InChIs.newInChI(key, "InChI=1S/" + key), new ArrayFingerprint(VERSION, indizes));
+            c.setBitset(r.nextLong());
+            c.setXlogp(r.nextDouble());
+            c.setpLayer(i);
+            c.setqLayer(-i);
+            if (i < n - 1) {
+                c.setName("compound " + i);
+                c.setSmiles("CCO");
+                c.setLinks(new DBLink[]{new DBLink("PubChem", String.valueOf(i)), new DBLink("HMDB", null)});
+            }
+            xs.add(c);
+        }
+        return xs;
+    }
+
+    private File write(Map<MolecularFormula, List<FingerprintCandidate>> compounds) throws IOException {
+        final File file = new File(folder.newFolder(), "db.bin");
+        try (BinaryFingerprintDatabaseWriter writer = new BinaryFingerprintDatabaseWriter(VERSION, file)) {
+            for (Map.Entry<MolecularFormula, List<FingerprintCandidate>> e : compounds.entrySet())
+                writer.write(e.getKey(), e.getValue());
+        }
+        return file;
+    }
+
+    private static void assertSameCandidate(FingerprintCandidate a, FingerprintCandidate b) {
+        assertEquals(a.getInchi().key, b.getInchi().key);
+        assertEquals(a.getInchi().in3D, b.getInchi().in3D);
+        assertEquals(a.getName(), b.getName());
+        assertEquals(a.getSmiles(), b.getSmiles());
+        assertEquals(a.getBitset(), b.getBitset());
+        assertEquals(a.getXlogp(), b.getXlogp(), 0d);
+        assertEquals(a.getpLayer(), b.getpLayer());
+        assertEquals(a.getqLayer(), b.getqLayer());
+        if (a.getLinks() == null) {
+            assertNull(b.getLinks());
+        } else {
+            assertEquals(a.getLinks().length, b.getLinks().length);
+            for (int k = 0; k < a.getLinks().length; ++k) {
+                assertEquals(a.getLinks()[k].name, b.getLinks()[k].name);
+                assertEquals(a.getLinks()[k].id, b.getLinks()[k].id);
+            }
+        }
+        assertArrayEquals(a.getFingerprint().toIndizesArray(), b.getFingerprint().toIndizesArray());
+    }
+
+    @Test
+    public void testRoundTrip() throws IOException {
+        final LinkedHashMap<MolecularFormula, List<FingerprintCandidate>> compounds = new LinkedHashMap<>();
+        for (int i = 0; i < 10; ++i) compounds.put(formula(i), candidates(1 + 3 * i, i));
+        final File file = write(compounds);
+
+        try (BinaryFingerprintDatabase db = new BinaryFingerprintDatabase(VERSION, file)) {
+            assertEquals(compounds.values().stream().mapToInt(List::size).sum(), db.getNumberOfCompounds());
+            assertEquals(new HashSet<>(compounds.keySet()), new HashSet<>(Arrays.asList(db.getFormulas())));
+            final short[] buffer = new short[VERSION.size()];
+            for (Map.Entry<MolecularFormula, List<FingerprintCandidate>> e : compounds.entrySet()) {
+                final List<FingerprintCandidate> expected = e.getValue();
+                assertEquals(expected.size(), db.getNumberOfCompounds(e.getKey()));
+
+                final List<FingerprintCandidate> actual = db.lookupStructuresAndFingerprintsByFormula(e.getKey(), new ArrayList<>());
+                assertEquals(expected.size(), actual.size());
+                for (int i = 0; i < expected.size(); ++i) assertSameCandidate(expected.get(i), actual.get(i));
+
+                final BinaryFingerprintDatabase.CandidateCursor cursor = db.cursor(e.getKey());
+                assertEquals(expected.size(), cursor.size());
+                for (FingerprintCandidate c : expected) {
+                    assertTrue(cursor.next());
+                    final short[] indizes = c.getFingerprint().toIndizesArray();
+                    // the buffer is reused and longer than the fingerprint, stale entries behind it are ignored
+                    Arrays.fill(buffer, (short) -1);
+                    assertEquals(indizes.length, cursor.getFingerprintLength());
+                    assertEquals(indizes.length, cursor.getFingerprintIndizes(buffer));
+                    assertArrayEquals(indizes, Arrays.copyOf(buffer, indizes.length));
+                    if (indizes.length < buffer.length) assertEquals(-1, buffer[indizes.length]);
+                    assertEquals(c.getInchiKey2D(), cursor.getInchiKey2D());
+                }
+                assertFalse(cursor.next());
+            }
+
+            final MolecularFormula unknown = MolecularFormula.parseOrThrow("C100H2");
+            assertEquals(0, db.getNumberOfCompounds(unknown));
+            assertFalse(db.cursor(unknown).next());
+
+            final PrecursorIonType ionType = PrecursorIonType.getPrecursorIonType("[M+H]+");
+            final List<FormulaCandidate> found = db.lookupMolecularFormulas(ionType.neutralMassToPrecursorMass(formula(4).getMass()), new Deviation(5), ionType);
+            assertEquals(1, found.size());
+            assertEquals(formula(4), found.get(0).getFormula());
+        }
+    }
+
+    @Test
+    public void testCursorReadsBlocks() throws IOException {
+        final List<FingerprintCandidate> expected = candidates(25, 3);
+        final File file = write(Collections.singletonMap(formula(3), expected));
+        try (BinaryFingerprintDatabase db = new BinaryFingerprintDatabase(VERSION, file);
+             FingerprintCandidateCursor cursor = db.cursorByFormula(formula(3))) {
+            final List<Fingerprint> fingerprints = new ArrayList<>();
+            int offset = 0, size;
+            while ((size = cursor.nextBlock(10, fingerprints)) > 0) {
+                assertEquals(Math.min(10, expected.size() - offset), size);
+                assertEquals(size, fingerprints.size());
+                // candidates of a block can be requested in any order
+                for (int i = size - 1; i >= 0; --i) {
+                    assertArrayEquals(expected.get(offset + i).getFingerprint().toIndizesArray(), fingerprints.get(i).toIndizesArray());
+                    assertSameCandidate(expected.get(offset + i), cursor.getCandidate(i));
+                }
+                offset += size;
+            }
+            assertEquals(expected.size(), offset);
+            assertTrue(fingerprints.isEmpty());
+            try {
+                cursor.getCandidate(0);
+                fail();
+            } catch (IndexOutOfBoundsException expectedException) {
+            }
+        }
+    }
+
+    @Test
+    public void testForeignFileIsRejected() throws IOException {
+        final File file = new File(folder.newFolder(), "foreign.bin");
+        Files.write(file.toPath(), new byte[128]);
+        try {
+            new BinaryFingerprintDatabase(VERSION, file).close();
+            fail();
+        } catch (IOException expected) {
+        }
+    }
+
+    @Test
+    public void testFormulaCanOnlyBeWrittenOnce() throws IOException {
+        try (BinaryFingerprintDatabaseWriter writer = new BinaryFingerprintDatabaseWriter(VERSION, new File(folder.newFolder(), "db.bin"))) {
+            writer.write(formula(0), candidates(2, 0));
+            try {
+                writer.write(formula(0), candidates(2, 1));
+                fail();
+            } catch (IllegalArgumentException expected) {
+            }
+        }
+    }
+}
@@ -0,0 +1,495 @@
+/*
+ *
+ *  This file is part of the SIRIUS library for analyzing MS and MS/MS data
+ *
+ *  Copyright (C) 2013-2020 Kai Dührkop, Markus Fleischauer, Marcus Ludwig, Martin A. Hoffman and Sebastian Böcker,
+ *  Chair of Bioinformatics, Friedrich-Schilller University.
+ *
+ *  This library is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public
+ *  License as published by the Free Software Foundation; either
+ *  version 3 of the License, or (at your option) any later version.
+ *
+ *  This library is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License along with SIRIUS. If not, see <https://www.gnu.org/licenses/lgpl-3.0.txt>
+ */
+package de.unijena.bioinf.chemdb;
+
+import de.unijena.bioinf.ChemistryBase.chem.InChIs;
+import de.unijena.bioinf.ChemistryBase.chem.MolecularFormula;
+import de.unijena.bioinf.ChemistryBase.fp.ArrayFingerprint;
+import de.unijena.bioinf.ChemistryBase.fp.FPIter;
+import de.unijena.bioinf.ChemistryBase.fp.Fingerprint;
+import de.unijena.bioinf.ChemistryBase.fp.FingerprintVersion;
+import de.unijena.bioinf.babelms.CloseableIterator;
+import de.unijena.bioinf.ms.properties.PropertyManager;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.json.JsonException;
+import java.io.*;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Size bounded cache for the (unfiltered) candidate lists of molecular formulas, as downloaded by {@link RESTDatabase}.
+ * <p>
+ * Every formula is stored as a single file in a compact binary encoding. Files are written into a temporary file
+ * and atomically moved to their final location, such that several JVMs can safely share the same cache directory.
+ * If the directory exceeds its byte budget, the least recently used entries (by modification time, which is
+ * updated on every hit) are deleted. Eviction is guarded by a file lock on the cache directory.
+ * <p>
+ * The most recently used formulas are additionally kept (encoded) in memory, so hits do not need any disk access.
+ * Cache files of the old JSON format are read and converted on first access.
+ * <p>
+ * Use {@link #forDirectory(File, FingerprintVersion)} to get the cache of a directory, such that all users within the
+ * same JVM share its memory tier, metrics and the known directory size.
+ */
+public class FingerprintCandidateCache {
+    private static final Logger LOG = LoggerFactory.getLogger(FingerprintCandidateCache.class);
+
+    public static final long DEFAULT_MAX_DISK_BYTES = PropertyManager.getLong("de.unijena.bioinf.chemdb.cache.disk.maxBytes", 4L * 1024 * 1024 * 1024);
+    public static final long DEFAULT_MAX_MEMORY_BYTES = PropertyManager.getLong("de.unijena.bioinf.chemdb.cache.memory.maxBytes", 64L * 1024 * 1024);
+
+    protected static final String SUFFIX = ".bin", LEGACY_SUFFIX = ".json.gz", LOCK_FILE = ".cache.lock";
+    protected static final String TEMP_PREFIX = "sirius_formula", TEMP_SUFFIX = ".tmp";
+    // temporary files of crashed writers are deleted when they are older than this. Younger files might still be
+    // written by another process
+    protected static final long TEMP_FILE_MAX_AGE_MILLIS = 60 * 60 * 1000;
+    private static final int MAGIC = 0x46504343; // FPCC
+    private static final int FORMAT_VERSION = 1;
+    // after eviction the directory is shrunk to this fraction of its budget, such that we do not evict on every write
+    private static final double EVICTION_TARGET = 0.9;
+
+    protected final File cacheDir;
+    protected final FingerprintVersion version;
+    protected final long maxDiskBytes, maxMemoryBytes;
+
+    private final LinkedHashMap<MolecularFormula, byte[]> memory;
+    private long memoryBytes = 0;
+
+    // one instance per (canonical) cache directory and one eviction lock per directory within this JVM
+    private static final ConcurrentHashMap<File, FingerprintCandidateCache> CACHES = new ConcurrentHashMap<>();
+    private static final ConcurrentHashMap<File, Object> EVICTION_LOCKS = new ConcurrentHashMap<>();
+
+    private final AtomicLong diskBytes = new AtomicLong(-1);
+    // file locks are held by the whole JVM, so evictions of this process have to be serialized before locking
+    private final Object evictionLock;
+
+    private final AtomicLong memoryHits = new AtomicLong(), diskHits = new AtomicLong(), misses = new AtomicLong(),
+            writes = new AtomicLong(), evictions = new AtomicLong();
+
+    public FingerprintCandidateCache(@NotNull File cacheDir, @NotNull FingerprintVersion version) {
+        this(cacheDir, version, DEFAULT_MAX_DISK_BYTES, DEFAULT_MAX_MEMORY_BYTES);
+    }
+
+    /**
+     * @param cacheDir       directory of the cache, might be shared with other processes
+     * @param version        fingerprint version of the cached candidates
+     * @param maxDiskBytes   byte budget of the cache directory
+     * @param maxMemoryBytes byte budget of the in memory tier, 0 to disable it
+     */
+    public FingerprintCandidateCache(@NotNull File cacheDir, @NotNull FingerprintVersion version, long maxDiskBytes, long maxMemoryBytes) {
+        if (maxDiskBytes <= 0) throw new IllegalArgumentException("Byte budget of the cache has to be positive.");
+        this.cacheDir = cacheDir;
+        this.version = version;
+        this.maxDiskBytes = maxDiskBytes;
+        this.maxMemoryBytes = maxMemoryBytes;
+        this.memory = new LinkedHashMap<>(16, 0.75f, true);
+        this.evictionLock = EVICTION_LOCKS.computeIfAbsent(canonical(cacheDir), k -> new Object());
+        deleteLeftoverTempFiles();
+    }
+
+    /*
+        deletes temporary files which were not moved to their final location, e.g. because the writing process died
+     */
+    private void deleteLeftoverTempFiles() {
+        final File[] files = cacheDir.listFiles((dir, name) -> name.startsWith(TEMP_PREFIX) && name.endsWith(TEMP_SUFFIX));
+        if (files == null) return;
+        final long deadline = System.currentTimeMillis() - TEMP_FILE_MAX_AGE_MILLIS;
+        for (File file : files) {
+            if (file.lastModified() < deadline) deleteFile(file);
+        }
+    }
+
+    /**
+     * @return the cache of the given directory with default byte budgets. All calls with the same directory return
+     * the same instance.
+     * @throws IllegalArgumentException if the directory is already used for another fingerprint version
+     */
+    public static FingerprintCandidateCache forDirectory(@NotNull File cacheDir, @NotNull FingerprintVersion version) {
+        final FingerprintCandidateCache cache = CACHES.computeIfAbsent(canonical(cacheDir), dir -> new FingerprintCandidateCache(dir, version));
+        if (!cache.version.compatible(version))
+            throw new IllegalArgumentException("Cache directory '" + cacheDir.getAbsolutePath() + "' is already used for another fingerprint version.");
+        return cache;
+    }
+
+    private static File canonical(File dir) {
+        try {
+            return dir.getCanonicalFile();
+        } catch (IOException e) {
+            return dir.getAbsoluteFile();
+        }
+    }
+
+    /**
+     * @return the cached candidates of the given formula or null if the formula is not in the cache
+     */
+    @Nullable
+    public List<FingerprintCandidate> get(@NotNull MolecularFormula formula) {
+        byte[] entry;
+        synchronized (memory) {
+            entry = memory.get(formula);
+        }
+        if (entry != null) {
+            try {
+                final List<FingerprintCandidate> candidates = decode(entry);
+                memoryHits.incrementAndGet();
+                return candidates;
+            } catch (IOException e) {
+                LOG.error("Corrupted in memory cache entry for " + formula + ".", e);
+                removeFromMemory(formula);
+            }
+        }
+
+        final File file = fileOf(formula);
+        try {
+            entry = Files.readAllBytes(file.toPath());
+            final List<FingerprintCandidate> candidates = decode(entry);
+            // mark as recently used for eviction
+            file.setLastModified(System.currentTimeMillis());
+            putInMemory(formula, entry);
+            diskHits.incrementAndGet();
+            return candidates;
+        } catch (NoSuchFileException e) {
+            // not cached or evicted by another process
+        } catch (IOException e) {
+            LOG.error("Error when reading " + formula + " from cache. Deleting cache file '" + file.getAbsolutePath() + "'.", e);
+            deleteFile(file);
+        }
+
+        final List<FingerprintCandidate> legacy = readLegacy(formula);
+        if (legacy != null) {
+            diskHits.incrementAndGet();
+            return legacy;
+        }
+
+        misses.incrementAndGet();
+        return null;
+    }
+
+    /**
+     * Stores the candidates of the given formula. Candidates have to be unfiltered.
+     */
+    public void put(@NotNull MolecularFormula formula, @NotNull List<FingerprintCandidate> candidates) throws IOException {
+        final byte[] entry = encode(candidates);
+        putInMemory(formula, entry);
+
+        final File file = fileOf(formula);
+        cacheDir.mkdirs();
+        final File tempFile = File.createTempFile(TEMP_PREFIX, TEMP_SUFFIX, cacheDir);
+        final long replacedBytes;
+        try {
+            Files.write(tempFile.toPath(), entry);
+            // an existing entry is overwritten, so its size must not be counted twice
+            replacedBytes = file.length();
+            try {
+                Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            }
+        } finally {
+            Files.deleteIfExists(tempFile.toPath());
+        }
+        writes.incrementAndGet();
+
+        if (diskBytes.get() < 0) {
+            evict();
+        } else if (diskBytes.addAndGet(entry.length - replacedBytes) > maxDiskBytes) {
+            evict();
+        }
+    }
+
+    /**
+     * Deletes the least recently used files until the cache directory is below its byte budget. The directory is
+     * rescanned, as other processes might have changed it.
+     */
+    public void evict() throws IOException {
+        synchronized (evictionLock) {
+            if (!cacheDir.isDirectory()) {
+                diskBytes.set(0);
+                return;
+            }
+            try (final FileChannel channel = FileChannel.open(new File(cacheDir, LOCK_FILE).toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+                 final FileLock ignored = channel.lock()) {
+                final File[] files = cacheDir.listFiles((dir, name) -> name.endsWith(SUFFIX) || name.endsWith(LEGACY_SUFFIX));
+                if (files == null) throw new IOException("Cannot list cache directory '" + cacheDir.getAbsolutePath() + "'.");
+                final long[] lastModified = new long[files.length];
+                final Integer[] order = new Integer[files.length];
+                long total = 0;
+                for (int k = 0; k < files.length; ++k) {
+                    lastModified[k] = files[k].lastModified();
+                    total += files[k].length();
+                    order[k] = k;
+                }
+                if (total > maxDiskBytes) {
+                    Arrays.sort(order, Comparator.comparingLong(k -> lastModified[k]));
+                    final long target = (long) (maxDiskBytes * EVICTION_TARGET);
+                    int evicted = 0;
+                    for (int k = 0; k < order.length && total > target; ++k) {
+                        final File file = files[order[k]];
+                        final long size = file.length();
+                        if (deleteFile(file)) {
+                            total -= size;
+                            ++evicted;
+                        }
+                    }
+                    evictions.addAndGet(evicted);
+                    LOG.debug("Evicted " + evicted + " formulas from cache '" + cacheDir.getAbsolutePath() + "'.");
+                }
+                diskBytes.set(total);
+            }
+        }
+    }
+
+    /**
+     * removes all cached formulas from memory and disk
+     */
+    public void clear() throws IOException {
+        synchronized (memory) {
+            memory.clear();
+            memoryBytes = 0;
+        }
+        synchronized (evictionLock) {
+            final File[] files = cacheDir.listFiles((dir, name) -> name.endsWith(SUFFIX) || name.endsWith(LEGACY_SUFFIX));
+            if (files != null)
+                for (File file : files) deleteFile(file);
+            diskBytes.set(0);
+        }
+    }
+
+    public File getCacheDir() {
+        return cacheDir;
+    }
+
+    public long getMemoryHits() {
+        return memoryHits.get();
+    }
+
+    public long getDiskHits() {
+        return diskHits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public long getWrites() {
+        return writes.get();
+    }
+
+    public long getEvictions() {
+        return evictions.get();
+    }
+
+    public double getHitRate() {
+        final long hits = getMemoryHits() + getDiskHits();
+        final long total = hits + getMisses();
+        return total == 0 ? 0d : ((double) hits) / total;
+    }
+
+    /**
+     * @return size of the cache directory as known by this process or -1 if the directory was not scanned yet
+     */
+    public long getDiskBytes() {
+        return diskBytes.get();
+    }
+
+    public long getMemoryBytes() {
+        synchronized (memory) {
+            return memoryBytes;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "FingerprintCandidateCache{" + cacheDir + ", memory hits=" + getMemoryHits() + ", disk hits=" + getDiskHits() + ", misses=" + getMisses() + ", evictions=" + getEvictions() + ", disk bytes=" + getDiskBytes() + ", memory bytes=" + getMemoryBytes() + "}";
+    }
+
+    protected File fileOf(MolecularFormula formula) {
+        return new File(cacheDir, formula.toString() + SUFFIX);
+    }
+
+    private void putInMemory(MolecularFormula formula, byte[] entry) {
+        if (entry.length > maxMemoryBytes) return;
+        synchronized (memory) {
+            final byte[] old = memory.put(formula, entry);
+            if (old != null) memoryBytes -= old.length;
+            memoryBytes += entry.length;
+            final Iterator<byte[]> iter = memory.values().iterator();
+            while (memoryBytes > maxMemoryBytes && iter.hasNext()) {
+                memoryBytes -= iter.next().length;
+                iter.remove();
+            }
+        }
+    }
+
+    private void removeFromMemory(MolecularFormula formula) {
+        synchronized (memory) {
+            final byte[] old = memory.remove(formula);
+            if (old != null) memoryBytes -= old.length;
+        }
+    }
+
+    private static boolean deleteFile(File file) {
+        try {
+            return Files.deleteIfExists(file.toPath());
+        } catch (IOException e) {
+            LOG.warn("Cannot delete cache file '" + file.getAbsolutePath() + "'.", e);
+            return false;
+        }
+    }
+
+    /*
+        reads a cache file of the old json format and converts it into the binary format
+     */
+    private List<FingerprintCandidate> readLegacy(MolecularFormula formula) {
+        final File file = new File(cacheDir, formula.toString() + LEGACY_SUFFIX);
+        if (!file.exists()) return null;
+        final List<FingerprintCandidate> candidates = new ArrayList<>();
+        try (final CloseableIterator<FingerprintCandidate> fciter = new JSONReader().readFingerprints(version, new InputStreamReader(new GZIPInputStream(new BufferedInputStream(new FileInputStream(file))), StandardCharsets.UTF_8))) {
+            while (fciter.hasNext())
+                candidates.add(fciter.next());
+        } catch (IOException | JsonException e) {
+            LOG.error("Error when reading " + formula + " from cache. Deleting cache file '" + file.getAbsolutePath() + "'.");
+            deleteFile(file);
+            return null;
+        }
+        try {
+            put(formula, candidates);
+            deleteFile(file);
+        } catch (IOException e) {
+            LOG.warn("Cannot convert cache file '" + file.getAbsolutePath() + "'.", e);
+        }
+        return candidates;
+    }
+
+    protected byte[] encode(List<FingerprintCandidate> candidates) throws IOException {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream(64 + candidates.size() * 256);
+        try (final DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeInt(MAGIC);
+            out.writeInt(FORMAT_VERSION);
+            out.writeInt(version.size());
+            out.writeInt(candidates.size());
+            for (FingerprintCandidate c : candidates) {
+                writeString(out, c.getInchi().key);
+                writeString(out, c.getInchi().in3D);
+                writeString(out, c.getName());
+                writeString(out, c.getSmiles());
+                out.writeLong(c.getBitset());
+                out.writeDouble(c.getXlogp());
+                out.writeInt(c.getpLayer());
+                out.writeInt(c.getqLayer());
+
+                final DBLink[] links = c.getLinks();
+                out.writeInt(links == null ? -1 : links.length);
+                if (links != null) {
+                    for (DBLink link : links) {
+                        writeString(out, link.name);
+                        writeString(out, link.id);
+                    }
+                }
+
+                final int[] pubmedIds = c.getPubmedIDs() == null ? null : c.getPubmedIDs().getCopyOfPubmedIDs();
+                out.writeInt(pubmedIds == null ? -1 : pubmedIds.length);
+                if (pubmedIds != null)
+                    for (int id : pubmedIds) out.writeInt(id);
+
+                final Fingerprint fp = c.getFingerprint();
+                if (fp.getFingerprintVersion().size() != version.size())
+                    throw new IllegalArgumentException("Fingerprint of " + c.getInchiKey2D() + " is incompatible to the fingerprint version of the cache.");
+                out.writeInt(fp.cardinality());
+                for (FPIter iter : fp.presentFingerprints())
+                    out.writeShort(iter.getIndex());
+            }
+        }
+        return bytes.toByteArray();
+    }
+
+    protected List<FingerprintCandidate> decode(byte[] entry) throws IOException {
+        try (final DataInputStream in = new DataInputStream(new ByteArrayInputStream(entry))) {
+            if (in.readInt() != MAGIC || in.readInt() != FORMAT_VERSION)
+                throw new IOException("Unknown cache format.");
+            if (in.readInt() != version.size())
+                throw new IOException("Cache entry has an incompatible fingerprint version.");
+            final int n = in.readInt();
+            final ArrayList<FingerprintCandidate> candidates = new ArrayList<>(n);
+            for (int i = 0; i < n; ++i) {
+                final String key = readString(in), inchi = readString(in), name = readString(in), smiles = readString(in);
+                final long bitset = in.readLong();
+                final double xlogp = in.readDouble();
+                final int pLayer = in.readInt(), qLayer = in.readInt();
+
+                final int numberOfLinks = in.readInt();
+                DBLink[] links = null;
+                if (numberOfLinks >= 0) {
+                    links = new DBLink[numberOfLinks];
+                    for (int k = 0; k < numberOfLinks; ++k)
+                        links[k] = new DBLink(readString(in), readString(in));
+                }
+
+                final int numberOfPubmedIds = in.readInt();
+                int[] pubmedIds = null;
+                if (numberOfPubmedIds >= 0) {
+                    pubmedIds = new int[numberOfPubmedIds];
+                    for (int k = 0; k < numberOfPubmedIds; ++k) pubmedIds[k] = in.readInt();
+                }
+
+                final short[] indizes = new short[in.readInt()];
+                for (int k = 0; k < indizes.length; ++k) indizes[k] = in.readShort();
+
+                final FingerprintCandidate candidate = new FingerprintCandidate(InChIs.newInChI(key, inchi), new ArrayFingerprint(version, indizes));
+                candidate.setName(name);
+                candidate.setSmiles(smiles);
+                candidate.setBitset(bitset);
+                candidate.setXlogp(xlogp);
+                candidate.setpLayer(pLayer);
+                candidate.setqLayer(qLayer);
+                candidate.setLinks(links);
+                if (pubmedIds != null) candidate.setPubmedIDs(new PubmedLinks(pubmedIds));
+                candidates.add(candidate);
+            }
+            return candidates;
+        }
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        if (value == null) {
+            out.writeInt(-1);
+        } else {
+            final byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+            out.writeInt(bytes.length);
+            out.write(bytes);
+        }
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        final int length = in.readInt();
+        if (length < 0) return null;
+        final byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
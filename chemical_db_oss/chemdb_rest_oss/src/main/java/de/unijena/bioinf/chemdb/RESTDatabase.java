@@ -26,7 +26,6 @@ import de.unijena.bioinf.ChemistryBase.chem.PrecursorIonType;
 import de.unijena.bioinf.ChemistryBase.fp.CdkFingerprintVersion;
 import de.unijena.bioinf.ChemistryBase.jobs.SiriusJobs;
 import de.unijena.bioinf.ChemistryBase.ms.Deviation;
-import de.unijena.bioinf.babelms.CloseableIterator;
 import de.unijena.bioinf.fingerid.utils.FingerIDProperties;
 import de.unijena.bioinf.jjobs.Partition;
 import de.unijena.bioinf.ms.rest.client.chemdb.ChemDBClient;
@@ -37,18 +36,14 @@ import org.jetbrains.annotations.Nullable;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import javax.json.JsonException;
 import java.io.*;
 import java.net.URI;
 import java.nio.charset.StandardCharsets;
-import java.nio.file.Files;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.EnumSet;
 import java.util.List;
 import java.util.stream.Collectors;
-import java.util.zip.GZIPInputStream;
-import java.util.zip.GZIPOutputStream;
 
 public class RESTDatabase extends AbstractChemicalDatabase {
     private static Logger logger = LoggerFactory.getLogger(RESTDatabase.class);
@@ -74,6 +69,7 @@ public class RESTDatabase extends AbstractChemicalDatabase {
     private final CloseableHttpClient client;
     protected ChemDBClient chemDBClient;
     protected File cacheDir;
+    protected final FingerprintCandidateCache cache;
 
     protected long filter;
 
@@ -88,6 +84,7 @@ public class RESTDatabase extends AbstractChemicalDatabase {
     public RESTDatabase(@Nullable File cacheDir, long filter, @NotNull ChemDBClient chemDBClient, @NotNull CloseableHttpClient client) {
         this.filter = filter;
         this.cacheDir = cacheDir != null ? cacheDir : defaultCacheDir();
+        this.cache = FingerprintCandidateCache.forDirectory(this.cacheDir, CdkFingerprintVersion.getDefault());
         this.chemDBClient = chemDBClient;
         this.client = client;
     }
@@ -144,26 +141,16 @@ public class RESTDatabase extends AbstractChemicalDatabase {
         }
     }*/
 
+    public FingerprintCandidateCache getCache() {
+        return cache;
+    }
+
     @Override
     public <T extends Collection<FingerprintCandidate>> T lookupStructuresAndFingerprintsByFormula(MolecularFormula formula, T fingerprintCandidates) throws ChemicalDatabaseException {
-        final File stfile = new File(cacheDir, "/" + formula.toString() + ".json.gz");
         try {
-            List<FingerprintCandidate> fpcs = new ArrayList<>();
-            if (stfile.exists()) {
-                try {
-                    final GZIPInputStream zin = new GZIPInputStream(new BufferedInputStream(new FileInputStream(stfile)));
-                    try (final CloseableIterator<FingerprintCandidate> fciter = new JSONReader().readFingerprints(CdkFingerprintVersion.getDefault(), new InputStreamReader(zin))) {
-                        while (fciter.hasNext())
-                            fpcs.add(fciter.next());
-                    }
-                } catch (IOException | JsonException e) {
-                    LoggerFactory.getLogger(RESTDatabase.class).error("Error when searching for " + formula.toString() + " in file database. Deleting cache file '" + stfile.getAbsolutePath() + "' an try fetching from Server");
-                    stfile.delete();
-                    fpcs = requestFormula(stfile, formula);
-                }
-            } else {
-                fpcs = requestFormula(stfile, formula);
-            }
+            List<FingerprintCandidate> fpcs = cache.get(formula);
+            if (fpcs == null)
+                fpcs = requestFormula(formula);
 
             fingerprintCandidates.addAll(
                     fpcs.stream().filter(ChemDBs.inFilter((it)-> it.bitset,filter)).collect(Collectors.toList()));
@@ -211,30 +198,14 @@ public class RESTDatabase extends AbstractChemicalDatabase {
         return fingerprintCandidates;
     }*/
 
-    private List<FingerprintCandidate> requestFormula(final @NotNull File output, MolecularFormula formula) throws IOException {
+    private List<FingerprintCandidate> requestFormula(MolecularFormula formula) throws IOException {
         //get unfiltered list from server to write cache.
         final List<FingerprintCandidate> fpcs = chemDBClient.getCompounds(formula, DataSource.ALL.flag(), client);
 
         // write cache in background -> cache has to be unfiltered
         SiriusJobs.runInBackground(() -> {
-            output.getParentFile().mkdirs();
-            final File tempFile = File.createTempFile("sirius_formula", ".json.gz", output.getParentFile());
-            try {
-                try (final GZIPOutputStream fout = new GZIPOutputStream(new FileOutputStream(tempFile))) {
-                    try (final BufferedWriter br = new BufferedWriter(new OutputStreamWriter(fout))) {
-                        FingerprintCandidate.toJSONList(fpcs, br);
-                    }
-                }
-
-                // move tempFile is canonical on same fs
-                if (!output.exists())
-                    if (!tempFile.renameTo(output))
-                        tempFile.delete();
-
-                return true;
-            } finally {
-                Files.deleteIfExists(tempFile.toPath());
-            }
+            cache.put(formula, fpcs);
+            return true;
         });
 
         return fpcs;
@@ -0,0 +1,203 @@
+package de.unijena.bioinf.chemdb;
+
+import de.unijena.bioinf.ChemistryBase.chem.InChIs;
+import de.unijena.bioinf.ChemistryBase.chem.MolecularFormula;
+import de.unijena.bioinf.ChemistryBase.fp.ArrayFingerprint;
+import de.unijena.bioinf.ChemistryBase.fp.CdkFingerprintVersion;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.*;
+
+import static org.junit.Assert.*;
+
+public class FingerprintCandidateCacheTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static final CdkFingerprintVersion VERSION = CdkFingerprintVersion.getDefault();
+
+    private static List<FingerprintCandidate> candidates(int n, long seed) {
+        final Random r = new Random(seed);
+        final ArrayList<FingerprintCandidate> xs = new ArrayList<>(n);
+        for (int i = 0; i < n; ++i) {
+            final int[] bits = r.ints(0, VERSION.size()).distinct().limit(40).sorted().toArray();
+            final short[] indizes = new short[bits.length];
+            for (int k = 0; k < bits.length; ++k) indizes[k] = (short) bits[k];
+            final String key = "KEY" + seed + "X" + i;
+            final FingerprintCandidate c = new FingerprintCandidate(InChIs.newInChI(key, "InChI=1S/" + key), new ArrayFingerprint(VERSION, indizes));
+            c.setName("compound " + i);
+            c.setSmiles(i % 2 == 0 ? "CCO" : null);
+            c.setBitset(r.nextLong());
+            c.setXlogp(r.nextDouble());
+            c.setpLayer(i);
+            c.setqLayer(-i);
+            c.setLinks(new DBLink[]{new DBLink("PubChem", String.valueOf(i))});
+            xs.add(c);
+        }
+        return xs;
+    }
+
+    private static void assertSameCandidates(List<FingerprintCandidate> expected, List<FingerprintCandidate> actual) {
+        assertNotNull(actual);
+        assertEquals(expected.size(), actual.size());
+        for (int i = 0; i < expected.size(); ++i) {
+            final FingerprintCandidate a = expected.get(i), b = actual.get(i);
+            assertEquals(a.getInchi().key, b.getInchi().key);
+            assertEquals(a.getInchi().in3D, b.getInchi().in3D);
+            assertEquals(a.getName(), b.getName());
+            assertEquals(a.getSmiles(), b.getSmiles());
+            assertEquals(a.getBitset(), b.getBitset());
+            assertEquals(a.getXlogp(), b.getXlogp(), 0d);
+            assertEquals(a.getpLayer(), b.getpLayer());
+            assertEquals(a.getqLayer(), b.getqLayer());
+            assertEquals(a.getLinks().length, b.getLinks().length);
+            assertEquals(a.getLinks()[0].name, b.getLinks()[0].name);
+            assertEquals(a.getLinks()[0].id, b.getLinks()[0].id);
+            assertArrayEquals(a.getFingerprint().toIndizesArray(), b.getFingerprint().toIndizesArray());
+        }
+    }
+
+    private static MolecularFormula formula(int i) {
+        return MolecularFormula.parseOrThrow("C" + (i + 1) + "H" + (2 * i + 4) + "O");
+    }
+
+    @Test
+    public void testPutAndGet() throws IOException {
+        final FingerprintCandidateCache cache = new FingerprintCandidateCache(folder.newFolder(), VERSION);
+        final List<FingerprintCandidate> xs = candidates(25, 1);
+        assertNull(cache.get(formula(0)));
+        assertEquals(1, cache.getMisses());
+
+        cache.put(formula(0), xs);
+        assertSameCandidates(xs, cache.get(formula(0)));
+        assertEquals(1, cache.getMemoryHits());
+        assertEquals(1, cache.getWrites());
+        assertNull(cache.get(formula(1)));
+    }
+
+    @Test
+    public void testReadFromDisk() throws IOException {
+        final File dir = folder.newFolder();
+        final List<FingerprintCandidate> xs = candidates(10, 2);
+        new FingerprintCandidateCache(dir, VERSION).put(formula(0), xs);
+
+        // a second cache without memory tier has to read the entry from disk
+        final FingerprintCandidateCache other = new FingerprintCandidateCache(dir, VERSION, FingerprintCandidateCache.DEFAULT_MAX_DISK_BYTES, 0);
+        assertSameCandidates(xs, other.get(formula(0)));
+        assertEquals(1, other.getDiskHits());
+        assertEquals(0, other.getMemoryHits());
+    }
+
+    @Test
+    public void testEvictLeastRecentlyUsed() throws IOException {
+        final File dir = folder.newFolder();
+        final FingerprintCandidateCache probe = new FingerprintCandidateCache(dir, VERSION);
+        probe.put(formula(0), candidates(5, 3));
+        final long entrySize = probe.getDiskBytes();
+        probe.clear();
+
+        final FingerprintCandidateCache cache = new FingerprintCandidateCache(dir, VERSION, 4 * entrySize + entrySize / 2, 0);
+        for (int i = 0; i < 4; ++i) {
+            cache.put(formula(i), candidates(5, 3));
+            assertTrue(cache.fileOf(formula(i)).setLastModified(1000L * (i + 1)));
+        }
+        assertEquals(0, cache.getEvictions());
+        // formula 0 becomes the most recently used one
+        assertTrue(cache.fileOf(formula(0)).setLastModified(10000L));
+        cache.put(formula(4), candidates(5, 3));
+
+        assertTrue(cache.getEvictions() > 0);
+        assertTrue(cache.getDiskBytes() <= 4 * entrySize + entrySize / 2);
+        assertFalse(cache.fileOf(formula(1)).exists());
+        assertTrue(cache.fileOf(formula(0)).exists());
+        assertTrue(cache.fileOf(formula(4)).exists());
+        assertNull(cache.get(formula(1)));
+        assertNotNull(cache.get(formula(0)));
+    }
+
+    @Test
+    public void testOverwrittenEntriesAreNotCountedTwice() throws IOException {
+        final FingerprintCandidateCache cache = new FingerprintCandidateCache(folder.newFolder(), VERSION);
+        cache.put(formula(0), candidates(5, 6));
+        cache.put(formula(1), candidates(5, 7));
+        final long sizeOfOther = cache.fileOf(formula(1)).length();
+        for (int n : new int[]{5, 5, 20, 2}) {
+            cache.put(formula(0), candidates(n, 6));
+            assertEquals(sizeOfOther + cache.fileOf(formula(0)).length(), cache.getDiskBytes());
+        }
+        assertEquals(0, cache.getEvictions());
+    }
+
+    @Test
+    public void testLeftoverTempFilesAreDeleted() throws IOException {
+        final File dir = folder.newFolder();
+        final File leftover = File.createTempFile("sirius_formula", ".tmp", dir);
+        assertTrue(leftover.setLastModified(System.currentTimeMillis() - 2 * FingerprintCandidateCache.TEMP_FILE_MAX_AGE_MILLIS));
+        // might still be written by another process
+        final File recent = File.createTempFile("sirius_formula", ".tmp", dir);
+        final File other = new File(dir, "other.tmp");
+        assertTrue(other.createNewFile());
+        assertTrue(other.setLastModified(leftover.lastModified()));
+
+        new FingerprintCandidateCache(dir, VERSION);
+        assertFalse(leftover.exists());
+        assertTrue(recent.exists());
+        assertTrue(other.exists());
+    }
+
+    @Test
+    public void testOneCachePerDirectory() throws IOException {
+        final File dir = folder.newFolder();
+        final FingerprintCandidateCache cache = FingerprintCandidateCache.forDirectory(dir, VERSION);
+        assertSame(cache, FingerprintCandidateCache.forDirectory(new File(new File(dir, "."), "."), VERSION));
+        assertNotSame(cache, FingerprintCandidateCache.forDirectory(folder.newFolder(), VERSION));
+
+        cache.put(formula(0), candidates(3, 4));
+        assertNotNull(FingerprintCandidateCache.forDirectory(dir, VERSION).get(formula(0)));
+        assertEquals(1, cache.getMemoryHits());
+    }
+
+    @Test(timeout = 60000)
+    public void testConcurrentEvictionOfSameDirectory() throws Exception {
+        final File dir = folder.newFolder();
+        final List<FingerprintCandidate> xs = candidates(5, 5);
+        final FingerprintCandidateCache[] caches = new FingerprintCandidateCache[4];
+        for (int k = 0; k < caches.length; ++k)
+            caches[k] = new FingerprintCandidateCache(dir, VERSION, 8 * 1024, 0);
+
+        final ExecutorService service = Executors.newFixedThreadPool(caches.length);
+        try {
+            final CyclicBarrier barrier = new CyclicBarrier(caches.length);
+            final ArrayList<Future<?>> futures = new ArrayList<>();
+            for (int k = 0; k < caches.length; ++k) {
+                final FingerprintCandidateCache cache = caches[k];
+                final int offset = k * 100;
+                futures.add(service.submit(() -> {
+                    barrier.await();
+                    for (int i = 0; i < 50; ++i) {
+                        cache.put(formula(offset + i), xs);
+                        cache.evict();
+                    }
+                    return null;
+                }));
+            }
+            for (Future<?> f : futures) f.get();
+        } finally {
+            service.shutdownNow();
+        }
+
+        final FingerprintCandidateCache cache = new FingerprintCandidateCache(dir, VERSION, 8 * 1024, 0);
+        cache.evict();
+        assertTrue(cache.getDiskBytes() <= 8 * 1024);
+        assertTrue(Arrays.stream(caches).mapToLong(FingerprintCandidateCache::getEvictions).sum() > 0);
+    }
+}
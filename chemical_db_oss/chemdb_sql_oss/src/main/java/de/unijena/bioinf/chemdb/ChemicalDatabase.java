@@ -20,6 +20,8 @@
 
 package de.unijena.bioinf.chemdb;
 
+import com.google.common.collect.Iterables;
+import com.google.common.collect.Lists;
 import de.unijena.bioinf.ChemistryBase.chem.InChI;
 import de.unijena.bioinf.ChemistryBase.chem.InChIs;
 import de.unijena.bioinf.ChemistryBase.chem.MolecularFormula;
@@ -68,6 +70,9 @@ public class ChemicalDatabase extends AbstractChemicalDatabase implements Pooled
     public final static String PUBCHEM_REF_TABLE = REF_SCHEME + ".pubchem";
 
     private static final int DEFAULT_SQL_CAPACITY = 5;
+    // number of formulas/inchikeys that are send together within a single array query
+    private static final int FORMULA_BATCH_SIZE = 100;
+    private static final int INCHIKEY_BATCH_SIZE = 1000;
     protected static final Logger log = LoggerFactory.getLogger(ChemicalDatabase.class);
 
     static {
@@ -96,6 +101,14 @@ public class ChemicalDatabase extends AbstractChemicalDatabase implements Pooled
     }
 
 
+    /**
+     * initialize a chemical database using the given connector. Allows to connect to other databases than
+     * the default postgres instance, e.g. to an embedded database with the same schema.
+     */
+    protected ChemicalDatabase(ConnectionPool.Connector<Connection> connector, int numOfConnections) {
+        this.connection = new ConnectionPool<>(connector, numOfConnections);
+    }
+
     protected ChemicalDatabase(ChemicalDatabase db) {
         this.connection = db.connection.newSharedConnectionPool();
         this.host = db.host;
@@ -307,12 +320,66 @@ public class ChemicalDatabase extends AbstractChemicalDatabase implements Pooled
         ArrayList<CompoundCandidate> candidates = new ArrayList<>();
         try (final ResultSet set = statement.executeQuery()) {
             while (set.next()) {
-                final CompoundCandidate candidate = new CompoundCandidate(newInChI(set.getString(1), set.getString(2)));
-                candidate.setName(set.getString(3));
-                candidate.setSmiles(set.getString(4));
-                candidate.setBitset(set.getLong(5));
-                candidate.setXlogp(set.getObject(6) != null ? set.getDouble(6): Double.NaN);
-                candidates.add(candidate);
+                candidates.add(parseCompoundCandidate(set));
+            }
+        }
+        return candidates;
+    }
+
+    private static CompoundCandidate parseCompoundCandidate(ResultSet set) throws SQLException {
+        final CompoundCandidate candidate = new CompoundCandidate(newInChI(set.getString(1), set.getString(2)));
+        candidate.setName(set.getString(3));
+        candidate.setSmiles(set.getString(4));
+        candidate.setBitset(set.getLong(5));
+        candidate.setXlogp(set.getObject(6) != null ? set.getDouble(6) : Double.NaN);
+        return candidate;
+    }
+
+    @Override
+    public void lookupStructuresByFormulas(Collection<MolecularFormula> formulas, FormulaCandidatesConsumer<CompoundCandidate> consumer) throws ChemicalDatabaseException {
+        lookupStructuresByFormulas(DataSource.ALL.flag(), formulas, consumer);
+    }
+
+    /**
+     * Lookup structures for many formulas. Formulas are send in batches as array parameter to the database,
+     * such that there is one query per batch instead of one query per formula.
+     */
+    public void lookupStructuresByFormulas(long filter, Collection<MolecularFormula> formulas, FormulaCandidatesConsumer<CompoundCandidate> consumer) throws ChemicalDatabaseException {
+        try (final PooledConnection<Connection> c = connection.orderConnection()) {
+            for (List<MolecularFormula> batch : Iterables.partition(new LinkedHashSet<>(formulas), FORMULA_BATCH_SIZE)) {
+                for (Map.Entry<MolecularFormula, List<CompoundCandidate>> e : lookupStructuresByFormulas(filter, batch, c).entrySet())
+                    consumer.accept(e.getKey(), e.getValue());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ChemicalDatabaseException e) {
+            throw e;
+        } catch (IOException | SQLException e) {
+            throw new ChemicalDatabaseException(e);
+        }
+    }
+
+    private final static String SELECT_BY_FORMULAS = "SELECT inchi_key_1, inchi, name, smiles, flags, xlogp, formula FROM ";
+    private final static String SELECT_BY_FORMULAS_FILTERED = SELECT_BY_FORMULAS + STRUCTURES_TABLE + " WHERE formula = ANY(?) AND (flags & %s) != 0";
+    private final static String SELECT_BY_FORMULAS_UNFILTERED = SELECT_BY_FORMULAS + STRUCTURES_TABLE + " WHERE formula = ANY(?)";
+
+    private LinkedHashMap<MolecularFormula, List<CompoundCandidate>> lookupStructuresByFormulas(long filter, @NotNull List<MolecularFormula> formulas, @NotNull final PooledConnection<Connection> c) throws SQLException {
+        final LinkedHashMap<MolecularFormula, List<CompoundCandidate>> candidates = new LinkedHashMap<>(formulas.size());
+        final HashMap<String, List<CompoundCandidate>> candidatesByFormula = new HashMap<>(formulas.size());
+        for (MolecularFormula formula : formulas) {
+            final ArrayList<CompoundCandidate> list = new ArrayList<>();
+            candidates.put(formula, list);
+            candidatesByFormula.put(formula.toString(), list);
+        }
+
+        try (final PreparedStatement statement = c.connection.prepareStatement(filter == 0 ? SELECT_BY_FORMULAS_UNFILTERED : String.format(SELECT_BY_FORMULAS_FILTERED, filter))) {
+            statement.setArray(1, c.connection.createArrayOf("varchar", candidatesByFormula.keySet().toArray()));
+            try (final ResultSet set = statement.executeQuery()) {
+                while (set.next()) {
+                    final List<CompoundCandidate> list = candidatesByFormula.get(set.getString(7));
+                    if (list != null)
+                        list.add(parseCompoundCandidate(set));
+                }
             }
         }
         return candidates;
@@ -343,13 +410,8 @@ public class ChemicalDatabase extends AbstractChemicalDatabase implements Pooled
                     while (r.next()) {
                         final String inchikey = r.getString(1);
                         final CompoundCandidate compoundCandidate = hashMap.get(inchikey);
-                        if (compoundCandidate != null) {
-                            ResultSet rs = r.getArray(2).getResultSet();
-                            TIntSet idSet = new TIntHashSet();
-                            while (rs.next())
-                                idSet.add(rs.getInt(2));
-                            compoundCandidate.setPubmedIDs(new PubmedLinks(idSet));
-                        }
+                        if (compoundCandidate != null)
+                            compoundCandidate.setPubmedIDs(parsePubmedLinks(r, 2));
                     }
                 }
             }
@@ -379,15 +441,85 @@ public class ChemicalDatabase extends AbstractChemicalDatabase implements Pooled
         }
     }
 
+    @Override
+    public void lookupStructuresAndFingerprintsByFormulas(Collection<MolecularFormula> formulas, FormulaCandidatesConsumer<FingerprintCandidate> consumer) throws ChemicalDatabaseException {
+        lookupStructuresAndFingerprintsByFormulas(DataSource.ALL.flag(), formulas, consumer);
+    }
+
+    /**
+     * Lookup structures and fingerprints for many formulas. Formulas are send in batches as array parameter to the
+     * database, such that there are three queries per batch (structures, citations, fingerprints) instead of three
+     * queries per formula. The candidates of a batch are handed over to the consumer before the next batch is queried.
+     */
+    public void lookupStructuresAndFingerprintsByFormulas(long filter, Collection<MolecularFormula> formulas, FormulaCandidatesConsumer<FingerprintCandidate> consumer) throws ChemicalDatabaseException {
+        try (final PooledConnection<Connection> c = connection.orderConnection()) {
+            for (List<MolecularFormula> batch : Iterables.partition(new LinkedHashSet<>(formulas), FORMULA_BATCH_SIZE)) {
+                // first lookup structures
+                final LinkedHashMap<MolecularFormula, List<CompoundCandidate>> structures = lookupStructuresByFormulas(filter, batch, c);
+                final HashMap<String, CompoundCandidate> hashMap = new HashMap<>();
+                for (List<CompoundCandidate> candidates : structures.values())
+                    for (CompoundCandidate candidate : candidates)
+                        hashMap.put(candidate.getInchiKey2D(), candidate);
+
+                final LinkedHashMap<MolecularFormula, List<FingerprintCandidate>> fingerprintCandidates = new LinkedHashMap<>(batch.size());
+                final HashMap<String, List<FingerprintCandidate>> fingerprintCandidatesByFormula = new HashMap<>(batch.size());
+                for (MolecularFormula formula : batch) {
+                    final ArrayList<FingerprintCandidate> list = new ArrayList<>(structures.get(formula).size());
+                    fingerprintCandidates.put(formula, list);
+                    fingerprintCandidatesByFormula.put(formula.toString(), list);
+                }
+                final Array formulaArray = c.connection.createArrayOf("varchar", fingerprintCandidatesByFormula.keySet().toArray());
+
+                // optionally lookup citations
+                try (final PreparedStatement statement = c.connection.prepareStatement("SELECT inchi_key_1, pmids FROM meta_information WHERE formula = ANY(?)")) {
+                    statement.setArray(1, formulaArray);
+                    try (final ResultSet r = statement.executeQuery()) {
+                        while (r.next()) {
+                            final CompoundCandidate compoundCandidate = hashMap.get(r.getString(1));
+                            if (compoundCandidate != null)
+                                compoundCandidate.setPubmedIDs(parsePubmedLinks(r, 2));
+                        }
+                    }
+                }
+
+                // then lookup fingerprints
+                try (final PreparedStatement statement = c.connection.prepareStatement("SELECT inchi_key_1, formula, fingerprint FROM " + FINGERPRINT_TABLE + " WHERE fp_id = " + FINGERPRINT_ID + " AND formula = ANY(?)")) {
+                    statement.setArray(1, formulaArray);
+                    try (final ResultSet r = statement.executeQuery()) {
+                        while (r.next()) {
+                            final CompoundCandidate compoundCandidate = hashMap.get(r.getString(1));
+                            final List<FingerprintCandidate> list = fingerprintCandidatesByFormula.get(r.getString(2));
+                            if (compoundCandidate != null && list != null)
+                                list.add(new FingerprintCandidate(compoundCandidate, parseFingerprint(r, 3)));
+                        }
+                    }
+                }
+
+                for (Map.Entry<MolecularFormula, List<FingerprintCandidate>> e : fingerprintCandidates.entrySet())
+                    consumer.accept(e.getKey(), e.getValue());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ChemicalDatabaseException e) {
+            throw e;
+        } catch (IOException | SQLException e) {
+            throw new ChemicalDatabaseException(e);
+        }
+    }
+
     @Override
     public List<FingerprintCandidate> lookupFingerprintsByInchis(Iterable<String> inchi_keys) throws ChemicalDatabaseException {
         final ArrayList<FingerprintCandidate> candidates = new ArrayList<>();
+        final List<String> keys = Lists.newArrayList(inchi_keys);
         try (final PooledConnection<Connection> c = connection.orderConnection()) {
-            try (final PreparedStatement statement = c.connection.prepareStatement("SELECT s.inchi_key_1, s.inchi, s.name, s.smiles, s.flags, s.xlogp, f.fingerprint FROM "+STRUCTURES_TABLE+" as s, "+FINGERPRINT_TABLE+" as f WHERE f.fp_id = "+FINGERPRINT_ID+" AND s.inchi_key_1 = ? AND f.inchi_key_1 = s.inchi_key_1")) {
-                for (String inchikey : inchi_keys) {
-                    statement.setString(1, inchikey);
+            final HashMap<String, FingerprintCandidate> found = new HashMap<>(keys.size());
+            try (final PreparedStatement statement = c.connection.prepareStatement("SELECT s.inchi_key_1, s.inchi, s.name, s.smiles, s.flags, s.xlogp, f.fingerprint FROM "+STRUCTURES_TABLE+" as s, "+FINGERPRINT_TABLE+" as f WHERE f.fp_id = "+FINGERPRINT_ID+" AND s.inchi_key_1 = ANY(?) AND f.inchi_key_1 = s.inchi_key_1")) {
+                for (List<String> batch : Iterables.partition(new LinkedHashSet<>(keys), INCHIKEY_BATCH_SIZE)) {
+                    statement.setArray(1, c.connection.createArrayOf("varchar", batch.toArray()));
                     try (final ResultSet set = statement.executeQuery()) {
-                        if (set.next()) {
+                        while (set.next()) {
+                            if (found.containsKey(set.getString(1)))
+                                continue;
                             final FingerprintCandidate candidate = new FingerprintCandidate(InChIs.newInChI(set.getString(1), set.getString(2)), parseFingerprint(set, 7));
                             candidate.setName(set.getString(3));
                             candidate.setSmiles(set.getString(4));
@@ -395,11 +527,17 @@ public class ChemicalDatabase extends AbstractChemicalDatabase implements Pooled
                             //candidate.setpLayer(set.getInt(6));
                             //candidate.setqLayer(set.getInt(7));
                             candidate.setXlogp(set.getDouble(6));
-                            candidates.add(candidate);
+                            found.put(set.getString(1), candidate);
                         }
                     }
                 }
             }
+            // keep order of the requested keys
+            for (String inchikey : keys) {
+                final FingerprintCandidate candidate = found.get(inchikey);
+                if (candidate != null)
+                    candidates.add(candidate);
+            }
             return candidates;
         } catch (InterruptedException e) {
             Thread.currentThread().interrupt();
@@ -413,17 +551,24 @@ public class ChemicalDatabase extends AbstractChemicalDatabase implements Pooled
     public List<InChI> lookupManyInchisByInchiKeys(Iterable<String> inchi_keys) throws ChemicalDatabaseException {
         final ArrayList<InChI> candidates = new ArrayList<>();
         try (final PooledConnection<Connection> c = connection.orderConnection()) {
-            try (final PreparedStatement statement = c.connection.prepareStatement("SELECT inchi_key_1, inchi FROM "+STRUCTURES_TABLE+" WHERE inchi_key_1 = ?")) {
+            final List<String> keys = Lists.newArrayList(inchi_keys);
+            final HashMap<String, InChI> found = new HashMap<>(keys.size());
+            try (final PreparedStatement statement = c.connection.prepareStatement("SELECT inchi_key_1, inchi FROM "+STRUCTURES_TABLE+" WHERE inchi_key_1 = ANY(?)")) {
                 statement.setFetchSize(10000);
-                for (String inchikey : inchi_keys) {
-                    statement.setString(1, inchikey);
+                for (List<String> batch : Iterables.partition(new LinkedHashSet<>(keys), INCHIKEY_BATCH_SIZE)) {
+                    statement.setArray(1, c.connection.createArrayOf("varchar", batch.toArray()));
                     try (final ResultSet set = statement.executeQuery()) {
-                        if (set.next()) {
-                            candidates.add(InChIs.newInChI(set.getString(1), set.getString(2)));
+                        while (set.next()) {
+                            found.putIfAbsent(set.getString(1), InChIs.newInChI(set.getString(1), set.getString(2)));
                         }
                     }
                 }
             }
+            for (String inchikey : keys) {
+                final InChI inchi = found.get(inchikey);
+                if (inchi != null)
+                    candidates.add(inchi);
+            }
             return candidates;
         } catch (InterruptedException e) {
             Thread.currentThread().interrupt();
@@ -470,16 +615,27 @@ public class ChemicalDatabase extends AbstractChemicalDatabase implements Pooled
     public List<FingerprintCandidate> lookupFingerprintsByInchi(Iterable<CompoundCandidate> compounds) throws ChemicalDatabaseException {
         final ArrayList<FingerprintCandidate> candidates = new ArrayList<>();
         try (final PooledConnection<Connection> c = connection.orderConnection()) {
-            try (final PreparedStatement statement = c.connection.prepareStatement("SELECT fingerprint FROM "+FINGERPRINT_TABLE+" WHERE fp_id = "+FINGERPRINT_ID+" AND inchi_key_1 = ?")) {
-                for (CompoundCandidate candidate : compounds) {
-                    statement.setString(1, candidate.getInchiKey2D());
+            final List<CompoundCandidate> compoundList = Lists.newArrayList(compounds);
+            final HashMap<String, Fingerprint> found = new HashMap<>(compoundList.size());
+            try (final PreparedStatement statement = c.connection.prepareStatement("SELECT inchi_key_1, fingerprint FROM "+FINGERPRINT_TABLE+" WHERE fp_id = "+FINGERPRINT_ID+" AND inchi_key_1 = ANY(?)")) {
+                final LinkedHashSet<String> keys = new LinkedHashSet<>(compoundList.size());
+                for (CompoundCandidate candidate : compoundList)
+                    keys.add(candidate.getInchiKey2D());
+                for (List<String> batch : Iterables.partition(keys, INCHIKEY_BATCH_SIZE)) {
+                    statement.setArray(1, c.connection.createArrayOf("varchar", batch.toArray()));
                     try (final ResultSet set = statement.executeQuery()) {
-                        if (set.next()) {
-                            candidates.add(new FingerprintCandidate(candidate, parseFingerprint(set, 1)));
+                        while (set.next()) {
+                            if (!found.containsKey(set.getString(1)))
+                                found.put(set.getString(1), parseFingerprint(set, 2));
                         }
                     }
                 }
             }
+            for (CompoundCandidate candidate : compoundList) {
+                final Fingerprint fingerprint = found.get(candidate.getInchiKey2D());
+                if (fingerprint != null)
+                    candidates.add(new FingerprintCandidate(candidate, fingerprint));
+            }
             return candidates;
         } catch (InterruptedException e) {
             Thread.currentThread().interrupt();
@@ -663,6 +819,15 @@ public class ChemicalDatabase extends AbstractChemicalDatabase implements Pooled
     }
 
 
+    private static PubmedLinks parsePubmedLinks(ResultSet result, int index) throws SQLException {
+        try (final ResultSet rs = result.getArray(index).getResultSet()) {
+            final TIntSet idSet = new TIntHashSet();
+            while (rs.next())
+                idSet.add(rs.getInt(2));
+            return new PubmedLinks(idSet);
+        }
+    }
+
     private Fingerprint parseFingerprint(ResultSet result, int index) throws SQLException {
         try (final ResultSet fp = result.getArray(index).getResultSet()) {
             return parseFingerprint(fp);
@@ -72,6 +72,16 @@ public class FilteredChemicalDB extends AbstractChemicalDatabase implements Clon
         return wrappedDB.lookupStructuresAndFingerprintsByFormula(filter, formula, fingerprintCandidates);
     }
 
+    @Override
+    public void lookupStructuresByFormulas(Collection<MolecularFormula> formulas, FormulaCandidatesConsumer<CompoundCandidate> consumer) throws ChemicalDatabaseException {
+        wrappedDB.lookupStructuresByFormulas(filter, formulas, consumer);
+    }
+
+    @Override
+    public void lookupStructuresAndFingerprintsByFormulas(Collection<MolecularFormula> formulas, FormulaCandidatesConsumer<FingerprintCandidate> consumer) throws ChemicalDatabaseException {
+        wrappedDB.lookupStructuresAndFingerprintsByFormulas(filter, formulas, consumer);
+    }
+
     @Override
     public List<FingerprintCandidate> lookupFingerprintsByInchis(Iterable<String> inchi_keys) throws ChemicalDatabaseException {
         return wrappedDB.lookupFingerprintsByInchis(inchi_keys);
@@ -0,0 +1,221 @@
+/*
+ *
+ *  This file is part of the SIRIUS library for analyzing MS and MS/MS data
+ *
+ *  Copyright (C) 2013-2020 Kai Dührkop, Markus Fleischauer, Marcus Ludwig, Martin A. Hoffman and Sebastian Böcker,
+ *  Chair of Bioinformatics, Friedrich-Schilller University.
+ *
+ *  This library is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public
+ *  License as published by the Free Software Foundation; either
+ *  version 3 of the License, or (at your option) any later version.
+ *
+ *  This library is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License along with SIRIUS. If not, see <https://www.gnu.org/licenses/lgpl-3.0.txt>
+ */
+package de.unijena.bioinf.chemdb;
+
+import de.unijena.bioinf.ChemistryBase.chem.InChI;
+import de.unijena.bioinf.ChemistryBase.chem.MolecularFormula;
+import de.unijena.bioinf.fingerid.connection_pooling.ConnectionPool;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.sql.*;
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+/**
+ * Compares the batched array queries of {@link ChemicalDatabase} with the single formula/inchikey queries
+ * on an embedded H2 database that mimics the schema of the chemical database.
+ */
+public class ChemicalDatabaseBulkLookupTest {
+
+    private static final String[] FORMULAS = {"C6H12O6", "C7H8", "C2H6O", "C8H10N4O2"};
+
+    private String url;
+    private Connection keepAlive;
+    private ChemicalDatabase database;
+
+    @Before
+    public void setUp() throws SQLException {
+        url = "jdbc:h2:mem:chemdb" + System.nanoTime() + ";DB_CLOSE_DELAY=-1";
+        keepAlive = DriverManager.getConnection(url);
+        try (final Statement s = keepAlive.createStatement()) {
+            s.execute("CREATE TABLE " + ChemicalDatabase.STRUCTURES_TABLE + " (inchi_key_1 VARCHAR PRIMARY KEY, inchi VARCHAR, name VARCHAR, smiles VARCHAR, flags BIGINT, xlogp DOUBLE, formula VARCHAR)");
+            s.execute("CREATE TABLE " + ChemicalDatabase.FINGERPRINT_TABLE + " (inchi_key_1 VARCHAR, fp_id INT, formula VARCHAR, fingerprint ARRAY)");
+            s.execute("CREATE TABLE meta_information (inchi_key_1 VARCHAR, formula VARCHAR, pmids ARRAY)");
+        }
+        try (final PreparedStatement structures = keepAlive.prepareStatement("INSERT INTO " + ChemicalDatabase.STRUCTURES_TABLE + " VALUES (?,?,?,?,?,?,?)");
+             final PreparedStatement fingerprints = keepAlive.prepareStatement("INSERT INTO " + ChemicalDatabase.FINGERPRINT_TABLE + " VALUES (?,?,?,?)");
+             final PreparedStatement meta = keepAlive.prepareStatement("INSERT INTO meta_information VALUES (?,?,?)")) {
+            for (int f = 0; f < FORMULAS.length; ++f) {
+                // the last formula has no structures at all
+                final int numberOfStructures = f == FORMULAS.length - 1 ? 0 : 2 + f;
+                for (int i = 0; i < numberOfStructures; ++i) {
+                    final String key = key(f, i);
+                    structures.setString(1, key);
+                    structures.setString(2, "InChI=1S/" + FORMULAS[f] + "/" + i);
+                    structures.setString(3, "compound " + f + "_" + i);
+                    structures.setString(4, "C");
+                    structures.setLong(5, 1L << i);
+                    if (i == 0) structures.setNull(6, Types.DOUBLE);
+                    else structures.setDouble(6, f + i / 10d);
+                    structures.setString(7, FORMULAS[f]);
+                    structures.executeUpdate();
+
+                    // one structure without fingerprint
+                    if (i != 1) {
+                        fingerprints.setString(1, key);
+                        fingerprints.setInt(2, Integer.parseInt(ChemicalDatabase.FINGERPRINT_ID));
+                        fingerprints.setString(3, FORMULAS[f]);
+                        fingerprints.setObject(4, new Short[]{(short) f, (short) (10 + i), (short) 100});
+                        fingerprints.executeUpdate();
+                    }
+
+                    meta.setString(1, key);
+                    meta.setString(2, FORMULAS[f]);
+                    meta.setObject(3, new Integer[]{1000 * f + i, 42});
+                    meta.executeUpdate();
+                }
+            }
+        }
+        database = new ChemicalDatabase(new H2Connector(url), 2);
+    }
+
+    @After
+    public void tearDown() throws IOException, SQLException {
+        database.close();
+        keepAlive.close();
+    }
+
+    private static String key(int formula, int structure) {
+        return String.format(Locale.US, "AAAAAAAAAA%02d%02d", formula, structure);
+    }
+
+    private static List<MolecularFormula> formulas() {
+        final ArrayList<MolecularFormula> formulas = new ArrayList<>();
+        for (String f : FORMULAS)
+            formulas.add(MolecularFormula.parseOrThrow(f));
+        return formulas;
+    }
+
+    @Test
+    public void testStructuresAndFingerprintsByFormulas() throws ChemicalDatabaseException {
+        final List<MolecularFormula> formulas = formulas();
+        final ArrayList<MolecularFormula> order = new ArrayList<>();
+        final Map<MolecularFormula, List<FingerprintCandidate>> bulk = new HashMap<>();
+        // duplicated formulas are reported only once
+        final ArrayList<MolecularFormula> query = new ArrayList<>(formulas);
+        query.add(formulas.get(0));
+        database.lookupStructuresAndFingerprintsByFormulas(query, (formula, candidates) -> {
+            order.add(formula);
+            bulk.put(formula, candidates);
+        });
+        assertEquals(formulas, order);
+
+        for (MolecularFormula formula : formulas) {
+            final List<FingerprintCandidate> single = database.lookupStructuresAndFingerprintsByFormula(formula);
+            final List<FingerprintCandidate> batched = bulk.get(formula);
+            assertEquals(single.size(), batched.size());
+            sortByKey(single);
+            sortByKey(batched);
+            for (int i = 0; i < single.size(); ++i) {
+                final FingerprintCandidate a = single.get(i), b = batched.get(i);
+                assertEquals(a.getInchiKey2D(), b.getInchiKey2D());
+                assertEquals(a.getInchi().in2D, b.getInchi().in2D);
+                assertEquals(a.getName(), b.getName());
+                assertEquals(a.getBitset(), b.getBitset());
+                assertEquals(a.getXlogp(), b.getXlogp(), 0d);
+                assertArrayEquals(a.getFingerprint().toIndizesArray(), b.getFingerprint().toIndizesArray());
+                assertArrayEquals(sortedPubmedIds(a), sortedPubmedIds(b));
+            }
+        }
+        assertEquals(1, bulk.get(formulas.get(0)).size());
+        assertTrue(bulk.get(formulas.get(3)).isEmpty());
+    }
+
+    @Test
+    public void testStructuresByFormulas() throws ChemicalDatabaseException {
+        final Map<MolecularFormula, List<CompoundCandidate>> bulk = database.lookupStructuresByFormulas(formulas());
+        for (MolecularFormula formula : formulas()) {
+            final List<CompoundCandidate> single = database.lookupStructuresByFormula(formula);
+            assertEquals(single.size(), bulk.get(formula).size());
+        }
+        assertEquals(3, bulk.get(MolecularFormula.parseOrThrow("C7H8")).size());
+    }
+
+    @Test
+    public void testLookupByInchiKeys() throws ChemicalDatabaseException {
+        final List<String> keys = Arrays.asList(key(2, 3), key(0, 0), "NOTINDATABASE0", key(1, 1), key(2, 0), key(0, 0));
+        final List<FingerprintCandidate> fingerprints = database.lookupFingerprintsByInchis(keys);
+        // missing keys and keys without fingerprint are skipped, order of the query is kept
+        assertEquals(Arrays.asList(key(2, 3), key(0, 0), key(2, 0), key(0, 0)), keysOf(fingerprints));
+
+        final List<InChI> inchis = database.lookupManyInchisByInchiKeys(keys);
+        final ArrayList<String> inchiKeys = new ArrayList<>();
+        for (InChI inchi : inchis) inchiKeys.add(inchi.key2D());
+        assertEquals(Arrays.asList(key(2, 3), key(0, 0), key(1, 1), key(2, 0), key(0, 0)), inchiKeys);
+
+        final List<FingerprintCandidate> byCompounds = database.lookupFingerprintsByInchi(database.lookupStructuresByFormula(MolecularFormula.parseOrThrow("C2H6O")));
+        assertEquals(3, byCompounds.size());
+    }
+
+    private static void sortByKey(List<? extends CompoundCandidate> candidates) {
+        candidates.sort(Comparator.comparing(CompoundCandidate::getInchiKey2D));
+    }
+
+    private static int[] sortedPubmedIds(CompoundCandidate candidate) {
+        final int[] ids = candidate.getPubmedIDs().getCopyOfPubmedIDs();
+        Arrays.sort(ids);
+        return ids;
+    }
+
+    private static List<String> keysOf(List<? extends CompoundCandidate> candidates) {
+        final ArrayList<String> keys = new ArrayList<>();
+        for (CompoundCandidate c : candidates) keys.add(c.getInchiKey2D());
+        return keys;
+    }
+
+    private static class H2Connector implements ConnectionPool.Connector<Connection> {
+        private final String url;
+
+        private H2Connector(String url) {
+            this.url = url;
+        }
+
+        @Override
+        public Connection open() throws IOException {
+            try {
+                return DriverManager.getConnection(url);
+            } catch (SQLException e) {
+                throw new IOException(e);
+            }
+        }
+
+        @Override
+        public void close(Connection connection) throws IOException {
+            try {
+                connection.close();
+            } catch (SQLException e) {
+                throw new IOException(e);
+            }
+        }
+
+        @Override
+        public boolean isValid(Connection connection) {
+            try {
+                return connection.isValid(10);
+            } catch (SQLException e) {
+                return false;
+            }
+        }
+    }
+}
@@ -27,9 +27,7 @@ import de.unijena.bioinf.ChemistryBase.fp.Fingerprint;
 import de.unijena.bioinf.ChemistryBase.ms.Deviation;
 
 import java.io.Closeable;
-import java.util.ArrayList;
-import java.util.Collections;
-import java.util.List;
+import java.util.*;
 
 public abstract class AbstractChemicalDatabase implements Closeable, Cloneable, SearchStructureByFormula, AnnotateStructures {
 
@@ -73,6 +71,49 @@ public abstract class AbstractChemicalDatabase implements Closeable, Cloneable,
         return lookupStructuresAndFingerprintsByFormula(formula, new ArrayList<>());
     }
 
+    /**
+     * Lookup structures and corresponding fingerprints for many molecular formulas at once.
+     * The candidates are handed over to the consumer grouped by formula, so the caller does not have to wait until
+     * all formulas are looked up. Every formula is reported exactly once (with an empty list if there are no hits).
+     * This method will NOT add database links to these structures.
+     * Implementations backed by a remote database should override this method to avoid one round trip per formula.
+     * @param formulas molecular formulas to lookup
+     * @param consumer receives the candidates of each formula
+     */
+    public void lookupStructuresAndFingerprintsByFormulas(Collection<MolecularFormula> formulas, FormulaCandidatesConsumer<FingerprintCandidate> consumer) throws ChemicalDatabaseException {
+        for (MolecularFormula formula : new LinkedHashSet<>(formulas))
+            consumer.accept(formula, lookupStructuresAndFingerprintsByFormula(formula));
+    }
+
+    /**
+     * Lookup structures and corresponding fingerprints for many molecular formulas at once.
+     * This method will NOT add database links to these structures
+     * @param formulas molecular formulas to lookup
+     * @return candidates grouped by formula, in order of the given formulas
+     */
+    public Map<MolecularFormula, List<FingerprintCandidate>> lookupStructuresAndFingerprintsByFormulas(Collection<MolecularFormula> formulas) throws ChemicalDatabaseException {
+        final LinkedHashMap<MolecularFormula, List<FingerprintCandidate>> candidates = new LinkedHashMap<>(formulas.size());
+        lookupStructuresAndFingerprintsByFormulas(formulas, candidates::put);
+        return candidates;
+    }
+
+    /**
+     * Lookup structures for many molecular formulas at once. Candidates are handed over to the consumer grouped by
+     * formula. This method will NOT add database links to these structures
+     * @param formulas molecular formulas to lookup
+     * @param consumer receives the candidates of each formula
+     */
+    public void lookupStructuresByFormulas(Collection<MolecularFormula> formulas, FormulaCandidatesConsumer<CompoundCandidate> consumer) throws ChemicalDatabaseException {
+        for (MolecularFormula formula : new LinkedHashSet<>(formulas))
+            consumer.accept(formula, lookupStructuresByFormula(formula));
+    }
+
+    public Map<MolecularFormula, List<CompoundCandidate>> lookupStructuresByFormulas(Collection<MolecularFormula> formulas) throws ChemicalDatabaseException {
+        final LinkedHashMap<MolecularFormula, List<CompoundCandidate>> candidates = new LinkedHashMap<>(formulas.size());
+        lookupStructuresByFormulas(formulas, candidates::put);
+        return candidates;
+    }
+
     public abstract List<FingerprintCandidate> lookupFingerprintsByInchis(Iterable<String> inchi_keys) throws ChemicalDatabaseException;
 
     public abstract List<InChI> lookupManyInchisByInchiKeys(Iterable<String> inchi_keys) throws ChemicalDatabaseException;
@@ -89,4 +130,9 @@ public abstract class AbstractChemicalDatabase implements Closeable, Cloneable,
 
     public abstract List<InChI> findInchiByNames(List<String> names) throws ChemicalDatabaseException;
 
+    @FunctionalInterface
+    public interface FormulaCandidatesConsumer<C extends CompoundCandidate> {
+        void accept(MolecularFormula formula, List<C> candidates) throws ChemicalDatabaseException;
+    }
+
 }
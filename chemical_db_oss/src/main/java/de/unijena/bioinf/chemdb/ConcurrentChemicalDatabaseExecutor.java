@@ -0,0 +1,370 @@
+/*
+ *
+ *  This file is part of the SIRIUS library for analyzing MS and MS/MS data
+ *
+ *  Copyright (C) 2013-2020 Kai Dührkop, Markus Fleischauer, Marcus Ludwig, Martin A. Hoffman and Sebastian Böcker,
+ *  Chair of Bioinformatics, Friedrich-Schilller University.
+ *
+ *  This library is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public
+ *  License as published by the Free Software Foundation; either
+ *  version 3 of the License, or (at your option) any later version.
+ *
+ *  This library is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License along with SIRIUS. If not, see <https://www.gnu.org/licenses/lgpl-3.0.txt>
+ */
+
+package de.unijena.bioinf.chemdb;
+
+import de.unijena.bioinf.ChemistryBase.chem.InChI;
+import de.unijena.bioinf.ChemistryBase.chem.MolecularFormula;
+import de.unijena.bioinf.ChemistryBase.chem.PrecursorIonType;
+import de.unijena.bioinf.ChemistryBase.ms.Deviation;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/**
+ * Dispatches database queries to a fixed number of database instances (e.g. clones of a ChemicalDatabase which share
+ * one connection pool), such that as many queries as databases run in parallel. Structure lookups for a formula which
+ * is already queried by another thread are not sent twice: the second caller waits for the running query instead.
+ * Coalesced callers receive their own result lists, but share the candidate objects within these lists.
+ */
+public class ConcurrentChemicalDatabaseExecutor extends AbstractChemicalDatabase implements Closeable {
+
+    private static final Logger LOG = LoggerFactory.getLogger(ConcurrentChemicalDatabaseExecutor.class);
+
+    @FunctionalInterface
+    public interface DatabaseFunction<R> {
+        R apply(AbstractChemicalDatabase database) throws ChemicalDatabaseException;
+    }
+
+    protected final AbstractChemicalDatabase[] databases;
+    protected final BlockingQueue<AbstractChemicalDatabase> idleDatabases;
+    protected final ThreadPoolExecutor executor;
+    protected final ConcurrentHashMap<RequestKey, CompletableFuture<?>> inFlight;
+    private final AtomicBoolean closed;
+
+    // metrics
+    private final LongAdder submitted, executed, completed, failed, coalesced, waitingNanos, executionNanos;
+    private final AtomicLong maxLatencyNanos;
+
+    public ConcurrentChemicalDatabaseExecutor(int numberOfDatabases, Supplier<? extends AbstractChemicalDatabase> databaseFactory) {
+        this(createDatabases(numberOfDatabases, databaseFactory));
+    }
+
+    public ConcurrentChemicalDatabaseExecutor(AbstractChemicalDatabase... databases) {
+        if (databases.length == 0) throw new IllegalArgumentException("At least one database is required");
+        this.databases = databases.clone();
+        this.idleDatabases = new ArrayBlockingQueue<>(databases.length);
+        for (AbstractChemicalDatabase db : databases) idleDatabases.add(db);
+        final AtomicInteger threadCounter = new AtomicInteger(0);
+        this.executor = new ThreadPoolExecutor(databases.length, databases.length, 0L, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<>(), r -> {
+            final Thread t = new Thread(r, "chemdb-executor-" + threadCounter.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+        this.inFlight = new ConcurrentHashMap<>();
+        this.closed = new AtomicBoolean(false);
+        this.submitted = new LongAdder();
+        this.executed = new LongAdder();
+        this.completed = new LongAdder();
+        this.failed = new LongAdder();
+        this.coalesced = new LongAdder();
+        this.waitingNanos = new LongAdder();
+        this.executionNanos = new LongAdder();
+        this.maxLatencyNanos = new AtomicLong(0);
+    }
+
+    private static AbstractChemicalDatabase[] createDatabases(int numberOfDatabases, Supplier<? extends AbstractChemicalDatabase> databaseFactory) {
+        final AbstractChemicalDatabase[] dbs = new AbstractChemicalDatabase[numberOfDatabases];
+        for (int i = 0; i < dbs.length; ++i) dbs[i] = databaseFactory.get();
+        return dbs;
+    }
+
+    /**
+     * Runs the given function on the next idling database.
+     */
+    public <R> CompletableFuture<R> submit(DatabaseFunction<R> function) {
+        final long submittedAt = System.nanoTime();
+        final CompletableFuture<R> future = new CompletableFuture<>();
+        submitted.increment();
+        try {
+            executor.execute(() -> run(function, future, submittedAt));
+        } catch (RejectedExecutionException e) {
+            failed.increment();
+            future.completeExceptionally(new ChemicalDatabaseException("cannot add to queue. Executor is already stopped"));
+        }
+        return future;
+    }
+
+    private <R> void run(DatabaseFunction<R> function, CompletableFuture<R> future, long submittedAt) {
+        final long startedAt = System.nanoTime();
+        waitingNanos.add(startedAt - submittedAt);
+        AbstractChemicalDatabase db = null;
+        try {
+            // there are as many threads as databases, so we never have to wait here
+            db = idleDatabases.take();
+            final R result = function.apply(db);
+            completed.increment();
+            future.complete(result);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            failed.increment();
+            future.completeExceptionally(new ChemicalDatabaseException(e));
+        } catch (Throwable e) {
+            failed.increment();
+            future.completeExceptionally(e);
+        } finally {
+            if (db != null) idleDatabases.add(db);
+            final long finishedAt = System.nanoTime();
+            executionNanos.add(finishedAt - startedAt);
+            maxLatencyNanos.accumulateAndGet(finishedAt - submittedAt, Math::max);
+            executed.increment();
+        }
+    }
+
+    /**
+     * Runs the given function unless a request with the same key is already running. In this case, the future
+     * of the running request is returned.
+     */
+    @SuppressWarnings("unchecked")
+    protected <R> CompletableFuture<R> submitCoalesced(RequestKey key, DatabaseFunction<R> function) {
+        final CompletableFuture<R> created = new CompletableFuture<>();
+        final CompletableFuture<?> running = inFlight.putIfAbsent(key, created);
+        if (running != null) {
+            coalesced.increment();
+            return (CompletableFuture<R>) running;
+        }
+        submit(function).whenComplete((result, error) -> {
+            // remove the request before completing it, such that later requests query the database again
+            inFlight.remove(key, created);
+            if (error != null) created.completeExceptionally(error);
+            else created.complete(result);
+        });
+        return created;
+    }
+
+    protected static <R> R await(CompletableFuture<R> future) throws ChemicalDatabaseException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new ChemicalDatabaseException(e);
+        } catch (ExecutionException e) {
+            final Throwable cause = e.getCause();
+            if (cause instanceof ChemicalDatabaseException)
+                throw new ChemicalDatabaseException(cause.getMessage(), (ChemicalDatabaseException) cause);
+            if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+            throw new ChemicalDatabaseException(cause);
+        }
+    }
+
+    //region metrics
+
+    /**
+     * @return number of queries which wait for an idling database
+     */
+    public int getQueueDepth() {
+        return executor.getQueue().size();
+    }
+
+    /**
+     * @return number of queries which are currently executed
+     */
+    public int getNumberOfRunningQueries() {
+        return executor.getActiveCount();
+    }
+
+    /**
+     * @return number of distinct formula lookups which are currently queued or executed
+     */
+    public int getNumberOfInFlightLookups() {
+        return inFlight.size();
+    }
+
+    public long getNumberOfSubmittedQueries() {
+        return submitted.sum();
+    }
+
+    /**
+     * @return number of queries which returned a result
+     */
+    public long getNumberOfCompletedQueries() {
+        return completed.sum();
+    }
+
+    /**
+     * @return number of queries which threw an exception or were rejected because the executor is closed
+     */
+    public long getNumberOfFailedQueries() {
+        return failed.sum();
+    }
+
+    /**
+     * @return number of requests which were answered by an already running query
+     */
+    public long getNumberOfCoalescedRequests() {
+        return coalesced.sum();
+    }
+
+    /**
+     * @return average time in milliseconds a query waits in the queue (successful and failed queries)
+     */
+    public double getAverageWaitingTimeMillis() {
+        final long n = executed.sum();
+        return n == 0 ? 0d : waitingNanos.sum() / 1e6 / n;
+    }
+
+    /**
+     * @return average time in milliseconds a query is executed on the database (successful and failed queries)
+     */
+    public double getAverageExecutionTimeMillis() {
+        final long n = executed.sum();
+        return n == 0 ? 0d : executionNanos.sum() / 1e6 / n;
+    }
+
+    /**
+     * @return maximum time in milliseconds between submission and completion of a query
+     */
+    public double getMaxLatencyMillis() {
+        return maxLatencyNanos.get() / 1e6;
+    }
+
+    //endregion
+
+    @Override
+    public List<FormulaCandidate> lookupMolecularFormulas(double mass, Deviation deviation, PrecursorIonType ionType) throws ChemicalDatabaseException {
+        return await(submit(db -> db.lookupMolecularFormulas(mass, deviation, ionType)));
+    }
+
+    @Override
+    public List<List<FormulaCandidate>> lookupMolecularFormulas(double mass, Deviation deviation, PrecursorIonType[] ionTypes) throws ChemicalDatabaseException {
+        return await(submit(db -> db.lookupMolecularFormulas(mass, deviation, ionTypes)));
+    }
+
+    @Override
+    public List<CompoundCandidate> lookupStructuresByFormula(MolecularFormula formula) throws ChemicalDatabaseException {
+        return new ArrayList<>(await(submitCoalesced(new RequestKey(RequestType.STRUCTURES, formula), db -> db.lookupStructuresByFormula(formula))));
+    }
+
+    @Override
+    public <T extends Collection<FingerprintCandidate>> T lookupStructuresAndFingerprintsByFormula(MolecularFormula formula, T fingerprintCandidates) throws ChemicalDatabaseException {
+        fingerprintCandidates.addAll(await(submitCoalesced(new RequestKey(RequestType.FINGERPRINTS, formula), db -> db.lookupStructuresAndFingerprintsByFormula(formula))));
+        return fingerprintCandidates;
+    }
+
+    @Override
+    public void lookupStructuresByFormulas(Collection<MolecularFormula> formulas, FormulaCandidatesConsumer<CompoundCandidate> consumer) throws ChemicalDatabaseException {
+        await(submit(db -> {
+            db.lookupStructuresByFormulas(formulas, consumer);
+            return null;
+        }));
+    }
+
+    @Override
+    public void lookupStructuresAndFingerprintsByFormulas(Collection<MolecularFormula> formulas, FormulaCandidatesConsumer<FingerprintCandidate> consumer) throws ChemicalDatabaseException {
+        await(submit(db -> {
+            db.lookupStructuresAndFingerprintsByFormulas(formulas, consumer);
+            return null;
+        }));
+    }
+
+    @Override
+    public List<FingerprintCandidate> lookupFingerprintsByInchis(Iterable<String> inchi_keys) throws ChemicalDatabaseException {
+        return await(submit(db -> db.lookupFingerprintsByInchis(inchi_keys)));
+    }
+
+    @Override
+    public List<InChI> lookupManyInchisByInchiKeys(Iterable<String> inchi_keys) throws ChemicalDatabaseException {
+        return await(submit(db -> db.lookupManyInchisByInchiKeys(inchi_keys)));
+    }
+
+    @Override
+    public List<FingerprintCandidate> lookupManyFingerprintsByInchis(Iterable<String> inchi_keys) throws ChemicalDatabaseException {
+        return await(submit(db -> db.lookupManyFingerprintsByInchis(inchi_keys)));
+    }
+
+    @Override
+    public List<FingerprintCandidate> lookupFingerprintsByInchi(Iterable<CompoundCandidate> compounds) throws ChemicalDatabaseException {
+        return await(submit(db -> db.lookupFingerprintsByInchi(compounds)));
+    }
+
+    @Override
+    public void annotateCompounds(List<? extends CompoundCandidate> sublist) throws ChemicalDatabaseException {
+        await(submit(db -> {
+            db.annotateCompounds(sublist);
+            return null;
+        }));
+    }
+
+    @Override
+    public List<InChI> findInchiByNames(List<String> names) throws ChemicalDatabaseException {
+        return await(submit(db -> db.findInchiByNames(names)));
+    }
+
+    /**
+     * Waits for all submitted queries and closes the underlying databases.
+     */
+    @Override
+    public void close() throws IOException {
+        if (!closed.compareAndSet(false, true)) return;
+        executor.shutdown();
+        try {
+            if (!executor.awaitTermination(1, TimeUnit.MINUTES))
+                LOG.warn("Database queries are still running after one minute. Closing databases anyways.");
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        IOException error = null;
+        for (AbstractChemicalDatabase database : databases) {
+            try {
+                database.close();
+            } catch (IOException e) {
+                if (error == null) error = e;
+                else error.addSuppressed(e);
+            }
+        }
+        if (error != null) throw error;
+    }
+
+    protected enum RequestType {STRUCTURES, FINGERPRINTS}
+
+    protected static final class RequestKey {
+        private final RequestType type;
+        private final MolecularFormula formula;
+
+        protected RequestKey(RequestType type, MolecularFormula formula) {
+            this.type = type;
+            this.formula = formula;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+            final RequestKey that = (RequestKey) o;
+            return type == that.type && formula.equals(that.formula);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * type.hashCode() + formula.hashCode();
+        }
+    }
+}
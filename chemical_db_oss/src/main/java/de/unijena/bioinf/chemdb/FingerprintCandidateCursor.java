@@ -0,0 +1,81 @@
+/*
+ *
+ *  This file is part of the SIRIUS library for analyzing MS and MS/MS data
+ *
+ *  Copyright (C) 2013-2020 Kai Dührkop, Markus Fleischauer, Marcus Ludwig, Martin A. Hoffman and Sebastian Böcker,
+ *  Chair of Bioinformatics, Friedrich-Schilller University.
+ *
+ *  This library is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public
+ *  License as published by the Free Software Foundation; either
+ *  version 3 of the License, or (at your option) any later version.
+ *
+ *  This library is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License along with SIRIUS. If not, see <https://www.gnu.org/licenses/lgpl-3.0.txt>
+ */
+
+package de.unijena.bioinf.chemdb;
+
+import de.unijena.bioinf.ChemistryBase.fp.Fingerprint;
+import de.unijena.bioinf.babelms.CloseableIterator;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Reads the candidates of a molecular formula in blocks. The fingerprints of a block are read first, such that the
+ * caller can decide which candidates of the block are worth to be created as {@link FingerprintCandidate} objects.
+ * The cursor has to be closed by the caller.
+ */
+public interface FingerprintCandidateCursor extends Closeable {
+
+    /**
+     * moves the cursor to the next block and adds the fingerprints of its candidates to the given list, which is
+     * cleared before.
+     * @return number of candidates in the block, 0 if there are no more candidates
+     */
+    int nextBlock(int maxSize, List<Fingerprint> fingerprints);
+
+    /**
+     * @return the i-th candidate of the current block
+     */
+    FingerprintCandidate getCandidate(int i);
+
+    /**
+     * Cursor over the candidates of an iterator. As the iterator creates all candidates anyway, the candidates of the
+     * current block are kept in memory.
+     */
+    static FingerprintCandidateCursor of(CloseableIterator<FingerprintCandidate> candidates) {
+        return new FingerprintCandidateCursor() {
+            private final ArrayList<FingerprintCandidate> block = new ArrayList<>();
+
+            @Override
+            public int nextBlock(int maxSize, List<Fingerprint> fingerprints) {
+                block.clear();
+                fingerprints.clear();
+                while (block.size() < maxSize && candidates.hasNext()) {
+                    final FingerprintCandidate candidate = candidates.next();
+                    block.add(candidate);
+                    fingerprints.add(candidate.getFingerprint());
+                }
+                return block.size();
+            }
+
+            @Override
+            public FingerprintCandidate getCandidate(int i) {
+                return block.get(i);
+            }
+
+            @Override
+            public void close() throws IOException {
+                candidates.close();
+            }
+        };
+    }
+}
@@ -21,6 +21,7 @@
 package de.unijena.bioinf.chemdb;
 
 import de.unijena.bioinf.ChemistryBase.chem.MolecularFormula;
+import de.unijena.bioinf.babelms.CloseableIterator;
 
 import java.util.ArrayList;
 import java.util.Collection;
@@ -39,4 +40,22 @@ public interface SearchStructureByFormula {
     default List<FingerprintCandidate> lookupStructuresAndFingerprintsByFormula(MolecularFormula formula) throws ChemicalDatabaseException {
         return lookupStructuresAndFingerprintsByFormula(formula, new ArrayList<>());
     }
+
+    /**
+     * Iterates over the structures and corresponding fingerprints with the given molecular formula. Databases which
+     * can stream their candidates should override this method, such that the caller never has to keep all candidates
+     * in memory. The returned iterator has to be closed by the caller.
+     */
+    default CloseableIterator<FingerprintCandidate> iterateStructuresAndFingerprintsByFormula(MolecularFormula formula) throws ChemicalDatabaseException {
+        return CloseableIterator.of(lookupStructuresAndFingerprintsByFormula(formula).iterator());
+    }
+
+    /**
+     * Reads the structures and corresponding fingerprints with the given molecular formula in blocks. Databases which
+     * can read fingerprints without creating the candidates should override this method. The returned cursor has to
+     * be closed by the caller.
+     */
+    default FingerprintCandidateCursor cursorByFormula(MolecularFormula formula) throws ChemicalDatabaseException {
+        return FingerprintCandidateCursor.of(iterateStructuresAndFingerprintsByFormula(formula));
+    }
 }
@@ -0,0 +1,251 @@
+package de.unijena.bioinf.chemdb;
+
+import de.unijena.bioinf.ChemistryBase.chem.InChI;
+import de.unijena.bioinf.ChemistryBase.chem.MolecularFormula;
+import de.unijena.bioinf.ChemistryBase.chem.PrecursorIonType;
+import de.unijena.bioinf.ChemistryBase.ms.Deviation;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class ConcurrentChemicalDatabaseExecutorTest {
+
+    private static final MolecularFormula GLUCOSE = MolecularFormula.parseOrThrow("C6H12O6");
+    private static final MolecularFormula FAILING = MolecularFormula.parseOrThrow("C2H7N");
+
+    @Test
+    public void testConcurrentLookupsOfSameFormulaAreCoalesced() throws Exception {
+        final CountDownLatch gate = new CountDownLatch(1);
+        final FakeDatabase[] dbs = {new FakeDatabase(gate), new FakeDatabase(gate)};
+        final ConcurrentChemicalDatabaseExecutor executor = new ConcurrentChemicalDatabaseExecutor(dbs);
+        final ExecutorService callers = Executors.newFixedThreadPool(4);
+        try {
+            final List<Future<List<CompoundCandidate>>> results = new ArrayList<>();
+            for (int i = 0; i < 4; ++i)
+                results.add(callers.submit(() -> executor.lookupStructuresByFormula(GLUCOSE)));
+            // all callers wait for the single running query before it returns
+            waitUntil(() -> executor.getNumberOfCoalescedRequests() == 3);
+            assertEquals(1, executor.getNumberOfInFlightLookups());
+            gate.countDown();
+
+            final Set<List<CompoundCandidate>> distinctLists = Collections.newSetFromMap(new IdentityHashMap<>());
+            for (Future<List<CompoundCandidate>> result : results) {
+                final List<CompoundCandidate> candidates = result.get(10, TimeUnit.SECONDS);
+                assertEquals(1, candidates.size());
+                assertEquals(GLUCOSE.toString(), candidates.get(0).getInchi().in2D);
+                distinctLists.add(candidates);
+            }
+            assertEquals("every caller gets its own result list", 4, distinctLists.size());
+            assertEquals(1, dbs[0].calls.get() + dbs[1].calls.get());
+            assertEquals(1, executor.getNumberOfSubmittedQueries());
+            assertEquals(1, executor.getNumberOfCompletedQueries());
+            assertEquals(0, executor.getNumberOfInFlightLookups());
+
+            // the finished query is not reused for later lookups
+            executor.lookupStructuresByFormula(GLUCOSE);
+            assertEquals(2, dbs[0].calls.get() + dbs[1].calls.get());
+        } finally {
+            callers.shutdownNow();
+            executor.close();
+        }
+    }
+
+    @Test
+    public void testAsManyQueriesAsDatabasesRunInParallel() throws Exception {
+        final int n = 3;
+        // a query only returns after n queries are running at the same time
+        final CountDownLatch parallel = new CountDownLatch(n);
+        final AtomicInteger running = new AtomicInteger(), maxRunning = new AtomicInteger();
+        final AtomicBoolean sharedDatabase = new AtomicBoolean(false);
+        final FakeDatabase[] dbs = new FakeDatabase[n];
+        for (int i = 0; i < n; ++i) {
+            dbs[i] = new FakeDatabase(null) {
+                private final AtomicBoolean busy = new AtomicBoolean(false);
+
+                @Override
+                public List<CompoundCandidate> lookupStructuresByFormula(MolecularFormula formula) throws ChemicalDatabaseException {
+                    if (!busy.compareAndSet(false, true)) sharedDatabase.set(true);
+                    maxRunning.accumulateAndGet(running.incrementAndGet(), Math::max);
+                    try {
+                        parallel.countDown();
+                        if (!parallel.await(10, TimeUnit.SECONDS)) throw new ChemicalDatabaseException("queries are not executed in parallel");
+                        Thread.sleep(5);
+                        return super.lookupStructuresByFormula(formula);
+                    } catch (InterruptedException e) {
+                        throw new ChemicalDatabaseException(e);
+                    } finally {
+                        running.decrementAndGet();
+                        busy.set(false);
+                    }
+                }
+            };
+        }
+        final ConcurrentChemicalDatabaseExecutor executor = new ConcurrentChemicalDatabaseExecutor(dbs);
+        try {
+            final List<CompletableFuture<List<CompoundCandidate>>> futures = new ArrayList<>();
+            for (int i = 1; i <= 4 * n; ++i) {
+                final MolecularFormula formula = MolecularFormula.parseOrThrow("C" + i + "H" + (2 * i + 2));
+                futures.add(executor.submit(db -> db.lookupStructuresByFormula(formula)));
+            }
+            for (CompletableFuture<List<CompoundCandidate>> future : futures)
+                assertEquals(1, future.get(10, TimeUnit.SECONDS).size());
+            assertEquals(n, maxRunning.get());
+            assertFalse("a database must not be used by two queries at once", sharedDatabase.get());
+            int calls = 0;
+            for (FakeDatabase db : dbs) calls += db.calls.get();
+            assertEquals(4 * n, calls);
+            assertEquals(4 * n, executor.getNumberOfCompletedQueries());
+            assertEquals(0, executor.getNumberOfFailedQueries());
+        } finally {
+            executor.close();
+        }
+    }
+
+    @Test
+    public void testExceptionsArePropagatedAndCountedAsFailures() throws Exception {
+        final FakeDatabase db = new FakeDatabase(null);
+        final ConcurrentChemicalDatabaseExecutor executor = new ConcurrentChemicalDatabaseExecutor(db);
+        try {
+            try {
+                executor.lookupStructuresByFormula(FAILING);
+                fail("expected ChemicalDatabaseException");
+            } catch (ChemicalDatabaseException e) {
+                assertTrue(e.getMessage().contains(FAILING.toString()));
+            }
+            try {
+                executor.lookupFingerprintsByInchis(Collections.singleton("INVALID"));
+                fail("expected IllegalArgumentException");
+            } catch (IllegalArgumentException e) {
+                assertEquals("INVALID", e.getMessage());
+            }
+            assertEquals(1, executor.lookupStructuresByFormula(GLUCOSE).size());
+
+            assertEquals(3, executor.getNumberOfSubmittedQueries());
+            assertEquals(1, executor.getNumberOfCompletedQueries());
+            assertEquals(2, executor.getNumberOfFailedQueries());
+            // a failed lookup is not kept in flight, so the next lookup queries the database again
+            assertEquals(0, executor.getNumberOfInFlightLookups());
+            try {
+                executor.lookupStructuresByFormula(FAILING);
+                fail("expected ChemicalDatabaseException");
+            } catch (ChemicalDatabaseException expected) {
+            }
+            assertEquals(4, db.calls.get());
+        } finally {
+            executor.close();
+        }
+    }
+
+    @Test
+    public void testClosedExecutorRejectsQueries() throws Exception {
+        final FakeDatabase db = new FakeDatabase(null);
+        final ConcurrentChemicalDatabaseExecutor executor = new ConcurrentChemicalDatabaseExecutor(db);
+        executor.close();
+        assertTrue(db.closed);
+        try {
+            executor.lookupStructuresByFormula(GLUCOSE);
+            fail("expected ChemicalDatabaseException");
+        } catch (ChemicalDatabaseException expected) {
+        }
+        assertEquals(0, db.calls.get());
+        assertEquals(0, executor.getNumberOfCompletedQueries());
+        assertEquals(1, executor.getNumberOfFailedQueries());
+    }
+
+    @Test
+    @SuppressWarnings("deprecation")
+    public void testSynchronousExecutorDelegatesToDatabases() throws Exception {
+        final FakeDatabase db = new FakeDatabase(null);
+        final AbstractChemicalDatabaseSynchronousExecutor executor = new AbstractChemicalDatabaseSynchronousExecutor(db);
+        assertEquals(GLUCOSE.toString(), executor.lookupStructuresByFormula(GLUCOSE).get(0).getInchi().in2D);
+        executor.close();
+        assertTrue(db.closed);
+    }
+
+    private static void waitUntil(Callable<Boolean> condition) throws Exception {
+        final long deadline = System.currentTimeMillis() + 10000;
+        while (!condition.call()) {
+            if (System.currentTimeMillis() > deadline) fail("condition not reached within 10 seconds");
+            Thread.sleep(1);
+        }
+    }
+
+    /*
+        returns a single candidate for each formula, whose 2D InChI is the formula. Lookups wait for the given gate
+        (if any) and fail for the formula FAILING.
+     */
+    private static class FakeDatabase extends AbstractChemicalDatabase {
+        protected final AtomicInteger calls = new AtomicInteger();
+        private final CountDownLatch gate;
+        private volatile boolean closed;
+
+        private FakeDatabase(CountDownLatch gate) {
+            this.gate = gate;
+        }
+
+        @Override
+        public List<CompoundCandidate> lookupStructuresByFormula(MolecularFormula formula) throws ChemicalDatabaseException {
+            calls.incrementAndGet();
+            try {
+                if (gate != null && !gate.await(10, TimeUnit.SECONDS)) throw new ChemicalDatabaseException("timeout");
+            } catch (InterruptedException e) {
+                throw new ChemicalDatabaseException(e);
+            }
+            if (formula.equals(FAILING)) throw new ChemicalDatabaseException("cannot lookup " + formula);
+            return new ArrayList<>(Collections.singletonList(new CompoundCandidate(new InChI(null, formula.toString()))));
+        }
+
+        @Override
+        public <T extends Collection<FingerprintCandidate>> T lookupStructuresAndFingerprintsByFormula(MolecularFormula formula, T fingerprintCandidates) throws ChemicalDatabaseException {
+            calls.incrementAndGet();
+            return fingerprintCandidates;
+        }
+
+        @Override
+        public List<FingerprintCandidate> lookupFingerprintsByInchis(Iterable<String> inchi_keys) throws ChemicalDatabaseException {
+            calls.incrementAndGet();
+            throw new IllegalArgumentException(inchi_keys.iterator().next());
+        }
+
+        @Override
+        public List<FormulaCandidate> lookupMolecularFormulas(double mass, Deviation deviation, PrecursorIonType ionType) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public List<InChI> lookupManyInchisByInchiKeys(Iterable<String> inchi_keys) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public List<FingerprintCandidate> lookupManyFingerprintsByInchis(Iterable<String> inchi_keys) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public List<FingerprintCandidate> lookupFingerprintsByInchi(Iterable<CompoundCandidate> compounds) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public List<InChI> findInchiByNames(List<String> names) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void annotateCompounds(List<? extends CompoundCandidate> sublist) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void close() throws IOException {
+            closed = true;
+        }
+    }
+}
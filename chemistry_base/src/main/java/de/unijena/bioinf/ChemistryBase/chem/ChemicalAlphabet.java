@@ -162,6 +162,26 @@ public class ChemicalAlphabet implements Iterable<Element> {
         return MolecularFormula.fromCompomer(selection, buffer);
     }
 
+    /**
+     * @return a buffer which can be passed to {@link #decompositionToAmounts(int[], short[])}
+     */
+    public short[] newAmountBuffer() {
+        return new short[maxLen];
+    }
+
+    /**
+     * Writes the amounts of the given compomer into the buffer, ordered as in the table selection. The buffer
+     * is overwritten completely, so it can be reused for several compomers. A molecular formula can be built from
+     * the buffer via {@link MolecularFormula#fromCompomer(TableSelection, short[])}, which copies it.
+     */
+    public short[] decompositionToAmounts(int[] compomer, short[] buffer) {
+        Arrays.fill(buffer, (short) 0);
+        for (int i = 0; i < compomer.length; ++i) {
+            buffer[orderOfElements[i]] = (short) compomer[i];
+        }
+        return buffer;
+    }
+
     public int size() {
         return allowedElements.length;
     }
@@ -69,8 +69,11 @@ public class IsotopicDistribution implements Parameterized {
 
     public IsotopicDistribution subset(Iterable<Element> elements) {
         final IsotopicDistribution dist = new IsotopicDistribution(table);
-        for (Element e : elements)
-            dist.addIsotope(e.getSymbol(), getIsotopesFor(e));
+        for (Element e : elements) {
+            // elements without isotopes in this distribution are skipped, they cannot be exported otherwise
+            final Isotopes isotopes = getIsotopesFor(e);
+            if (isotopes != null) dist.addIsotope(e.getSymbol(), isotopes);
+        }
         return dist;
     }
 
@@ -74,15 +74,22 @@ public class ArrayFingerprint extends Fingerprint {
         return indizes.clone();
     }
 
+    @Override
+    public PackedFingerprint asPacked() {
+        return PackedFingerprint.fromIndizes(fingerprintVersion, indizes);
+    }
+
     @Override
     public double tanimoto(Fingerprint other) {
         if (other instanceof ArrayFingerprint) return tanimoto((ArrayFingerprint)other);
+        else if (other instanceof PackedFingerprint) return other.tanimoto(this);
         else return super.tanimoto(other);
     }
 
     @Override
     public double dotProduct(Fingerprint other) {
         if (other instanceof ArrayFingerprint) return dotProduct((ArrayFingerprint)other);
+        else if (other instanceof PackedFingerprint) return other.dotProduct(this);
         else return super.dotProduct(other);
     }
 
@@ -124,6 +131,7 @@ public class ArrayFingerprint extends Fingerprint {
 
     public double plusMinusdotProduct(Fingerprint other) {
         if (other instanceof ArrayFingerprint) return plusMinusdotProduct((ArrayFingerprint)other);
+        else if (other instanceof PackedFingerprint) return other.plusMinusdotProduct(this);
         else return super.plusMinusdotProduct(other);
     }
 
@@ -49,6 +49,11 @@ public class BooleanFingerprint extends Fingerprint {
         return this;
     }
 
+    @Override
+    public PackedFingerprint asPacked() {
+        return PackedFingerprint.fromBooleans(fingerprintVersion, fingerprint);
+    }
+
     @Override
     public String toOneZeroString() {
         final char[] buf = new char[fingerprintVersion.size()];
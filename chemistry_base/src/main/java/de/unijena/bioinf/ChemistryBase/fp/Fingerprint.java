@@ -31,6 +31,14 @@ public abstract class Fingerprint extends AbstractFingerprint {
     public abstract ArrayFingerprint asArray();
     public abstract BooleanFingerprint asBooleans();
 
+    /**
+     * @return this fingerprint with its bits packed into a long array, which allows bit-parallel Tanimoto and
+     * dot product computations
+     */
+    public PackedFingerprint asPacked() {
+        return PackedFingerprint.fromIndizes(fingerprintVersion, toIndizesArray());
+    }
+
     public abstract String toOneZeroString();
 
     public abstract boolean[] toBooleanArray();
@@ -20,6 +20,7 @@
 
 package de.unijena.bioinf.ChemistryBase.fp;
 
+import de.unijena.bioinf.ChemistryBase.algorithm.BitsetOps;
 import gnu.trove.list.array.TShortArrayList;
 import gnu.trove.map.hash.TShortShortHashMap;
 
@@ -102,6 +103,13 @@ public class MaskedFingerprintVersion extends FingerprintVersion{
                 int k=0;
                 for (int index : allowedIndizes) masked[k++] = fingerprint.isSet(index);
                 return (T) new BooleanFingerprint(this, masked);
+            } else if (fingerprint instanceof PackedFingerprint) {
+                final long[] bits = new long[PackedFingerprint.numberOfWords(allowedIndizes.length)];
+                final PackedFingerprint packed = (PackedFingerprint) fingerprint;
+                for (int i=0; i < allowedIndizes.length; ++i) {
+                    if (packed.isSetRelative(allowedIndizes[i])) BitsetOps.set(bits, i);
+                }
+                return (T) new PackedFingerprint(this, bits);
             } else {
                 throw new RuntimeException("Cannot mask " + fingerprint.getClass());
             }
@@ -113,7 +121,9 @@ public class MaskedFingerprintVersion extends FingerprintVersion{
      * has the same set of molecular properties, just without the masking.
      */
     protected Fingerprint unmask(Fingerprint fp) {
-        if (fp instanceof ArrayFingerprint) {
+        if (fp instanceof PackedFingerprint) {
+            return PackedFingerprint.fromIndizes(getMaskedFingerprintVersion(), fp.toIndizesArray());
+        } else if (fp instanceof ArrayFingerprint) {
             return new ArrayFingerprint(getMaskedFingerprintVersion(), ((ArrayFingerprint) fp).indizes);
         } else {
             return new ArrayFingerprint(getMaskedFingerprintVersion(), fp.toIndizesArray());
@@ -181,6 +191,13 @@ public class MaskedFingerprintVersion extends FingerprintVersion{
         }
     }
 
+    /**
+     * returns true if both masks are defined over the same fingerprint version and allow exactly the same indizes
+     */
+    public boolean hasSameMask(MaskedFingerprintVersion other) {
+        return this == other || (innerVersion.compatible(other.innerVersion) && mask.equals(other.mask));
+    }
+
     public boolean isNotFiltering() {
         return allowedIndizes.length==innerVersion.size();
     }
@@ -0,0 +1,613 @@
+/*
+ *
+ *  This file is part of the SIRIUS library for analyzing MS and MS/MS data
+ *
+ *  Copyright (C) 2013-2020 Kai Dührkop, Markus Fleischauer, Marcus Ludwig, Martin A. Hoffman and Sebastian Böcker,
+ *  Chair of Bioinformatics, Friedrich-Schilller University.
+ *
+ *  This library is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public
+ *  License as published by the Free Software Foundation; either
+ *  version 3 of the License, or (at your option) any later version.
+ *
+ *  This library is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License along with SIRIUS. If not, see <https://www.gnu.org/licenses/lgpl-3.0.txt>
+ */
+
+package de.unijena.bioinf.ChemistryBase.fp;
+
+import de.unijena.bioinf.ChemistryBase.algorithm.BitsetOps;
+
+import java.util.Arrays;
+import java.util.Iterator;
+
+/**
+ * Deterministic fingerprint which stores its bits packed into a long array. Bit k of the array corresponds to the
+ * relative index k of the fingerprint version. Tanimoto, dot product and common bits between two packed fingerprints
+ * with the same layout are computed word-wise via {@link Long#bitCount(long)}, which is much faster than the
+ * merge-walk over sorted index arrays when ranking many candidates against each other.
+ */
+public class PackedFingerprint extends Fingerprint {
+
+    protected final long[] bits;
+    protected final int cardinality;
+
+    public PackedFingerprint(FingerprintVersion fingerprintVersion, long[] bits) {
+        this(fingerprintVersion, bits.clone(), true);
+    }
+
+    private PackedFingerprint(FingerprintVersion fingerprintVersion, long[] bits, boolean check) {
+        super(fingerprintVersion);
+        if (bits.length != numberOfWords(fingerprintVersion.size()))
+            throw new IllegalArgumentException("fp length does not match fingerprint version length: " + bits.length + " words vs. " + fingerprintVersion.size() + " bits");
+        if (check && bits.length > 0 && (bits[bits.length - 1] & ~lastWordMask(fingerprintVersion.size())) != 0)
+            throw new IllegalArgumentException("fingerprint has bits set beyond the fingerprint version length of " + fingerprintVersion.size());
+        this.bits = bits;
+        int count = 0;
+        for (long word : bits) count += Long.bitCount(word);
+        this.cardinality = count;
+    }
+
+    public static PackedFingerprint fromIndizes(FingerprintVersion fingerprintVersion, short[] indizes) {
+        return fromIndizes(fingerprintVersion, indizes, indizes.length);
+    }
+
+    /**
+     * creates a fingerprint from the first length entries of the given array
+     */
+    public static PackedFingerprint fromIndizes(FingerprintVersion fingerprintVersion, short[] indizes, int length) {
+        final long[] bits = new long[numberOfWords(fingerprintVersion.size())];
+        for (int k = 0; k < length; ++k) {
+            final short index = indizes[k];
+            final int relative = fingerprintVersion.getRelativeIndexOf(index);
+            if (relative < 0 || relative >= fingerprintVersion.size())
+                throw new IllegalArgumentException("Fingerprintversion is not compatible to fingerprint: index " + index + " is not part of " + fingerprintVersion.toString());
+            BitsetOps.set(bits, relative);
+        }
+        return new PackedFingerprint(fingerprintVersion, bits, false);
+    }
+
+    public static PackedFingerprint fromBooleans(FingerprintVersion fingerprintVersion, boolean[] values) {
+        if (values.length != fingerprintVersion.size())
+            throw new IllegalArgumentException("fp length does not match fingerprint version length: " + values.length + " vs. " + fingerprintVersion.size());
+        final long[] bits = new long[numberOfWords(values.length)];
+        for (int i = 0; i < values.length; ++i)
+            if (values[i]) BitsetOps.set(bits, i);
+        return new PackedFingerprint(fingerprintVersion, bits, false);
+    }
+
+    protected static int numberOfWords(int size) {
+        return (size + 63) >>> 6;
+    }
+
+    private static long lastWordMask(int size) {
+        final int rest = size & 63;
+        return rest == 0 ? -1L : (1L << rest) - 1L;
+    }
+
+    /**
+     * two fingerprint versions share the same bit layout if each relative index refers to the same
+     * molecular property in both versions. Only then bit-parallel operations are valid.
+     */
+    public static boolean sameLayout(FingerprintVersion a, FingerprintVersion b) {
+        if (a == b) return true;
+        if (a.size() != b.size()) return false;
+        if (a instanceof MaskedFingerprintVersion) {
+            if (!(b instanceof MaskedFingerprintVersion)) return ((MaskedFingerprintVersion) a).isNotFiltering();
+            return ((MaskedFingerprintVersion) a).hasSameMask((MaskedFingerprintVersion) b);
+        } else if (b instanceof MaskedFingerprintVersion) {
+            return ((MaskedFingerprintVersion) b).isNotFiltering();
+        } else return true;
+    }
+
+    /**
+     * @return a copy of the packed bits. Bit k refers to the relative index k of the fingerprint version.
+     */
+    public long[] toLongArray() {
+        return bits.clone();
+    }
+
+    @Override
+    public PackedFingerprint asPacked() {
+        return this;
+    }
+
+    @Override
+    public ArrayFingerprint asArray() {
+        return new ArrayFingerprint(fingerprintVersion, toIndizesArray());
+    }
+
+    @Override
+    public BooleanFingerprint asBooleans() {
+        return new BooleanFingerprint(fingerprintVersion, toBooleanArray());
+    }
+
+    @Override
+    public String toOneZeroString() {
+        final char[] buffer = new char[fingerprintVersion.size()];
+        Arrays.fill(buffer, '0');
+        for (int i = BitsetOps.nextSetBit(bits, 0); i >= 0; i = BitsetOps.nextSetBit(bits, i + 1))
+            buffer[i] = '1';
+        return new String(buffer);
+    }
+
+    @Override
+    public boolean[] toBooleanArray() {
+        final boolean[] buffer = new boolean[fingerprintVersion.size()];
+        for (int i = BitsetOps.nextSetBit(bits, 0); i >= 0; i = BitsetOps.nextSetBit(bits, i + 1))
+            buffer[i] = true;
+        return buffer;
+    }
+
+    @Override
+    public short[] toIndizesArray() {
+        final short[] indizes = new short[cardinality];
+        int k = 0;
+        for (int i = BitsetOps.nextSetBit(bits, 0); i >= 0; i = BitsetOps.nextSetBit(bits, i + 1))
+            indizes[k++] = (short) fingerprintVersion.getAbsoluteIndexOf(i);
+        return indizes;
+    }
+
+    @Override
+    public double tanimoto(Fingerprint other) {
+        if (other instanceof PackedFingerprint && sameLayout(fingerprintVersion, other.fingerprintVersion))
+            return tanimoto((PackedFingerprint) other);
+        else if (other instanceof ArrayFingerprint && sameLayout(fingerprintVersion, other.fingerprintVersion)) {
+            enforceCompatibility(other);
+            final int intersection = numberOfCommonBits((ArrayFingerprint) other);
+            final int union = cardinality + other.cardinality() - intersection;
+            if (union == 0) return 0d;
+            return ((double) intersection) / union;
+        } else return super.tanimoto(other);
+    }
+
+    public double tanimoto(PackedFingerprint other) {
+        enforceCompatibility(other);
+        final long[] as = bits, bs = other.bits;
+        int intersection = 0;
+        for (int i = 0; i < as.length; ++i) intersection += Long.bitCount(as[i] & bs[i]);
+        // |A u B| = (|A| + |B|) - |A n B|
+        final int union = cardinality + other.cardinality - intersection;
+        if (union == 0) return 0d;
+        return ((double) intersection) / union;
+    }
+
+    /**
+     * Computes the dot product of two fingerprints represented as 0|1 vector, which is the number of common bits.
+     */
+    @Override
+    public double dotProduct(Fingerprint other) {
+        if (other instanceof PackedFingerprint && sameLayout(fingerprintVersion, other.fingerprintVersion))
+            return numberOfCommonBits((PackedFingerprint) other);
+        else if (other instanceof ArrayFingerprint && sameLayout(fingerprintVersion, other.fingerprintVersion))
+            return numberOfCommonBits((ArrayFingerprint) other);
+        else return super.dotProduct(other);
+    }
+
+    @Override
+    public double plusMinusdotProduct(Fingerprint other) {
+        final int intersection;
+        if (other instanceof PackedFingerprint && sameLayout(fingerprintVersion, other.fingerprintVersion))
+            intersection = numberOfCommonBits((PackedFingerprint) other);
+        else if (other instanceof ArrayFingerprint && sameLayout(fingerprintVersion, other.fingerprintVersion))
+            intersection = numberOfCommonBits((ArrayFingerprint) other);
+        else return super.plusMinusdotProduct(other);
+        final int length = fingerprintVersion.size();
+        final int union = cardinality + other.cardinality() - intersection;
+        // number of (1,1) pairs: intersection
+        // number of {-1,1} pairs: union  - intersection
+        // number of (-1,-1) pairs: length - union
+        // dot product is intersection + (length-union) - (union - intersection)
+        return intersection + (length - union) - (union - intersection);
+    }
+
+    public int numberOfCommonBits(PackedFingerprint other) {
+        enforceCompatibility(other);
+        final long[] as = bits, bs = other.bits;
+        int intersection = 0;
+        for (int i = 0; i < as.length; ++i) intersection += Long.bitCount(as[i] & bs[i]);
+        return intersection;
+    }
+
+    /**
+     * the array fingerprint has to share the bit layout of this fingerprint. Requires only one bit lookup per
+     * index of the array fingerprint.
+     */
+    public int numberOfCommonBits(ArrayFingerprint other) {
+        enforceCompatibility(other);
+        int intersection = 0;
+        for (short index : other.indizes) {
+            final int relative = fingerprintVersion.getRelativeIndexOf(index);
+            if (relative >= 0 && (bits[relative >>> 6] & (1L << relative)) != 0) ++intersection;
+        }
+        return intersection;
+    }
+
+    @Override
+    public boolean isSameSet(AbstractFingerprint other) {
+        if (other instanceof PackedFingerprint && sameLayout(fingerprintVersion, other.fingerprintVersion))
+            return Arrays.equals(bits, ((PackedFingerprint) other).bits);
+        else return super.isSameSet(other);
+    }
+
+    @Override
+    public Fingerprint asDeterministic() {
+        return this;
+    }
+
+    @Override
+    public ProbabilityFingerprint asProbabilistic() {
+        return new ProbabilityFingerprint(fingerprintVersion, toProbabilityArray());
+    }
+
+    @Override
+    public String toTabSeparatedString() {
+        if (cardinality == 0) return "";
+        final StringBuilder buffer = new StringBuilder(cardinality * 5);
+        for (int i = BitsetOps.nextSetBit(bits, 0); i >= 0; i = BitsetOps.nextSetBit(bits, i + 1)) {
+            if (buffer.length() > 0) buffer.append('\t');
+            buffer.append(fingerprintVersion.getAbsoluteIndexOf(i));
+        }
+        return buffer.toString();
+    }
+
+    @Override
+    public double[] toProbabilityArray() {
+        final double[] ary = new double[fingerprintVersion.size()];
+        for (int i = BitsetOps.nextSetBit(bits, 0); i >= 0; i = BitsetOps.nextSetBit(bits, i + 1))
+            ary[i] = 1d;
+        return ary;
+    }
+
+    @Override
+    public boolean isSet(int index) {
+        final int relative = fingerprintVersion.getRelativeIndexOf(index);
+        return relative >= 0 && relative < fingerprintVersion.size() && (bits[relative >>> 6] & (1L << relative)) != 0;
+    }
+
+    /**
+     * @param relative relative index of the molecular property
+     * @return true if the bit with the given relative index is set. No bound checks are done.
+     */
+    public boolean isSetRelative(int relative) {
+        return (bits[relative >>> 6] & (1L << relative)) != 0;
+    }
+
+    @Override
+    public int cardinality() {
+        return cardinality;
+    }
+
+    /**
+     * @return the relative index of the first set bit which is greater or equal to the given relative index,
+     * or -1 if there is no such bit
+     */
+    public int nextSetBit(int relative) {
+        if (relative >= fingerprintVersion.size()) return -1;
+        return BitsetOps.nextSetBit(bits, relative);
+    }
+
+    @Override
+    public FPIter iterator() {
+        return new BIter(-1);
+    }
+
+    @Override
+    public FPIter presentFingerprints() {
+        return new BIterJustOnes(-1, BitsetOps.nextSetBit(bits, 0));
+    }
+
+    @Override
+    public FPIter2 foreachUnion(AbstractFingerprint fp) {
+        enforceCompatibility(fp);
+        if (fp instanceof PackedFingerprint && sameLayout(fingerprintVersion, fp.fingerprintVersion))
+            return new PairwiseIterator(this, (PackedFingerprint) fp, PairwiseIterator.UNION, -1);
+        else throw new IllegalArgumentException("Pairwise iterators are only supported for same type fingerprints;");
+    }
+
+    @Override
+    public FPIter2 foreachIntersection(AbstractFingerprint fp) {
+        enforceCompatibility(fp);
+        if (fp instanceof PackedFingerprint && sameLayout(fingerprintVersion, fp.fingerprintVersion))
+            return new PairwiseIterator(this, (PackedFingerprint) fp, PairwiseIterator.INTERSECTION, -1);
+        else throw new IllegalArgumentException("Pairwise iterators are only supported for same type fingerprints;");
+    }
+
+    @Override
+    public FPIter2 foreachPair(AbstractFingerprint fp) {
+        enforceCompatibility(fp);
+        if (fp instanceof PackedFingerprint && sameLayout(fingerprintVersion, fp.fingerprintVersion))
+            return new PairwiseIterator(this, (PackedFingerprint) fp, PairwiseIterator.ALL, -1);
+        else return super.foreachPair(fp);
+    }
+
+    protected final class BIterJustOnes extends FPIter {
+
+        private int current, next;
+
+        private BIterJustOnes(int current, int next) {
+            this.current = current;
+            this.next = next;
+        }
+
+        @Override
+        public boolean isSet() {
+            return true;
+        }
+
+        @Override
+        public int getIndex() {
+            return fingerprintVersion.getAbsoluteIndexOf(current);
+        }
+
+        @Override
+        public MolecularProperty getMolecularProperty() {
+            return fingerprintVersion.getMolecularProperty(getIndex());
+        }
+
+        @Override
+        public FPIter jumpTo(int index) {
+            int r = fingerprintVersion.getClosestRelativeIndexTo(index);
+            if (r < 0) r = -r - 1;
+            final BIterJustOnes j = new BIterJustOnes(-1, r < fingerprintVersion.size() ? BitsetOps.nextSetBit(bits, r) : -1);
+            if (j.hasNext()) j.next();
+            return j;
+        }
+
+        @Override
+        public FPIter clone() {
+            return new BIterJustOnes(current, next);
+        }
+
+        @Override
+        public boolean hasNext() {
+            return next >= 0;
+        }
+
+        @Override
+        public FPIter next() {
+            current = next;
+            next = (current + 1 < fingerprintVersion.size()) ? BitsetOps.nextSetBit(bits, current + 1) : -1;
+            return this;
+        }
+    }
+
+    protected final class BIter extends FPIter {
+
+        private int offset;
+
+        public BIter(int offset) {
+            this.offset = offset;
+        }
+
+        @Override
+        public boolean isSet() {
+            return isSetRelative(offset);
+        }
+
+        @Override
+        public int getIndex() {
+            return fingerprintVersion.getAbsoluteIndexOf(offset);
+        }
+
+        @Override
+        public MolecularProperty getMolecularProperty() {
+            return fingerprintVersion.getMolecularProperty(fingerprintVersion.getAbsoluteIndexOf(offset));
+        }
+
+        @Override
+        public FPIter jumpTo(int index) {
+            int r = fingerprintVersion.getClosestRelativeIndexTo(index);
+            if (r < 0) r = -r - 1;
+            return new BIter(r);
+        }
+
+        @Override
+        public FPIter clone() {
+            return new BIter(offset);
+        }
+
+        @Override
+        public boolean hasNext() {
+            return offset + 1 < fingerprintVersion.size();
+        }
+
+        public String toString() {
+            return isSet() ? "1" : "0";
+        }
+
+        @Override
+        public FPIter next() {
+            ++offset;
+            return this;
+        }
+    }
+
+    /**
+     * Iterates over all, the union or the intersection of two packed fingerprints with the same layout. Union and
+     * intersection skip empty words of the combined bitset.
+     */
+    protected static class PairwiseIterator implements FPIter2 {
+        protected static final int ALL = 0, UNION = 1, INTERSECTION = 2;
+
+        protected final PackedFingerprint left, right;
+        protected final int mode;
+        protected int current, next;
+
+        protected PairwiseIterator(PackedFingerprint left, PackedFingerprint right, int mode, int current) {
+            this.left = left;
+            this.right = right;
+            this.mode = mode;
+            this.current = current;
+            this.next = findNext(current + 1);
+        }
+
+        private int findNext(int from) {
+            final int size = left.fingerprintVersion.size();
+            if (from >= size) return size;
+            if (mode == ALL) return from;
+            int u = from >>> 6;
+            long word = combine(u) & (-1L << from);
+            while (true) {
+                if (word != 0) return Math.min(size, (u << 6) + Long.numberOfTrailingZeros(word));
+                if (++u >= left.bits.length) return size;
+                word = combine(u);
+            }
+        }
+
+        private long combine(int u) {
+            return mode == UNION ? (left.bits[u] | right.bits[u]) : (left.bits[u] & right.bits[u]);
+        }
+
+        @Override
+        public FPIter2 clone() {
+            final PairwiseIterator it = new PairwiseIterator(left, right, mode, current);
+            it.next = next;
+            return it;
+        }
+
+        @Override
+        public double getLeftProbability() {
+            return isLeftSet() ? 1 : 0;
+        }
+
+        @Override
+        public double getRightProbability() {
+            return isRightSet() ? 1 : 0;
+        }
+
+        @Override
+        public boolean isLeftSet() {
+            return left.isSetRelative(current);
+        }
+
+        @Override
+        public boolean isRightSet() {
+            return right.isSetRelative(current);
+        }
+
+        @Override
+        public int getIndex() {
+            return left.fingerprintVersion.getAbsoluteIndexOf(current);
+        }
+
+        @Override
+        public MolecularProperty getMolecularProperty() {
+            return left.fingerprintVersion.getMolecularProperty(getIndex());
+        }
+
+        @Override
+        public FPIter2 jumpTo(int index) {
+            int r = left.fingerprintVersion.getClosestRelativeIndexTo(index);
+            if (r < 0) r = -r - 1;
+            final PairwiseIterator it = new PairwiseIterator(left, right, mode, r - 1);
+            if (it.hasNext()) it.next();
+            return it;
+        }
+
+        @Override
+        public Iterator<FPIter2> iterator() {
+            return clone();
+        }
+
+        @Override
+        public boolean hasNext() {
+            return next < left.fingerprintVersion.size();
+        }
+
+        @Override
+        public FPIter2 next() {
+            current = next;
+            next = findNext(current + 1);
+            return this;
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+    }
+
+    /**
+     * Pairs a probabilistic fingerprint (e.g. a prediction) with a packed fingerprint (e.g. a candidate) of the same
+     * layout. Used for scoring candidates against a predicted fingerprint.
+     */
+    protected static class PairwiseProbPacked implements FPIter2 {
+        private final ProbabilityFingerprint left;
+        private final PackedFingerprint right;
+        private int offset;
+
+        protected PairwiseProbPacked(ProbabilityFingerprint left, PackedFingerprint right, int offset) {
+            this.left = left;
+            this.right = right;
+            this.offset = offset;
+        }
+
+        @Override
+        public FPIter2 clone() {
+            return new PairwiseProbPacked(left, right, offset);
+        }
+
+        @Override
+        public double getLeftProbability() {
+            return left.fingerprint[offset];
+        }
+
+        @Override
+        public double getRightProbability() {
+            return right.isSetRelative(offset) ? 1 : 0;
+        }
+
+        @Override
+        public boolean isLeftSet() {
+            return left.fingerprint[offset] >= 0.5d;
+        }
+
+        @Override
+        public boolean isRightSet() {
+            return right.isSetRelative(offset);
+        }
+
+        @Override
+        public int getIndex() {
+            return left.fingerprintVersion.getAbsoluteIndexOf(offset);
+        }
+
+        @Override
+        public MolecularProperty getMolecularProperty() {
+            return left.getFingerprintVersion().getMolecularProperty(getIndex());
+        }
+
+        @Override
+        public FPIter2 jumpTo(int index) {
+            int r = left.fingerprintVersion.getClosestRelativeIndexTo(index);
+            if (r < 0) r = -r - 1;
+            return new PairwiseProbPacked(left, right, r);
+        }
+
+        @Override
+        public Iterator<FPIter2> iterator() {
+            return clone();
+        }
+
+        @Override
+        public boolean hasNext() {
+            return (offset + 1) < left.fingerprint.length;
+        }
+
+        @Override
+        public FPIter2 next() {
+            ++offset;
+            return this;
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+    }
+}
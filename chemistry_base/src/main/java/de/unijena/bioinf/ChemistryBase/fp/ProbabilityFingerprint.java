@@ -110,6 +110,8 @@ public class ProbabilityFingerprint extends AbstractFingerprint {
     public FPIter2 foreachPair(AbstractFingerprint fp) {
         if (fp instanceof ProbabilityFingerprint) return new PairwiseIterator(this, (ProbabilityFingerprint) fp, -1, -1);
         else if (fp instanceof BooleanFingerprint) return new PairwiseProbBoolean(this,(BooleanFingerprint)fp, -1);
+        else if (fp instanceof PackedFingerprint && PackedFingerprint.sameLayout(fingerprintVersion, fp.fingerprintVersion))
+            return new PackedFingerprint.PairwiseProbPacked(this, (PackedFingerprint) fp, -1);
         else return super.foreachPair(fp);
         // We cannot express this in javas type system -_- In theory somebody could just implement a pairwise iterator
         // for mixed types
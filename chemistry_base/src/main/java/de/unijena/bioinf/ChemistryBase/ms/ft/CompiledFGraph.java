@@ -0,0 +1,226 @@
+/*
+ *
+ *  This file is part of the SIRIUS library for analyzing MS and MS/MS data
+ *
+ *  Copyright (C) 2013-2020 Kai Dührkop, Markus Fleischauer, Marcus Ludwig, Martin A. Hoffman and Sebastian Böcker,
+ *  Chair of Bioinformatics, Friedrich-Schilller University.
+ *
+ *  This library is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public
+ *  License as published by the Free Software Foundation; either
+ *  version 3 of the License, or (at your option) any later version.
+ *
+ *  This library is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License along with SIRIUS. If not, see <https://www.gnu.org/licenses/lgpl-3.0.txt>
+ */
+
+package de.unijena.bioinf.ChemistryBase.ms.ft;
+
+/**
+ * Immutable, array based view of a {@link FGraph}. Vertices are identified by their vertex id, edges by an edge id.
+ * Edges are numbered by their target vertex: the incoming edges of vertex v are the edges
+ * {@code getFirstIncomingEdge(v)} to {@code getFirstIncomingEdge(v) + getInDegree(v) - 1} in the order of
+ * {@link Fragment#getIncomingEdge(int)}. This is the same numbering as {@link FGraph#losses()}.
+ * Outgoing edges are stored as compressed sparse rows in the order of {@link Fragment#getOutgoingEdge(int)}.
+ * <p>
+ * Tree builders can traverse this view without touching Fragment and Loss objects. The view is a snapshot: it
+ * does not reflect changes of the graph after it was compiled.
+ */
+public final class CompiledFGraph {
+
+    private final FGraph graph;
+    private final Fragment[] vertices;
+    private final Loss[] losses;
+
+    private final int[] colors;
+    private final int maxColor;
+    private final int[] topologicalOrder;
+
+    // incoming edges of v: inOffsets[v] ... inOffsets[v+1]-1
+    private final int[] inOffsets;
+    // outgoing edges of u: outEdges[outOffsets[u]] ... outEdges[outOffsets[u+1]-1]
+    private final int[] outOffsets;
+    private final int[] outEdges;
+
+    private final int[] edgeSources;
+    private final int[] edgeTargets;
+    private final double[] edgeWeights;
+
+    public CompiledFGraph(FGraph graph) {
+        this.graph = graph;
+        final int n = graph.numberOfVertices();
+        this.vertices = new Fragment[n];
+        this.colors = new int[n];
+        this.inOffsets = new int[n + 1];
+        this.outOffsets = new int[n + 1];
+        int maxColor = 0;
+        for (int v = 0; v < n; ++v) {
+            final Fragment f = graph.getFragmentAt(v);
+            if (f.getVertexId() != v)
+                throw new IllegalArgumentException("Graph vertices are not numbered consecutively.");
+            vertices[v] = f;
+            colors[v] = f.getColor();
+            maxColor = Math.max(maxColor, f.getColor());
+            inOffsets[v + 1] = inOffsets[v] + f.getInDegree();
+            outOffsets[v + 1] = outOffsets[v] + f.getOutDegree();
+        }
+        this.maxColor = maxColor;
+
+        final int m = inOffsets[n];
+        this.losses = new Loss[m];
+        this.edgeSources = new int[m];
+        this.edgeTargets = new int[m];
+        this.edgeWeights = new double[m];
+        for (int v = 0, e = 0; v < n; ++v) {
+            final Fragment f = vertices[v];
+            for (int k = 0; k < f.getInDegree(); ++k, ++e) {
+                final Loss l = f.getIncomingEdge(k);
+                losses[e] = l;
+                edgeSources[e] = l.getSource().getVertexId();
+                edgeTargets[e] = v;
+                edgeWeights[e] = l.getWeight();
+            }
+        }
+
+        this.outEdges = new int[m];
+        for (int u = 0; u < n; ++u) {
+            final Fragment f = vertices[u];
+            for (int k = 0, offset = outOffsets[u]; k < f.getOutDegree(); ++k) {
+                outEdges[offset + k] = edgeIdOf(f.getOutgoingEdge(k));
+            }
+        }
+        this.topologicalOrder = computeTopologicalOrder();
+    }
+
+    private int edgeIdOf(Loss l) {
+        final int v = l.getTarget().getVertexId();
+        final int guess = inOffsets[v] + l.targetEdgeOffset;
+        if (guess < inOffsets[v + 1] && losses[guess] == l)
+            return guess;
+        for (int e = inOffsets[v]; e < inOffsets[v + 1]; ++e)
+            if (losses[e] == l) return e;
+        throw new IllegalArgumentException("Outgoing edge " + l + " is not an incoming edge of its target.");
+    }
+
+    private int[] computeTopologicalOrder() {
+        final int n = vertices.length;
+        final int[] order = new int[n];
+        final int[] remainingInDegree = new int[n];
+        int size = 0;
+        for (int v = 0; v < n; ++v) {
+            remainingInDegree[v] = getInDegree(v);
+            if (remainingInDegree[v] == 0) order[size++] = v;
+        }
+        for (int i = 0; i < size; ++i) {
+            final int u = order[i];
+            for (int j = outOffsets[u]; j < outOffsets[u + 1]; ++j) {
+                final int w = edgeTargets[outEdges[j]];
+                if (--remainingInDegree[w] == 0) order[size++] = w;
+            }
+        }
+        if (size < n)
+            throw new IllegalArgumentException("Graph contains a cycle.");
+        return order;
+    }
+
+    public FGraph getGraph() {
+        return graph;
+    }
+
+    public int numberOfVertices() {
+        return vertices.length;
+    }
+
+    public int numberOfEdges() {
+        return losses.length;
+    }
+
+    public int getRoot() {
+        return graph.getRoot().getVertexId();
+    }
+
+    public int maxColor() {
+        return maxColor;
+    }
+
+    public Fragment getFragment(int vertexId) {
+        return vertices[vertexId];
+    }
+
+    public Loss getLoss(int edgeId) {
+        return losses[edgeId];
+    }
+
+    public int getColor(int vertexId) {
+        return colors[vertexId];
+    }
+
+    public int getInDegree(int vertexId) {
+        return inOffsets[vertexId + 1] - inOffsets[vertexId];
+    }
+
+    public int getFirstIncomingEdge(int vertexId) {
+        return inOffsets[vertexId];
+    }
+
+    public int getIncomingEdge(int vertexId, int k) {
+        return inOffsets[vertexId] + k;
+    }
+
+    public int getOutDegree(int vertexId) {
+        return outOffsets[vertexId + 1] - outOffsets[vertexId];
+    }
+
+    public int getOutgoingEdge(int vertexId, int k) {
+        return outEdges[outOffsets[vertexId] + k];
+    }
+
+    public int getSource(int edgeId) {
+        return edgeSources[edgeId];
+    }
+
+    public int getTarget(int edgeId) {
+        return edgeTargets[edgeId];
+    }
+
+    public double getWeight(int edgeId) {
+        return edgeWeights[edgeId];
+    }
+
+    /**
+     * @return the k-th vertex in topological order. The pseudo root is always the first vertex.
+     */
+    public int getTopologicalOrder(int k) {
+        return topologicalOrder[k];
+    }
+
+    /**
+     * @return copy of the edge weights, indexed by edge id
+     */
+    public double[] getWeights() {
+        return edgeWeights.clone();
+    }
+
+    /**
+     * @return copy of the vertex colors, indexed by vertex id
+     */
+    public int[] getColors() {
+        return colors.clone();
+    }
+
+    /**
+     * @return vertex ids in topological order
+     */
+    public int[] getTopologicalOrder() {
+        return topologicalOrder.clone();
+    }
+
+    @Override
+    public String toString() {
+        return "CompiledFGraph{vertices=" + numberOfVertices() + ", edges=" + numberOfEdges() + ", colors=" + (maxColor + 1) + "}";
+    }
+}
@@ -86,6 +86,13 @@ public class FGraph extends AbstractFragmentationGraph {
         return pseudoRoot;
     }
 
+    /**
+     * @return an immutable array based snapshot of this graph
+     */
+    public CompiledFGraph compile() {
+        return new CompiledFGraph(this);
+    }
+
 
     public List<List<Fragment>> verticesPerColor() {
         final ArrayList<List<Fragment>> verticesPerColor = new ArrayList<List<Fragment>>();
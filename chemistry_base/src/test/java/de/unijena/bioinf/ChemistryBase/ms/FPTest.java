@@ -5,6 +5,7 @@ import gnu.trove.list.array.TIntArrayList;
 import org.junit.Test;
 
 import java.util.ArrayList;
+import java.util.Random;
 
 import static org.junit.Assert.*;
 
@@ -327,8 +328,8 @@ public class FPTest {
         final FingerprintVersion testVersion = new TestVersion(18);
         final Fingerprint a = new ArrayFingerprint(testVersion, list1);
         final Fingerprint b = new ArrayFingerprint(testVersion, list2);
-        final Fingerprint[] left = new Fingerprint[]{a,a.asBooleans()};
-        final Fingerprint[] right = new Fingerprint[]{b,b.asBooleans()};
+        final Fingerprint[] left = new Fingerprint[]{a,a.asBooleans(),a.asPacked()};
+        final Fingerprint[] right = new Fingerprint[]{b,b.asBooleans(),b.asPacked()};
 
         for (Fingerprint l : left) {
             for (Fingerprint r : right) {
@@ -351,6 +352,44 @@ public class FPTest {
 
     }
 
+    @Test
+    public void testPackedFingerprint() {
+        // use more than two words and a length which is not a multiple of 64
+        final FingerprintVersion testVersion = new TestVersion(150);
+        final MaskedFingerprintVersion fm = MaskedFingerprintVersion.buildMaskFor(testVersion).enableAll().disable(3, 40).disable(100).toMask();
+        final Random r = new Random(42);
+        for (int k=0; k < 50; ++k) {
+            final boolean[] x = new boolean[testVersion.size()], y = new boolean[testVersion.size()];
+            for (int i=0; i < x.length; ++i) {
+                x[i] = r.nextDouble() < 0.2;
+                y[i] = r.nextDouble() < 0.2;
+            }
+            for (MaskedFingerprintVersion version : new MaskedFingerprintVersion[]{null, fm}) {
+                ArrayFingerprint a = new BooleanFingerprint(testVersion, x).asArray(), b = new BooleanFingerprint(testVersion, y).asArray();
+                PackedFingerprint pa = a.asPacked(), pb = b.asPacked();
+                if (version != null) {
+                    a = version.mask(a); b = version.mask(b);
+                    pa = version.mask(pa); pb = version.mask(pb);
+                }
+                assertArrayEquals(a.toIndizesArray(), pa.toIndizesArray());
+                assertEquals(a.toOneZeroString(), pa.toOneZeroString());
+                assertEquals(a.cardinality(), pa.cardinality());
+                assertEquals(a.tanimoto(b), pa.tanimoto(pb), 1e-12);
+                assertEquals(a.tanimoto(b), pa.tanimoto(b), 1e-12);
+                assertEquals(a.tanimoto(b), a.tanimoto(pb), 1e-12);
+                assertEquals(a.dotProduct(b), pa.dotProduct(pb), 1e-12);
+                assertEquals(a.plusMinusdotProduct(b), pa.plusMinusdotProduct(pb), 1e-12);
+                assertEquals(a.plusMinusdotProduct(b), pb.plusMinusdotProduct(a), 1e-12);
+                assertTrue(pa.isSameSet(a.asPacked()));
+                final TIntArrayList indizes = new TIntArrayList();
+                for (FPIter2 iter : pa.foreachIntersection(pb)) indizes.add(iter.getIndex());
+                final TIntArrayList expected = new TIntArrayList();
+                for (FPIter2 iter : a.foreachIntersection(b)) expected.add(iter.getIndex());
+                assertArrayEquals(expected.toArray(), indizes.toArray());
+            }
+        }
+    }
+
     @Test
     public void testJumpTo() {
 
@@ -367,11 +406,13 @@ public class FPTest {
             jumpExist(array.iterator());
             jumpExist(bool.iterator());
             jumpExist(probs.iterator());
+            jumpExist(array.asPacked().iterator());
 
             // now test special variants
             jumpNotSet(array.presentFingerprints());
             jumpNotSet(bool.presentFingerprints());
             jumpNotSet(probs.presentFingerprints());
+            jumpNotSet(array.asPacked().presentFingerprints());
 
         }
         // masked FP
@@ -388,9 +429,11 @@ public class FPTest {
             jumpMask(array.iterator());
             jumpMask(bool.iterator());
             jumpMask(probs.iterator());
+            jumpMask(array.asPacked().iterator());
             jumpMask2(array.presentFingerprints());
             jumpMask2(bool.presentFingerprints());
             jumpMask2(probs.presentFingerprints());
+            jumpMask2(array.asPacked().presentFingerprints());
         }
         // pairwise FP
         {
@@ -406,6 +449,8 @@ public class FPTest {
             jumpPairwise(F.asBooleans().foreachPair(G.asBooleans()));
             jumpPairwise(F.asProbabilistic().foreachPair(G));
             jumpPairwise(F.asBooleans().foreachPair(G.asProbabilistic()));
+            jumpPairwise(F.asPacked().foreachPair(G.asPacked()));
+            jumpPairwise(F.asProbabilistic().foreachPair(G.asPacked()));
 
             // intersection
             // {2,5,6,7,12,13,14,18,25,26,27};
@@ -413,6 +458,7 @@ public class FPTest {
             jumpIntersection(F.foreachIntersection(G));
             jumpIntersection(F.asBooleans().foreachIntersection(G.asBooleans()));
             jumpIntersection(F.asProbabilistic().foreachIntersection(G.asProbabilistic()));
+            jumpIntersection(F.asPacked().foreachIntersection(G.asPacked()));
 
             // union
             // {2,5,6,7,  12,13,14,   18,25,26,27    };
@@ -420,6 +466,7 @@ public class FPTest {
             jumpUnion(F.foreachUnion(G));
             jumpUnion(F.asBooleans().foreachUnion(G.asBooleans()));
             jumpUnion(F.asProbabilistic().foreachUnion(G.asProbabilistic()));
+            jumpUnion(F.asPacked().foreachUnion(G.asPacked()));
 
         }
 
@@ -93,7 +93,7 @@ public class TanimotoDistanceFeatures implements FeatureCreator {
 
         for (int j = 0; j < distances.length; j++) {
             int additional_shift=0;
-            while (rankedCandidates_filtered[distances[j]+additional_shift].getCandidate().getFingerprint().toOneZeroString().equals(rankedCandidates_filtered[0].getCandidate().getFingerprint().toOneZeroString())){
+            while (rankedCandidates_filtered[distances[j]+additional_shift].getCandidate().getFingerprint().isSameSet(rankedCandidates_filtered[0].getCandidate().getFingerprint())){
                 additional_shift+=1;
             }
 
@@ -89,7 +89,7 @@ public class TanimotoToPredFeatures implements FeatureCreator {
 
 
 
-            scores[0] = rankedCandidates_filtered[0].getCandidate().getFingerprint().tanimoto(query.asDeterministic());
+            scores[0] = rankedCandidates_filtered[0].getCandidate().getFingerprint().tanimoto(query.asDeterministic().asPacked());
 
 
         return scores;
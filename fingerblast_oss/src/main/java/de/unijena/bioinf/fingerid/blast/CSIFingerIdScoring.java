@@ -22,6 +22,8 @@ package de.unijena.bioinf.fingerid.blast;
 
 import de.unijena.bioinf.ChemistryBase.fp.*;
 
+import java.util.List;
+
 public class CSIFingerIdScoring implements FingerblastScoring {
 
     private PredictionPerformance[] performances;
@@ -114,4 +116,39 @@ public class CSIFingerIdScoring implements FingerblastScoring {
         }
         return score;
     }
+
+    /**
+     * Each property contributes the score for an unset candidate bit plus, if the candidate bit is set, the difference
+     * to the score for a set bit. So we sum up the unset scores once and only visit the set bits of each candidate.
+     */
+    @Override
+    public double[] scoreAll(ProbabilityFingerprint fingerprint, List<? extends Fingerprint> databaseEntries) {
+        final double[] delta = new double[performances.length];
+        double base = 0d;
+        int k=0;
+        for (FPIter iter : fingerprint) {
+            if (!(performances[k].getF() < threshold  || performances[k].getSmallerClassSize() < minSamples)) {
+                final double ifUnset = iter.isSet() ? fp[k] : tn[k];
+                final double ifSet = iter.isSet() ? tp[k] : fn[k];
+                base += ifUnset;
+                delta[k] = ifSet - ifUnset;
+            }
+            ++k;
+        }
+        final double[] scores = new double[databaseEntries.size()];
+        k=0;
+        for (Fingerprint databaseEntry : databaseEntries) {
+            final PackedFingerprint candidate = databaseEntry.asPacked();
+            if (!PackedFingerprint.sameLayout(fingerprint.getFingerprintVersion(), candidate.getFingerprintVersion())) {
+                scores[k++] = score(fingerprint, databaseEntry);
+                continue;
+            }
+            if (!fingerprint.isCompatible(candidate)) throw new RuntimeException("Fingerprints are not compatible");
+            double score = base;
+            for (int i = candidate.nextSetBit(0); i >= 0; i = candidate.nextSetBit(i+1))
+                score += delta[i];
+            scores[k++] = score;
+        }
+        return scores;
+    }
 }
@@ -24,16 +24,19 @@ package de.unijena.bioinf.fingerid.blast;
 
 import de.unijena.bioinf.ChemistryBase.fp.Fingerprint;
 import de.unijena.bioinf.ChemistryBase.fp.FingerprintVersion;
+import de.unijena.bioinf.ChemistryBase.fp.PackedFingerprint;
 import de.unijena.bioinf.ChemistryBase.fp.PredictionPerformance;
 import de.unijena.bioinf.ChemistryBase.fp.ProbabilityFingerprint;
 import de.unijena.bioinf.ChemistryBase.math.Statistics;
 import gnu.trove.list.array.TDoubleArrayList;
+import gnu.trove.list.array.TIntArrayList;
 import gnu.trove.map.hash.TIntObjectHashMap;
 
 import java.io.*;
 import java.nio.charset.Charset;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
@@ -401,6 +404,14 @@ public class CovarianceScoringMethod implements FingerblastScoringMethod {
     public class Scoring implements FingerblastScoring {
         protected double[][][] abcdMatrixByNodeIdxAndCandidateProperties;
 
+        // the correlation forest flattened into arrays. Edges are in preorder, so every parent is listed before its children.
+        protected int[] rootIndizes, edgeParentIndizes, edgeChildIndizes;
+        // log probabilities of the prepared fingerprint. Conditional log probability of edge e for the assignment
+        // of parent and child is stored at 4*e + getIndex(parentTrue, childTrue)
+        protected double[] rootLogTrue, rootLogFalse, edgeLogProbabilities;
+        // the flat tables are only valid for this fingerprint
+        protected ProbabilityFingerprint preparedFingerprint;
+
 
         protected int getIndex(boolean rootTrue, boolean thisTrue){
             return (rootTrue ? 2 : 0)+((thisTrue ? 1 : 0));
@@ -452,6 +463,51 @@ public class CovarianceScoringMethod implements FingerblastScoringMethod {
                     prepare(child, fp);
                 }
             }
+            prepareFlatTables(fp);
+            preparedFingerprint = fingerprint;
+        }
+
+        protected void flattenForest() {
+            final TIntArrayList parents = new TIntArrayList(nodeList.length), children = new TIntArrayList(nodeList.length);
+            final ArrayDeque<CorrelationTreeNode> stack = new ArrayDeque<>();
+            rootIndizes = new int[forests.length];
+            for (int r = 0; r < forests.length; ++r) {
+                rootIndizes[r] = forests[r].fingerprintIndex;
+                stack.push(forests[r]);
+                while (!stack.isEmpty()) {
+                    final CorrelationTreeNode u = stack.pop();
+                    for (int c = u.children.size() - 1; c >= 0; --c) {
+                        final CorrelationTreeNode v = u.children.get(c);
+                        parents.add(u.fingerprintIndex);
+                        children.add(v.fingerprintIndex);
+                        stack.push(v);
+                    }
+                }
+            }
+            edgeParentIndizes = parents.toArray();
+            edgeChildIndizes = children.toArray();
+        }
+
+        protected void prepareFlatTables(double[] fp) {
+            if (edgeChildIndizes == null) flattenForest();
+            rootLogTrue = new double[rootIndizes.length];
+            rootLogFalse = new double[rootIndizes.length];
+            for (int r = 0; r < rootIndizes.length; ++r) {
+                final double prediction = laplaceSmoothing(fp[rootIndizes[r]], alpha);
+                rootLogTrue[r] = Math.log(prediction);
+                rootLogFalse[r] = Math.log(1d - prediction);
+            }
+            edgeLogProbabilities = new double[4 * edgeChildIndizes.length];
+            for (int e = 0; e < edgeChildIndizes.length; ++e) {
+                final double p_i = laplaceSmoothing(fp[edgeParentIndizes[e]], alpha);
+                final int j = edgeChildIndizes[e];
+                final int offset = 4 * e;
+                // same case distinction as in conditional
+                edgeLogProbabilities[offset + getIndex(true, true)] = Math.log(getABCDMatrix(j, true, true)[0] / p_i);
+                edgeLogProbabilities[offset + getIndex(false, true)] = Math.log(getABCDMatrix(j, false, true)[1] / (1 - p_i));
+                edgeLogProbabilities[offset + getIndex(true, false)] = Math.log(getABCDMatrix(j, true, false)[2] / p_i);
+                edgeLogProbabilities[offset + getIndex(false, false)] = Math.log(getABCDMatrix(j, false, false)[3] / (1 - p_i));
+            }
         }
 
         void prepare(CorrelationTreeNode v, double[] fingerprint){
@@ -486,6 +542,34 @@ public class CovarianceScoringMethod implements FingerblastScoringMethod {
 
         @Override
         public double score(ProbabilityFingerprint fingerprint, Fingerprint databaseEntry) {
+            if (fingerprint != preparedFingerprint || !PackedFingerprint.sameLayout(fingerprint.getFingerprintVersion(), databaseEntry.getFingerprintVersion()))
+                return scoreRecursive(fingerprint, databaseEntry);
+            final double logProbability = scoreFlat(databaseEntry.asPacked());
+            if (Double.isNaN(logProbability) || Double.isInfinite(logProbability)) {
+                // walk the tree again to report the bad edge
+                return scoreRecursive(fingerprint, databaseEntry);
+            }
+            return logProbability;
+        }
+
+        /**
+         * scores the candidate using the flattened forest. The candidate is expected to have the same bit layout as the prepared fingerprint.
+         */
+        protected double scoreFlat(PackedFingerprint candidate) {
+            final int[] roots = rootIndizes, us = edgeParentIndizes, vs = edgeChildIndizes;
+            final double[] logs = edgeLogProbabilities;
+            double logProbability = 0d;
+            for (int r = 0; r < roots.length; ++r) {
+                logProbability += candidate.isSetRelative(roots[r]) ? rootLogTrue[r] : rootLogFalse[r];
+            }
+            for (int e = 0; e < vs.length; ++e) {
+                final int index = (candidate.isSetRelative(us[e]) ? 2 : 0) + (candidate.isSetRelative(vs[e]) ? 1 : 0);
+                logProbability += logs[4 * e + index];
+            }
+            return logProbability;
+        }
+
+        protected double scoreRecursive(ProbabilityFingerprint fingerprint, Fingerprint databaseEntry) {
             double logProbability = 0d;
 
             double[] fp = fingerprint.toProbabilityArray();
@@ -20,6 +20,7 @@
 
 package de.unijena.bioinf.fingerid.blast;
 
+import de.unijena.bioinf.ChemistryBase.algorithm.BoundedQueue;
 import de.unijena.bioinf.ChemistryBase.algorithm.scoring.Scored;
 import de.unijena.bioinf.ChemistryBase.chem.MolecularFormula;
 import de.unijena.bioinf.ChemistryBase.fp.Fingerprint;
@@ -27,6 +28,8 @@ import de.unijena.bioinf.ChemistryBase.fp.MaskedFingerprintVersion;
 import de.unijena.bioinf.ChemistryBase.fp.ProbabilityFingerprint;
 import de.unijena.bioinf.chemdb.ChemicalDatabaseException;
 import de.unijena.bioinf.chemdb.FingerprintCandidate;
+import de.unijena.bioinf.chemdb.FingerprintCandidateCursor;
+import de.unijena.bioinf.babelms.CloseableIterator;
 import de.unijena.bioinf.chemdb.SearchStructureByFormula;
 import de.unijena.bioinf.jjobs.BasicJJob;
 import de.unijena.bioinf.jjobs.JJob;
@@ -34,14 +37,17 @@ import de.unijena.bioinf.jjobs.Partition;
 import de.unijena.bioinf.ms.properties.PropertyManager;
 import org.jetbrains.annotations.NotNull;
 
-import java.util.ArrayList;
-import java.util.Collection;
-import java.util.Comparator;
-import java.util.List;
+import java.io.IOException;
+import java.util.*;
 import java.util.stream.Collectors;
 
 public class Fingerblast {
 
+    /**
+     * number of candidates which are scored together in the streaming search
+     */
+    protected static final int STREAMING_BLOCK_SIZE = 1024;
+
     private SearchStructureByFormula searchEngine;
     private FingerblastScoringMethod scoringMethod;
 
@@ -70,6 +76,13 @@ public class Fingerblast {
         return search(searchEngine, scoringMethod, formula, fingerprint);
     }
 
+    /**
+     * streaming search which only keeps the k best candidates in memory
+     */
+    public List<Scored<FingerprintCandidate>> search(@NotNull MolecularFormula formula, @NotNull ProbabilityFingerprint fingerprint, int k) throws ChemicalDatabaseException {
+        return search(searchEngine, scoringMethod, formula, fingerprint, k);
+    }
+
     public List<Scored<FingerprintCandidate>> score(@NotNull List<FingerprintCandidate> candidates, @NotNull ProbabilityFingerprint fingerprint) throws ChemicalDatabaseException {
         return score(scoringMethod, candidates, fingerprint);
     }
@@ -79,15 +92,88 @@ public class Fingerblast {
         return score(scoringMethod, candidates, fingerprint);
     }
 
+    /**
+     * Pulls the candidates of the given formula from the search engine, scores them on the fly and returns the k best
+     * candidates sorted by score. Peak memory depends on k and not on the number of candidates.
+     */
+    public static List<Scored<FingerprintCandidate>> search(@NotNull final SearchStructureByFormula searchEngine, @NotNull final FingerblastScoringMethod scoringMethod, @NotNull final MolecularFormula formula, @NotNull final ProbabilityFingerprint fingerprint, int k) throws ChemicalDatabaseException {
+        try (final FingerprintCandidateCursor candidates = searchEngine.cursorByFormula(formula)) {
+            return score(scoringMethod, candidates, fingerprint, k);
+        } catch (ChemicalDatabaseException e) {
+            throw e;
+        } catch (IOException e) {
+            throw new ChemicalDatabaseException(e);
+        }
+    }
+
+    public static List<Scored<FingerprintCandidate>> score(@NotNull final FingerblastScoringMethod scoringMethod, @NotNull final Iterator<FingerprintCandidate> candidates, @NotNull final ProbabilityFingerprint fingerprint, int k) {
+        return score(scoringMethod, FingerprintCandidateCursor.of(CloseableIterator.of(candidates)), fingerprint, k);
+    }
+
+    /**
+     * Scores the candidates in blocks of {@link #STREAMING_BLOCK_SIZE} and keeps the k best of them in a bounded queue.
+     * Candidate objects are only created for candidates which enter the queue. Candidates with equal score are ordered
+     * as they come from the cursor, so the result equals the first k entries of {@link #score(FingerblastScoringMethod, List, ProbabilityFingerprint)}.
+     * @return the k best candidates sorted by score in descending order
+     */
+    public static List<Scored<FingerprintCandidate>> score(@NotNull final FingerblastScoringMethod scoringMethod, @NotNull final FingerprintCandidateCursor candidates, @NotNull final ProbabilityFingerprint fingerprint, int k) {
+        if (k <= 0) throw new IllegalArgumentException("number of candidates to keep has to be positive: " + k);
+        MaskedFingerprintVersion mask = null;
+        if (fingerprint.getFingerprintVersion() instanceof MaskedFingerprintVersion) mask = (MaskedFingerprintVersion)fingerprint.getFingerprintVersion();
+        final FingerblastScoring scorer = scoringMethod.getScoring();
+        scorer.prepare(fingerprint);
+        final BoundedQueue<Ranked> best = new BoundedQueue<>(k, Ranked[]::new, Ranked.ORDER);
+        final List<Fingerprint> block = new ArrayList<>(STREAMING_BLOCK_SIZE);
+        final List<Fingerprint> masked = new ArrayList<>(STREAMING_BLOCK_SIZE);
+        long offset = 0;
+        int size;
+        while ((size = candidates.nextBlock(STREAMING_BLOCK_SIZE, block)) > 0) {
+            masked.clear();
+            for (Fingerprint fp : block)
+                masked.add(((mask==null || fp.getFingerprintVersion().equals(mask)) ? fp : mask.mask(fp)).asPacked());
+            final double[] scores = scorer.scoreAll(fingerprint, masked);
+            for (int i=0; i < size; ++i) {
+                // a later candidate with the same score as the minimum is ranked below it
+                if (best.length() >= k && scores[i] <= best.min().scored.getScore()) continue;
+                best.add(new Ranked(new Scored<>(new FingerprintCandidate(candidates.getCandidate(i), masked.get(i)), scores[i]), offset + i));
+            }
+            offset += size;
+        }
+        final Ranked[] ranked = best.toArray();
+        Arrays.sort(ranked, Ranked.ORDER.reversed());
+        final List<Scored<FingerprintCandidate>> results = new ArrayList<>(ranked.length);
+        for (Ranked r : ranked) results.add(r.scored);
+        return results;
+    }
+
+    /**
+     * scored candidate and its position in the database
+     */
+    private static final class Ranked {
+        private static final Comparator<Ranked> ORDER = Comparator.<Ranked>comparingDouble(r -> r.scored.getScore()).thenComparing(Comparator.<Ranked>comparingLong(r -> r.position).reversed());
+
+        private final Scored<FingerprintCandidate> scored;
+        private final long position;
+
+        private Ranked(Scored<FingerprintCandidate> scored, long position) {
+            this.scored = scored;
+            this.position = position;
+        }
+    }
+
     public static List<Scored<FingerprintCandidate>> score(@NotNull final FingerblastScoringMethod scoringMethod, @NotNull final List<FingerprintCandidate> candidates, @NotNull final ProbabilityFingerprint fingerprint) {
         final ArrayList<Scored<FingerprintCandidate>> results = new ArrayList<>();
         MaskedFingerprintVersion mask = null;
         if (fingerprint.getFingerprintVersion() instanceof MaskedFingerprintVersion) mask = (MaskedFingerprintVersion)fingerprint.getFingerprintVersion();
         final FingerblastScoring scorer = scoringMethod.getScoring();
         scorer.prepare(fingerprint);
+        final List<Fingerprint> masked = new ArrayList<>(candidates.size());
         for (FingerprintCandidate fp : candidates) {
-            final Fingerprint fpm = (mask==null || fp.getFingerprint().getFingerprintVersion().equals(mask)) ? fp.getFingerprint() : mask.mask(fp.getFingerprint());
-            results.add(new Scored<>(new FingerprintCandidate(fp, fpm), scorer.score(fingerprint, fpm)));
+            masked.add(((mask==null || fp.getFingerprint().getFingerprintVersion().equals(mask)) ? fp.getFingerprint() : mask.mask(fp.getFingerprint())).asPacked());
+        }
+        final double[] scores = scorer.scoreAll(fingerprint, masked);
+        for (int k=0; k < scores.length; ++k) {
+            results.add(new Scored<>(new FingerprintCandidate(candidates.get(k), masked.get(k)), scores[k]));
         }
         results.sort(Comparator.reverseOrder());
         return results;
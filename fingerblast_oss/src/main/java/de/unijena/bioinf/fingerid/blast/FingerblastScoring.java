@@ -23,12 +23,27 @@ package de.unijena.bioinf.fingerid.blast;
 import de.unijena.bioinf.ChemistryBase.fp.Fingerprint;
 import de.unijena.bioinf.ChemistryBase.fp.ProbabilityFingerprint;
 
+import java.util.List;
+
 public interface FingerblastScoring {
 
     void prepare(ProbabilityFingerprint fingerprint);
 
     double score(ProbabilityFingerprint fingerprint, Fingerprint databaseEntry);
 
+    /**
+     * scores all database entries against the prepared fingerprint. Implementations may override this method
+     * to use tables precomputed in {@link #prepare(ProbabilityFingerprint)} and avoid per candidate overhead.
+     * @return array with the score of the i-th database entry at position i
+     */
+    default double[] scoreAll(ProbabilityFingerprint fingerprint, List<? extends Fingerprint> databaseEntries) {
+        final double[] scores = new double[databaseEntries.size()];
+        int k = 0;
+        for (Fingerprint databaseEntry : databaseEntries)
+            scores[k++] = score(fingerprint, databaseEntry);
+        return scores;
+    }
+
     // TODO: abstract class?
 
     double getThreshold();
@@ -0,0 +1,170 @@
+package de.unijena.bioinf.fingerid.blast;
+
+import de.unijena.bioinf.ChemistryBase.algorithm.scoring.Scored;
+import de.unijena.bioinf.ChemistryBase.chem.InChIs;
+import de.unijena.bioinf.ChemistryBase.chem.MolecularFormula;
+import de.unijena.bioinf.ChemistryBase.fp.*;
+import de.unijena.bioinf.chemdb.FingerprintCandidate;
+import de.unijena.bioinf.chemdb.SearchStructureByFormula;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class FingerblastTest {
+
+    private static final CdkFingerprintVersion VERSION = CdkFingerprintVersion.getDefault();
+    private static final int MASKED_SIZE = 600;
+
+    private static MaskedFingerprintVersion mask() {
+        final MaskedFingerprintVersion.Builder builder = MaskedFingerprintVersion.buildMaskFor(VERSION).disableAll();
+        for (int i = 0; i < MASKED_SIZE; ++i) builder.enable(VERSION.getAbsoluteIndexOf(i));
+        return builder.toMask();
+    }
+
+    private static ArrayFingerprint randomFingerprint(Random r) {
+        final int[] bits = r.ints(0, MASKED_SIZE + 100).distinct().limit(r.nextInt(80)).sorted().toArray();
+        final short[] indizes = new short[bits.length];
+        for (int k = 0; k < bits.length; ++k) indizes[k] = (short) VERSION.getAbsoluteIndexOf(bits[k]);
+        return new ArrayFingerprint(VERSION, indizes);
+    }
+
+    /*
+        candidates share a small number of fingerprints, so there are many candidates with equal scores
+     */
+    private static List<FingerprintCandidate> candidates(Random r, int n) {
+        final ArrayFingerprint[] fingerprints = new ArrayFingerprint[40];
+        for (int i = 0; i < fingerprints.length; ++i) fingerprints[i] = randomFingerprint(r);
+        final ArrayList<FingerprintCandidate> candidates = new ArrayList<>(n);
+        for (int i = 0; i < n; ++i) {
+            final String key = String.format("%014d-UHFFFAOYSA-N", i);
+            candidates.add(new FingerprintCandidate(InChIs.newInChI(key, "InChI=1S/" + key), fingerprints[r.nextInt(fingerprints.length)]));
+        }
+        return candidates;
+    }
+
+    private static SearchStructureByFormula engine(List<FingerprintCandidate> candidates) {
+        return new SearchStructureByFormula() {
+            @Override
+            public <T extends Collection<FingerprintCandidate>> T lookupStructuresAndFingerprintsByFormula(MolecularFormula formula, T result) {
+                result.addAll(candidates);
+                return result;
+            }
+        };
+    }
+
+    private static ProbabilityFingerprint query(Random r, MaskedFingerprintVersion mask) {
+        final double[] probabilities = new double[mask.size()];
+        for (int i = 0; i < probabilities.length; ++i) probabilities[i] = r.nextDouble();
+        return new ProbabilityFingerprint(mask, probabilities);
+    }
+
+    private static PredictionPerformance[] performances(Random r, MaskedFingerprintVersion mask) {
+        final PredictionPerformance[] performances = new PredictionPerformance[mask.size()];
+        for (int i = 0; i < performances.length; ++i)
+            performances[i] = new PredictionPerformance(20 + r.nextInt(100), r.nextInt(30), 200 + r.nextInt(100), r.nextInt(30));
+        return performances;
+    }
+
+    /*
+        random correlation forest over all properties of the mask, with a few roots and small covariances
+     */
+    private static CovarianceScoringMethod covarianceScoring(Random r, MaskedFingerprintVersion mask) {
+        // properties 0, 100, 200, ... are roots of own trees
+        final int[][] edges = new int[mask.size() - (mask.size() + 99) / 100][];
+        final double[][] covariances = new double[edges.length][];
+        int k = 0;
+        for (int i = 1; i < mask.size(); ++i) {
+            if (i % 100 == 0) continue;
+            final int parent = (i - 1) % 100 == 0 ? i - 1 : (i / 100) * 100 + r.nextInt(i % 100);
+            edges[k] = new int[]{mask.getAbsoluteIndexOf(parent), mask.getAbsoluteIndexOf(i)};
+            covariances[k++] = r.doubles(4, -0.05, 0.05).toArray();
+        }
+        assertEquals(edges.length, k);
+        return ScoringMethodFactory.getCovarianceScoring(edges, covariances, mask, CovarianceScoringMethod.getCovarianceScoringAlpha(performances(r, mask)));
+    }
+
+    @Test
+    public void testScoreAllEqualsScoreOfEachCandidate() {
+        final Random r = new Random(11);
+        final MaskedFingerprintVersion mask = mask();
+        final PredictionPerformance[] performances = performances(r, mask);
+        final List<Fingerprint> candidates = new ArrayList<>();
+        for (FingerprintCandidate c : candidates(r, 500))
+            candidates.add(mask.mask(c.getFingerprint()).asPacked());
+        final FingerblastScoringMethod[] methods = {
+                ScoringMethodFactory.getCSIFingerIdScoringMethod(performances),
+                ScoringMethodFactory.getProbabilityEstimateScoringMethod(performances),
+                ScoringMethodFactory.getSimpleMaximumLikelihoodScoringMethod(performances),
+                ScoringMethodFactory.getUnitScoring(performances),
+                ScoringMethodFactory.getAccuracyScoring(performances),
+                ScoringMethodFactory.getTanimotoScoring(performances),
+                ScoringMethodFactory.getProbabilisticTanimotoScoring(performances),
+                covarianceScoring(r, mask)
+        };
+        for (FingerblastScoringMethod method : methods) {
+            for (int q = 0; q < 3; ++q) {
+                final ProbabilityFingerprint query = query(r, mask);
+                final FingerblastScoring scoring = method.getScoring();
+                scoring.prepare(query);
+                final double[] scores = scoring.scoreAll(query, candidates);
+                assertEquals(candidates.size(), scores.length);
+                for (int i = 0; i < scores.length; ++i) {
+                    final double expected = scoring.score(query, candidates.get(i));
+                    // scoreAll may add up the same terms in another order, so allow for a relative rounding error
+                    assertEquals(method.getClass().getSimpleName(), expected, scores[i], 1e-9 * Math.max(1d, Math.abs(expected)));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testFlatCovarianceScoreEqualsRecursiveScore() {
+        final Random r = new Random(13);
+        final MaskedFingerprintVersion mask = mask();
+        final CovarianceScoringMethod method = covarianceScoring(r, mask);
+        final List<FingerprintCandidate> candidates = candidates(r, 200);
+        for (int q = 0; q < 3; ++q) {
+            final ProbabilityFingerprint query = query(r, mask);
+            final CovarianceScoringMethod.Scoring scoring = method.getScoring();
+            scoring.prepare(query);
+            for (FingerprintCandidate c : candidates) {
+                final Fingerprint candidate = mask.mask(c.getFingerprint());
+                final double expected = scoring.scoreRecursive(query, candidate);
+                assertTrue(Double.isFinite(expected));
+                // both sum up the same logarithms, but in preorder and recursively
+                assertEquals(expected, scoring.scoreFlat(candidate.asPacked()), 1e-9 * Math.max(1d, Math.abs(expected)));
+                assertEquals(expected, scoring.score(query, candidate), 1e-9 * Math.max(1d, Math.abs(expected)));
+            }
+        }
+    }
+
+    @Test
+    public void testTopKEqualsFirstEntriesOfFullSearch() throws Exception {
+        final Random r = new Random(5);
+        final MaskedFingerprintVersion mask = mask();
+        final ProbabilityFingerprint query = query(r, mask);
+        final PredictionPerformance[] performances = performances(r, mask);
+        final MolecularFormula formula = MolecularFormula.parseOrThrow("C6H12O6");
+
+        // more candidates than fit into a single block
+        final SearchStructureByFormula engine = engine(candidates(r, 2 * Fingerblast.STREAMING_BLOCK_SIZE + 100));
+        for (FingerblastScoringMethod method : new FingerblastScoringMethod[]{ScoringMethodFactory.getCSIFingerIdScoringMethod(performances), ScoringMethodFactory.getTanimotoScoring(performances)}) {
+            final List<Scored<FingerprintCandidate>> all = Fingerblast.search(engine, method, formula, query);
+            for (int k : new int[]{1, 7, 100, all.size(), all.size() + 5}) {
+                final List<Scored<FingerprintCandidate>> top = Fingerblast.search(engine, method, formula, query, k);
+                assertEquals(Math.min(k, all.size()), top.size());
+                for (int i = 0; i < top.size(); ++i) {
+                    assertEquals(all.get(i).getCandidate().getInchiKey2D(), top.get(i).getCandidate().getInchiKey2D());
+                    assertEquals(all.get(i).getScore(), top.get(i).getScore(), 0d);
+                    assertEquals(MASKED_SIZE, top.get(i).getCandidate().getFingerprint().getFingerprintVersion().size());
+                }
+            }
+        }
+    }
+}
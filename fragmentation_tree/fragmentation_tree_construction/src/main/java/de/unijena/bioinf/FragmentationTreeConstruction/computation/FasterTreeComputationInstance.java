@@ -34,6 +34,7 @@ import de.unijena.bioinf.ChemistryBase.ms.ft.model.Whiteset;
 import de.unijena.bioinf.FragmentationTreeConstruction.computation.recalibration.HypothesenDrivenRecalibration;
 import de.unijena.bioinf.FragmentationTreeConstruction.computation.scoring.TreeSizeScorer;
 import de.unijena.bioinf.FragmentationTreeConstruction.computation.tree.TreeBuilder;
+import de.unijena.bioinf.FragmentationTreeConstruction.model.Scoring;
 import de.unijena.bioinf.FragmentationTreeConstruction.ftheuristics.treebuilder.ExtendedCriticalPathHeuristicTreeBuilder;
 import de.unijena.bioinf.jjobs.BasicJJob;
 import de.unijena.bioinf.jjobs.BasicMasterJJob;
@@ -71,6 +72,9 @@ public class FasterTreeComputationInstance extends BasicMasterJJob<FasterTreeCom
     protected volatile int restTime;
     protected int secondsPerInstance, secondsPerTree;
 
+    // skip candidates whose upper bound is below the k-th best tree score (exact tree builders only)
+    boolean skipByUpperBound = true;
+
     /**
      *
      * @param analyzer
@@ -211,22 +215,28 @@ public class FasterTreeComputationInstance extends BasicMasterJJob<FasterTreeCom
         final List<ExactResult> results = new ArrayList<>(decompositions.size());
         // TREE SIZE
         while (inc <= MAX_TREESIZE_INCREASE) {
-            configureProgress(2, useHeuristic ? 50 : 90,decompositions.size());
+            // the heuristic is about as cheap as building the graph, so bounding only pays off for exact tree builders
+            final boolean useBranchAndBound = skipByUpperBound && !useHeuristic && decompositions.size() > numberOfResultsToKeep + 10;
+            configureProgress(2, useHeuristic ? 50 : 90, useBranchAndBound ? 2 * decompositions.size() : decompositions.size());
             if (tss != null) tss.fastReplace(pinput, new TreeSizeScorer.TreeSizeBonus(treeSize));
             results.clear();
-            final List<TreeComputationJob> jobs = new ArrayList<>(decompositions.size());
             final TreeBuilder builder = useHeuristic ? getHeuristicTreeBuilder() : analyzer.getTreeBuilder();
-            for (Decomposition d : decompositions) {
-                if (Double.isInfinite(d.getScore())) continue;
-                final TreeComputationJob job = new TreeComputationJob(builder, null, d);
-                submitSubJob(job);
-                jobs.add(job);
-            }
-            int counter = 0;
-            for (TreeComputationJob job : jobs) {
-                results.add(job.awaitResult());
-                if (++counter % 100 == 0) {
-                    checkTimeout();
+            if (useBranchAndBound) {
+                computeTreesInUpperBoundOrder(decompositions, builder, BATCH_SIZE, MAX_GRAPH_CACHE_SIZE, results);
+            } else {
+                final List<TreeComputationJob> jobs = new ArrayList<>(decompositions.size());
+                for (Decomposition d : decompositions) {
+                    if (Double.isInfinite(d.getScore())) continue;
+                    final TreeComputationJob job = new TreeComputationJob(builder, null, d);
+                    submitSubJob(job);
+                    jobs.add(job);
+                }
+                int counter = 0;
+                for (TreeComputationJob job : jobs) {
+                    results.add(job.awaitResult());
+                    if (++counter % 100 == 0) {
+                        checkTimeout();
+                    }
                 }
             }
             results.sort(Collections.reverseOrder());
@@ -268,6 +278,8 @@ public class FasterTreeComputationInstance extends BasicMasterJJob<FasterTreeCom
         final double[] originalScores = new double[exact.length];
         for (int k=0; k < exact.length; ++k) originalScores[k] = exact[k].score;
         final ExactJob[] beautify = new ExactJob[exact.length];
+        // only the tree size bonus changes between beautification rounds, so each graph is built once and rescored afterwards
+        final IncrementalGraph[] beautifyGraphs = new IncrementalGraph[exact.length];
         final TIntArrayList beautifyTodo = new TIntArrayList();
 
         while (tss!=null) {
@@ -276,6 +288,8 @@ public class FasterTreeComputationInstance extends BasicMasterJJob<FasterTreeCom
                 if (!exact[k].tree.getAnnotation(Beautified.class, Beautified::ugly).isBeautiful()) {
                     if ((treeSize >= MAX_TREESIZE || inc >= MAX_TREESIZE_INCREASE )|| isHighQuality(exact[k])) {
                         setBeautiful(exact[k], treeSize, originalTreeSize, originalScores[k]);
+                        // the tree is final, so its graph is not needed anymore
+                        beautifyGraphs[k] = null;
                     } else {
                         beautifyTodo.add(k);
                     }
@@ -293,7 +307,8 @@ public class FasterTreeComputationInstance extends BasicMasterJJob<FasterTreeCom
                 } else {
                     pinput.setAnnotation(Beautified.class, Beautified.inProcess(inc));
                 }
-                beautify[K] = submitSubJob(new ExactJob(exact[K]));
+                if (beautifyGraphs[K] == null) beautifyGraphs[K] = new IncrementalGraph(exact[K].decomposition);
+                beautify[K] = submitSubJob(new ExactJob(exact[K], beautifyGraphs[K]));
             }
             for (int j=0; j < beautifyTodo.size(); ++j) {
                 final int K = beautifyTodo.getQuick(j);
@@ -306,6 +321,100 @@ public class FasterTreeComputationInstance extends BasicMasterJJob<FasterTreeCom
         return exact;
     }
 
+    /**
+     * Computes trees in descending order of their upper bound and skips all candidates whose upper bound is below
+     * the score of the k-th best tree computed so far. As later on only the best numberOfResultsToKeep (+10) trees
+     * and the best numberOfResultsToKeepPerIonization (+5) trees of each ionization are used, skipped candidates
+     * can never be part of the result.
+     * The graphs of the graphCacheSize candidates with the highest upper bounds are kept, as these candidates are
+     * computed first, so their graphs have not to be built a second time.
+     */
+    private void computeTreesInUpperBoundOrder(List<Decomposition> decompositions, TreeBuilder builder, int batchSize, int graphCacheSize, List<ExactResult> results) throws ExecutionException {
+        final DoubleEndWeightedQueue2<UpperBound> graphCache = new DoubleEndWeightedQueue2<>(graphCacheSize, UpperBound::compareTo);
+        graphCache.setCallback(b -> {
+            b.graph = null;
+            return true;
+        });
+        final List<UpperBoundJob> boundJobs = new ArrayList<>(decompositions.size());
+        for (Decomposition d : decompositions) {
+            if (Double.isInfinite(d.getScore())) continue;
+            boundJobs.add(submitSubJob(new UpperBoundJob(d, graphCache)));
+        }
+        final List<UpperBound> bounds = new ArrayList<>(boundJobs.size());
+        for (UpperBoundJob job : boundJobs) bounds.add(job.awaitResult());
+        bounds.sort(Collections.reverseOrder());
+        checkTimeout();
+
+        final int k = numberOfResultsToKeep + 10;
+        final int kPerIonization = numberOfResultsToKeepPerIonization > 0 ? numberOfResultsToKeepPerIonization + 5 : 0;
+        final PriorityQueue<Double> best = new PriorityQueue<>(k + 1);
+        final Map<Ionization, PriorityQueue<Double>> bestPerIonization = new HashMap<>();
+        final List<TreeComputationJob> batch = new ArrayList<>(batchSize);
+        int skipped = 0;
+        for (int i = 0; i < bounds.size(); ) {
+            batch.clear();
+            while (i < bounds.size() && batch.size() < batchSize) {
+                final UpperBound b = bounds.get(i++);
+                if (canBeSkipped(b, best, k, bestPerIonization.get(b.decomposition.getIon()), kPerIonization)) {
+                    ++skipped;
+                    tick();
+                } else {
+                    batch.add(submitSubJob(new TreeComputationJob(builder, null, b.decomposition, b.graph)));
+                    b.graph = null;
+                }
+            }
+            for (TreeComputationJob job : batch) {
+                final ExactResult r = job.awaitResult();
+                results.add(r);
+                offer(best, r.score, k);
+                if (kPerIonization > 0)
+                    offer(bestPerIonization.computeIfAbsent(r.decomposition.getIon(), x -> new PriorityQueue<>(kPerIonization + 1)), r.score, kPerIonization);
+            }
+            checkTimeout();
+        }
+        graphCache.clear();
+        if (skipped > 0)
+            LoggerFactory.getLogger(FasterTreeComputationInstance.class).debug("Skipped " + skipped + " of " + bounds.size() + " candidates by upper bound.");
+    }
+
+    private static boolean canBeSkipped(UpperBound b, PriorityQueue<Double> best, int k, PriorityQueue<Double> bestOfIonization, int kPerIonization) {
+        if (best.size() < k || b.score >= best.peek()) return false;
+        if (kPerIonization <= 0) return true;
+        return bestOfIonization != null && bestOfIonization.size() >= kPerIonization && b.score < bestOfIonization.peek();
+    }
+
+    private static void offer(PriorityQueue<Double> queue, double score, int capacity) {
+        queue.add(score);
+        if (queue.size() > capacity) queue.poll();
+    }
+
+    /**
+     * Upper bound on the score of any colorful subtree of the graph: the best root edge plus, for every other
+     * color, the best incoming edge of a vertex with this color if its weight is positive.
+     */
+    protected static double upperBound(FGraph graph) {
+        final Fragment pseudoRoot = graph.getRoot();
+        final int ncolors = graph.maxColor() + 1;
+        final boolean[] rootColor = new boolean[ncolors];
+        double bestRootEdge = Double.NEGATIVE_INFINITY;
+        for (int k = 0; k < pseudoRoot.getOutDegree(); ++k) {
+            final Loss l = pseudoRoot.getOutgoingEdge(k);
+            rootColor[l.getTarget().getColor()] = true;
+            bestRootEdge = Math.max(bestRootEdge, l.getWeight());
+        }
+        final double[] bestPerColor = new double[ncolors];
+        for (Fragment f : graph) {
+            if (f == pseudoRoot || rootColor[f.getColor()]) continue;
+            for (int k = 0; k < f.getInDegree(); ++k) {
+                final double w = f.getIncomingEdge(k).getWeight();
+                if (w > bestPerColor[f.getColor()]) bestPerColor[f.getColor()] = w;
+            }
+        }
+        double bound = bestRootEdge;
+        for (double w : bestPerColor) bound += w;
+        return bound;
+    }
+
     private void revertTreeSizeIncrease(ExactResult[] exact, double orig) {
         //pinput.setAnnotation(TreeSizeScorer.TreeSizeBonus.class, new TreeSizeScorer.TreeSizeBonus(orig));
         for (ExactResult r : exact) {
@@ -361,17 +470,49 @@ public class FasterTreeComputationInstance extends BasicMasterJJob<FasterTreeCom
         return result;
     }
 
+    /**
+     * Keeps the scored but unreduced graph of a decomposition, such that it has not to be built again when only the
+     * peak scores of the input change (as it is the case for the tree size bonus in the beautification rounds).
+     */
+    protected class IncrementalGraph {
+        private final Decomposition decomposition;
+        private FGraph unreducedGraph;
+        private double[] peakScores;
+
+        public IncrementalGraph(Decomposition decomposition) {
+            this.decomposition = decomposition;
+        }
+
+        public FGraph buildGraph(ProcessedInput input) {
+            final double[] currentPeakScores = input.getAnnotationOrThrow(Scoring.class).getPeakScores();
+            if (unreducedGraph == null) {
+                unreducedGraph = analyzer.buildGraphWithoutReduction(input, decomposition);
+            } else {
+                analyzer.rescorePeaks(unreducedGraph, peakScores, currentPeakScores);
+            }
+            peakScores = currentPeakScores.clone();
+            // graph reduction deletes edges, so always reduce a copy
+            return analyzer.performGraphReduction(new FGraph(unreducedGraph), 0d);
+        }
+    }
+
     protected class ExactJob extends BasicJJob<ExactResult> {
         private final ExactResult template;
+        private final IncrementalGraph incrementalGraph;
 
         public ExactJob(ExactResult template) {
+            this(template, null);
+        }
+
+        public ExactJob(ExactResult template, IncrementalGraph incrementalGraph) {
             this.template = template;
+            this.incrementalGraph = incrementalGraph;
         }
 
         @Override
         protected ExactResult compute() throws Exception {
             final ProcessedInput input = template.input==null ? pinput : template.input;
-            FGraph graph = analyzer.buildGraph(input, template.decomposition);
+            FGraph graph = incrementalGraph == null ? analyzer.buildGraph(input, template.decomposition) : incrementalGraph.buildGraph(input);
             final TreeBuilder.Result tree = analyzer.getTreeBuilder().computeTree().withMultithreading(1).withTimeLimit(Math.min(restTime, secondsPerTree))/*.withMinimalScore(template.score - 1e-3).withTemplate(template.tree)*/.solve(pinput, graph);
             analyzer.makeTreeReleaseReady(input, graph, tree.tree, tree.mapping);
             recalculateScore(input, tree.tree, "ExactJob");
@@ -405,17 +546,27 @@ public class FasterTreeComputationInstance extends BasicMasterJJob<FasterTreeCom
         private TreeBuilder treeBuilder;
         private DoubleEndWeightedQueue2<ExactResult> graphCache;
         private Decomposition decomposition;
+        private FGraph graph;
 
         public TreeComputationJob(TreeBuilder treeBuilder, DoubleEndWeightedQueue2<ExactResult> graphCache, Decomposition decomposition) {
+            this(treeBuilder, graphCache, decomposition, null);
+        }
+
+        /**
+         * @param graph graph of the decomposition built by {@link FasterTreeComputationInstance#analyzer}, or null to build it in this job
+         */
+        public TreeComputationJob(TreeBuilder treeBuilder, DoubleEndWeightedQueue2<ExactResult> graphCache, Decomposition decomposition, FGraph graph) {
             this.treeBuilder = treeBuilder;
             this.graphCache = graphCache;
             this.decomposition = decomposition;
+            this.graph = graph;
         }
 
 
         @Override
         protected ExactResult compute() throws Exception {
-            final FGraph graph = treeBuilder instanceof ExtendedCriticalPathHeuristicTreeBuilder ? analyzer.buildGraphWithoutReduction(pinput, decomposition) : analyzer.buildGraph(pinput, decomposition);
+            final FGraph graph = this.graph != null ? this.graph : treeBuilder instanceof ExtendedCriticalPathHeuristicTreeBuilder ? analyzer.buildGraphWithoutReduction(pinput, decomposition) : analyzer.buildGraph(pinput, decomposition);
+            this.graph = null;
             final FTree tree = treeBuilder.computeTree().withTimeLimit(Math.min(restTime, secondsPerTree)).solve(pinput, graph).tree;
             final ExactResult er = new ExactResult(decomposition, null, tree, tree.getTreeWeight());
             if (graphCache != null) {
@@ -440,11 +591,58 @@ public class FasterTreeComputationInstance extends BasicMasterJJob<FasterTreeCom
             this.treeBuilder = null;
             this.graphCache = null;
             this.decomposition = null;
+            this.graph = null;
         }
     }
 
 
 
+    protected final static class UpperBound implements Comparable<UpperBound> {
+        protected final Decomposition decomposition;
+        protected final double score;
+        // graph the bound was computed on, if it is cached
+        protected FGraph graph;
+
+        public UpperBound(Decomposition decomposition, double score) {
+            this.decomposition = decomposition;
+            this.score = score;
+        }
+
+        @Override
+        public int compareTo(UpperBound o) {
+            final int a = Double.compare(score, o.score);
+            if (a != 0) return a;
+            return decomposition.getCandidate().compareTo(o.decomposition.getCandidate());
+        }
+    }
+
+    protected class UpperBoundJob extends BasicJJob<UpperBound> {
+        private final Decomposition decomposition;
+        private final DoubleEndWeightedQueue2<UpperBound> graphCache;
+
+        public UpperBoundJob(Decomposition decomposition, DoubleEndWeightedQueue2<UpperBound> graphCache) {
+            this.decomposition = decomposition;
+            this.graphCache = graphCache;
+        }
+
+        @Override
+        protected UpperBound compute() throws Exception {
+            final FGraph graph = analyzer.buildGraph(pinput, decomposition);
+            final UpperBound bound = new UpperBound(decomposition, upperBound(graph));
+            if (graphCache != null && bound.score > graphCache.getWeightLowerbound()) {
+                synchronized (graphCache) {
+                    if (bound.score > graphCache.getWeightLowerbound()) {
+                        bound.graph = graph;
+                        if (!graphCache.add(bound, bound.score))
+                            bound.graph = null;
+                    }
+                }
+            }
+            tick();
+            return bound;
+        }
+    }
+
     private void checkTimeout() {
         final long time = System.currentTimeMillis();
         final int elapsedTime = (int) ((time - startTime) / 1000);
@@ -482,14 +680,17 @@ public class FasterTreeComputationInstance extends BasicMasterJJob<FasterTreeCom
         analyzer.performPeakScoring(pin);
         FGraph graph = analyzer.buildGraph(pin, decomp);
         graph.addAnnotation(SpectralRecalibration.class, rec);
-        final TreeBuilder.Result recal = tb.computeTree().withTimeLimit(Math.min(restTime, secondsPerTree)).solve(pin, graph);
+        // heuristic and exact tree builder work on the same graph, so compile it only once
+        final CompiledFGraph compiledGraph = graph.compile();
+        final TreeBuilder.Result recal = tb.computeTree().withTimeLimit(Math.min(restTime, secondsPerTree)).solve(pin, compiledGraph);
         final TreeBuilder.Result finalTree;
         if (recal.tree.getTreeWeight() >= tree.getTreeWeight()) {
-            finalTree = analyzer.getTreeBuilder().computeTree().withTimeLimit(Math.min(restTime, secondsPerTree))/*.withTemplate(recal.tree)/*.withMinimalScore(recal.tree.getTreeWeight() - 1e-3)*/.solve(pin, graph);
+            // the heuristic tree is a feasible solution on the same graph and is used as start solution for the ILP
+            finalTree = analyzer.getTreeBuilder().computeTree().withTimeLimit(Math.min(restTime, secondsPerTree)).withTemplate(recal.tree)/*.withMinimalScore(recal.tree.getTreeWeight() - 1e-3)*/.solve(pin, compiledGraph);
             if (finalTree.tree==null){
                 // TODO: why is tree score != ILP score? Or is this an error in ILP?
                 // check that
-                TreeBuilder.Result solve = analyzer.getTreeBuilder().computeTree().withTimeLimit(Math.min(restTime, secondsPerTree))/*.withTemplate(recal.tree)*/.solve(pin, graph);
+                TreeBuilder.Result solve = analyzer.getTreeBuilder().computeTree().withTimeLimit(Math.min(restTime, secondsPerTree))/*.withTemplate(recal.tree)*/.solve(pin, compiledGraph);
                 throw new RuntimeException("Recalibrated tree is null for "+input.getExperimentInformation().getName()+". Error in ILP? Without score constraint the result is = optimal = " + solve.isOptimal + ", score = " + solve.tree.getTreeWeight() + " with score of uncalibrated tree is " + recal.tree.getTreeWeight());
             }
             finalTree.tree.setAnnotation(SpectralRecalibration.class, rec);
@@ -1036,6 +1036,8 @@ public class FragmentationPatternAnalysis implements Parameterized, Cloneable {
         final FragmentAnnotation<Decomposition> decompositionFragmentAnnotation = graph.getFragmentAnnotationOrThrow(Decomposition.class);
         //final FragmentAnnotation<ProcessedPeak> peakAno = graph.getFragmentAnnotationOrThrow(ProcessedPeak.class);
         for (int i = 0; i < precomputeds.length; ++i) precomputeds[i] = lossScorers[i].prepare(input,graph);
+        final double[][] lossScores = scoreLosses(graph, input, lossScorers, precomputeds);
+        int lossIndex = 0;
         while (edges.hasNext()) {
             final Loss loss = edges.next();
             final boolean isArtificial = loss.isArtificial();
@@ -1056,10 +1058,11 @@ public class FragmentationPatternAnalysis implements Parameterized, Cloneable {
             if (!u.isRoot()) {
                 for (int i = 0; i < lossScorers.length; ++i) {
                     if (!isArtificial || lossScorers[i].processArtificialEdges()) {
-                        score += lossScorers[i].score(loss, input, precomputeds[i]);
+                        score += lossScores[i][lossIndex];
                         assert !Double.isInfinite(score) : lossScorers[i].getClass().getSimpleName();
                     }
                 }
+                ++lossIndex;
             }
             // add score of the fragment
             ProcessedPeak correspondingPeak = input.getMergedPeaks().get(v.getPeakId());
@@ -1084,6 +1087,47 @@ public class FragmentationPatternAnalysis implements Parameterized, Cloneable {
         return graph;
     }
 
+    /**
+     * Scores all losses of the graph which do not start at the root in columnar fashion, such that each loss scorer
+     * is called only once per graph (see {@link LossScorer#scoreAll(LossColumns, ProcessedInput, Object, double[])}).
+     * The scores are kept separately for each scorer, so the caller can add them to the edge weight in the same order
+     * as when scoring each loss on its own.
+     * @return score of the i-th loss scorer for the k-th loss (in the order of {@link FGraph#lossIterator()}) in [i][k]
+     */
+    private double[][] scoreLosses(FGraph graph, ProcessedInput input, LossScorer[] lossScorers, Object[] precomputeds) {
+        final ArrayList<Loss> losses = new ArrayList<>(graph.numberOfEdges());
+        final Iterator<Loss> edges = graph.lossIterator();
+        while (edges.hasNext()) {
+            final Loss loss = edges.next();
+            if (!loss.getSource().isRoot()) losses.add(loss);
+        }
+        final LossColumns columns = new LossColumns(losses);
+        final double[][] lossScores = new double[lossScorers.length][losses.size()];
+        for (int i = 0; i < lossScorers.length; ++i) {
+            lossScorers[i].scoreAll(columns, input, precomputeds[i], lossScores[i]);
+        }
+        return lossScores;
+    }
+
+    /**
+     * Updates the edge weights of an unreduced graph after only the peak scores of the input changed (e.g. by
+     * {@link TreeSizeScorer#fastReplace(ProcessedInput, TreeSizeScorer.TreeSizeBonus)}). All other score components
+     * of the edges are kept as they are, which is much cheaper than building and scoring the graph again.
+     * @param graph graph as returned by {@link #buildGraphWithoutReduction(ProcessedInput, Decomposition)}
+     * @param oldPeakScores peak scores the graph was scored with
+     * @param newPeakScores current peak scores
+     */
+    public void rescorePeaks(FGraph graph, double[] oldPeakScores, double[] newPeakScores) {
+        final Iterator<Loss> edges = graph.lossIterator();
+        while (edges.hasNext()) {
+            final Loss loss = edges.next();
+            final int peakId = loss.getTarget().getPeakId();
+            if (peakId >= 0 && peakId < newPeakScores.length) {
+                loss.setWeight(loss.getWeight() + newPeakScores[peakId] - oldPeakScores[peakId]);
+            }
+        }
+    }
+
     private boolean lossShouldBeScoredbyPeakPairScorers(Loss loss) {
         return !loss.isArtificial();
     }
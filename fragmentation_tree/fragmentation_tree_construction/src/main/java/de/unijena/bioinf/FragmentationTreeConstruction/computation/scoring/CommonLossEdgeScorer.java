@@ -191,6 +191,14 @@ public class CommonLossEdgeScorer implements LossScorer {
         return score(loss.getFormula());
     }
 
+    @Override
+    public void scoreAll(LossColumns losses, ProcessedInput input, Object precomputed, double[] scores) {
+        final double[] formulaScores = new double[losses.numberOfFormulas()];
+        for (int k = 0; k < formulaScores.length; ++k)
+            formulaScores[k] = score(losses.getFormula(k));
+        losses.expand(formulaScores, scores);
+    }
+
     @Override
     public <G, D, L> void importParameters(ParameterHelper helper, DataDocument<G, D, L> document, D dictionary) {
         final Iterator<Map.Entry<String, G>> iter = document.iteratorOfDictionary(document.getDictionaryFromDictionary(dictionary, "losses"));
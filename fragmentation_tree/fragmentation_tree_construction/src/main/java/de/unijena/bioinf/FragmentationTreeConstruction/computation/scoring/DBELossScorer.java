@@ -61,6 +61,16 @@ public class DBELossScorer implements LossScorer {
         else return 0;
     }
 
+    @Override
+    public void scoreAll(LossColumns losses, ProcessedInput input, Object precomputed, double[] scores) {
+        final int[] rdbes = losses.getDoubledRDBEs();
+        final double[] formulaScores = new double[rdbes.length];
+        final double minimum = Math.log(0.05);
+        for (int k = 0; k < rdbes.length; ++k)
+            formulaScores[k] = rdbes[k] < 0 ? Math.max(minimum, Math.abs(rdbes[k]) * score) : 0d;
+        losses.expand(formulaScores, scores);
+    }
+
     @Override
     public <G, D, L> void importParameters(ParameterHelper helper, DataDocument<G, D, L> document, D dictionary) {
         score = document.getDoubleFromDictionary(dictionary, "score");
@@ -109,6 +109,14 @@ public class FreeRadicalEdgeScorer implements LossScorer, MolecularFormulaScorer
         return score(loss.getFormula()) - normalization;
     }
 
+    @Override
+    public void scoreAll(LossColumns losses, ProcessedInput input, Object precomputed, double[] scores) {
+        final double[] formulaScores = new double[losses.numberOfFormulas()];
+        for (int k = 0; k < formulaScores.length; ++k)
+            formulaScores[k] = score(losses.getFormula(k)) - normalization;
+        losses.expand(formulaScores, scores);
+    }
+
     @Override
     public double score(MolecularFormula formula) {
         final double score = freeRadicals.get(formula);
@@ -0,0 +1,161 @@
+/*
+ *
+ *  This file is part of the SIRIUS library for analyzing MS and MS/MS data
+ *
+ *  Copyright (C) 2013-2020 Kai Dührkop, Markus Fleischauer, Marcus Ludwig, Martin A. Hoffman and Sebastian Böcker,
+ *  Chair of Bioinformatics, Friedrich-Schilller University.
+ *
+ *  This library is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public
+ *  License as published by the Free Software Foundation; either
+ *  version 3 of the License, or (at your option) any later version.
+ *
+ *  This library is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License along with SIRIUS. If not, see <https://www.gnu.org/licenses/lgpl-3.0.txt>
+ */
+package de.unijena.bioinf.FragmentationTreeConstruction.computation.scoring;
+
+import de.unijena.bioinf.ChemistryBase.chem.Element;
+import de.unijena.bioinf.ChemistryBase.chem.MolecularFormula;
+import de.unijena.bioinf.ChemistryBase.ms.ft.Loss;
+import de.unijena.bioinf.sirius.ProcessedInput;
+import gnu.trove.map.hash.TObjectIntHashMap;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+
+/**
+ * Columnar view of the losses of a graph, used by {@link LossScorer#scoreAll(LossColumns, ProcessedInput, Object, double[])}.
+ * <p>
+ * Graphs contain many losses with the same formula. Each loss is therefore mapped to an index into the list of its
+ * distinct formulas, and formula properties (mass, element counts, RDBE) are extracted once per distinct formula into
+ * primitive arrays. Scorers which only depend on the loss formula compute a score for each distinct formula and
+ * {@link #expand(double[], double[]) expand} it to all losses. All columns are computed lazily and cached.
+ */
+public final class LossColumns {
+
+    private final Loss[] losses;
+    private final boolean[] artificial;
+    private final int[] formulaIndex;
+    private final MolecularFormula[] formulas;
+
+    private double[] masses;
+    private int[] atomCounts, doubledRDBEs;
+    private final IdentityHashMap<Element, int[]> elementCounts = new IdentityHashMap<>();
+
+    public LossColumns(List<Loss> losses) {
+        this.losses = losses.toArray(new Loss[losses.size()]);
+        this.artificial = new boolean[this.losses.length];
+        this.formulaIndex = new int[this.losses.length];
+        final TObjectIntHashMap<MolecularFormula> index = new TObjectIntHashMap<>(this.losses.length, 0.75f, -1);
+        final ArrayList<MolecularFormula> distinct = new ArrayList<>();
+        for (int i = 0; i < this.losses.length; ++i) {
+            final Loss l = this.losses[i];
+            artificial[i] = l.isArtificial();
+            int k = index.get(l.getFormula());
+            if (k < 0) {
+                k = distinct.size();
+                index.put(l.getFormula(), k);
+                distinct.add(l.getFormula());
+            }
+            formulaIndex[i] = k;
+        }
+        this.formulas = distinct.toArray(new MolecularFormula[distinct.size()]);
+    }
+
+    /**
+     * @return number of losses
+     */
+    public int size() {
+        return losses.length;
+    }
+
+    public Loss getLoss(int i) {
+        return losses[i];
+    }
+
+    public boolean isArtificial(int i) {
+        return artificial[i];
+    }
+
+    /**
+     * @return number of distinct loss formulas
+     */
+    public int numberOfFormulas() {
+        return formulas.length;
+    }
+
+    public MolecularFormula getFormula(int formulaIndex) {
+        return formulas[formulaIndex];
+    }
+
+    /**
+     * @return index of the formula of the i-th loss within the distinct loss formulas
+     */
+    public int getFormulaIndex(int i) {
+        return formulaIndex[i];
+    }
+
+    /**
+     * @return mass of each distinct loss formula
+     */
+    public double[] getMasses() {
+        if (masses == null) {
+            final double[] xs = new double[formulas.length];
+            for (int k = 0; k < xs.length; ++k) xs[k] = formulas[k].getMass();
+            masses = xs;
+        }
+        return masses;
+    }
+
+    /**
+     * @return number of atoms of each distinct loss formula
+     */
+    public int[] getAtomCounts() {
+        if (atomCounts == null) {
+            final int[] xs = new int[formulas.length];
+            for (int k = 0; k < xs.length; ++k) xs[k] = formulas[k].atomCount();
+            atomCounts = xs;
+        }
+        return atomCounts;
+    }
+
+    /**
+     * @return doubled RDBE of each distinct loss formula
+     */
+    public int[] getDoubledRDBEs() {
+        if (doubledRDBEs == null) {
+            final int[] xs = new int[formulas.length];
+            for (int k = 0; k < xs.length; ++k) xs[k] = formulas[k].doubledRDBE();
+            doubledRDBEs = xs;
+        }
+        return doubledRDBEs;
+    }
+
+    /**
+     * @return number of atoms of the given element in each distinct loss formula
+     */
+    public int[] getElementCounts(Element element) {
+        return elementCounts.computeIfAbsent(element, e -> {
+            final int[] xs = new int[formulas.length];
+            for (int k = 0; k < xs.length; ++k) xs[k] = formulas[k].numberOf(e);
+            return xs;
+        });
+    }
+
+    /**
+     * writes the score of the formula of each loss into scores
+     *
+     * @param formulaScores score for each distinct loss formula
+     * @param scores        score for each loss
+     */
+    public void expand(double[] formulaScores, double[] scores) {
+        for (int i = 0; i < formulaIndex.length; ++i)
+            scores[i] = formulaScores[formulaIndex[i]];
+    }
+}
@@ -35,6 +35,19 @@ public interface LossScorer<T> extends Parameterized {
 
     double score(Loss loss, ProcessedInput input, T precomputed);
 
+    /**
+     * Scores all losses of a graph at once and writes the score of the i-th loss into scores[i]. Scores of
+     * artificial losses are ignored if {@link #processArtificialEdges()} is false.
+     * Scorers that only depend on the loss formula should override this method and score the distinct formulas
+     * of the {@link LossColumns}, which is much faster for large graphs.
+     */
+    default void scoreAll(LossColumns losses, ProcessedInput input, T precomputed, double[] scores) {
+        final boolean artificialEdges = processArtificialEdges();
+        for (int i = 0; i < losses.size(); ++i) {
+            scores[i] = (artificialEdges || !losses.isArtificial(i)) ? score(losses.getLoss(i), input, precomputed) : 0d;
+        }
+    }
+
     /*
     if true, this scorer is called for ALL edges
     if false, this scorer is only called for edges that correspond to an ordinary fragmentation reaction
@@ -145,4 +145,13 @@ public class LossSizeScorer implements LossScorer, PeakPairScorer, MolecularForm
     public double score(Loss loss, ProcessedInput input, Object precomputed) {
         return score(loss.getFormula());
     }
+
+    @Override
+    public void scoreAll(LossColumns losses, ProcessedInput input, Object precomputed, double[] scores) {
+        final double[] masses = losses.getMasses();
+        final double[] formulaScores = new double[masses.length];
+        for (int k = 0; k < masses.length; ++k)
+            formulaScores[k] = scoring(masses[k]);
+        losses.expand(formulaScores, scores);
+    }
 }
@@ -56,6 +56,19 @@ public class PhosphorScorer implements DecompositionScorer<Element[]>, LossScore
         } else return 0d;
     }
 
+    @Override
+    public void scoreAll(LossColumns losses, ProcessedInput input, Element[] phosphorAndSulfur, double[] scores) {
+        final int[] phosphor = losses.getElementCounts(phosphorAndSulfur[0]), sulfur = losses.getElementCounts(phosphorAndSulfur[1]);
+        final int[] oxygen = losses.getElementCounts(PeriodicTable.getInstance().getByName("O"));
+        final double[] formulaScores = new double[phosphor.length];
+        final double penalty = Math.log(0.25d);
+        for (int k = 0; k < formulaScores.length; ++k) {
+            final int pnum = phosphor[k];
+            formulaScores[k] = (pnum > 0 && oxygen[k] < pnum && sulfur[k] < pnum) ? penalty : 0d;
+        }
+        losses.expand(formulaScores, scores);
+    }
+
     @Override
     public double score(MolecularFormula formula, Ionization ion, ProcessedPeak peak, ProcessedInput input, Element[] phosphorAndSulfur) {
         final int pnum = formula.numberOf(phosphorAndSulfur[0]);
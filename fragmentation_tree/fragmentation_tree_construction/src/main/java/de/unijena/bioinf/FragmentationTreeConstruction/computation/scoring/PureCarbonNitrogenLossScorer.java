@@ -65,6 +65,27 @@ public class PureCarbonNitrogenLossScorer implements LossScorer<Element[]> {
         } else return 0d;
     }
 
+    @Override
+    public void scoreAll(LossColumns losses, ProcessedInput input, Element[] halogens, double[] scores) {
+        final PeriodicTable T = PeriodicTable.getInstance();
+        final int[] carbons = losses.getElementCounts(T.getByName("C")), nitrogens = losses.getElementCounts(T.getByName("N"));
+        final int[] atomCounts = losses.getAtomCounts();
+        final int[][] halogenCounts = new int[halogens.length][];
+        for (int i = 0; i < halogens.length; ++i) halogenCounts[i] = losses.getElementCounts(halogens[i]);
+        final double[] formulaScores = new double[atomCounts.length];
+        for (int k = 0; k < formulaScores.length; ++k) {
+            final int both = carbons[k] + nitrogens[k];
+            if (both >= atomCounts[k]) formulaScores[k] = penalty;
+            else if (both >= atomCounts[k] - 1) {
+                // exclude single Na, Cl and K losses
+                for (int[] counts : halogenCounts) {
+                    if (counts[k] > 0) formulaScores[k] = penalty;
+                }
+            }
+        }
+        losses.expand(formulaScores, scores);
+    }
+
     @Override
     public <G, D, L> void importParameters(ParameterHelper helper, DataDocument<G, D, L> document, D dictionary) {
         penalty = document.getDoubleFromDictionary(dictionary, "penalty");
@@ -113,6 +113,15 @@ public class StrangeElementLossScorer implements LossScorer {
         else return 0d;
     }
 
+    @Override
+    public void scoreAll(LossColumns losses, ProcessedInput input, Object precomputed, double[] scores) {
+        final HashSet<MolecularFormula> knownLosses = (HashSet<MolecularFormula>) precomputed;
+        final double[] formulaScores = new double[losses.numberOfFormulas()];
+        for (int k = 0; k < formulaScores.length; ++k)
+            formulaScores[k] = knownLosses.contains(losses.getFormula(k)) ? score : 0d;
+        losses.expand(formulaScores, scores);
+    }
+
     @Override
     public <G, D, L> void importParameters(ParameterHelper helper, DataDocument<G, D, L> document, D dictionary) {
         final L list = document.getListFromDictionary(dictionary, "losses");
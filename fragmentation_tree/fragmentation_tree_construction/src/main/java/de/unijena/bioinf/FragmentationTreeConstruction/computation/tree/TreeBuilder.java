@@ -20,6 +20,7 @@
 
 package de.unijena.bioinf.FragmentationTreeConstruction.computation.tree;
 
+import de.unijena.bioinf.ChemistryBase.ms.ft.CompiledFGraph;
 import de.unijena.bioinf.ChemistryBase.ms.ft.FGraph;
 import de.unijena.bioinf.ChemistryBase.ms.ft.FTree;
 import de.unijena.bioinf.ChemistryBase.ms.ft.IntergraphMapping;
@@ -31,6 +32,14 @@ public interface TreeBuilder {
 
     public Result computeTree(ProcessedInput input, FGraph graph, FluentInterface options);
 
+    /**
+     * Computes the tree on the array based view of the graph. This allows to compile a graph once and use it for
+     * several tree builders. Builders that do not work on the compiled graph fall back to the underlying FGraph.
+     */
+    public default Result computeTree(ProcessedInput input, CompiledFGraph graph, FluentInterface options) {
+        return computeTree(input, graph.getGraph(), options);
+    }
+
     public boolean isThreadSafe();
 
     public static class FluentInterface {
@@ -87,6 +96,10 @@ public interface TreeBuilder {
         public Result solve(ProcessedInput input, FGraph graph) {
             return treeBuilder.computeTree(input,graph,this);
         }
+
+        public Result solve(ProcessedInput input, CompiledFGraph graph) {
+            return treeBuilder.computeTree(input,graph,this);
+        }
     }
 
     public static enum AbortReason {
@@ -51,12 +51,12 @@ public final class TreeBuilderFactory {
         GUROBI_VERSION = PropertyManager.getProperty("de.unijena.bioinf.sirius.build.gurobi_version");
         CPLEX_VERSION = PropertyManager.getProperty("de.unijena.bioinf.sirius.build.cplex_version");
         CLP_VERSION = PropertyManager.getProperty("de.unijena.bioinf.sirius.build.cpl_version");
-        ILP_VERSIONS_STRING = "Sirius was compiled with the following ILP solvers: GLPK-v" + GLPK_VERSION + " (included), Gurobi-v" + GUROBI_VERSION + ", CPLEX-v" + CPLEX_VERSION + ", COIN-OR-v" + CLP_VERSION;
+        ILP_VERSIONS_STRING = "Sirius was compiled with the following ILP solvers: GLPK-v" + GLPK_VERSION + " (included), Gurobi-v" + GUROBI_VERSION + ", CPLEX-v" + CPLEX_VERSION + ", COIN-OR-v" + CLP_VERSION + ", Branch and Bound (pure Java, included)";
     }
 
     private static TreeBuilderFactory INSTANCE = null;
 
-    public enum DefaultBuilder {GUROBI, CPLEX, GLPK, CLP}
+    public enum DefaultBuilder {GUROBI, CPLEX, GLPK, CLP, BNB}
 
     private static DefaultBuilder[] builderPriorities = null;
 
@@ -150,7 +150,11 @@ public final class TreeBuilderFactory {
                 factory = getTreeBuilderFromClass("de.unijena.bioinf.FragmentationTreeConstruction.computation.tree.ilp.CPLEXSolver");
                 break;
             case CLP:
-                factory = getTreeBuilderFromClass(CLPSolver.class); //we deliver the jar file so we can be sure that th class exists
+                if (isCLPLibraryAvailable()) // the jar is always delivered, but the native library might be missing
+                    factory = getTreeBuilderFromClass(CLPSolver.class); //we deliver the jar file so we can be sure that th class exists
+                break;
+            case BNB:
+                factory = getTreeBuilderFromClass(BranchAndBoundSolver.class); // pure java, used if no native solver is available
                 break;
             default:
                 LoggerFactory.getLogger(this.getClass()).warn("TreeBuilder " + builder.toString() + " is Unknown, supported are: " + Arrays.toString(DefaultBuilder.values()), new IllegalArgumentException("Unknown BuilderType!"));
@@ -162,13 +166,24 @@ public final class TreeBuilderFactory {
         return new AbstractTreeBuilder<>(factory);
     }
 
+    private boolean isCLPLibraryAvailable() {
+        try {
+            Class.forName(CLPModel_JNI.class.getName(), true, getClass().getClassLoader());
+            return true;
+        } catch (Throwable e) {
+            LoggerFactory.getLogger(this.getClass()).warn("Could not load native library of CLP! " + ILP_VERSIONS_STRING);
+            LoggerFactory.getLogger(this.getClass()).debug("Could not load native library of CLP! " + ILP_VERSIONS_STRING, e);
+            return false;
+        }
+    }
+
     public TreeBuilder getTreeBuilder() {
         for (DefaultBuilder builder : getBuilderPriorities()) {
             TreeBuilder b = getTreeBuilder(builder);
             if (b != null)
                 return b;
         }
-        LoggerFactory.getLogger(TreeBuilderFactory.class).error("Your system does not ship with any ILP solver. Please install either GLPK for java, Gurobi or CPLEX to use SIRIUS.");
+        LoggerFactory.getLogger(TreeBuilderFactory.class).error("Your system does not ship with any ILP solver. Please install either GLPK for java, Gurobi or CPLEX to use SIRIUS, or add " + DefaultBuilder.BNB + " to the solver priorities to use the pure Java branch and bound solver.");
         return null;
     }
 }
\ No newline at end of file
@@ -43,6 +43,7 @@ abstract public class AbstractSolver {
     // graph information
     protected final ProcessedInput input;
     protected final FGraph graph;
+    protected final CompiledFGraph compiledGraph;
     protected final List<Loss> losses;
     protected final int[] edgeIds; // contains variable indices (after 'computeoffsets')
     protected final int[] edgeOffsets; // contains: the first index j of edges starting from a given vertex i
@@ -54,13 +55,16 @@ abstract public class AbstractSolver {
     ////////////////////////
 
     protected AbstractSolver(FGraph graph, ProcessedInput input, TreeBuilder.FluentInterface options) {
+        this(compile(graph), input, options);
+    }
+
+    protected AbstractSolver(CompiledFGraph graph, ProcessedInput input, TreeBuilder.FluentInterface options) {
         if (graph == null) throw new NullPointerException("Cannot solve graph: graph is NULL!");
-        this.graph = graph;
+        this.graph = graph.getGraph();
+        this.compiledGraph = graph;
         this.losses = new ArrayList<Loss>(graph.numberOfEdges());
-        for (Fragment f : graph) {
-            for (int k = 0; k < f.getInDegree(); ++k) {
-                losses.add(f.getIncomingEdge(k));
-            }
+        for (int k = 0; k < graph.numberOfEdges(); ++k) {
+            losses.add(graph.getLoss(k));
         }
         this.edgeIds = new int[graph.numberOfEdges()];
         this.edgeOffsets = new int[graph.numberOfVertices()];
@@ -68,6 +72,11 @@ abstract public class AbstractSolver {
         this.options = options;
     }
 
+    private static CompiledFGraph compile(FGraph graph) {
+        if (graph == null) throw new NullPointerException("Cannot solve graph: graph is NULL!");
+        return graph.compile();
+    }
+
     public TreeBuilder.Result compute() {
         if (graph.numberOfEdges() == 1) {
             IntergraphMapping.Builder mapping = IntergraphMapping.build();
@@ -125,21 +134,21 @@ abstract public class AbstractSolver {
     protected final void computeOffsets() {
 
         for (int k = 1; k < edgeOffsets.length; ++k)
-            edgeOffsets[k] = edgeOffsets[k - 1] + graph.getFragmentAt(k - 1).getOutDegree();
+            edgeOffsets[k] = edgeOffsets[k - 1] + compiledGraph.getOutDegree(k - 1);
 
         /*
          * for each edge: give it some unique id based on its source vertex id and its offset
          * therefor, the i-th edge of some vertex u will have the id: edgeOffsets[u] + i, if i=0 is the first edge.
          * That way, 'edgeIds' is already sorted by source edge id's! An in O(E) time
          */
-        for (int k = 0; k < losses.size(); ++k) {
-            final int u = losses.get(k).getSource().getVertexId();
+        for (int k = 0; k < edgeIds.length; ++k) {
+            final int u = compiledGraph.getSource(k);
             edgeIds[edgeOffsets[u]++] = k;
         }
 
         // by using the loop-code above -> edgeOffsets[k] = 2*OutEdgesOf(k), so subtract that 2 away
         for (int k = 0; k < edgeOffsets.length; ++k)
-            edgeOffsets[k] -= graph.getFragmentAt(k).getOutDegree();
+            edgeOffsets[k] -= compiledGraph.getOutDegree(k);
         //TODO: optimize: edgeOffsets[k] /= 2;
     }
 
@@ -287,6 +296,73 @@ abstract public class AbstractSolver {
      */
     abstract protected void setMinimalTreeSizeConstraint() throws Exception;
 
+    //-- Rows of the colorful subtree ILP for solvers which add their constraints in bulk (see SparseRows)
+
+    /**
+     * adds for each vertex v (except the root): the sum of incoming edges of v is at most 1, and for each outgoing
+     * edge vw: vw is only used if an incoming edge of v is used
+     */
+    protected void addTreeConstraints(SparseRows rows) {
+        for (int v = 0, n = compiledGraph.numberOfVertices(); v < n; ++v) {
+            if (v == compiledGraph.getRoot()) continue;
+            final int firstIn = compiledGraph.getFirstIncomingEdge(v), inDegree = compiledGraph.getInDegree(v);
+            for (int l = 0; l < inDegree; ++l) rows.add(firstIn + l, 1d);
+            rows.finishRow(0d, 1d);
+            for (int l = 0, outDegree = compiledGraph.getOutDegree(v); l < outDegree; ++l) {
+                for (int k = 0; k < inDegree; ++k) rows.add(firstIn + k, 1d);
+                rows.add(compiledGraph.getOutgoingEdge(v, l), -1d);
+                rows.finishRow(0d, 1d);
+            }
+        }
+    }
+
+    /**
+     * adds for each color: the sum of all edges going into this color is at most 1. Colors with a single vertex are
+     * skipped, as their constraint is identical to the tree constraint of this vertex.
+     */
+    protected void addColorConstraints(SparseRows rows) {
+        final int ncolors = compiledGraph.maxColor() + 1, n = compiledGraph.numberOfVertices();
+        final int[] colorStart = new int[ncolors + 1];
+        for (int v = 0; v < n; ++v) {
+            if (v != compiledGraph.getRoot()) ++colorStart[compiledGraph.getColor(v) + 1];
+        }
+        for (int c = 0; c < ncolors; ++c) colorStart[c + 1] += colorStart[c];
+        final int[] verticesByColor = new int[colorStart[ncolors]];
+        final int[] fill = Arrays.copyOf(colorStart, ncolors);
+        for (int v = 0; v < n; ++v) {
+            if (v != compiledGraph.getRoot()) verticesByColor[fill[compiledGraph.getColor(v)]++] = v;
+        }
+        for (int c = 0; c < ncolors; ++c) {
+            if (colorStart[c + 1] - colorStart[c] <= 1) continue;
+            for (int i = colorStart[c]; i < colorStart[c + 1]; ++i) {
+                final int v = verticesByColor[i], firstIn = compiledGraph.getFirstIncomingEdge(v);
+                for (int l = 0, inDegree = compiledGraph.getInDegree(v); l < inDegree; ++l) rows.add(firstIn + l, 1d);
+            }
+            rows.finishRow(0d, 1d);
+        }
+    }
+
+    /**
+     * adds: at least one edge leaving the root is used
+     */
+    protected void addMinimalTreeSizeConstraint(SparseRows rows, double infinity) {
+        final int root = compiledGraph.getRoot();
+        for (int l = 0, outDegree = compiledGraph.getOutDegree(root); l < outDegree; ++l)
+            rows.add(compiledGraph.getOutgoingEdge(root, l), 1d);
+        rows.finishRow(1d, infinity);
+    }
+
+    /**
+     * adds: the sum of the weights of all used edges is at least the given score
+     */
+    protected void addMinimalScoreConstraint(SparseRows rows, double minimalScore, double infinity) {
+        for (int e = 0, m = compiledGraph.numberOfEdges(); e < m; ++e) {
+            final double w = compiledGraph.getWeight(e);
+            if (w != 0) rows.add(e, w);
+        }
+        rows.finishRow(minimalScore, infinity);
+    }
+
     // functions used within 'solve'
 
     /**
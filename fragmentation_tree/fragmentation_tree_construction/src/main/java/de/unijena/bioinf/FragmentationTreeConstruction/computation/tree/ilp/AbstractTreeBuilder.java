@@ -20,6 +20,7 @@
 
 package de.unijena.bioinf.FragmentationTreeConstruction.computation.tree.ilp;
 
+import de.unijena.bioinf.ChemistryBase.ms.ft.CompiledFGraph;
 import de.unijena.bioinf.ChemistryBase.ms.ft.FGraph;
 import de.unijena.bioinf.FragmentationTreeConstruction.computation.tree.TreeBuilder;
 import de.unijena.bioinf.sirius.ProcessedInput;
@@ -42,6 +43,11 @@ public class AbstractTreeBuilder<T extends AbstractSolver> implements TreeBuilde
         return factory.create(input,graph,options).compute();
     }
 
+    @Override
+    public Result computeTree(ProcessedInput input, CompiledFGraph graph, FluentInterface options) {
+        return factory.create(input,graph,options).compute();
+    }
+
     @Override
     public boolean isThreadSafe() {
         return factory.isThreadSafe();
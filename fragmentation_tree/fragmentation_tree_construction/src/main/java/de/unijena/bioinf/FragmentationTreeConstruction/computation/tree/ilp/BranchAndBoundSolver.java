@@ -0,0 +1,540 @@
+/*
+ *
+ *  This file is part of the SIRIUS library for analyzing MS and MS/MS data
+ *
+ *  Copyright (C) 2013-2020 Kai Dührkop, Markus Fleischauer, Marcus Ludwig, Martin A. Hoffman and Sebastian Böcker,
+ *  Chair of Bioinformatics, Friedrich-Schilller University.
+ *
+ *  This library is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public
+ *  License as published by the Free Software Foundation; either
+ *  version 3 of the License, or (at your option) any later version.
+ *
+ *  This library is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License along with SIRIUS. If not, see <https://www.gnu.org/licenses/lgpl-3.0.txt>
+ */
+package de.unijena.bioinf.FragmentationTreeConstruction.computation.tree.ilp;
+
+import de.unijena.bioinf.ChemistryBase.jobs.SiriusJobs;
+import de.unijena.bioinf.ChemistryBase.ms.ft.CompiledFGraph;
+import de.unijena.bioinf.ChemistryBase.ms.ft.FGraph;
+import de.unijena.bioinf.FragmentationTreeConstruction.computation.tree.TreeBuilder;
+import de.unijena.bioinf.FragmentationTreeConstruction.ftheuristics.treebuilder.ExtendedCriticalPathHeuristicTreeBuilder;
+import de.unijena.bioinf.jjobs.BasicJJob;
+import de.unijena.bioinf.sirius.ProcessedInput;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+/**
+ * Exact solver for the maximum colorful subtree problem which does not need any native library.
+ * <p>
+ * The colors of the graph are processed in topological order. For each color, the search either selects one vertex
+ * of this color, attached to the best edge from an already selected vertex, or skips the color. Subproblems are
+ * pruned with an upper bound which sums up, for each undecided color, the best edge that can still be used. The
+ * search starts with the tree of the critical path heuristic (or the given template) as lower bound. If the time
+ * limit is reached, the best tree found so far is returned and reported as not optimal.
+ * <p>
+ * Edges between two vertices of the same color can never be part of a colorful tree and are ignored. If the colors
+ * cannot be ordered topologically, the vertices are processed in topological order instead and each run of vertices
+ * with the same color is decided at once. A color might then occur at several positions of the search, but is used at
+ * most once.
+ * <p>
+ * If more than one CPU is requested, the first levels of the search tree are expanded and the resulting subproblems
+ * are submitted to the global CPU pool, sharing their lower bound. The calling thread solves all subproblems no worker
+ * has started yet, so the solver does not block a pool thread when it is called from within another job.
+ */
+public class BranchAndBoundSolver extends AbstractSolver {
+
+    public final static IlpFactory<BranchAndBoundSolver> Factory = new IlpFactory<BranchAndBoundSolver>() {
+        @Override
+        public BranchAndBoundSolver create(ProcessedInput input, FGraph graph, TreeBuilder.FluentInterface options) {
+            return new BranchAndBoundSolver(graph, input, options);
+        }
+
+        @Override
+        public BranchAndBoundSolver create(ProcessedInput input, CompiledFGraph graph, TreeBuilder.FluentInterface options) {
+            return new BranchAndBoundSolver(graph, input, options);
+        }
+
+        @Override
+        public boolean isThreadSafe() {
+            return true;
+        }
+
+        @Override
+        public String name() {
+            return "Branch and Bound (Java)";
+        }
+    };
+
+    private static final double EPSILON = 1e-9;
+    // how often the search checks the time limit
+    private static final int CHECK_INTERVAL = 4096;
+    // number of subproblems per CPU when running in parallel
+    private static final int SUBPROBLEMS_PER_CPU = 8;
+
+    private int numberOfCPUS = 1;
+    private long timeLimitInNanos = 0;
+
+    // search order: colors in topological order, vertices grouped by the position of their color in this order
+    private int numberOfPositions;
+    private int[] positionOfVertex;
+    private int[] colorOfPosition;
+    // the critical path heuristic requires edges to point from smaller to larger colors
+    private boolean colorsAscending;
+    private int[] groupStart, groupVertices;
+    // for each position: the sum of the best incoming edges of all following positions
+    private double[] staticBound;
+
+    private volatile double bestScore = Double.NEGATIVE_INFINITY;
+    private int[] bestEdges = null;
+    private volatile boolean timeout = false;
+    private long deadline;
+
+    public BranchAndBoundSolver(FGraph graph, ProcessedInput input, TreeBuilder.FluentInterface options) {
+        super(graph, input, options);
+    }
+
+    public BranchAndBoundSolver(CompiledFGraph graph, ProcessedInput input, TreeBuilder.FluentInterface options) {
+        super(graph, input, options);
+    }
+
+    @Override
+    protected TreeBuilder.Result solve() {
+        final TreeBuilder.Result result = super.solve();
+        if (timeout && result.tree != null)
+            return new TreeBuilder.Result(result.tree, false, result.error, result.mapping);
+        return result;
+    }
+
+    @Override
+    protected void setTimeLimitInSeconds(double timeLimitsInSeconds) throws Exception {
+        this.timeLimitInNanos = (long) (timeLimitsInSeconds * 1e9);
+    }
+
+    @Override
+    protected void setNumberOfCpus(int numberOfCPUS) throws Exception {
+        this.numberOfCPUS = numberOfCPUS;
+    }
+
+    @Override
+    protected void initializeModel() throws Exception {
+        final int n = compiledGraph.numberOfVertices(), root = compiledGraph.getRoot();
+        final int ncolors = compiledGraph.maxColor() + 1;
+        // order colors topologically: an edge uv requires the color of u to be decided before the color of v.
+        // Edges within a color are never part of a colorful tree and do not constrain the order.
+        final boolean[] used = new boolean[ncolors];
+        final int[] colorInDegree = new int[ncolors];
+        final List<int[]> colorEdges = new ArrayList<>();
+        this.colorsAscending = true;
+        {
+            final boolean[] seen = new boolean[ncolors * ncolors];
+            for (int e = 0, m = compiledGraph.numberOfEdges(); e < m; ++e) {
+                final int u = compiledGraph.getSource(e);
+                if (u == root) continue;
+                final int a = compiledGraph.getColor(u), b = compiledGraph.getColor(compiledGraph.getTarget(e));
+                if (a > b) colorsAscending = false;
+                if (a != b && !seen[a * ncolors + b]) {
+                    seen[a * ncolors + b] = true;
+                    colorEdges.add(new int[]{a, b});
+                    ++colorInDegree[b];
+                }
+            }
+        }
+        for (int v = 0; v < n; ++v)
+            if (v != root) used[compiledGraph.getColor(v)] = true;
+        final int[][] colorSuccessors = new int[ncolors][];
+        {
+            final int[] outDegree = new int[ncolors];
+            for (int[] ab : colorEdges) ++outDegree[ab[0]];
+            for (int c = 0; c < ncolors; ++c) colorSuccessors[c] = new int[outDegree[c]];
+            for (int[] ab : colorEdges) colorSuccessors[ab[0]][--outDegree[ab[0]]] = ab[1];
+        }
+        final int[] order = new int[ncolors];
+        int size = 0;
+        for (int c = 0; c < ncolors; ++c)
+            if (used[c] && colorInDegree[c] == 0) order[size++] = c;
+        for (int i = 0; i < size; ++i) {
+            for (int d : colorSuccessors[order[i]])
+                if (--colorInDegree[d] == 0) order[size++] = d;
+        }
+        int numberOfUsedColors = 0;
+        for (boolean u : used) if (u) ++numberOfUsedColors;
+        this.positionOfVertex = new int[n];
+        if (size == numberOfUsedColors) {
+            final int[] positionOfColor = new int[ncolors];
+            for (int i = 0; i < size; ++i) positionOfColor[order[i]] = i;
+            for (int v = 0; v < n; ++v)
+                positionOfVertex[v] = v == root ? -1 : positionOfColor[compiledGraph.getColor(v)];
+            this.colorOfPosition = Arrays.copyOf(order, size);
+        } else {
+            // edges between colors contain a cycle: each run of vertices with the same color in topological order
+            // gets its own position
+            LoggerFactory.getLogger(BranchAndBoundSolver.class).debug("Colors of the graph cannot be ordered topologically. Search vertices in topological order.");
+            final int[] colors = new int[n];
+            size = 0;
+            for (int v : compiledGraph.getTopologicalOrder()) {
+                if (v == root) {
+                    positionOfVertex[v] = -1;
+                    continue;
+                }
+                if (size == 0 || colors[size - 1] != compiledGraph.getColor(v))
+                    colors[size++] = compiledGraph.getColor(v);
+                positionOfVertex[v] = size - 1;
+            }
+            this.colorOfPosition = Arrays.copyOf(colors, size);
+        }
+        this.numberOfPositions = size;
+
+        this.groupStart = new int[size + 1];
+        for (int v = 0; v < n; ++v)
+            if (v != root) ++groupStart[positionOfVertex[v] + 1];
+        for (int i = 0; i < size; ++i) groupStart[i + 1] += groupStart[i];
+        this.groupVertices = new int[groupStart[size]];
+        final int[] fill = Arrays.copyOf(groupStart, size);
+        for (int v = 0; v < n; ++v)
+            if (v != root) groupVertices[fill[positionOfVertex[v]]++] = v;
+
+        this.staticBound = new double[size + 1];
+        for (int i = size - 1; i >= 0; --i) {
+            double best = 0d;
+            for (int j = groupStart[i]; j < groupStart[i + 1]; ++j) {
+                final int v = groupVertices[j], firstIn = compiledGraph.getFirstIncomingEdge(v);
+                for (int l = 0, inDegree = compiledGraph.getInDegree(v); l < inDegree; ++l)
+                    best = Math.max(best, compiledGraph.getWeight(firstIn + l));
+            }
+            staticBound[i] = staticBound[i + 1] + best;
+        }
+    }
+
+    @Override
+    protected void defineVariables() throws Exception {
+        // each edge is a decision of the search, there is nothing to define
+    }
+
+    @Override
+    protected void setVariableStartValues(int[] usedEdgeIds) throws Exception {
+        // a start solution is used as initial lower bound, if it is a feasible tree of this graph
+        final boolean[] usedColor = new boolean[compiledGraph.maxColor() + 1];
+        final boolean[] selected = new boolean[compiledGraph.numberOfVertices()];
+        selected[compiledGraph.getRoot()] = true;
+        final Integer[] byPosition = new Integer[usedEdgeIds.length];
+        for (int i = 0; i < usedEdgeIds.length; ++i) byPosition[i] = usedEdgeIds[i];
+        Arrays.sort(byPosition, (a, b) -> Integer.compare(positionOfVertex[compiledGraph.getTarget(a)], positionOfVertex[compiledGraph.getTarget(b)]));
+        int rootEdges = 0;
+        double score = 0d;
+        for (int e : byPosition) {
+            final int u = compiledGraph.getSource(e), v = compiledGraph.getTarget(e);
+            if (!selected[u] || usedColor[compiledGraph.getColor(v)]) return;
+            if (u == compiledGraph.getRoot()) ++rootEdges;
+            selected[v] = true;
+            usedColor[compiledGraph.getColor(v)] = true;
+            score += compiledGraph.getWeight(e);
+        }
+        if (rootEdges == 1 && score > bestScore) {
+            bestScore = score;
+            bestEdges = usedEdgeIds.clone();
+        }
+    }
+
+    @Override
+    protected void setTreeConstraint() throws Exception {
+        // implicit: a vertex is only selected together with an edge from an already selected vertex
+    }
+
+    @Override
+    protected void setColorConstraint() throws Exception {
+        // implicit: at most one vertex is selected for each color
+    }
+
+    @Override
+    protected void setMinimalTreeSizeConstraint() throws Exception {
+        // implicit: solutions have to contain exactly one edge leaving the root
+    }
+
+    @Override
+    protected void setMinimalScoreConstraints(double minimalScore) throws Exception {
+        if (bestScore < minimalScore) {
+            bestEdges = null;
+            bestScore = minimalScore - EPSILON;
+        }
+    }
+
+    @Override
+    protected void setObjective() throws Exception {
+        // the objective is the sum of the weights of the selected edges
+    }
+
+    @Override
+    protected TreeBuilder.AbortReason solveMIP() throws Exception {
+        // the critical path heuristic only supports graphs with a single tree root
+        if (bestEdges == null && colorsAscending && compiledGraph.getOutDegree(compiledGraph.getRoot()) == 1) {
+            final TreeBuilder.Result heuristic = new ExtendedCriticalPathHeuristicTreeBuilder().computeTree().solve(input, compiledGraph);
+            if (heuristic.tree != null)
+                setVariableStartValues(heuristic.tree);
+        }
+        this.deadline = timeLimitInNanos > 0 ? System.nanoTime() + timeLimitInNanos : Long.MAX_VALUE;
+
+        final Search initial = new Search();
+        if (numberOfCPUS <= 1) {
+            initial.search(0, 0d);
+        } else {
+            final List<int[]> subproblems = initial.split(numberOfCPUS * SUBPROBLEMS_PER_CPU);
+            final List<FutureTask<Object>> tasks = new ArrayList<>(subproblems.size());
+            for (int[] prefix : subproblems) {
+                tasks.add(new FutureTask<>(() -> {
+                    final Search s = new Search();
+                    s.search(prefix.length, s.replay(prefix));
+                    return null;
+                }));
+            }
+            // the first subproblem is solved by the calling thread anyway
+            for (int k = 1; k < tasks.size(); ++k)
+                SiriusJobs.getGlobalJobManager().submitJob(new SubproblemJob(tasks.get(k)));
+            for (FutureTask<Object> task : tasks) {
+                // does nothing if a worker already started the subproblem
+                task.run();
+                try {
+                    task.get();
+                } catch (InterruptedException | ExecutionException e) {
+                    tasks.forEach(t -> t.cancel(false));
+                    if (e instanceof InterruptedException) throw e;
+                    final Throwable cause = e.getCause();
+                    if (cause instanceof Exception) throw (Exception) cause;
+                    throw new RuntimeException(cause);
+                }
+            }
+        }
+        if (timeout)
+            LoggerFactory.getLogger(BranchAndBoundSolver.class).debug("Branch and bound reached time limit. Return the best tree found so far.");
+        if (bestEdges == null)
+            return timeout ? TreeBuilder.AbortReason.TIMEOUT : TreeBuilder.AbortReason.INFEASIBLE;
+        return TreeBuilder.AbortReason.COMPUTATION_CORRECT;
+    }
+
+    @Override
+    protected void pastBuildSolution() throws Exception {
+        // nothing to release
+    }
+
+    @Override
+    protected boolean[] getVariableAssignment() throws Exception {
+        final boolean[] assigned = new boolean[compiledGraph.numberOfEdges()];
+        for (int e : bestEdges) assigned[e] = true;
+        return assigned;
+    }
+
+    @Override
+    protected double getSolverScore() throws Exception {
+        double score = 0d;
+        for (int e : bestEdges) score += compiledGraph.getWeight(e);
+        return score;
+    }
+
+    private synchronized void offer(int[] chosenEdges, double score) {
+        if (score > bestScore) {
+            int k = 0;
+            for (int e : chosenEdges) if (e >= 0) ++k;
+            final int[] edges = new int[k];
+            k = 0;
+            for (int e : chosenEdges) if (e >= 0) edges[k++] = e;
+            bestEdges = edges;
+            bestScore = score;
+        }
+    }
+
+    protected static class SubproblemJob extends BasicJJob<Object> {
+        private final FutureTask<Object> task;
+
+        protected SubproblemJob(FutureTask<Object> task) {
+            super(JobType.CPU);
+            this.task = task;
+        }
+
+        @Override
+        protected Object compute() {
+            task.run();
+            return null;
+        }
+    }
+
+    /**
+     * State of a depth first search. Each search has its own state, only the lower bound is shared.
+     */
+    protected class Search {
+        private final boolean[] selected;
+        private final boolean[] usedColors;
+        private boolean rootUsed = false;
+        // for each position the chosen edge or -1 if the color is skipped
+        private final int[] chosenEdges;
+        // candidate buffers for each position
+        private final int[][] candidateEdges;
+        private final double[][] candidateWeights;
+        private long nodes = 0;
+
+        protected Search() {
+            this.selected = new boolean[compiledGraph.numberOfVertices()];
+            selected[compiledGraph.getRoot()] = true;
+            this.usedColors = new boolean[compiledGraph.maxColor() + 1];
+            this.chosenEdges = new int[numberOfPositions];
+            Arrays.fill(chosenEdges, -1);
+            this.candidateEdges = new int[numberOfPositions][];
+            this.candidateWeights = new double[numberOfPositions][];
+            for (int i = 0; i < numberOfPositions; ++i) {
+                candidateEdges[i] = new int[groupStart[i + 1] - groupStart[i]];
+                candidateWeights[i] = new double[candidateEdges[i].length];
+            }
+        }
+
+        protected double replay(int[] prefix) {
+            double score = 0d;
+            for (int i = 0; i < prefix.length; ++i) {
+                if (prefix[i] >= 0) {
+                    select(prefix[i], i);
+                    score += compiledGraph.getWeight(prefix[i]);
+                }
+            }
+            return score;
+        }
+
+        /**
+         * expands the search tree breadth first until there are at least the given number of subproblems.
+         *
+         * @return the decisions of each subproblem for the first positions
+         */
+        protected List<int[]> split(int minNumberOfSubproblems) {
+            List<int[]> level = new ArrayList<>();
+            level.add(new int[0]);
+            for (int pos = 0; pos < numberOfPositions && level.size() < minNumberOfSubproblems; ++pos) {
+                final List<int[]> next = new ArrayList<>();
+                for (int[] prefix : level) {
+                    final double score = replay(prefix);
+                    final int k = collectCandidates(pos);
+                    for (int j = 0; j < k; ++j) {
+                        final int[] extended = Arrays.copyOf(prefix, pos + 1);
+                        extended[pos] = candidateEdges[pos][j];
+                        if (score + candidateWeights[pos][j] + staticBound[pos + 1] > bestScore + EPSILON)
+                            next.add(extended);
+                    }
+                    final int[] skipped = Arrays.copyOf(prefix, pos + 1);
+                    skipped[pos] = -1;
+                    if (score + staticBound[pos + 1] > bestScore + EPSILON)
+                        next.add(skipped);
+                    for (int i = 0; i < prefix.length; ++i)
+                        if (prefix[i] >= 0) unselect(prefix[i], i);
+                }
+                level = next;
+            }
+            return level;
+        }
+
+        protected void search(int pos, double score) {
+            if (timeout) return;
+            if (++nodes % CHECK_INTERVAL == 0 && System.nanoTime() > deadline) {
+                timeout = true;
+                return;
+            }
+            if (score + staticBound[pos] <= bestScore + EPSILON) return;
+            if (pos == numberOfPositions) {
+                if (rootUsed && score > bestScore) offer(chosenEdges, score);
+                return;
+            }
+            if (score + dynamicBound(pos) <= bestScore + EPSILON) return;
+            final int k = collectCandidates(pos);
+            final int[] edges = candidateEdges[pos];
+            final double[] weights = candidateWeights[pos];
+            for (int j = 0; j < k; ++j) {
+                select(edges[j], pos);
+                search(pos + 1, score + weights[j]);
+                unselect(edges[j], pos);
+                if (timeout) return;
+            }
+            search(pos + 1, score);
+        }
+
+        /**
+         * sum of the best usable edges into all unused colors starting at the given position. An edge is usable if
+         * its source is selected or belongs to an undecided position.
+         */
+        private double dynamicBound(int pos) {
+            double bound = 0d;
+            final int root = compiledGraph.getRoot();
+            for (int i = pos; i < numberOfPositions; ++i) {
+                if (usedColors[colorOfPosition[i]]) continue;
+                double best = 0d;
+                for (int j = groupStart[i]; j < groupStart[i + 1]; ++j) {
+                    final int v = groupVertices[j], firstIn = compiledGraph.getFirstIncomingEdge(v);
+                    for (int l = 0, inDegree = compiledGraph.getInDegree(v); l < inDegree; ++l) {
+                        final int e = firstIn + l;
+                        final double w = compiledGraph.getWeight(e);
+                        if (w <= best) continue;
+                        final int u = compiledGraph.getSource(e);
+                        if (u == root ? !rootUsed : (selected[u] || positionOfVertex[u] >= pos))
+                            best = w;
+                    }
+                }
+                bound += best;
+            }
+            return bound;
+        }
+
+        /**
+         * collects for each vertex of the given position the best edge from a selected vertex, sorted by weight
+         *
+         * @return number of candidates
+         */
+        private int collectCandidates(int pos) {
+            final int[] edges = candidateEdges[pos];
+            final double[] weights = candidateWeights[pos];
+            final int root = compiledGraph.getRoot();
+            if (usedColors[colorOfPosition[pos]]) return 0;
+            int k = 0;
+            for (int j = groupStart[pos]; j < groupStart[pos + 1]; ++j) {
+                final int v = groupVertices[j], firstIn = compiledGraph.getFirstIncomingEdge(v);
+                int bestEdge = -1;
+                double best = Double.NEGATIVE_INFINITY;
+                for (int l = 0, inDegree = compiledGraph.getInDegree(v); l < inDegree; ++l) {
+                    final int e = firstIn + l, u = compiledGraph.getSource(e);
+                    if (selected[u] && (u != root || !rootUsed) && compiledGraph.getWeight(e) > best) {
+                        best = compiledGraph.getWeight(e);
+                        bestEdge = e;
+                    }
+                }
+                if (bestEdge < 0) continue;
+                // insertion sort by descending weight
+                int i = k++;
+                while (i > 0 && weights[i - 1] < best) {
+                    edges[i] = edges[i - 1];
+                    weights[i] = weights[i - 1];
+                    --i;
+                }
+                edges[i] = bestEdge;
+                weights[i] = best;
+            }
+            return k;
+        }
+
+        private void select(int edge, int pos) {
+            selected[compiledGraph.getTarget(edge)] = true;
+            usedColors[compiledGraph.getColor(compiledGraph.getTarget(edge))] = true;
+            if (compiledGraph.getSource(edge) == compiledGraph.getRoot()) rootUsed = true;
+            chosenEdges[pos] = edge;
+        }
+
+        private void unselect(int edge, int pos) {
+            selected[compiledGraph.getTarget(edge)] = false;
+            usedColors[compiledGraph.getColor(compiledGraph.getTarget(edge))] = false;
+            if (compiledGraph.getSource(edge) == compiledGraph.getRoot()) rootUsed = false;
+            chosenEdges[pos] = -1;
+        }
+    }
+}
@@ -20,9 +20,8 @@
 
 package de.unijena.bioinf.FragmentationTreeConstruction.computation.tree.ilp;
 
+import de.unijena.bioinf.ChemistryBase.ms.ft.CompiledFGraph;
 import de.unijena.bioinf.ChemistryBase.ms.ft.FGraph;
-import de.unijena.bioinf.ChemistryBase.ms.ft.Fragment;
-import de.unijena.bioinf.ChemistryBase.ms.ft.Loss;
 import de.unijena.bioinf.FragmentationTreeConstruction.computation.tree.TreeBuilder;
 import de.unijena.bioinf.sirius.ProcessedInput;
 
@@ -39,6 +38,11 @@ public class CLPSolver extends AbstractSolver {
             return new CLPSolver(graph, input, options);
         }
 
+        @Override
+        public CLPSolver create(ProcessedInput input, CompiledFGraph graph, TreeBuilder.FluentInterface options) {
+            return new CLPSolver(graph, input, options);
+        }
+
         @Override
         public boolean isThreadSafe() {
             return false; // TODO: check
@@ -51,11 +55,17 @@ public class CLPSolver extends AbstractSolver {
     };
 
     protected CLPModel_JNI model;
+    // constraint buffers are reused for all graphs solved within the same thread
+    protected final SparseRows rows = SparseRows.forCurrentThread();
 
     public CLPSolver(FGraph graph, ProcessedInput input, TreeBuilder.FluentInterface options) {
         super(graph, input, options);
     }
 
+    public CLPSolver(CompiledFGraph graph, ProcessedInput input, TreeBuilder.FluentInterface options) {
+        super(graph, input, options);
+    }
+
     @Override
     protected void setTimeLimitInSeconds(double timeLimitsInSeconds) throws Exception {
         this.model.setTimeLimit(timeLimitsInSeconds);
@@ -75,21 +85,18 @@ public class CLPSolver extends AbstractSolver {
 
     @Override
     protected void setMinimalScoreConstraints(double minimalScore) throws Exception {
-        // TODO: is this possible?
+        rows.clear();
+        addMinimalScoreConstraint(rows, minimalScore, model.getInfinity());
+        addRows();
     }
 
     @Override
     protected void defineVariables() throws Exception {
         final double[] lb = new double[losses.size()];
         final double[] ub = new double[losses.size()];
-        final double[] objective = new double[losses.size()];
-        for (int i = 0; i < losses.size(); ++i) {
-            lb[i] = 0d;
-            ub[i] = 1d;
-            objective[i] = losses.get(i).getWeight();
-        }
+        Arrays.fill(ub, 1d);
         model.setColBounds(lb, ub);
-        model.setObjective(objective);
+        model.setObjective(compiledGraph.getWeights());
     }
 
     @Override
@@ -102,71 +109,33 @@ public class CLPSolver extends AbstractSolver {
 
     @Override
     protected void setTreeConstraint() throws Exception {
-        int k = 0;
-        for (Fragment fragment : graph.getFragmentsWithoutRoot()) {
-            final int[] indices = new int[fragment.getInDegree()];
-            final double[] elems = new double[fragment.getInDegree()];
-            Arrays.fill(elems, 1d);
-            for (int l = 0; l < fragment.getInDegree(); ++l)
-                indices[l] = k++;
-            model.addSparseRowCached(elems, indices, 0d, 1d);
-            // 1. For all vertices u with u!=root the sum of all edges uv for a fixed v is
-            // <= 1
-            // => TreeCondition: Each vertex (except root has a parent
-            // 2. An edge is only set, if one of the incomming edges of its head is set
-            // => Connectivity-Condition: There is a path between each two vertices
-            int j = edgeOffsets[fragment.getVertexId()];
-            final int[] indices2 = Arrays.copyOf(indices, indices.length + 1);
-            final double[] elems2 = Arrays.copyOf(elems, elems.length + 1);
-            final int n = indices.length;
-            elems2[n] = -1d;
-            for (int l = 0; l < fragment.getOutDegree(); ++l) {
-                indices2[n] = edgeIds[j];
-                model.addSparseRowCached(elems2, indices2, 0d, 1d);
-                assert losses.get(edgeIds[j]).getSource() == fragment;
-                ++j;
-            }
-        }
+        rows.clear();
+        addTreeConstraints(rows);
+        addRows();
     }
 
     @Override
     protected void setColorConstraint() throws Exception {
-        final int[] colorSizes = new int[graph.maxColor() + 1];
-        for (Loss l : losses) {
-            ++colorSizes[l.getTarget().getColor()];
-        }
-        final int[][] indizesPerColor = new int[colorSizes.length][];
-        for (int c = 0; c < colorSizes.length; ++c) {
-            if (colorSizes[c] > 0)
-                indizesPerColor[c] = new int[colorSizes[c]];
-        }
-
-        int k = 0;
-        for (Loss l : losses) {
-            final int C = l.getTarget().getColor();
-            indizesPerColor[C][--colorSizes[C]] = k;
-            ++k;
-        }
-        for (int i = 0; i < indizesPerColor.length; ++i) {
-            if (indizesPerColor[i] != null) {
-                final double[] ones = new double[indizesPerColor[i].length];
-                Arrays.fill(ones, 1d);
-                model.addSparseRowCached(ones, indizesPerColor[i], 0d, 1d);
-            }
-        }
+        rows.clear();
+        addColorConstraints(rows);
+        addRows();
     }
 
     @Override
     protected void setMinimalTreeSizeConstraint() throws Exception {
-        final int[] subroots = new int[graph.getRoot().getOutDegree()];
-        final double[] ones = new double[subroots.length];
-        Arrays.fill(ones, 1d);
-        int from = edgeOffsets[graph.getRoot().getVertexId()];
-        int k = 0;
-        for (int i = from, n = from + subroots.length; i < n; ++i) {
-            subroots[k++] = edgeIds[i];
-        }
-        model.addSparseRowCached(ones, subroots, 1d, model.getInfinity());
+        rows.clear();
+        addMinimalTreeSizeConstraint(rows, model.getInfinity());
+        addRows();
+    }
+
+    // adds all rows of the buffer with a single call to the native model. The pooled backing arrays are longer
+    // than the rows and contain entries of previous graphs, so they are trimmed before they are passed.
+    private void addRows() {
+        final int numberOfRows = rows.numberOfRows(), numberOfEntries = rows.numberOfEntries();
+        if (numberOfRows > 0)
+            model.addSparseRows(numberOfRows, Arrays.copyOf(rows.getRowStarts(), numberOfRows + 1),
+                    Arrays.copyOf(rows.getElements(), numberOfEntries), Arrays.copyOf(rows.getIndices(), numberOfEntries),
+                    Arrays.copyOf(rows.getLowerBounds(), numberOfRows), Arrays.copyOf(rows.getUpperBounds(), numberOfRows));
     }
 
     @Override
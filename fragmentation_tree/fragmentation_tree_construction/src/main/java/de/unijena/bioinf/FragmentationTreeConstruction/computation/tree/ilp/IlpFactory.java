@@ -20,6 +20,7 @@
 
 package de.unijena.bioinf.FragmentationTreeConstruction.computation.tree.ilp;
 
+import de.unijena.bioinf.ChemistryBase.ms.ft.CompiledFGraph;
 import de.unijena.bioinf.ChemistryBase.ms.ft.FGraph;
 import de.unijena.bioinf.FragmentationTreeConstruction.computation.tree.TreeBuilder;
 import de.unijena.bioinf.sirius.ProcessedInput;
@@ -28,6 +29,10 @@ public interface IlpFactory<T extends AbstractSolver> {
 
     public T create(ProcessedInput input, FGraph graph, TreeBuilder.FluentInterface options);
 
+    public default T create(ProcessedInput input, CompiledFGraph graph, TreeBuilder.FluentInterface options) {
+        return create(input, graph.getGraph(), options);
+    }
+
     public boolean isThreadSafe();
 
     public String name();
@@ -0,0 +1,159 @@
+/*
+ *
+ *  This file is part of the SIRIUS library for analyzing MS and MS/MS data
+ *
+ *  Copyright (C) 2013-2020 Kai Dührkop, Markus Fleischauer, Marcus Ludwig, Martin A. Hoffman and Sebastian Böcker,
+ *  Chair of Bioinformatics, Friedrich-Schilller University.
+ *
+ *  This library is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public
+ *  License as published by the Free Software Foundation; either
+ *  version 3 of the License, or (at your option) any later version.
+ *
+ *  This library is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License along with SIRIUS. If not, see <https://www.gnu.org/licenses/lgpl-3.0.txt>
+ */
+package de.unijena.bioinf.FragmentationTreeConstruction.computation.tree.ilp;
+
+import java.util.Arrays;
+
+/**
+ * Constraint rows in compressed row storage, such that solvers can add all constraints of a model at once.
+ * <p>
+ * The buffers only grow and are pooled per thread via {@link #forCurrentThread()}, so building the constraints for
+ * thousands of candidate graphs does not allocate new arrays for each row or each graph. A pooled instance is only
+ * valid until the next call of {@link #forCurrentThread()} within the same thread. Buffers which grew beyond
+ * {@link #MAX_POOLED_ENTRIES} for a single huge graph are not kept in the pool.
+ * <p>
+ * The array getters return the backing arrays without copying them. They are usually longer than the content, so
+ * only the first {@link #numberOfRows()} (+1 for the row starts) or {@link #numberOfEntries()} values are valid.
+ */
+public final class SparseRows {
+
+    /**
+     * maximal number of entries (about 12 bytes each) a pooled buffer may keep between two graphs
+     */
+    public static final int MAX_POOLED_ENTRIES = 1 << 20;
+
+    private static final ThreadLocal<SparseRows> POOL = ThreadLocal.withInitial(SparseRows::new);
+
+    private int[] rowStarts = new int[256];
+    private int[] indices = new int[1024];
+    private double[] elements = new double[1024];
+    private double[] lowerBounds = new double[256];
+    private double[] upperBounds = new double[256];
+    private int numberOfRows = 0, numberOfEntries = 0;
+
+    public SparseRows() {
+    }
+
+    /**
+     * @return the (empty) row buffer of the current thread
+     */
+    public static SparseRows forCurrentThread() {
+        SparseRows rows = POOL.get();
+        if (rows.indices.length > MAX_POOLED_ENTRIES || rows.rowStarts.length > MAX_POOLED_ENTRIES) {
+            rows = new SparseRows();
+            POOL.set(rows);
+        } else {
+            rows.clear();
+        }
+        return rows;
+    }
+
+    public void clear() {
+        numberOfRows = 0;
+        numberOfEntries = 0;
+    }
+
+    /**
+     * adds an entry to the current row. A row is finished by {@link #finishRow(double, double)}.
+     */
+    public void add(int index, double element) {
+        if (numberOfEntries >= indices.length) {
+            indices = Arrays.copyOf(indices, 2 * indices.length);
+            elements = Arrays.copyOf(elements, indices.length);
+        }
+        indices[numberOfEntries] = index;
+        elements[numberOfEntries++] = element;
+    }
+
+    public void finishRow(double lowerBound, double upperBound) {
+        if (numberOfRows + 1 >= rowStarts.length) {
+            rowStarts = Arrays.copyOf(rowStarts, 2 * rowStarts.length);
+            lowerBounds = Arrays.copyOf(lowerBounds, rowStarts.length);
+            upperBounds = Arrays.copyOf(upperBounds, rowStarts.length);
+        }
+        lowerBounds[numberOfRows] = lowerBound;
+        upperBounds[numberOfRows] = upperBound;
+        rowStarts[++numberOfRows] = numberOfEntries;
+    }
+
+    public int numberOfRows() {
+        return numberOfRows;
+    }
+
+    public int numberOfEntries() {
+        return numberOfEntries;
+    }
+
+    public int getRowStart(int row) {
+        return rowStarts[row];
+    }
+
+    public int getIndex(int entry) {
+        return indices[entry];
+    }
+
+    public double getElement(int entry) {
+        return elements[entry];
+    }
+
+    public double getLowerBound(int row) {
+        return lowerBounds[row];
+    }
+
+    public double getUpperBound(int row) {
+        return upperBounds[row];
+    }
+
+    /**
+     * @return backing array of the row starts. Its first numberOfRows+1 values are valid, the last of them is the
+     * number of entries.
+     */
+    public int[] getRowStarts() {
+        return rowStarts;
+    }
+
+    /**
+     * @return backing array of the column indices. Its first numberOfEntries values are valid.
+     */
+    public int[] getIndices() {
+        return indices;
+    }
+
+    /**
+     * @return backing array of the coefficients. Its first numberOfEntries values are valid.
+     */
+    public double[] getElements() {
+        return elements;
+    }
+
+    /**
+     * @return backing array of the row lower bounds. Its first numberOfRows values are valid.
+     */
+    public double[] getLowerBounds() {
+        return lowerBounds;
+    }
+
+    /**
+     * @return backing array of the row upper bounds. Its first numberOfRows values are valid.
+     */
+    public double[] getUpperBounds() {
+        return upperBounds;
+    }
+}
@@ -41,6 +41,13 @@ public abstract class AbstractHeuristic {
         this.mapping = IntergraphMapping.build();
     }
 
+    public AbstractHeuristic(CompiledFGraph graph) {
+        this.ncolors = graph.maxColor()+1;
+        this.graph = graph.getGraph();
+        this.selectedEdges = new ArrayList<>(ncolors);
+        this.mapping = IntergraphMapping.build();
+    }
+
     public abstract FTree solve();
 
     public IntergraphMapping.Builder getGraphMappingBuilder() {
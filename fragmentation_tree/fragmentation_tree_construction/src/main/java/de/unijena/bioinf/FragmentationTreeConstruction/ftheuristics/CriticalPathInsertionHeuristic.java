@@ -21,66 +21,70 @@
 package de.unijena.bioinf.FragmentationTreeConstruction.ftheuristics;
 
 import de.unijena.bioinf.ChemistryBase.chem.MolecularFormula;
-import de.unijena.bioinf.ChemistryBase.ms.ft.FGraph;
-import de.unijena.bioinf.ChemistryBase.ms.ft.FTree;
-import de.unijena.bioinf.ChemistryBase.ms.ft.Fragment;
-import de.unijena.bioinf.ChemistryBase.ms.ft.Loss;
+import de.unijena.bioinf.ChemistryBase.ms.ft.*;
 import gnu.trove.list.array.TIntArrayList;
-import gnu.trove.map.hash.TIntObjectHashMap;
 
 import java.util.*;
 
+/**
+ * Works on the {@link CompiledFGraph} view of the graph: vertices and losses are referred to by their ids,
+ * so the insertion loop does not allocate or traverse Fragment and Loss objects.
+ */
 public class CriticalPathInsertionHeuristic extends AbstractHeuristic {
 
-    protected FGraph graph;
+    protected final CompiledFGraph compiledGraph;
 
     protected BitSet usedColors;
-    protected ArrayList<Loss> selectableEdges;
+    protected TIntArrayList selectableEdges;
     protected double[] criticalPaths;
-    protected final TIntObjectHashMap<Loss> color2Edge;
+    // id of the selected incoming edge for each color or -1
+    protected final int[] color2Edge;
     protected final TIntArrayList usedColorList;
 
     protected final double[] maxOut;
-    protected final Loss[] maxOutLoss;
 
     public CriticalPathInsertionHeuristic(FGraph graph) {
+        this(graph.compile());
+    }
+
+    public CriticalPathInsertionHeuristic(CompiledFGraph graph) {
         super(graph);
-        this.graph = graph;
+        this.compiledGraph = graph;
         this.usedColors = new BitSet(ncolors+1);
-        this.selectableEdges = new ArrayList<Loss>(ncolors+1);
+        this.selectableEdges = new TIntArrayList(ncolors+1);
         this.criticalPaths = new double[graph.numberOfVertices()];
-        color2Edge = new TIntObjectHashMap<>(ncolors, 0.75f, -1);
+        this.color2Edge = new int[ncolors];
+        Arrays.fill(color2Edge, -1);
         Arrays.fill(criticalPaths, Double.NaN);
         this.maxOut = new double[graph.numberOfVertices()];
-        this.maxOutLoss = new Loss[graph.numberOfVertices()];
         usedColorList = new TIntArrayList(ncolors);
     }
 
 
-    private void insert(Loss maxLoss) {
-        final Fragment newVertex = maxLoss.getTarget();
-        usedColors.set(newVertex.getColor());
-        usedColorList.add(newVertex.getColor());
-        color2Edge.put(newVertex.getColor(), maxLoss);
+    private void insert(int maxLoss) {
+        final CompiledFGraph g = compiledGraph;
+        final int newVertex = g.getTarget(maxLoss);
+        final int newColor = g.getColor(newVertex);
+        usedColors.set(newColor);
+        usedColorList.add(newColor);
+        color2Edge[newColor] = maxLoss;
         // relocate and update
-        for (int i = 0, n = newVertex.getOutDegree(); i < n; ++i) {
-            final Loss l = newVertex.getOutgoingEdge(i);
-            final Fragment w = l.getTarget();
-            final Loss xw = color2Edge.get(w.getColor());
-            if (xw != null) {
-                if (xw.getTarget() == w && xw.getWeight() < l.getWeight()) {
-                    color2Edge.put(w.getColor(), l);
-                    for (int j = 0, m = w.getInDegree(); j < m; ++j) {
-                        final Loss zw = w.getIncomingEdge(j);
-                        final Fragment z = zw.getSource();
-                        final int zid = z.getVertexId();
+        for (int i = 0, n = g.getOutDegree(newVertex); i < n; ++i) {
+            final int l = g.getOutgoingEdge(newVertex, i);
+            final int w = g.getTarget(l);
+            final int xw = color2Edge[g.getColor(w)];
+            if (xw >= 0) {
+                if (g.getTarget(xw) == w && g.getWeight(xw) < g.getWeight(l)) {
+                    color2Edge[g.getColor(w)] = l;
+                    for (int j = 0, m = g.getInDegree(w); j < m; ++j) {
+                        final int zid = g.getSource(g.getIncomingEdge(w, j));
                         if (maxOut[zid] > Double.NEGATIVE_INFINITY) {
-                            if (usedColors.get(z.getColor())) {
+                            if (usedColors.get(g.getColor(zid))) {
                                 maxOut[zid]=Double.NEGATIVE_INFINITY;
                             } else {
                                 maxOut[zid] = Math.max(
                                         0,
-                                        maxOut[zid] + xw.getWeight() - l.getWeight()
+                                        maxOut[zid] + g.getWeight(xw) - g.getWeight(l)
                                 );
                             }
                         }
@@ -88,24 +92,26 @@ public class CriticalPathInsertionHeuristic extends AbstractHeuristic {
                 }
             }
         }
-        for (int i=0, n = newVertex.getInDegree(); i < n; ++i) {
-            final Loss yv = newVertex.getIncomingEdge(i);
-            if (yv.getWeight() > maxLoss.getWeight()) {
-                int y = yv.getSource().getVertexId();
-                maxOut[y] += yv.getWeight()-maxLoss.getWeight();
+        for (int i=0, n = g.getInDegree(newVertex); i < n; ++i) {
+            final int yv = g.getIncomingEdge(newVertex, i);
+            if (g.getWeight(yv) > g.getWeight(maxLoss)) {
+                int y = g.getSource(yv);
+                maxOut[y] += g.getWeight(yv)-g.getWeight(maxLoss);
             }
         }
 
     }
 
     private void initialize() {
-        final Loss rootLoss = graph.getRoot().getOutgoingEdge(0);
-        final Fragment root = rootLoss.getTarget();
-        maxOut[root.getVertexId()] = Double.NEGATIVE_INFINITY;
-        usedColors.set(rootLoss.getTarget().getColor());
-        usedColorList.add(rootLoss.getTarget().getColor());
-        color2Edge.put(rootLoss.getTarget().getColor(), rootLoss);
-        if (graph.getRoot().getOutDegree()==1) {
+        final CompiledFGraph g = compiledGraph;
+        final int pseudoRoot = g.getRoot();
+        final int rootLoss = g.getOutgoingEdge(pseudoRoot, 0);
+        final int root = g.getTarget(rootLoss);
+        maxOut[root] = Double.NEGATIVE_INFINITY;
+        usedColors.set(g.getColor(root));
+        usedColorList.add(g.getColor(root));
+        color2Edge[g.getColor(root)] = rootLoss;
+        if (g.getOutDegree(pseudoRoot)==1) {
             addSeletableEdgesFor(root);
         } else {
             throw new RuntimeException("Algorithm is optimized for graphs with one tree root");
@@ -114,21 +120,14 @@ public class CriticalPathInsertionHeuristic extends AbstractHeuristic {
     }
 
     protected void invalidateColor(int color) {
-        final Fragment pseudoFragment = new Fragment(0,null, null);
-        pseudoFragment.setColor(color);
-        int searchKey = Collections.binarySearch(graph.getFragments(), pseudoFragment,new Comparator<Fragment>() {
-            @Override
-            public int compare(Fragment o1, Fragment o2) {
-                return o1.getColor()-o2.getColor();
-            }
-        });
-        if (searchKey < 0) {
-            searchKey = -(searchKey+1);
-        } else {
-            while (searchKey< graph.numberOfVertices() && graph.getFragmentAt(searchKey).getColor() == color)
-                ++searchKey;
+        // vertices are sorted by color: find the first vertex with a larger color
+        int lo = 0, hi = compiledGraph.numberOfVertices();
+        while (lo < hi) {
+            final int mid = (lo + hi) >>> 1;
+            if (compiledGraph.getColor(mid) <= color) lo = mid + 1;
+            else hi = mid;
         }
-        Arrays.fill(criticalPaths, 0, searchKey, Double.NaN);
+        Arrays.fill(criticalPaths, 0, lo, Double.NaN);
     }
 
     public FTree solve() {
@@ -139,6 +138,16 @@ public class CriticalPathInsertionHeuristic extends AbstractHeuristic {
         return buildSolution();
     }
 
+    /**
+     * adds the selected edges in the order of their colors to selectedEdges
+     */
+    protected void collectSelectedEdges() {
+        for (int edge : color2Edge) {
+            if (edge >= 0)
+                selectedEdges.add(compiledGraph.getLoss(edge));
+        }
+    }
+
     protected FTree buildSolution() {
         if (usedColorList.size()<=0) {
             Fragment bestFrag = null;
@@ -151,7 +160,7 @@ public class CriticalPathInsertionHeuristic extends AbstractHeuristic {
             t.setTreeWeight(bestFrag.getIncomingEdge().getWeight());
             return t;
         }
-        selectedEdges.addAll(color2Edge.valueCollection());
+        collectSelectedEdges();
         selectedEdges.sort(Comparator.comparingInt(a -> a.getTarget().getColor()));
         final Fragment target = selectedEdges.get(0).getTarget();
         final FTree tree = new FTree(target.getFormula(), target.getIonization());
@@ -175,24 +184,24 @@ public class CriticalPathInsertionHeuristic extends AbstractHeuristic {
      SIMPLE CASE: Graph is layered (i.e. no isotope peaks!)
      */
     protected boolean findCriticalPaths() {
-        //System.out.println(".....");
-        //Arrays.fill(criticalPaths, Double.NaN);
+        final CompiledFGraph g = compiledGraph;
         double bestPathScore = 0d;
-        Loss bestLoss = null;
-        for (Loss l : selectableEdges) {
-            final double criticalScore = recomputeCriticalScore(l.getTarget().getVertexId())+l.getWeight() + maxOut[l.getTarget().getVertexId()];
+        int bestLoss = -1;
+        for (int i = 0, n = selectableEdges.size(); i < n; ++i) {
+            final int l = selectableEdges.getQuick(i);
+            final int v = g.getTarget(l);
+            final double criticalScore = recomputeCriticalScore(v) + g.getWeight(l) + maxOut[v];
             if (criticalScore > bestPathScore) {
                 bestPathScore = criticalScore;
                 bestLoss = l;
             }
         }
-        if (bestLoss==null) return false;
-        final Fragment u = bestLoss.getTarget();
-        invalidateColor(u.getColor());
+        if (bestLoss < 0) return false;
+        invalidateColor(g.getColor(g.getTarget(bestLoss)));
         insert(bestLoss);
-        selectableEdges.clear();
+        selectableEdges.clearQuick();
         for (int i=0, n=usedColorList.size(); i < n; ++i) {
-            addSeletableEdgesFor(color2Edge.get(usedColorList.getQuick(i)).getTarget());
+            addSeletableEdgesFor(g.getTarget(color2Edge[usedColorList.getQuick(i)]));
         }
 
         return true;
@@ -201,12 +210,13 @@ public class CriticalPathInsertionHeuristic extends AbstractHeuristic {
     protected double recomputeCriticalScore(int vertexId) {
         if (!Double.isNaN(criticalPaths[vertexId]))
             return criticalPaths[vertexId];
-        final Fragment u = graph.getFragmentAt(vertexId);
+        final CompiledFGraph g = compiledGraph;
         criticalPaths[vertexId] = 0d;
-        for (int i=0, n = u.getOutDegree(); i < n; ++i) {
-            final Loss uv = u.getOutgoingEdge(i);
-            if (!usedColors.get(uv.getTarget().getColor())) {
-                final double weight = recomputeCriticalScore(uv.getTarget().getVertexId()) + uv.getWeight();
+        for (int i=0, n = g.getOutDegree(vertexId); i < n; ++i) {
+            final int uv = g.getOutgoingEdge(vertexId, i);
+            final int v = g.getTarget(uv);
+            if (!usedColors.get(g.getColor(v))) {
+                final double weight = recomputeCriticalScore(v) + g.getWeight(uv);
                 criticalPaths[vertexId] = Math.max(criticalPaths[vertexId], weight);
             }
         }
@@ -214,10 +224,11 @@ public class CriticalPathInsertionHeuristic extends AbstractHeuristic {
     }
 
 
-    protected void addSeletableEdgesFor(Fragment root) {
-        for (int i=0, n = root.getOutDegree(); i < n; ++i) {
-            final Loss l = root.getOutgoingEdge(i);
-            if (!usedColors.get(l.getTarget().getColor())) {
+    protected void addSeletableEdgesFor(int vertexId) {
+        final CompiledFGraph g = compiledGraph;
+        for (int i=0, n = g.getOutDegree(vertexId); i < n; ++i) {
+            final int l = g.getOutgoingEdge(vertexId, i);
+            if (!usedColors.get(g.getColor(g.getTarget(l)))) {
                 selectableEdges.add(l);
             }
         }
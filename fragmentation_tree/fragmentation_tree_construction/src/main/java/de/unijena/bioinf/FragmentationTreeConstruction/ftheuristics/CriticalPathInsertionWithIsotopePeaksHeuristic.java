@@ -31,6 +31,10 @@ public class CriticalPathInsertionWithIsotopePeaksHeuristic extends CriticalPath
         super(graph);
     }
 
+    public CriticalPathInsertionWithIsotopePeaksHeuristic(CompiledFGraph graph) {
+        super(graph);
+    }
+
     @Override
     protected FTree buildSolution() {
         if (usedColorList.size()<=0) {
@@ -44,7 +48,7 @@ public class CriticalPathInsertionWithIsotopePeaksHeuristic extends CriticalPath
             t.setTreeWeight(bestFrag.getIncomingEdge().getWeight());
             return t;
         }
-        selectedEdges.addAll(color2Edge.valueCollection());
+        collectSelectedEdges();
         selectedEdges.sort(Comparator.comparingInt(a -> a.getTarget().getColor()));
         // find root
         for (int i=0; i < selectedEdges.size(); ++i) {
@@ -20,6 +20,7 @@
 
 package de.unijena.bioinf.FragmentationTreeConstruction.ftheuristics.treebuilder;
 
+import de.unijena.bioinf.ChemistryBase.ms.ft.CompiledFGraph;
 import de.unijena.bioinf.ChemistryBase.ms.ft.FGraph;
 import de.unijena.bioinf.ChemistryBase.ms.ft.FTree;
 import de.unijena.bioinf.ChemistryBase.ms.ft.IsotopicMarker;
@@ -37,12 +38,18 @@ public class ExtendedCriticalPathHeuristicTreeBuilder implements TreeBuilder {
 
     @Override
     public Result computeTree(ProcessedInput input, FGraph graph, FluentInterface options) {
+        return computeTree(input, graph.compile(), options);
+    }
+
+    @Override
+    public Result computeTree(ProcessedInput input, CompiledFGraph compiledGraph, FluentInterface options) {
+        final FGraph graph = compiledGraph.getGraph();
         if (graph.getFragmentAnnotationOrNull(IsotopicMarker.class)!=null) {
-            CriticalPathInsertionWithIsotopePeaksHeuristic h = new CriticalPathInsertionWithIsotopePeaksHeuristic(graph);
+            CriticalPathInsertionWithIsotopePeaksHeuristic h = new CriticalPathInsertionWithIsotopePeaksHeuristic(compiledGraph);
             FTree t = h.solve();
             return new Result(t, false, AbortReason.COMPUTATION_CORRECT, h.getGraphMappingBuilder().done(graph,t));
         } else {
-            CriticalPathInsertionHeuristic h = new CriticalPathInsertionHeuristic(graph);
+            CriticalPathInsertionHeuristic h = new CriticalPathInsertionHeuristic(compiledGraph);
             FTree t = h.solve();
             return new Result(t, false, AbortReason.COMPUTATION_CORRECT, h.getGraphMappingBuilder().done(graph,t));
         }
@@ -0,0 +1,152 @@
+package de.unijena.bioinf.FragmentationTreeConstruction.computation.tree.ilp;
+
+import de.unijena.bioinf.ChemistryBase.chem.Ionization;
+import de.unijena.bioinf.ChemistryBase.chem.MolecularFormula;
+import de.unijena.bioinf.ChemistryBase.chem.PeriodicTable;
+import de.unijena.bioinf.ChemistryBase.ms.ft.FGraph;
+import de.unijena.bioinf.ChemistryBase.ms.ft.FTree;
+import de.unijena.bioinf.ChemistryBase.ms.ft.Fragment;
+import de.unijena.bioinf.ChemistryBase.ms.ft.Loss;
+import de.unijena.bioinf.FragmentationTreeConstruction.computation.tree.TreeBuilder;
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class BranchAndBoundSolverTest {
+
+    private static FGraph graph() {
+        final FGraph graph = new FGraph();
+        final Ionization ion = PeriodicTable.getInstance().neutralIonization();
+        final Fragment a = graph.addRootVertex(MolecularFormula.parseOrThrow("C10H10"), ion);
+        a.setColor(0);
+        graph.getRoot().getOutgoingEdge(0).setWeight(1d);
+        final Fragment b = graph.addFragment(MolecularFormula.parseOrThrow("C8H8"), ion);
+        b.setColor(1);
+        final Fragment c = graph.addFragment(MolecularFormula.parseOrThrow("C7H7"), ion);
+        c.setColor(2);
+        final Fragment d = graph.addFragment(MolecularFormula.parseOrThrow("C5H5"), ion);
+        d.setColor(3);
+        final Fragment e = graph.addFragment(MolecularFormula.parseOrThrow("C4H4"), ion);
+        e.setColor(3);
+        graph.addLoss(a, b).setWeight(-1d);
+        graph.addLoss(a, c).setWeight(2d);
+        graph.addLoss(b, d).setWeight(5d);
+        graph.addLoss(c, e).setWeight(1d);
+        return graph;
+    }
+
+    @Test
+    public void testOptimalTree() {
+        final TreeBuilder builder = new AbstractTreeBuilder<>(BranchAndBoundSolver.Factory);
+        // the edge with negative weight has to be used to reach the best fragment
+        final TreeBuilder.Result result = builder.computeTree().solve(null, graph());
+        final FTree tree = result.tree;
+        assertTrue(result.isOptimal);
+        assertEquals(7d, tree.getTreeWeight(), 1e-9);
+        assertEquals(4, tree.numberOfVertices());
+        assertTrue(contains(tree, "C5H5"));
+        assertFalse(contains(tree, "C4H4"));
+
+        final TreeBuilder.Result parallel = builder.computeTree().withMultithreading(2).solve(null, graph());
+        assertEquals(7d, parallel.tree.getTreeWeight(), 1e-9);
+    }
+
+    private static boolean contains(FTree tree, String formula) {
+        return tree.getFragments().stream().anyMatch(f -> f.getFormula().equals(MolecularFormula.parseOrThrow(formula)));
+    }
+
+    @Test
+    public void testMinimalScore() {
+        final TreeBuilder builder = new AbstractTreeBuilder<>(BranchAndBoundSolver.Factory);
+        final TreeBuilder.Result result = builder.computeTree().withMinimalScore(8d).solve(null, graph());
+        assertNull(result.tree);
+        assertEquals(TreeBuilder.AbortReason.INFEASIBLE, result.error);
+    }
+
+    /*
+        random graph with one or two tree roots. Vertices are topologically ordered by their ids. If sortedColors is
+        false, colors are assigned randomly, so edges between colors may contain cycles. Edges between vertices of
+        the same color are allowed in both cases.
+     */
+    private static FGraph randomGraph(Random r, int nvertices, boolean sortedColors) {
+        final FGraph graph = new FGraph();
+        final Ionization ion = PeriodicTable.getInstance().neutralIonization();
+        final int ncolors = 2 + r.nextInt(nvertices - 1);
+        final Fragment[] fragments = new Fragment[nvertices];
+        final int nroots = 1 + r.nextInt(2);
+        for (int i = 0; i < nvertices; ++i) {
+            // the formula of a vertex is a subformula of the formulas of all vertices before it
+            final MolecularFormula formula = MolecularFormula.parseOrThrow("C" + (nvertices + 1 - i) + "H" + (2 * (nvertices - i) + 2));
+            fragments[i] = i < nroots ? graph.addRootVertex(formula, ion) : graph.addFragment(formula, ion);
+            fragments[i].setColor(sortedColors ? (i < nroots ? i : Math.max(nroots, i * ncolors / nvertices)) : r.nextInt(ncolors));
+            if (i < nroots) {
+                fragments[i].getIncomingEdge().setWeight(2 * r.nextDouble() - 1);
+            } else {
+                for (int j = 0; j < i; ++j)
+                    if (j == i - 1 || r.nextDouble() < 0.3)
+                        graph.addLoss(fragments[j], fragments[i]).setWeight(6 * r.nextDouble() - 3);
+            }
+        }
+        return graph;
+    }
+
+    /*
+        enumerates all vertex sets: for a fixed set and tree root, each other vertex takes its best incoming edge
+        from the set. As the graph is acyclic, this is a tree if every vertex has such an edge.
+     */
+    private static double exhaustiveSearch(FGraph graph) {
+        final int n = graph.numberOfVertices() - 1;
+        double best = Double.NEGATIVE_INFINITY;
+        for (int set = 1; set < (1 << n); ++set) {
+            final boolean[] colors = new boolean[graph.maxColor() + 1];
+            boolean colorful = true;
+            for (int v = 0; v < n && colorful; ++v) {
+                if ((set & (1 << v)) == 0) continue;
+                final int c = graph.getFragmentAt(v + 1).getColor();
+                colorful = !colors[c];
+                colors[c] = true;
+            }
+            if (!colorful) continue;
+            for (Loss rootEdge : graph.getRoot().getOutgoingEdges()) {
+                final int root = rootEdge.getTarget().getVertexId() - 1;
+                if ((set & (1 << root)) == 0) continue;
+                double score = rootEdge.getWeight();
+                for (int v = 0; v < n && score > Double.NEGATIVE_INFINITY; ++v) {
+                    if (v == root || (set & (1 << v)) == 0) continue;
+                    double bestIn = Double.NEGATIVE_INFINITY;
+                    for (Loss l : graph.getFragmentAt(v + 1).getIncomingEdges()) {
+                        final int u = l.getSource().getVertexId() - 1;
+                        if (u >= 0 && (set & (1 << u)) != 0) bestIn = Math.max(bestIn, l.getWeight());
+                    }
+                    score += bestIn;
+                }
+                best = Math.max(best, score);
+            }
+        }
+        return best;
+    }
+
+    @Test
+    public void testRandomGraphsMatchExhaustiveSearch() {
+        final TreeBuilder builder = new AbstractTreeBuilder<>(BranchAndBoundSolver.Factory);
+        final Random r = new Random(11);
+        for (int k = 0; k < 300; ++k) {
+            final FGraph graph = randomGraph(r, 3 + r.nextInt(12), k % 3 != 0);
+            final double expected = exhaustiveSearch(graph);
+            final TreeBuilder.Result result = builder.computeTree().solve(null, graph);
+            assertTrue(result.isOptimal);
+            assertEquals(expected, result.tree.getTreeWeight(), 1e-9);
+            assertColorful(graph, result.tree);
+            final TreeBuilder.Result parallel = builder.computeTree().withMultithreading(4).solve(null, graph);
+            assertEquals(expected, parallel.tree.getTreeWeight(), 1e-9);
+            assertColorful(graph, parallel.tree);
+        }
+    }
+
+    // formulas are unique within the random graphs, so the colors are taken from the graph vertices
+    private static void assertColorful(FGraph graph, FTree tree) {
+        assertEquals(tree.numberOfVertices(), tree.getFragments().stream().mapToInt(f -> graph.getFragments().stream().filter(g -> g.getFormula().equals(f.getFormula())).findFirst().get().getColor()).distinct().count());
+    }
+}
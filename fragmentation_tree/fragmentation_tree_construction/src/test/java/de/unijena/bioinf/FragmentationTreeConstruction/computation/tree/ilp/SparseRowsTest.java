@@ -0,0 +1,48 @@
+package de.unijena.bioinf.FragmentationTreeConstruction.computation.tree.ilp;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class SparseRowsTest {
+
+    @Test
+    public void testBackingArraysAreNotCopied() {
+        final SparseRows rows = new SparseRows();
+        for (int r = 0; r < 1000; ++r) {
+            for (int k = 0; k <= r % 5; ++k) rows.add(r + k, k + 0.5);
+            rows.finishRow(-r, r);
+        }
+        assertEquals(1000, rows.numberOfRows());
+        assertSame(rows.getRowStarts(), rows.getRowStarts());
+        assertSame(rows.getElements(), rows.getElements());
+        assertTrue(rows.getRowStarts().length > rows.numberOfRows());
+        assertTrue(rows.getIndices().length >= rows.numberOfEntries());
+        assertEquals(rows.numberOfEntries(), rows.getRowStarts()[rows.numberOfRows()]);
+        for (int r = 0; r < 1000; ++r) {
+            final int start = rows.getRowStarts()[r];
+            assertEquals(r % 5 + 1, rows.getRowStarts()[r + 1] - start);
+            assertEquals(r, rows.getIndices()[start]);
+            assertEquals(0.5, rows.getElements()[start], 0d);
+            assertEquals(-r, rows.getLowerBounds()[r], 0d);
+            assertEquals(r, rows.getUpperBounds()[r], 0d);
+        }
+    }
+
+    @Test
+    public void testPoolIsCapped() {
+        final SparseRows small = SparseRows.forCurrentThread();
+        small.add(0, 1d);
+        small.finishRow(0d, 1d);
+        assertSame(small, SparseRows.forCurrentThread());
+        assertEquals(0, small.numberOfRows());
+        assertEquals(0, small.numberOfEntries());
+
+        for (int k = 0; k <= SparseRows.MAX_POOLED_ENTRIES; ++k) small.add(k, 1d);
+        small.finishRow(0d, 1d);
+        final SparseRows fresh = SparseRows.forCurrentThread();
+        assertNotSame(small, fresh);
+        assertTrue(fresh.getIndices().length <= SparseRows.MAX_POOLED_ENTRIES);
+        assertSame(fresh, SparseRows.forCurrentThread());
+    }
+}
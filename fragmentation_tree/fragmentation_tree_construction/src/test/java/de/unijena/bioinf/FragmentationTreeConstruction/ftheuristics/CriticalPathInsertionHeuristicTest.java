@@ -0,0 +1,228 @@
+package de.unijena.bioinf.FragmentationTreeConstruction.ftheuristics;
+
+import de.unijena.bioinf.ChemistryBase.chem.Ionization;
+import de.unijena.bioinf.ChemistryBase.chem.MolecularFormula;
+import de.unijena.bioinf.ChemistryBase.chem.PeriodicTable;
+import de.unijena.bioinf.ChemistryBase.ms.ft.FGraph;
+import de.unijena.bioinf.ChemistryBase.ms.ft.FTree;
+import de.unijena.bioinf.ChemistryBase.ms.ft.Fragment;
+import de.unijena.bioinf.ChemistryBase.ms.ft.Loss;
+import gnu.trove.list.array.TIntArrayList;
+import gnu.trove.map.hash.TIntObjectHashMap;
+import org.junit.Test;
+
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+public class CriticalPathInsertionHeuristicTest {
+
+    /*
+        random graph with a single root: vertices are added in the order of their colors and every vertex has at least
+        one incoming edge from a vertex with smaller color, so the graph is connected and topologically ordered
+     */
+    private static FGraph randomGraph(Random r) {
+        final FGraph graph = new FGraph();
+        final Ionization ion = PeriodicTable.getInstance().neutralIonization();
+        final int ncolors = 2 + r.nextInt(25);
+        final int nvertices = ncolors + r.nextInt(3 * ncolors);
+        final int[] colors = new int[nvertices];
+        for (int i = 1; i < nvertices; ++i) colors[i] = 1 + r.nextInt(ncolors - 1);
+        Arrays.sort(colors);
+        final Fragment[] fragments = new Fragment[nvertices];
+        // the formula of a vertex is a subformula of the formulas of all vertices before it
+        fragments[0] = graph.addRootVertex(MolecularFormula.parseOrThrow("C" + (nvertices + 1) + "H" + (2 * nvertices + 2)), ion);
+        fragments[0].setColor(0);
+        graph.getRoot().getOutgoingEdge(0).setWeight(r.nextDouble());
+        for (int i = 1; i < nvertices; ++i) {
+            fragments[i] = graph.addFragment(MolecularFormula.parseOrThrow("C" + (nvertices + 1 - i) + "H" + (2 * (nvertices - i) + 2)), ion);
+            fragments[i].setColor(colors[i]);
+            final ArrayList<Fragment> parents = new ArrayList<>();
+            for (int j = 0; j < i && colors[j] < colors[i]; ++j) parents.add(fragments[j]);
+            Collections.shuffle(parents, r);
+            final int indegree = 1 + r.nextInt(Math.min(parents.size(), 4));
+            for (int k = 0; k < indegree; ++k)
+                graph.addLoss(parents.get(k), fragments[i]).setWeight(6 * r.nextDouble() - 3);
+        }
+        assertTrue(graph.isConnectedGraph());
+        return graph;
+    }
+
+    @Test
+    public void testSameTreesAsObjectBasedHeuristic() {
+        final Random r = new Random(42);
+        for (int k = 0; k < 500; ++k) {
+            final FGraph graph = randomGraph(r);
+            final FTree expected = new ObjectBasedHeuristic(graph).solve();
+            assertSameTree(expected, new CriticalPathInsertionHeuristic(graph).solve());
+            assertSameTree(expected, new CriticalPathInsertionHeuristic(graph.compile()).solve());
+        }
+    }
+
+    private static void assertSameTree(FTree expected, FTree actual) {
+        assertEquals(expected.getRoot().getFormula(), actual.getRoot().getFormula());
+        assertEquals(expected.getTreeWeight(), actual.getTreeWeight(), 1e-9);
+        assertEquals(edges(expected), edges(actual));
+    }
+
+    private static Map<String, Double> edges(FTree tree) {
+        final HashMap<String, Double> edges = new HashMap<>();
+        for (Loss l : tree.losses())
+            edges.put(l.getSource().getFormula() + " -> " + l.getTarget().getFormula(), l.getWeight());
+        return edges;
+    }
+
+    /*
+        the heuristic as it was implemented before it worked on the compiled graph: vertices and edges are
+        Fragment and Loss objects and the selected edges are stored in a hash map
+     */
+    private static class ObjectBasedHeuristic extends AbstractHeuristic {
+
+        protected BitSet usedColors;
+        protected ArrayList<Loss> selectableEdges;
+        protected double[] criticalPaths;
+        protected final TIntObjectHashMap<Loss> color2Edge;
+        protected final TIntArrayList usedColorList;
+
+        protected final double[] maxOut;
+
+        private ObjectBasedHeuristic(FGraph graph) {
+            super(graph);
+            this.usedColors = new BitSet(ncolors+1);
+            this.selectableEdges = new ArrayList<Loss>(ncolors+1);
+            this.criticalPaths = new double[graph.numberOfVertices()];
+            color2Edge = new TIntObjectHashMap<>(ncolors, 0.75f, -1);
+            Arrays.fill(criticalPaths, Double.NaN);
+            this.maxOut = new double[graph.numberOfVertices()];
+            usedColorList = new TIntArrayList(ncolors);
+        }
+
+        private void insert(Loss maxLoss) {
+            final Fragment newVertex = maxLoss.getTarget();
+            usedColors.set(newVertex.getColor());
+            usedColorList.add(newVertex.getColor());
+            color2Edge.put(newVertex.getColor(), maxLoss);
+            for (int i = 0, n = newVertex.getOutDegree(); i < n; ++i) {
+                final Loss l = newVertex.getOutgoingEdge(i);
+                final Fragment w = l.getTarget();
+                final Loss xw = color2Edge.get(w.getColor());
+                if (xw != null) {
+                    if (xw.getTarget() == w && xw.getWeight() < l.getWeight()) {
+                        color2Edge.put(w.getColor(), l);
+                        for (int j = 0, m = w.getInDegree(); j < m; ++j) {
+                            final Fragment z = w.getIncomingEdge(j).getSource();
+                            final int zid = z.getVertexId();
+                            if (maxOut[zid] > Double.NEGATIVE_INFINITY) {
+                                if (usedColors.get(z.getColor())) {
+                                    maxOut[zid]=Double.NEGATIVE_INFINITY;
+                                } else {
+                                    maxOut[zid] = Math.max(0, maxOut[zid] + xw.getWeight() - l.getWeight());
+                                }
+                            }
+                        }
+                    }
+                }
+            }
+            for (int i=0, n = newVertex.getInDegree(); i < n; ++i) {
+                final Loss yv = newVertex.getIncomingEdge(i);
+                if (yv.getWeight() > maxLoss.getWeight()) {
+                    maxOut[yv.getSource().getVertexId()] += yv.getWeight()-maxLoss.getWeight();
+                }
+            }
+        }
+
+        private void initialize() {
+            final Loss rootLoss = graph.getRoot().getOutgoingEdge(0);
+            final Fragment root = rootLoss.getTarget();
+            maxOut[root.getVertexId()] = Double.NEGATIVE_INFINITY;
+            usedColors.set(root.getColor());
+            usedColorList.add(root.getColor());
+            color2Edge.put(root.getColor(), rootLoss);
+            addSeletableEdgesFor(root);
+        }
+
+        protected void invalidateColor(int color) {
+            final Fragment pseudoFragment = new Fragment(0,null, null);
+            pseudoFragment.setColor(color);
+            int searchKey = Collections.binarySearch(graph.getFragments(), pseudoFragment, Comparator.comparingInt(Fragment::getColor));
+            if (searchKey < 0) {
+                searchKey = -(searchKey+1);
+            } else {
+                while (searchKey< graph.numberOfVertices() && graph.getFragmentAt(searchKey).getColor() == color)
+                    ++searchKey;
+            }
+            Arrays.fill(criticalPaths, 0, searchKey, Double.NaN);
+        }
+
+        public FTree solve() {
+            initialize();
+            while (findCriticalPaths()) {
+
+            }
+            return buildSolution();
+        }
+
+        protected FTree buildSolution() {
+            selectedEdges.addAll(color2Edge.valueCollection());
+            selectedEdges.sort(Comparator.comparingInt(a -> a.getTarget().getColor()));
+            final Fragment target = selectedEdges.get(0).getTarget();
+            final FTree tree = new FTree(target.getFormula(), target.getIonization());
+            final HashMap<MolecularFormula, Fragment> fragmentsByFormula = new HashMap<>();
+            fragmentsByFormula.put(tree.getRoot().getFormula(), tree.getRoot());
+            double score = selectedEdges.get(0).getWeight();
+            for (int i=1; i < selectedEdges.size(); ++i) {
+                final Loss L = selectedEdges.get(i);
+                final Fragment f = tree.addFragment(fragmentsByFormula.get(L.getSource().getFormula()), L.getTarget());
+                f.getIncomingEdge().setWeight(L.getWeight());
+                fragmentsByFormula.put(f.getFormula(), f);
+                score += L.getWeight();
+            }
+            tree.setTreeWeight(score);
+            return tree;
+        }
+
+        protected boolean findCriticalPaths() {
+            double bestPathScore = 0d;
+            Loss bestLoss = null;
+            for (Loss l : selectableEdges) {
+                final double criticalScore = recomputeCriticalScore(l.getTarget().getVertexId())+l.getWeight() + maxOut[l.getTarget().getVertexId()];
+                if (criticalScore > bestPathScore) {
+                    bestPathScore = criticalScore;
+                    bestLoss = l;
+                }
+            }
+            if (bestLoss==null) return false;
+            invalidateColor(bestLoss.getTarget().getColor());
+            insert(bestLoss);
+            selectableEdges.clear();
+            for (int i=0, n=usedColorList.size(); i < n; ++i) {
+                addSeletableEdgesFor(color2Edge.get(usedColorList.getQuick(i)).getTarget());
+            }
+            return true;
+        }
+
+        protected double recomputeCriticalScore(int vertexId) {
+            if (!Double.isNaN(criticalPaths[vertexId]))
+                return criticalPaths[vertexId];
+            final Fragment u = graph.getFragmentAt(vertexId);
+            criticalPaths[vertexId] = 0d;
+            for (int i=0, n = u.getOutDegree(); i < n; ++i) {
+                final Loss uv = u.getOutgoingEdge(i);
+                if (!usedColors.get(uv.getTarget().getColor())) {
+                    final double weight = recomputeCriticalScore(uv.getTarget().getVertexId()) + uv.getWeight();
+                    criticalPaths[vertexId] = Math.max(criticalPaths[vertexId], weight);
+                }
+            }
+            return criticalPaths[vertexId];
+        }
+
+        protected void addSeletableEdgesFor(Fragment root) {
+            for (int i=0, n = root.getOutDegree(); i < n; ++i) {
+                final Loss l = root.getOutgoingEdge(i);
+                if (!usedColors.get(l.getTarget().getColor())) {
+                    selectableEdges.add(l);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,64 @@
+package de.unijena.bioinf.FragmentationTreeConstruction.computation.tree.ilp;
+
+import de.unijena.bioinf.ChemistryBase.chem.Ionization;
+import de.unijena.bioinf.ChemistryBase.chem.MolecularFormula;
+import de.unijena.bioinf.ChemistryBase.chem.PeriodicTable;
+import de.unijena.bioinf.ChemistryBase.ms.ft.FGraph;
+import de.unijena.bioinf.ChemistryBase.ms.ft.Fragment;
+import de.unijena.bioinf.FragmentationTreeConstruction.computation.tree.TreeBuilder;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class CLPSolverTest {
+
+    /*
+        random colorful graph with a single root: vertices are added in the order of their colors and every vertex
+        has at least one incoming edge from a vertex with smaller color
+     */
+    private static FGraph randomGraph(Random r, int ncolors) {
+        final FGraph graph = new FGraph();
+        final Ionization ion = PeriodicTable.getInstance().neutralIonization();
+        final int nvertices = ncolors + r.nextInt(2 * ncolors);
+        final int[] colors = new int[nvertices];
+        for (int i = 1; i < nvertices; ++i) colors[i] = 1 + r.nextInt(ncolors - 1);
+        Arrays.sort(colors);
+        final Fragment[] fragments = new Fragment[nvertices];
+        fragments[0] = graph.addRootVertex(MolecularFormula.parseOrThrow("C" + (nvertices + 1) + "H" + (2 * nvertices + 2)), ion);
+        fragments[0].setColor(0);
+        graph.getRoot().getOutgoingEdge(0).setWeight(r.nextDouble());
+        for (int i = 1; i < nvertices; ++i) {
+            fragments[i] = graph.addFragment(MolecularFormula.parseOrThrow("C" + (nvertices + 1 - i) + "H" + (2 * (nvertices - i) + 2)), ion);
+            fragments[i].setColor(colors[i]);
+            final ArrayList<Fragment> parents = new ArrayList<>();
+            for (int j = 0; j < i && colors[j] < colors[i]; ++j) parents.add(fragments[j]);
+            Collections.shuffle(parents, r);
+            final int indegree = 1 + r.nextInt(Math.min(parents.size(), 4));
+            for (int k = 0; k < indegree; ++k)
+                graph.addLoss(parents.get(k), fragments[i]).setWeight(6 * r.nextDouble() - 3);
+        }
+        return graph;
+    }
+
+    @Test
+    public void testReusedRowBuffersGiveSameTreesAsGLPK() {
+        final TreeBuilder clp = new AbstractTreeBuilder<>(CLPSolver.Factory);
+        final TreeBuilder glpk = new AbstractTreeBuilder<>(GLPKSolver.Factory);
+        final Random r = new Random(7);
+        // all graphs are solved in the same thread, so CLP reuses the row buffers of the previous graphs. Graphs
+        // get smaller, so the buffers always contain stale entries behind the current rows.
+        for (int ncolors = 30; ncolors >= 3; --ncolors) {
+            final FGraph graph = randomGraph(r, ncolors);
+            final TreeBuilder.Result expected = glpk.computeTree().solve(null, graph);
+            final TreeBuilder.Result actual = clp.computeTree().solve(null, graph);
+            assertEquals(TreeBuilder.AbortReason.COMPUTATION_CORRECT, actual.error);
+            assertEquals(expected.tree.getTreeWeight(), actual.tree.getTreeWeight(), 1e-6);
+            assertEquals(expected.tree.numberOfVertices(), actual.tree.numberOfVertices());
+        }
+    }
+}
@@ -33,4 +33,25 @@ import java.util.Iterator;
  */
 public interface CloseableIterator<T> extends Iterator<T>, Closeable, AutoCloseable {
 
+    /**
+     * Wraps an ordinary iterator. Closing the returned iterator has no effect.
+     */
+    static <T> CloseableIterator<T> of(Iterator<T> iterator) {
+        return new CloseableIterator<T>() {
+            @Override
+            public boolean hasNext() {
+                return iterator.hasNext();
+            }
+
+            @Override
+            public T next() {
+                return iterator.next();
+            }
+
+            @Override
+            public void close() {
+            }
+        };
+    }
+
 }
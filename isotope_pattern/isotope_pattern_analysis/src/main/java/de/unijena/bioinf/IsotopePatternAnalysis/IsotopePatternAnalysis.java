@@ -32,6 +32,7 @@ import de.unijena.bioinf.ChemistryBase.ms.ft.Ms1IsotopePattern;
 import de.unijena.bioinf.ChemistryBase.ms.utils.SimpleMutableSpectrum;
 import de.unijena.bioinf.ChemistryBase.ms.utils.SimpleSpectrum;
 import de.unijena.bioinf.ChemistryBase.ms.utils.Spectrums;
+import de.unijena.bioinf.IsotopePatternAnalysis.generation.CachedIsotopePatternGenerator;
 import de.unijena.bioinf.IsotopePatternAnalysis.generation.FastIsotopePatternGenerator;
 import de.unijena.bioinf.IsotopePatternAnalysis.generation.IsotopePatternGenerator;
 import de.unijena.bioinf.IsotopePatternAnalysis.scoring.IsotopePatternScorer;
@@ -41,15 +42,12 @@ import de.unijena.bioinf.MassDecomposer.Chemistry.DecomposerCache;
 import de.unijena.bioinf.sirius.ProcessedInput;
 
 import java.util.*;
+import java.util.concurrent.ExecutionException;
 import java.util.stream.Collectors;
 
-import static de.unijena.bioinf.ChemistryBase.ms.utils.Spectrums.addOffset;
-import static de.unijena.bioinf.ChemistryBase.ms.utils.Spectrums.normalize;
-
 public class IsotopePatternAnalysis implements Parameterized {
 
     public static final String ANALYZER_NAME = "IsotopePatternAnalysis";
-    private static final boolean USE_ALWAYS_THE_COMPLETE_PATTERN = false;
 
     private List<IsotopePatternScorer> isotopePatternScorers;
     private double intensityOffset;
@@ -109,7 +107,7 @@ public class IsotopePatternAnalysis implements Parameterized {
         this.decomposer = new DecomposerCache();
         this.isotopicDistribution = PeriodicTable.getInstance().getDistribution();
         this.intensityOffset = 0d;
-        this.patternGenerator = new FastIsotopePatternGenerator(isotopicDistribution, Normalization.Max(1d));
+        this.patternGenerator = new CachedIsotopePatternGenerator(new FastIsotopePatternGenerator(isotopicDistribution, Normalization.Max(1d)));
     }
 
     public static IsotopePatternAnalysis defaultAnalyzer() {
@@ -191,26 +189,37 @@ public class IsotopePatternAnalysis implements Parameterized {
     }
 
     public boolean computeAndScoreIsotopePattern(ProcessedInput input) {
+        final IsotopePatternScoringJob job = makeIsotopePatternScoringJob(input);
+        if (job == null) return false;
+        try {
+            job.score(1);
+        } catch (InterruptedException | ExecutionException e) {
+            throw new RuntimeException(e);
+        }
+        return true;
+    }
+
+    /**
+     * Creates a job scoring all decompositions of the isotope pattern of the input, for each possible ionization.
+     * When finished, the job annotates the input with the {@link ExtractedIsotopePattern}.
+     * @return the scoring job or null, if the input has no isotope pattern
+     */
+    public IsotopePatternScoringJob makeIsotopePatternScoringJob(ProcessedInput input) {
         final Ms1IsotopePattern pattern = input.getAnnotation(Ms1IsotopePattern.class, Ms1IsotopePattern::none);
-        if (!pattern.isEmpty()) {
-            final HashMap<MolecularFormula, IsotopePattern> explanations = new HashMap<>();
-            final SimpleSpectrum spec = pattern.getSpectrum();
-            final MS1MassDeviation massDev = input.getAnnotationOrDefault(MS1MassDeviation.class);
-            final PossibleAdducts ionModes = input.getAnnotationOrDefault(PossibleAdducts.class);
-            final FormulaConstraints constraints = input.getAnnotationOrDefault(FormulaConstraints.class);
-            for (IonMode ionMode : ionModes.getIonModes()) {
-                List<MolecularFormula> formulas = decomposer.getDecomposer(constraints.getChemicalAlphabet()).decomposeToFormulas(pattern.getPeaks()[0].getMass(), ionMode, massDev.allowedMassDeviation, constraints);
-                PrecursorIonType precursorIonType = input.getExperimentInformation().getPrecursorIonType();
-                if (!precursorIonType.hasNeitherAdductNorInsource()) {
-                    formulas=formulas.stream().filter(f->precursorIonType.measuredNeutralMoleculeToNeutralMolecule(f).isAllPositiveOrZero()).collect(Collectors.toList());
-                }
-                for (IsotopePattern pat : scoreFormulas(spec, formulas, input.getExperimentInformation(), PrecursorIonType.getPrecursorIonType(ionMode))) {
-                    explanations.put(pat.getCandidate(), pat);
-                }
+        if (pattern.isEmpty()) return null;
+        final IsotopePatternScoringJob job = new IsotopePatternScoringJob(this, pattern.getSpectrum(), input.getExperimentInformation(), input);
+        final MS1MassDeviation massDev = input.getAnnotationOrDefault(MS1MassDeviation.class);
+        final PossibleAdducts ionModes = input.getAnnotationOrDefault(PossibleAdducts.class);
+        final FormulaConstraints constraints = input.getAnnotationOrDefault(FormulaConstraints.class);
+        final PrecursorIonType precursorIonType = input.getExperimentInformation().getPrecursorIonType();
+        for (IonMode ionMode : ionModes.getIonModes()) {
+            List<MolecularFormula> formulas = decomposer.getDecomposer(constraints.getChemicalAlphabet()).decomposeToFormulas(pattern.getPeaks()[0].getMass(), ionMode, massDev.allowedMassDeviation, constraints);
+            if (!precursorIonType.hasNeitherAdductNorInsource()) {
+                formulas=formulas.stream().filter(f->precursorIonType.measuredNeutralMoleculeToNeutralMolecule(f).isAllPositiveOrZero()).collect(Collectors.toList());
             }
-            input.setAnnotation(ExtractedIsotopePattern.class, new ExtractedIsotopePattern(spec, explanations));
-            return true;
-        } else return false;
+            job.addCandidates(PrecursorIonType.getPrecursorIonType(ionMode), formulas);
+        }
+        return job;
     }
 
     public List<IsotopePattern> deisotope(Ms2Experiment experiment, List<MolecularFormula> formulas) {
@@ -255,58 +264,11 @@ public class IsotopePatternAnalysis implements Parameterized {
     }
 
     public List<IsotopePattern> scoreFormulas(SimpleSpectrum extractedSpectrum, List<MolecularFormula> formulas, Ms2Experiment experiment, PrecursorIonType ion) {
-        final double cutoff = experiment.getAnnotationOrDefault(IsotopicIntensitySettings.class).minimalIntensityToConsider;
-        final SimpleMutableSpectrum spec = new SimpleMutableSpectrum(extractedSpectrum);
-        normalize(spec, Normalization.Sum(1d));
-        if (intensityOffset != 0d) {
-            addOffset(spec, 0d, intensityOffset);
-            normalize(spec, Normalization.Sum(1d));
-        }
-
-        if (spec.getIntensityAt(0) < cutoff) {
-            //intensity of first peak is below cutoff, cannot score
-            return new ArrayList<>();
-        }
-        while (spec.getIntensityAt(spec.size() - 1) < cutoff) spec.removePeakAt(spec.size() - 1);
-        normalize(spec, Normalization.Max(1));
-        final Spectrum<Peak> measuredSpectrum = new SimpleSpectrum(spec);
-        final ArrayList<IsotopePattern> patterns = new ArrayList<>(formulas.size());
-        final SimpleSpectrum[] allPatternVariants = new SimpleSpectrum[measuredSpectrum.size()];
-        {
-            final SimpleMutableSpectrum mut = new SimpleMutableSpectrum(allPatternVariants.length);
-            for (int k = 0; k < allPatternVariants.length; ++k) {
-                mut.addPeak(measuredSpectrum.getMzAt(k), measuredSpectrum.getIntensityAt(k));
-                allPatternVariants[k] = new SimpleSpectrum(mut);
-            }
-        }
-        int k = 0;
-        final double[] scoreBuffer = new double[allPatternVariants.length];
-        for (MolecularFormula formula : formulas) {
-            Arrays.fill(scoreBuffer, 0d);
-            final MolecularFormula f = ion.neutralMoleculeToMeasuredNeutralMolecule(formula);
-            Spectrum<Peak> measuredOne = measuredSpectrum;
-            Spectrum<Peak> theoreticalSpectrum = patternGenerator.simulatePattern(f, ion.getIonization());
-            if (theoreticalSpectrum.size() == 0) continue;
-            if (theoreticalSpectrum.size() > 10)
-                theoreticalSpectrum = Spectrums.getNormalizedSpectrum(Spectrums.subspectrum(theoreticalSpectrum, 0, 10), Normalization.Max(1d));
-            if (measuredSpectrum.size() > theoreticalSpectrum.size())
-                measuredOne = Spectrums.getNormalizedSpectrum(Spectrums.subspectrum(measuredSpectrum, 0, theoreticalSpectrum.size()), Normalization.Max(1d));
-            for (IsotopePatternScorer scorer : isotopePatternScorers) {
-                scorer.score(scoreBuffer, measuredOne, theoreticalSpectrum, Normalization.Max(1), experiment);
-            }
-            int optScoreIndex;
-            if (USE_ALWAYS_THE_COMPLETE_PATTERN) {
-                optScoreIndex = scoreBuffer.length-1;
-            } else {
-                optScoreIndex = 0;
-                for (int j = 0; j < scoreBuffer.length; ++j) {
-                    if (scoreBuffer[j] > scoreBuffer[optScoreIndex]) optScoreIndex = j;
-                }
-            }
-            patterns.add(new IsotopePattern(formula, scoreBuffer[optScoreIndex], allPatternVariants[optScoreIndex]));
+        try {
+            return new IsotopePatternScoringJob(this, extractedSpectrum, experiment).addCandidates(ion, formulas).score(1);
+        } catch (InterruptedException | ExecutionException e) {
+            throw new RuntimeException(e);
         }
-        patterns.sort(Comparator.reverseOrder());
-        return patterns;
     }
 
 
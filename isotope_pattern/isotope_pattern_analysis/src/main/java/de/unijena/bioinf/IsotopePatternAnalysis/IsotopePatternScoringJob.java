@@ -0,0 +1,304 @@
+/*
+ *
+ *  This file is part of the SIRIUS library for analyzing MS and MS/MS data
+ *
+ *  Copyright (C) 2013-2020 Kai Dührkop, Markus Fleischauer, Marcus Ludwig, Martin A. Hoffman and Sebastian Böcker,
+ *  Chair of Bioinformatics, Friedrich-Schilller University.
+ *
+ *  This library is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public
+ *  License as published by the Free Software Foundation; either
+ *  version 3 of the License, or (at your option) any later version.
+ *
+ *  This library is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License along with SIRIUS. If not, see <https://www.gnu.org/licenses/lgpl-3.0.txt>
+ */
+
+package de.unijena.bioinf.IsotopePatternAnalysis;
+
+import de.unijena.bioinf.ChemistryBase.chem.MolecularFormula;
+import de.unijena.bioinf.ChemistryBase.chem.PrecursorIonType;
+import de.unijena.bioinf.ChemistryBase.ms.Ms2Experiment;
+import de.unijena.bioinf.ChemistryBase.ms.Normalization;
+import de.unijena.bioinf.ChemistryBase.ms.Peak;
+import de.unijena.bioinf.ChemistryBase.ms.Spectrum;
+import de.unijena.bioinf.ChemistryBase.ms.utils.SimpleMutableSpectrum;
+import de.unijena.bioinf.ChemistryBase.ms.utils.SimpleSpectrum;
+import de.unijena.bioinf.ChemistryBase.ms.utils.Spectrums;
+import de.unijena.bioinf.IsotopePatternAnalysis.generation.IsotopePatternGenerator;
+import de.unijena.bioinf.IsotopePatternAnalysis.scoring.IsotopePatternScorer;
+import de.unijena.bioinf.IsotopePatternAnalysis.scoring.PreparedIsotopePatternScorer;
+import de.unijena.bioinf.jjobs.BasicJJob;
+import de.unijena.bioinf.jjobs.BasicMasterJJob;
+import de.unijena.bioinf.sirius.ProcessedInput;
+
+import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.DoubleAccumulator;
+
+import static de.unijena.bioinf.ChemistryBase.ms.utils.Spectrums.addOffset;
+import static de.unijena.bioinf.ChemistryBase.ms.utils.Spectrums.normalize;
+
+/**
+ * Scores the candidate formulas of one or more ionizations against an extracted isotope pattern. The candidates are
+ * split into contiguous chunks which are scored in parallel, each chunk using the scorers of the
+ * {@link IsotopePatternAnalysis} prepared once for the measured pattern ({@link PreparedIsotopePatternScorer}).
+ * <p>
+ * If a maximal number of candidates is set, a candidate is skipped without simulating its pattern as soon as the
+ * upper bound derived from its monoisotopic peak is below the score of the worst candidate retained so far.
+ * The result is sorted by score, best first.
+ */
+public class IsotopePatternScoringJob extends BasicMasterJJob<List<IsotopePattern>> {
+
+    /**
+     * chunks smaller than this are not worth a separate job
+     */
+    private static final int MIN_CANDIDATES_PER_JOB = 500;
+    private static final int MAX_THEORETICAL_PEAKS = 10;
+
+    private final IsotopePatternAnalysis analysis;
+    private final SimpleSpectrum extractedSpectrum;
+    private final Ms2Experiment experiment;
+    private final ProcessedInput input;
+    private final List<PrecursorIonType> ionTypes;
+    private final List<List<MolecularFormula>> candidates;
+    private int maximalNumberOfCandidates;
+
+    public IsotopePatternScoringJob(IsotopePatternAnalysis analysis, SimpleSpectrum extractedSpectrum, Ms2Experiment experiment) {
+        this(analysis, extractedSpectrum, experiment, null);
+    }
+
+    /**
+     * if an input is given, it is annotated with the {@link ExtractedIsotopePattern} and all scored candidates
+     */
+    IsotopePatternScoringJob(IsotopePatternAnalysis analysis, SimpleSpectrum extractedSpectrum, Ms2Experiment experiment, ProcessedInput input) {
+        super(JobType.CPU);
+        this.analysis = analysis;
+        this.extractedSpectrum = extractedSpectrum;
+        this.experiment = experiment;
+        this.input = input;
+        this.ionTypes = new ArrayList<>();
+        this.candidates = new ArrayList<>();
+        this.maximalNumberOfCandidates = 0;
+    }
+
+    public IsotopePatternScoringJob addCandidates(PrecursorIonType ionType, List<MolecularFormula> formulas) {
+        notSubmittedOrThrow();
+        ionTypes.add(ionType);
+        candidates.add(formulas);
+        return this;
+    }
+
+    public int getMaximalNumberOfCandidates() {
+        return maximalNumberOfCandidates;
+    }
+
+    /**
+     * @param maximalNumberOfCandidates number of best scoring candidates to keep. All other candidates are dropped
+     *                                  and might not be scored at all. A value of 0 or below keeps all candidates.
+     */
+    public void setMaximalNumberOfCandidates(int maximalNumberOfCandidates) {
+        notSubmittedOrThrow();
+        this.maximalNumberOfCandidates = maximalNumberOfCandidates;
+    }
+
+    public SimpleSpectrum getExtractedSpectrum() {
+        return extractedSpectrum;
+    }
+
+    @Override
+    protected List<IsotopePattern> compute() throws Exception {
+        return score(jobManager.getCPUThreads());
+    }
+
+    /**
+     * scores all candidates with at most the given number of jobs. With a single job, everything is computed in the
+     * calling thread and no job manager is necessary.
+     */
+    List<IsotopePattern> score(int numberOfJobs) throws InterruptedException, ExecutionException {
+        final MeasuredPattern measured = MeasuredPattern.prepare(analysis, extractedSpectrum, experiment);
+        List<IsotopePattern> patterns;
+        if (measured == null) {
+            patterns = new ArrayList<>();
+        } else {
+            int n = 0;
+            for (List<MolecularFormula> fs : candidates) n += fs.size();
+            final MolecularFormula[] formulas = new MolecularFormula[n];
+            final PrecursorIonType[] ions = new PrecursorIonType[n];
+            for (int i = 0, k = 0; i < candidates.size(); ++i) {
+                for (MolecularFormula f : candidates.get(i)) {
+                    formulas[k] = f;
+                    ions[k++] = ionTypes.get(i);
+                }
+            }
+            final DoubleAccumulator threshold = new DoubleAccumulator(Math::max, Double.NEGATIVE_INFINITY);
+            numberOfJobs = Math.max(1, Math.min(numberOfJobs, n / MIN_CANDIDATES_PER_JOB));
+            if (numberOfJobs == 1) {
+                patterns = new ChunkJob(measured, formulas, ions, 0, n, threshold).compute();
+            } else {
+                final List<ChunkJob> jobs = new ArrayList<>(numberOfJobs);
+                for (int j = 0; j < numberOfJobs; ++j) {
+                    jobs.add(submitSubJob(new ChunkJob(measured, formulas, ions, (int) ((long) n * j / numberOfJobs), (int) ((long) n * (j + 1) / numberOfJobs), threshold)));
+                }
+                patterns = new ArrayList<>(maximalNumberOfCandidates > 0 ? numberOfJobs * maximalNumberOfCandidates : n);
+                for (ChunkJob job : jobs) patterns.addAll(job.awaitResult());
+            }
+            // the sort is stable and the chunks are contiguous, so equal scores keep the order of the input
+            patterns.sort(Comparator.reverseOrder());
+            if (maximalNumberOfCandidates > 0 && patterns.size() > maximalNumberOfCandidates)
+                patterns = new ArrayList<>(patterns.subList(0, maximalNumberOfCandidates));
+        }
+        if (input != null) {
+            final HashMap<MolecularFormula, IsotopePattern> explanations = new HashMap<>();
+            for (IsotopePattern pattern : patterns) explanations.put(pattern.getCandidate(), pattern);
+            input.setAnnotation(ExtractedIsotopePattern.class, new ExtractedIsotopePattern(extractedSpectrum, explanations));
+        }
+        return patterns;
+    }
+
+    private class ChunkJob extends BasicJJob<List<IsotopePattern>> {
+        private final MeasuredPattern measured;
+        private final MolecularFormula[] formulas;
+        private final PrecursorIonType[] ions;
+        private final int from, to;
+        private final DoubleAccumulator threshold;
+
+        private ChunkJob(MeasuredPattern measured, MolecularFormula[] formulas, PrecursorIonType[] ions, int from, int to, DoubleAccumulator threshold) {
+            super(JobType.CPU);
+            this.measured = measured;
+            this.formulas = formulas;
+            this.ions = ions;
+            this.from = from;
+            this.to = to;
+            this.threshold = threshold;
+        }
+
+        @Override
+        protected List<IsotopePattern> compute() throws InterruptedException {
+            final int keep = maximalNumberOfCandidates;
+            final double[] scoreBuffer = new double[measured.size()];
+            final double[] mzBuffer = new double[MAX_THEORETICAL_PEAKS], intensityBuffer = new double[MAX_THEORETICAL_PEAKS];
+            final List<IsotopePattern> patterns = new ArrayList<>(keep > 0 ? 0 : to - from);
+            // min heap of the best candidates of this chunk. Its worst score is a lower bound for the global top-N
+            final PriorityQueue<IsotopePattern> best = keep > 0 ? new PriorityQueue<>(keep + 1) : null;
+            for (int i = from; i < to; ++i) {
+                if ((i - from) % 1000 == 0) checkForInterruption();
+                final PrecursorIonType ion = ions[i];
+                final MolecularFormula f = ion.neutralMoleculeToMeasuredNeutralMolecule(formulas[i]);
+                if (best != null) {
+                    final double worstRetainedScore = threshold.get();
+                    if (worstRetainedScore > Double.NEGATIVE_INFINITY && measured.upperBound(f.getMass() + ion.getIonization().getMass()) < worstRetainedScore)
+                        continue;
+                }
+                final IsotopePattern pattern = measured.score(formulas[i], f, ion, scoreBuffer, mzBuffer, intensityBuffer);
+                if (pattern == null) continue;
+                if (best == null) {
+                    patterns.add(pattern);
+                } else {
+                    best.add(pattern);
+                    if (best.size() > keep) best.poll();
+                    if (best.size() == keep) threshold.accumulate(best.peek().getScore());
+                }
+            }
+            if (best != null) patterns.addAll(best);
+            return patterns;
+        }
+    }
+
+    /**
+     * the measured pattern normalized as the scorers expect it, together with the scorers prepared for each
+     * number of peaks the measured pattern might be truncated to
+     */
+    private static class MeasuredPattern {
+        private final IsotopePatternGenerator generator;
+        private final SimpleSpectrum[] allPatternVariants;
+        private final PreparedIsotopePatternScorer[][] scorersPerLength;
+
+        private MeasuredPattern(IsotopePatternGenerator generator, SimpleSpectrum[] allPatternVariants, PreparedIsotopePatternScorer[][] scorersPerLength) {
+            this.generator = generator;
+            this.allPatternVariants = allPatternVariants;
+            this.scorersPerLength = scorersPerLength;
+        }
+
+        private static MeasuredPattern prepare(IsotopePatternAnalysis analysis, SimpleSpectrum extractedSpectrum, Ms2Experiment experiment) {
+            final double cutoff = experiment.getAnnotationOrDefault(IsotopicIntensitySettings.class).minimalIntensityToConsider;
+            final SimpleMutableSpectrum spec = new SimpleMutableSpectrum(extractedSpectrum);
+            normalize(spec, Normalization.Sum(1d));
+            if (analysis.getIntensityOffset() != 0d) {
+                addOffset(spec, 0d, analysis.getIntensityOffset());
+                normalize(spec, Normalization.Sum(1d));
+            }
+
+            if (spec.getIntensityAt(0) < cutoff) {
+                //intensity of first peak is below cutoff, cannot score
+                return null;
+            }
+            while (spec.getIntensityAt(spec.size() - 1) < cutoff) spec.removePeakAt(spec.size() - 1);
+            normalize(spec, Normalization.Max(1));
+            final SimpleSpectrum measuredSpectrum = new SimpleSpectrum(spec);
+            final int n = measuredSpectrum.size();
+            final SimpleSpectrum[] allPatternVariants = new SimpleSpectrum[n];
+            {
+                final SimpleMutableSpectrum mut = new SimpleMutableSpectrum(n);
+                for (int k = 0; k < n; ++k) {
+                    mut.addPeak(measuredSpectrum.getMzAt(k), measuredSpectrum.getIntensityAt(k));
+                    allPatternVariants[k] = new SimpleSpectrum(mut);
+                }
+            }
+            // if the theoretical pattern is shorter, the measured pattern is truncated to its length and renormalized
+            final List<IsotopePatternScorer> scorers = analysis.getIsotopePatternScorers();
+            final PreparedIsotopePatternScorer[][] scorersPerLength = new PreparedIsotopePatternScorer[n][scorers.size()];
+            for (int k = 1; k <= n; ++k) {
+                final Spectrum<Peak> measuredOne = k == n ? measuredSpectrum : Spectrums.getNormalizedSpectrum(Spectrums.subspectrum(measuredSpectrum, 0, k), Normalization.Max(1d));
+                final double[] mz = Spectrums.copyMasses(measuredOne), intensities = Spectrums.copyIntensities(measuredOne);
+                for (int s = 0; s < scorers.size(); ++s) {
+                    scorersPerLength[k - 1][s] = PreparedIsotopePatternScorer.of(scorers.get(s), mz, intensities, experiment);
+                }
+            }
+            return new MeasuredPattern(analysis.getPatternGenerator(), allPatternVariants, scorersPerLength);
+        }
+
+        private int size() {
+            return allPatternVariants.length;
+        }
+
+        /**
+         * @return an upper bound for the score of any candidate with the given monoisotopic m/z
+         */
+        private double upperBound(double monoisotopicMz) {
+            // score entries beyond a truncated measured pattern stay 0, so the score of a short candidate is never negative
+            double bound = size() > 1 ? 0d : Double.NEGATIVE_INFINITY;
+            for (PreparedIsotopePatternScorer[] scorers : scorersPerLength) {
+                double sum = 0d;
+                for (PreparedIsotopePatternScorer scorer : scorers) sum += scorer.upperBound(monoisotopicMz);
+                bound = Math.max(bound, sum);
+            }
+            return bound;
+        }
+
+        private IsotopePattern score(MolecularFormula formula, MolecularFormula measuredNeutralFormula, PrecursorIonType ion, double[] scoreBuffer, double[] mzBuffer, double[] intensityBuffer) {
+            Spectrum<Peak> theoreticalSpectrum = generator.simulatePattern(measuredNeutralFormula, ion.getIonization());
+            if (theoreticalSpectrum.size() == 0) return null;
+            if (theoreticalSpectrum.size() > MAX_THEORETICAL_PEAKS)
+                theoreticalSpectrum = Spectrums.getNormalizedSpectrum(Spectrums.subspectrum(theoreticalSpectrum, 0, MAX_THEORETICAL_PEAKS), Normalization.Max(1d));
+            final int theoreticalSize = theoreticalSpectrum.size();
+            for (int k = 0; k < theoreticalSize; ++k) {
+                mzBuffer[k] = theoreticalSpectrum.getMzAt(k);
+                intensityBuffer[k] = theoreticalSpectrum.getIntensityAt(k);
+            }
+            Arrays.fill(scoreBuffer, 0d);
+            for (PreparedIsotopePatternScorer scorer : scorersPerLength[Math.min(size(), theoreticalSize) - 1]) {
+                scorer.score(scoreBuffer, mzBuffer, intensityBuffer, theoreticalSize);
+            }
+            int optScoreIndex = 0;
+            for (int j = 0; j < scoreBuffer.length; ++j) {
+                if (scoreBuffer[j] > scoreBuffer[optScoreIndex]) optScoreIndex = j;
+            }
+            return new IsotopePattern(formula, scoreBuffer[optScoreIndex], allPatternVariants[optScoreIndex]);
+        }
+    }
+}
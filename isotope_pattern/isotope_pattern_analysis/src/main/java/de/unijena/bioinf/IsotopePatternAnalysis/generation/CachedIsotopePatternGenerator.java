@@ -0,0 +1,101 @@
+/*
+ *
+ *  This file is part of the SIRIUS library for analyzing MS and MS/MS data
+ *
+ *  Copyright (C) 2013-2020 Kai Dührkop, Markus Fleischauer, Marcus Ludwig, Martin A. Hoffman and Sebastian Böcker,
+ *  Chair of Bioinformatics, Friedrich-Schilller University.
+ *
+ *  This library is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public
+ *  License as published by the Free Software Foundation; either
+ *  version 3 of the License, or (at your option) any later version.
+ *
+ *  This library is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License along with SIRIUS. If not, see <https://www.gnu.org/licenses/lgpl-3.0.txt>
+ */
+
+package de.unijena.bioinf.IsotopePatternAnalysis.generation;
+
+import de.unijena.bioinf.ChemistryBase.chem.Ionization;
+import de.unijena.bioinf.ChemistryBase.chem.MolecularFormula;
+import de.unijena.bioinf.ChemistryBase.ms.utils.SimpleSpectrum;
+
+/**
+ * Decorates a pattern generator with an {@link IsotopePatternCache} and an optional precomputed
+ * {@link IsotopePatternTable}. Patterns are taken from the table if the table is compatible to the generator,
+ * otherwise from the cache and only simulated if both do not contain them.
+ * <p>
+ * Changing the peak limits changes them in the underlying generator. Patterns are cached together with the settings
+ * they were simulated with, so patterns with the old limits stay in the cache but are not returned anymore. As for
+ * any other generator, settings must not be changed while other threads simulate patterns with it.
+ * Patterns are always returned as they are stored in the cache, so results do not depend on the cache state.
+ * <p>
+ * This class is thread-safe as long as the underlying generator is.
+ */
+public class CachedIsotopePatternGenerator extends IsotopePatternGenerator {
+
+    public static final int DEFAULT_CACHE_SIZE = 50000;
+
+    private final IsotopePatternGenerator generator;
+    private final IsotopePatternCache cache;
+    private final IsotopePatternTable table;
+    private volatile boolean useTable;
+
+    public CachedIsotopePatternGenerator(IsotopePatternGenerator generator) {
+        this(generator, new IsotopePatternCache(DEFAULT_CACHE_SIZE), IsotopePatternTable.getDefault());
+    }
+
+    /**
+     * @param table precomputed patterns or null
+     */
+    public CachedIsotopePatternGenerator(IsotopePatternGenerator generator, IsotopePatternCache cache, IsotopePatternTable table) {
+        super(generator.getDistribution(), generator.getMode());
+        this.generator = generator;
+        this.cache = cache;
+        this.table = table;
+        this.maximalNumberOfPeaks = generator.getMaximalNumberOfPeaks();
+        this.minimalProbabilityThreshold = generator.getMinimalProbabilityThreshold();
+        this.useTable = table != null && table.isCompatible(generator);
+    }
+
+    @Override
+    public SimpleSpectrum simulatePattern(MolecularFormula formula, Ionization ionization) {
+        if (useTable) {
+            final SimpleSpectrum pattern = table.lookup(formula, ionization);
+            if (pattern != null) return pattern;
+        }
+        final SimpleSpectrum pattern = cache.get(generator, formula, ionization);
+        if (pattern != null) return pattern;
+        return cache.put(generator, formula, ionization, generator.simulatePattern(formula, ionization));
+    }
+
+    @Override
+    public void setMaximalNumberOfPeaks(int maximalNumberOfPeaks) {
+        generator.setMaximalNumberOfPeaks(maximalNumberOfPeaks);
+        this.maximalNumberOfPeaks = maximalNumberOfPeaks;
+        this.useTable = table != null && table.isCompatible(generator);
+    }
+
+    @Override
+    public void setMinimalProbabilityThreshold(double minimalProbabilityThreshold) {
+        generator.setMinimalProbabilityThreshold(minimalProbabilityThreshold);
+        this.minimalProbabilityThreshold = minimalProbabilityThreshold;
+        this.useTable = table != null && table.isCompatible(generator);
+    }
+
+    public IsotopePatternGenerator getGenerator() {
+        return generator;
+    }
+
+    public IsotopePatternCache getCache() {
+        return cache;
+    }
+
+    public IsotopePatternTable getTable() {
+        return table;
+    }
+}
@@ -0,0 +1,210 @@
+/*
+ *
+ *  This file is part of the SIRIUS library for analyzing MS and MS/MS data
+ *
+ *  Copyright (C) 2013-2020 Kai Dührkop, Markus Fleischauer, Marcus Ludwig, Martin A. Hoffman and Sebastian Böcker,
+ *  Chair of Bioinformatics, Friedrich-Schilller University.
+ *
+ *  This library is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public
+ *  License as published by the Free Software Foundation; either
+ *  version 3 of the License, or (at your option) any later version.
+ *
+ *  This library is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License along with SIRIUS. If not, see <https://www.gnu.org/licenses/lgpl-3.0.txt>
+ */
+
+package de.unijena.bioinf.IsotopePatternAnalysis.generation;
+
+import de.unijena.bioinf.ChemistryBase.chem.Ionization;
+import de.unijena.bioinf.ChemistryBase.chem.MolecularFormula;
+import de.unijena.bioinf.ChemistryBase.chem.utils.IsotopicDistribution;
+import de.unijena.bioinf.ChemistryBase.ms.Normalization;
+import de.unijena.bioinf.ChemistryBase.ms.utils.SimpleSpectrum;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded, thread-safe cache for simulated isotope patterns, keyed by formula, ionization and all settings of the
+ * generator which simulated the pattern (type, isotope distribution, normalization and peak limits), such that
+ * generators with different settings can share a cache. Isotope distributions are compared by identity, so a
+ * distribution must not be changed while patterns simulated with it are cached.
+ * <p>
+ * A pattern is stored as float array with alternating mass offsets and intensities. The mass offset of the k-th
+ * peak is taken relative to the mass of the ionized formula plus k Dalton. It is only a sum of mass defects, so
+ * the float precision is far below the mass accuracy of any instrument (about 1e-8 Da). The cache is split
+ * into segments with own locks and own least-recently-used order, such that worker threads scoring different
+ * formulas rarely block each other.
+ */
+public class IsotopePatternCache {
+
+    private static final int NUMBER_OF_SEGMENTS = 16;
+
+    private final Segment[] segments;
+    private final int capacity;
+    private final AtomicLong hits = new AtomicLong(0), misses = new AtomicLong(0);
+
+    /**
+     * @param capacity maximum number of cached patterns
+     */
+    public IsotopePatternCache(int capacity) {
+        if (capacity < 1)
+            throw new IllegalArgumentException("Cache size must be positive but was " + capacity);
+        this.capacity = capacity;
+        final int segmentCapacity = Math.max(1, (capacity + NUMBER_OF_SEGMENTS - 1) / NUMBER_OF_SEGMENTS);
+        this.segments = new Segment[Math.min(NUMBER_OF_SEGMENTS, capacity)];
+        for (int i = 0; i < segments.length; ++i)
+            segments[i] = new Segment(segmentCapacity);
+    }
+
+    /**
+     * @return the cached pattern or null if the pattern is not in the cache
+     */
+    public SimpleSpectrum get(IsotopePatternGenerator generator, MolecularFormula formula, Ionization ionization) {
+        final Key key = new Key(generator, formula, ionization);
+        final float[] encoded;
+        final Segment segment = segmentFor(key);
+        synchronized (segment) {
+            encoded = segment.get(key);
+        }
+        if (encoded == null) {
+            misses.incrementAndGet();
+            return null;
+        }
+        hits.incrementAndGet();
+        return decode(encoded, 0, encoded.length / 2, anchorMass(formula, ionization));
+    }
+
+    /**
+     * @param generator generator which simulated the pattern with its current settings
+     * @return the pattern as it is stored in the cache, i.e. the same pattern a later {@link #get} returns
+     */
+    public SimpleSpectrum put(IsotopePatternGenerator generator, MolecularFormula formula, Ionization ionization, SimpleSpectrum pattern) {
+        final Key key = new Key(generator, formula, ionization);
+        final double anchorMass = anchorMass(formula, ionization);
+        final float[] encoded = encode(pattern, anchorMass);
+        final Segment segment = segmentFor(key);
+        synchronized (segment) {
+            segment.put(key, encoded);
+        }
+        return decode(encoded, 0, encoded.length / 2, anchorMass);
+    }
+
+    public void clear() {
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                segment.clear();
+            }
+        }
+    }
+
+    public int size() {
+        int size = 0;
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                size += segment.size();
+            }
+        }
+        return size;
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    private Segment segmentFor(Key key) {
+        final int h = key.hash ^ (key.hash >>> 16);
+        return segments[(h & 0x7fffffff) % segments.length];
+    }
+
+    static double anchorMass(MolecularFormula formula, Ionization ionization) {
+        return formula.getMass() + ionization.getMass();
+    }
+
+    static float[] encode(SimpleSpectrum pattern, double anchorMass) {
+        final float[] encoded = new float[pattern.size() * 2];
+        for (int k = 0; k < pattern.size(); ++k) {
+            encoded[2 * k] = (float) (pattern.getMzAt(k) - anchorMass - k);
+            encoded[2 * k + 1] = (float) pattern.getIntensityAt(k);
+        }
+        return encoded;
+    }
+
+    static SimpleSpectrum decode(float[] encoded, int offset, int numberOfPeaks, double anchorMass) {
+        final double[] mz = new double[numberOfPeaks], intensities = new double[numberOfPeaks];
+        for (int k = 0; k < numberOfPeaks; ++k) {
+            mz[k] = anchorMass + k + encoded[offset + 2 * k];
+            intensities[k] = encoded[offset + 2 * k + 1];
+        }
+        return new SimpleSpectrum(mz, intensities);
+    }
+
+    private static final class Key {
+        private final MolecularFormula formula;
+        private final Ionization ionization;
+        private final Class<?> generatorType;
+        private final IsotopicDistribution distribution;
+        private final Normalization normalization;
+        private final int maximalNumberOfPeaks;
+        private final double minimalProbabilityThreshold;
+        private final int hash;
+
+        private Key(IsotopePatternGenerator generator, MolecularFormula formula, Ionization ionization) {
+            this.formula = formula;
+            this.ionization = ionization;
+            this.generatorType = generator.getClass();
+            this.distribution = generator.getDistribution();
+            this.normalization = generator.getMode();
+            this.maximalNumberOfPeaks = generator.getMaximalNumberOfPeaks();
+            this.minimalProbabilityThreshold = generator.getMinimalProbabilityThreshold();
+            int h = 31 * (31 * formula.hashCode() + ionization.hashCode()) + normalization.hashCode();
+            h = 31 * h + System.identityHashCode(distribution);
+            h = 31 * h + maximalNumberOfPeaks;
+            this.hash = 31 * h + Double.hashCode(minimalProbabilityThreshold);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof Key)) return false;
+            final Key key = (Key) o;
+            return hash == key.hash && maximalNumberOfPeaks == key.maximalNumberOfPeaks
+                    && Double.compare(minimalProbabilityThreshold, key.minimalProbabilityThreshold) == 0
+                    && distribution == key.distribution && generatorType == key.generatorType
+                    && formula.equals(key.formula) && ionization.equals(key.ionization) && normalization.equals(key.normalization);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+
+    private static final class Segment extends LinkedHashMap<Key, float[]> {
+        private final int capacity;
+
+        private Segment(int capacity) {
+            super(Math.min(capacity, 1024), 0.75f, true);
+            this.capacity = capacity;
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Key, float[]> eldest) {
+            return size() > capacity;
+        }
+    }
+}
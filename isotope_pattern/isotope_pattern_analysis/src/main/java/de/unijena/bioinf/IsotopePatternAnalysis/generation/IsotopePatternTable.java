@@ -0,0 +1,328 @@
+/*
+ *
+ *  This file is part of the SIRIUS library for analyzing MS and MS/MS data
+ *
+ *  Copyright (C) 2013-2020 Kai Dührkop, Markus Fleischauer, Marcus Ludwig, Martin A. Hoffman and Sebastian Böcker,
+ *  Chair of Bioinformatics, Friedrich-Schilller University.
+ *
+ *  This library is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public
+ *  License as published by the Free Software Foundation; either
+ *  version 3 of the License, or (at your option) any later version.
+ *
+ *  This library is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License along with SIRIUS. If not, see <https://www.gnu.org/licenses/lgpl-3.0.txt>
+ */
+
+package de.unijena.bioinf.IsotopePatternAnalysis.generation;
+
+import de.unijena.bioinf.ChemistryBase.chem.*;
+import de.unijena.bioinf.ChemistryBase.chem.utils.IsotopicDistribution;
+import de.unijena.bioinf.ChemistryBase.ms.Normalization;
+import de.unijena.bioinf.ChemistryBase.ms.NormalizationMode;
+import de.unijena.bioinf.ChemistryBase.ms.utils.SimpleSpectrum;
+import de.unijena.bioinf.MassDecomposer.Chemistry.MassToFormulaDecomposer;
+import de.unijena.bioinf.ms.properties.PropertyManager;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.util.*;
+
+/**
+ * Precomputed isotope patterns for all formulas of a mass range, stored in a file which is memory mapped and
+ * shared by all threads. Lookups are lock free and do not allocate anything besides the returned spectrum.
+ * <p>
+ * The file contains a header with the generator settings, the elements and the ionizations of the table, followed
+ * by fixed size records sorted by formula mass and the encoded patterns (see {@link IsotopePatternCache}).
+ * A table can only be used by generators with the same type, normalization, peak limits and isotope distribution
+ * it was computed with, see {@link #isCompatible(IsotopePatternGenerator)}.
+ * <p>
+ * Records and patterns are addressed with int offsets into a single mapping, so a table file has to be smaller
+ * than 2 GB ({@link #MAXIMAL_FILE_SIZE}). Larger mass ranges have to be split into several tables.
+ * <p>
+ * The default table is read from the file given in {@code de.unijena.bioinf.isotope.pattern.table}.
+ */
+public class IsotopePatternTable {
+
+    public static final String TABLE_FILE_KEY = "de.unijena.bioinf.isotope.pattern.table";
+
+    /**
+     * maximal size of a table file in bytes
+     */
+    public static final long MAXIMAL_FILE_SIZE = Integer.MAX_VALUE;
+
+    private static final int TABLE_FORMAT_VERSION = 2;
+    private static final double MASS_TOLERANCE = 1e-6;
+
+    private static volatile IsotopePatternTable defaultTable;
+    private static volatile boolean defaultTableLoaded = false;
+
+    private final ByteBuffer buffer;
+    private final String generatorName;
+    private final Normalization normalization;
+    private final int maximalNumberOfPeaks;
+    private final double minimalProbabilityThreshold;
+    private final long distributionFingerprint;
+    private final Element[] elements;
+    private final Ionization[] ionizations;
+    private final Map<Ionization, Integer> ionizationIndex;
+    private final int size, recordSize, recordStart, patternStart;
+
+    private IsotopePatternTable(ByteBuffer buffer) throws IOException {
+        this.buffer = buffer;
+        final ByteBuffer header = buffer.duplicate();
+        if (header.getInt() != TABLE_FORMAT_VERSION)
+            throw new IOException("Unknown isotope pattern table format");
+        this.generatorName = readString(header);
+        this.normalization = new Normalization(NormalizationMode.valueOf(readString(header)), header.getDouble());
+        this.maximalNumberOfPeaks = header.getInt();
+        this.minimalProbabilityThreshold = header.getDouble();
+        this.distributionFingerprint = header.getLong();
+        final PeriodicTable T = PeriodicTable.getInstance();
+        this.elements = new Element[header.getInt()];
+        for (int i = 0; i < elements.length; ++i) {
+            final String symbol = readString(header);
+            elements[i] = T.getByName(symbol);
+            if (elements[i] == null) throw new IOException("Unknown element in isotope pattern table: " + symbol);
+        }
+        this.ionizations = new Ionization[header.getInt()];
+        this.ionizationIndex = new HashMap<>();
+        for (int i = 0; i < ionizations.length; ++i) {
+            final String name = readString(header);
+            final PrecursorIonType ionType = T.ionByNameOrNull(name);
+            if (ionType == null) throw new IOException("Unknown ionization in isotope pattern table: " + name);
+            ionizations[i] = ionType.getIonization();
+            ionizationIndex.put(ionizations[i], i);
+        }
+        this.size = header.getInt();
+        this.recordSize = recordSize(elements.length);
+        this.recordStart = header.position();
+        final long patternStart = recordStart + (long) size * recordSize;
+        if (size < 0 || patternStart > buffer.limit())
+            throw new IOException("Isotope pattern table is truncated");
+        this.patternStart = (int) patternStart;
+    }
+
+    /**
+     * Memory maps the given table file.
+     * @throws IOException if the file cannot be read, is no isotope pattern table or is larger than {@link #MAXIMAL_FILE_SIZE}
+     */
+    public static IsotopePatternTable open(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            if (channel.size() > MAXIMAL_FILE_SIZE)
+                throw new IOException("Isotope pattern table " + file + " has " + channel.size() + " bytes, but tables must not be larger than " + MAXIMAL_FILE_SIZE + " bytes");
+            return new IsotopePatternTable(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+        }
+    }
+
+    /**
+     * @return the table given in {@link #TABLE_FILE_KEY} or null, if no table is configured or it cannot be read
+     */
+    public static IsotopePatternTable getDefault() {
+        if (!defaultTableLoaded) {
+            synchronized (IsotopePatternTable.class) {
+                if (!defaultTableLoaded) {
+                    final String file = PropertyManager.getProperty(TABLE_FILE_KEY);
+                    if (file != null && !file.isBlank()) {
+                        try {
+                            defaultTable = open(Paths.get(file));
+                        } catch (IOException | RuntimeException e) {
+                            // a corrupted header might also end in a BufferUnderflowException or an invalid path
+                            LoggerFactory.getLogger(IsotopePatternTable.class).warn("Could not read isotope pattern table " + file + ": " + e.getMessage());
+                        }
+                    }
+                    defaultTableLoaded = true;
+                }
+            }
+        }
+        return defaultTable;
+    }
+
+    /**
+     * Computes the patterns of all formulas in the given neutral mass range which satisfy the element bounds and
+     * filters of the constraints and writes them into a table file.
+     */
+    public static void write(Path file, IsotopePatternGenerator generator, double fromMass, double toMass, FormulaConstraints constraints, Ionization... ionizations) throws IOException {
+        final MassToFormulaDecomposer decomposer = new MassToFormulaDecomposer(constraints.getChemicalAlphabet());
+        write(file, generator, decomposer.parallelDecompose(fromMass, toMass, PeriodicTable.getInstance().neutralIonization(), constraints), ionizations);
+    }
+
+    /**
+     * Computes the patterns of the given formulas for all given ionizations and writes them into a table file.
+     * @throws IOException if the file cannot be written or the table would be larger than {@link #MAXIMAL_FILE_SIZE}
+     */
+    public static void write(Path file, IsotopePatternGenerator generator, Collection<MolecularFormula> formulas, Ionization... ionizations) throws IOException {
+        final List<Element> elementList = ChemicalAlphabet.alphabetFor(formulas).getElements();
+        final int n = formulas.size() * ionizations.length;
+        final MolecularFormula[] entryFormulas = new MolecularFormula[n];
+        final int[] entryIonizations = new int[n];
+        final double[] masses = new double[n];
+        final float[][] patterns = new float[n][];
+        int k = 0;
+        for (MolecularFormula formula : formulas) {
+            for (int i = 0; i < ionizations.length; ++i) {
+                entryFormulas[k] = formula;
+                entryIonizations[k] = i;
+                masses[k] = formula.getMass();
+                patterns[k] = IsotopePatternCache.encode(generator.simulatePattern(formula, ionizations[i]), IsotopePatternCache.anchorMass(formula, ionizations[i]));
+                ++k;
+            }
+        }
+        final Integer[] order = new Integer[n];
+        for (int i = 0; i < n; ++i) order[i] = i;
+        Arrays.sort(order, Comparator.comparingDouble((Integer i) -> masses[i]).thenComparingInt(i -> entryIonizations[i]));
+
+        final Element[] elements = elementList.toArray(new Element[0]);
+        long fileSize = 4 + stringSize(generator.getClass().getName()) + stringSize(generator.getMode().getMode().name()) + 8 + 4 + 8 + 8 + 4 + 4 + 4
+                + (long) n * recordSize(elements.length);
+        for (Element e : elements) fileSize += stringSize(e.getSymbol());
+        for (Ionization ion : ionizations) fileSize += stringSize(ion.getName());
+        for (float[] pattern : patterns) fileSize += 4L * pattern.length;
+        if (fileSize > MAXIMAL_FILE_SIZE)
+            throw new IOException("Isotope pattern table would have " + fileSize + " bytes, but tables must not be larger than " + MAXIMAL_FILE_SIZE + " bytes. Split the mass range into several tables.");
+        final Path tmp = Files.createTempFile(file.toAbsolutePath().getParent(), file.getFileName().toString(), ".tmp");
+        try {
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp)))) {
+                out.writeInt(TABLE_FORMAT_VERSION);
+                writeString(out, generator.getClass().getName());
+                writeString(out, generator.getMode().getMode().name());
+                out.writeDouble(generator.getMode().getBase());
+                out.writeInt(generator.getMaximalNumberOfPeaks());
+                out.writeDouble(generator.getMinimalProbabilityThreshold());
+                out.writeLong(distributionFingerprint(generator.getDistribution(), elements, ionizations));
+                out.writeInt(elements.length);
+                for (Element e : elements) writeString(out, e.getSymbol());
+                out.writeInt(ionizations.length);
+                for (Ionization ion : ionizations) writeString(out, ion.getName());
+                out.writeInt(n);
+                int patternOffset = 0;
+                for (int i : order) {
+                    out.writeDouble(masses[i]);
+                    out.writeInt(entryIonizations[i]);
+                    for (Element e : elements) out.writeShort(entryFormulas[i].numberOf(e));
+                    out.writeInt(patternOffset);
+                    out.writeInt(patterns[i].length / 2);
+                    patternOffset += patterns[i].length;
+                }
+                for (int i : order)
+                    for (float value : patterns[i])
+                        out.writeFloat(value);
+            }
+            Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(tmp);
+        }
+    }
+
+    /**
+     * @return true, if the patterns in this table are the same the given generator would simulate
+     */
+    public boolean isCompatible(IsotopePatternGenerator generator) {
+        return generator.getClass().getName().equals(generatorName) && generator.getMode().equals(normalization)
+                && generator.getMaximalNumberOfPeaks() == maximalNumberOfPeaks
+                && generator.getMinimalProbabilityThreshold() == minimalProbabilityThreshold
+                && distributionFingerprint(generator.getDistribution(), elements, ionizations) == distributionFingerprint;
+    }
+
+    /**
+     * @return the pattern of the given formula and ionization or null, if it is not contained in the table
+     */
+    public SimpleSpectrum lookup(MolecularFormula formula, Ionization ionization) {
+        final Integer ion = ionizationIndex.get(ionization);
+        if (ion == null || size == 0) return null;
+        final double mass = formula.getMass();
+        // binary search for the first record with mass >= mass - tolerance
+        int lo = 0, hi = size;
+        while (lo < hi) {
+            final int mid = (lo + hi) >>> 1;
+            if (massAt(mid) < mass - MASS_TOLERANCE) lo = mid + 1;
+            else hi = mid;
+        }
+        for (int r = lo; r < size && massAt(r) <= mass + MASS_TOLERANCE; ++r) {
+            final int pos = recordStart + r * recordSize;
+            if (buffer.getInt(pos + 8) == ion && sameFormula(pos + 12, formula)) {
+                final int offset = buffer.getInt(pos + 12 + 2 * elements.length);
+                final int peaks = buffer.getInt(pos + 16 + 2 * elements.length);
+                final float[] encoded = new float[2 * peaks];
+                for (int i = 0; i < encoded.length; ++i)
+                    encoded[i] = buffer.getFloat(patternStart + 4 * (offset + i));
+                return IsotopePatternCache.decode(encoded, 0, peaks, IsotopePatternCache.anchorMass(formula, ionization));
+            }
+        }
+        return null;
+    }
+
+    private boolean sameFormula(int pos, MolecularFormula formula) {
+        int atoms = 0;
+        for (int i = 0; i < elements.length; ++i) {
+            final int amount = buffer.getShort(pos + 2 * i);
+            if (formula.numberOf(elements[i]) != amount) return false;
+            atoms += amount;
+        }
+        // formula might contain elements which are not part of the table
+        return atoms == formula.atomCount();
+    }
+
+    private double massAt(int record) {
+        return buffer.getDouble(recordStart + record * recordSize);
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public List<Element> getElements() {
+        return Collections.unmodifiableList(Arrays.asList(elements));
+    }
+
+    public List<Ionization> getIonizations() {
+        return Collections.unmodifiableList(Arrays.asList(ionizations));
+    }
+
+    private static int recordSize(int numberOfElements) {
+        return 8 + 4 + 2 * numberOfElements + 4 + 4;
+    }
+
+    private static long distributionFingerprint(IsotopicDistribution distribution, Element[] elements, Ionization[] ionizations) {
+        final TreeSet<Element> relevant = new TreeSet<>(Arrays.asList(elements));
+        for (Ionization ion : ionizations) {
+            final MolecularFormula atoms = ion.getAtoms();
+            if (atoms != null) for (Element e : atoms) relevant.add(e);
+        }
+        long fingerprint = 17;
+        for (Element e : relevant) {
+            fingerprint = 31 * fingerprint + e.getSymbol().hashCode();
+            final Isotopes iso = distribution.getIsotopesFor(e);
+            if (iso == null) continue;
+            for (int k = 0; k < iso.getNumberOfIsotopes(); ++k) {
+                fingerprint = 31 * fingerprint + Double.doubleToLongBits(iso.getMass(k));
+                fingerprint = 31 * fingerprint + Double.doubleToLongBits(iso.getAbundance(k));
+            }
+        }
+        return fingerprint;
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        out.writeInt(value.length());
+        out.writeChars(value);
+    }
+
+    private static long stringSize(String value) {
+        return 4 + 2L * value.length();
+    }
+
+    private static String readString(ByteBuffer buffer) {
+        final char[] chars = new char[buffer.getInt()];
+        for (int i = 0; i < chars.length; ++i) chars[i] = buffer.getChar();
+        return new String(chars);
+    }
+}
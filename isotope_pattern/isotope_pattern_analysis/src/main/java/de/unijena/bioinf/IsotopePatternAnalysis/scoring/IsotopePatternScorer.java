@@ -37,6 +37,15 @@ public interface IsotopePatternScorer extends Parameterized{
      * @param usedNormalization normalization mode which was applied to the spectra, or null, if both spectra is not normalized
      */
     void score(double[] scoreUptoKPeaks, Spectrum<Peak> measuredSpectrum, Spectrum<Peak> theoreticalSpectrum, Normalization usedNormalization, Ms2Experiment experiment);
+
+    /**
+     * binds this scorer to a single measured pattern, such that many theoretical patterns can be scored against it
+     * on primitive arrays. Both arrays contain exactly the peaks to score and are normalized to a maximum of 1.
+     * @return the prepared scorer or null, if this scorer does not support bulk scoring
+     */
+    default PreparedIsotopePatternScorer prepare(double[] measuredMz, double[] measuredIntensities, Ms2Experiment experiment) {
+        return null;
+    }
 	
 	
 }
@@ -64,6 +64,32 @@ public class MassDeviationScorer implements IsotopePatternScorer {
         }
     }
 
+    @Override
+    public PreparedIsotopePatternScorer prepare(double[] measuredMz, double[] measuredIntensities, Ms2Experiment experiment) {
+        final Deviation dev = experiment.getAnnotationOrDefault(MS1MassDeviation.class).standardMassDeviation;
+        final double[] sd = new double[measuredMz.length];
+        for (int i=0; i < sd.length; ++i) {
+            sd[i] = dev.absoluteFor(measuredMz[i]) * dependency.getValueAt(measuredIntensities[i]);
+        }
+        return new PreparedIsotopePatternScorer() {
+            @Override
+            public void score(double[] scores, double[] theoreticalMz, double[] theoreticalIntensities, int theoreticalSize) {
+                double score = 0d;
+                for (int i=0; i < measuredMz.length; ++i) {
+                    score += Math.log(Erf.erfc(Math.abs(theoreticalMz[i] - measuredMz[i])/(root2*sd[i])));
+                    scores[i] += score;
+                }
+            }
+
+            @Override
+            public double upperBound(double theoreticalMonoisotopicMz) {
+                // all summands are negative, so the score of the first peak bounds all prefixes
+                final double delta = Math.max(0d, Math.abs(theoreticalMonoisotopicMz - measuredMz[0]) - MONOISOTOPIC_MZ_TOLERANCE);
+                return Math.log(Erf.erfc(delta/(root2*sd[0])));
+            }
+        };
+    }
+
     @Override
     public <G, D, L> void importParameters(ParameterHelper helper, DataDocument<G, D, L> document, D dictionary) {
         this.dependency = (IntensityDependency)helper.unwrap(document, document.getFromDictionary(dictionary, "intensityDependency"));
@@ -66,6 +66,34 @@ public class MassDifferenceDeviationScorer implements IsotopePatternScorer {
         }
     }
 
+    @Override
+    public PreparedIsotopePatternScorer prepare(double[] measuredMz, double[] measuredIntensities, Ms2Experiment experiment) {
+        final Deviation dev = experiment.getAnnotationOrDefault(MS1MassDeviation.class).massDifferenceDeviation;
+        final double mz0 = measuredMz[0];
+        final double[] sd = new double[measuredMz.length];
+        for (int i=1; i < sd.length; ++i) {
+            sd[i] = dev.absoluteFor(measuredMz[i]) * dependency.getValueAt(measuredIntensities[i]);
+        }
+        return new PreparedIsotopePatternScorer() {
+            @Override
+            public void score(double[] scores, double[] theoreticalMz, double[] theoreticalIntensities, int theoreticalSize) {
+                final double thMz0 = theoreticalMz[0];
+                double score = 0d;
+                for (int i=1; i < measuredMz.length; ++i) {
+                    final double mz = measuredMz[i] - mz0;
+                    final double thMz = theoreticalMz[i] - thMz0;
+                    score += Math.log(Erf.erfc(Math.abs(thMz - mz)/(root2*sd[i])));
+                    scores[i] += score;
+                }
+            }
+
+            @Override
+            public double upperBound(double theoreticalMonoisotopicMz) {
+                return 0d;
+            }
+        };
+    }
+
     @Override
     public <G, D, L> void importParameters(ParameterHelper helper, DataDocument<G, D, L> document, D dictionary) {
         this.dependency = (IntensityDependency)helper.unwrap(document, document.getFromDictionary(dictionary, "intensityDependency"));
@@ -50,6 +50,28 @@ public class MissingPeakScorer implements IsotopePatternScorer {
 
     }
 
+    @Override
+    public PreparedIsotopePatternScorer prepare(double[] measuredMz, double[] measuredIntensities, Ms2Experiment experiment) {
+        return new PreparedIsotopePatternScorer() {
+            @Override
+            public void score(double[] scoreUptoKPeaks, double[] theoreticalMz, double[] theoreticalIntensities, int theoreticalSize) {
+                double score = 0d;
+                for (int k=theoreticalSize-1; k >= 0; --k) {
+                    final double intensity = theoreticalIntensities[k];
+                    if (intensity >= threshold) {
+                        if (k < scoreUptoKPeaks.length) scoreUptoKPeaks[k] += score;
+                        score -= intensity*lambda;
+                    }
+                }
+            }
+
+            @Override
+            public double upperBound(double theoreticalMonoisotopicMz) {
+                return 0d;
+            }
+        };
+    }
+
     @Override
     public <G, D, L> void importParameters(ParameterHelper helper, DataDocument<G, D, L> document, D dictionary) {
         if (document.hasKeyInDictionary(dictionary,"lambda"))
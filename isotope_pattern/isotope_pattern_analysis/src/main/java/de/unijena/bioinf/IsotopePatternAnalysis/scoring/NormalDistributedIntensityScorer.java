@@ -69,6 +69,46 @@ public class NormalDistributedIntensityScorer implements IsotopePatternScorer{
             scores[i] += score;
         }
     }
+    @Override
+    public PreparedIsotopePatternScorer prepare(double[] measuredMz, double[] measuredIntensities, Ms2Experiment experiment) {
+        final IsotopicIntensitySettings settings = experiment.getAnnotationOrDefault(IsotopicIntensitySettings.class);
+        final double sigmaA = settings.absoluteIntensityError;
+        final double sigmaR = settings.relativeIntensityError;
+        final int n = measuredIntensities.length;
+        // variance term, normalization and log odds baseline only depend on the measured intensity
+        final double[] variance = new double[n], norm = new double[n], baseline = new double[n];
+        double bound = 0d;
+        for (int i = 1; i < n; ++i) {
+            final double measuredIntensity = measuredIntensities[i];
+            variance[i] = 2*(sigmaA*sigmaA + measuredIntensity*measuredIntensity*sigmaR*sigmaR);
+            norm[i] = 2*Math.PI*measuredIntensity*sigmaR*sigmaR;
+            if (LOGODDS) {
+                final double sigma = measuredIntensity*2*sigmaR + 2*sigmaA;
+                baseline[i] = Math.log(Math.exp(-(sigma*sigma)/variance[i])/norm[i]);
+            }
+            // the peak probability is maximal for a perfect intensity match
+            bound += Math.max(0d, Math.log(1d/norm[i]) - baseline[i]);
+        }
+        final double upperBound = bound;
+        return new PreparedIsotopePatternScorer() {
+            @Override
+            public void score(double[] scores, double[] theoreticalMz, double[] theoreticalIntensities, int theoreticalSize) {
+                double score = 0d;
+                for (int i = 1; i < n; ++i) {
+                    final double delta = measuredIntensities[i]-theoreticalIntensities[i];
+                    score += Math.log(Math.exp(-(delta*delta)/variance[i])/norm[i]);
+                    score -= baseline[i];
+                    scores[i] += score;
+                }
+            }
+
+            @Override
+            public double upperBound(double theoreticalMonoisotopicMz) {
+                return upperBound;
+            }
+        };
+    }
+
 /*
     public void score2(double[] scores, Spectrum<Peak> measuredSpectrum, Spectrum<Peak> theoreticalSpectrum, Normalization usedNormalization, Ms2Experiment experiment) {
         if (usedNormalization.getBase() != 1 || usedNormalization.getMode() != NormalizationMode.MAX) {
@@ -0,0 +1,77 @@
+/*
+ *
+ *  This file is part of the SIRIUS library for analyzing MS and MS/MS data
+ *
+ *  Copyright (C) 2013-2020 Kai Dührkop, Markus Fleischauer, Marcus Ludwig, Martin A. Hoffman and Sebastian Böcker,
+ *  Chair of Bioinformatics, Friedrich-Schilller University.
+ *
+ *  This library is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public
+ *  License as published by the Free Software Foundation; either
+ *  version 3 of the License, or (at your option) any later version.
+ *
+ *  This library is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License along with SIRIUS. If not, see <https://www.gnu.org/licenses/lgpl-3.0.txt>
+ */
+
+package de.unijena.bioinf.IsotopePatternAnalysis.scoring;
+
+import de.unijena.bioinf.ChemistryBase.ms.Ms2Experiment;
+import de.unijena.bioinf.ChemistryBase.ms.Normalization;
+import de.unijena.bioinf.ChemistryBase.ms.utils.SimpleSpectrum;
+
+import java.util.Arrays;
+
+/**
+ * An {@link IsotopePatternScorer} bound to a single measured pattern (see {@link IsotopePatternScorer#prepare}).
+ * Annotations and per-peak constants are resolved once, so scoring a theoretical pattern neither allocates spectra
+ * nor looks up anything in the experiment.
+ */
+public interface PreparedIsotopePatternScorer {
+
+    /**
+     * The m/z of the first simulated peak may differ from the monoisotopic m/z of the formula by rounding errors.
+     * {@link #upperBound(double)} has to hold within this tolerance.
+     */
+    double MONOISOTOPIC_MZ_TOLERANCE = 1e-5;
+
+    /**
+     * adds the scores of the theoretical pattern to scoreUptoKPeaks, exactly as {@link IsotopePatternScorer#score}
+     * would do for the measured pattern this scorer is bound to.
+     * @param theoreticalMz m/z values of the theoretical pattern
+     * @param theoreticalIntensities intensities of the theoretical pattern, normalized to a maximum of 1
+     * @param theoreticalSize number of theoretical peaks. Is never smaller than the number of measured peaks.
+     */
+    void score(double[] scoreUptoKPeaks, double[] theoreticalMz, double[] theoreticalIntensities, int theoreticalSize);
+
+    /**
+     * @return an upper bound for each value {@link #score} adds to an entry of scoreUptoKPeaks, knowing only the
+     * monoisotopic m/z of the theoretical pattern. Double.POSITIVE_INFINITY if no bound is known.
+     */
+    double upperBound(double theoreticalMonoisotopicMz);
+
+    /**
+     * wraps an arbitrary scorer. The wrapped scorer works on spectra and provides no upper bound.
+     */
+    static PreparedIsotopePatternScorer of(IsotopePatternScorer scorer, double[] measuredMz, double[] measuredIntensities, Ms2Experiment experiment) {
+        final PreparedIsotopePatternScorer prepared = scorer.prepare(measuredMz, measuredIntensities, experiment);
+        if (prepared != null) return prepared;
+        final SimpleSpectrum measured = new SimpleSpectrum(measuredMz, measuredIntensities);
+        return new PreparedIsotopePatternScorer() {
+            @Override
+            public void score(double[] scoreUptoKPeaks, double[] theoreticalMz, double[] theoreticalIntensities, int theoreticalSize) {
+                final SimpleSpectrum theoretical = new SimpleSpectrum(Arrays.copyOf(theoreticalMz, theoreticalSize), Arrays.copyOf(theoreticalIntensities, theoreticalSize));
+                scorer.score(scoreUptoKPeaks, measured, theoretical, Normalization.Max(1), experiment);
+            }
+
+            @Override
+            public double upperBound(double theoreticalMonoisotopicMz) {
+                return Double.POSITIVE_INFINITY;
+            }
+        };
+    }
+}
@@ -0,0 +1,197 @@
+/*
+ *
+ *  This file is part of the SIRIUS library for analyzing MS and MS/MS data
+ *
+ *  Copyright (C) 2013-2020 Kai Dührkop, Markus Fleischauer, Marcus Ludwig, Martin A. Hoffman and Sebastian Böcker,
+ *  Chair of Bioinformatics, Friedrich-Schilller University.
+ *
+ *  This library is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public
+ *  License as published by the Free Software Foundation; either
+ *  version 3 of the License, or (at your option) any later version.
+ *
+ *  This library is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License along with SIRIUS. If not, see <https://www.gnu.org/licenses/lgpl-3.0.txt>
+ */
+
+package de.unijena.bioinf.IsotopePatternAnalysis;
+
+import de.unijena.bioinf.ChemistryBase.chem.FormulaConstraints;
+import de.unijena.bioinf.ChemistryBase.chem.Ionization;
+import de.unijena.bioinf.ChemistryBase.chem.MolecularFormula;
+import de.unijena.bioinf.ChemistryBase.chem.PeriodicTable;
+import de.unijena.bioinf.ChemistryBase.chem.PrecursorIonType;
+import de.unijena.bioinf.ChemistryBase.chem.utils.IsotopicDistribution;
+import de.unijena.bioinf.ChemistryBase.ms.Normalization;
+import de.unijena.bioinf.ChemistryBase.ms.utils.SimpleSpectrum;
+import de.unijena.bioinf.IsotopePatternAnalysis.generation.*;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.junit.Assert.*;
+
+public class IsotopePatternCacheTest {
+
+    private static void assertSamePattern(SimpleSpectrum expected, SimpleSpectrum actual) {
+        assertEquals(expected.size(), actual.size());
+        for (int k = 0; k < expected.size(); ++k) {
+            assertEquals(expected.getMzAt(k), actual.getMzAt(k), 1e-6);
+            assertEquals(expected.getIntensityAt(k), actual.getIntensityAt(k), 1e-6);
+        }
+    }
+
+    @Test
+    public void testCachedGenerator() {
+        final FastIsotopePatternGenerator generator = new FastIsotopePatternGenerator(Normalization.Max(1d));
+        final CachedIsotopePatternGenerator cached = new CachedIsotopePatternGenerator(new FastIsotopePatternGenerator(Normalization.Max(1d)), new IsotopePatternCache(10), null);
+        final Ionization ion = PrecursorIonType.getPrecursorIonType("[M+Na]+").getIonization();
+        final MolecularFormula formula = MolecularFormula.parseOrThrow("C27H42N9O12S");
+
+        assertSamePattern(generator.simulatePattern(formula, ion), cached.simulatePattern(formula, ion));
+        assertSamePattern(generator.simulatePattern(formula, ion), cached.simulatePattern(formula, ion));
+        assertEquals(1, cached.getCache().getHits());
+        assertEquals(1, cached.getCache().size());
+
+        // settings are forwarded to the underlying generator and patterns with the old settings are not returned
+        cached.setMaximalNumberOfPeaks(2);
+        assertEquals(2, cached.getMaximalNumberOfPeaks());
+        assertEquals(2, cached.getGenerator().getMaximalNumberOfPeaks());
+        assertEquals(2, cached.simulatePattern(formula, ion).size());
+        generator.setMaximalNumberOfPeaks(2);
+        assertSamePattern(generator.simulatePattern(formula, ion), cached.simulatePattern(formula, ion));
+        assertEquals(2, cached.getCache().size());
+
+        cached.setMinimalProbabilityThreshold(0.1);
+        generator.setMinimalProbabilityThreshold(0.1);
+        assertEquals(0.1, cached.getGenerator().getMinimalProbabilityThreshold(), 0d);
+        assertSamePattern(generator.simulatePattern(formula, ion), cached.simulatePattern(formula, ion));
+        assertEquals(3, cached.getCache().size());
+    }
+
+    @Test
+    public void testGeneratorsWithOtherDistributionsShareCache() {
+        final IsotopePatternCache cache = new IsotopePatternCache(10);
+        final IsotopicDistribution distribution = new IsotopicDistribution(PeriodicTable.getInstance());
+        distribution.merge(PeriodicTable.getInstance().getDistribution());
+        // carbon without 13C
+        distribution.addIsotope("C", new double[]{12d}, new double[]{1d});
+        final FastIsotopePatternGenerator onlyC12 = new FastIsotopePatternGenerator(distribution, Normalization.Max(1d));
+        final CachedIsotopePatternGenerator cached = new CachedIsotopePatternGenerator(new FastIsotopePatternGenerator(Normalization.Max(1d)), cache, null);
+        final CachedIsotopePatternGenerator cachedOnlyC12 = new CachedIsotopePatternGenerator(onlyC12, cache, null);
+        final Ionization ion = PrecursorIonType.getPrecursorIonType("[M+H]+").getIonization();
+        final MolecularFormula formula = MolecularFormula.parseOrThrow("C30H50");
+
+        final SimpleSpectrum pattern = cached.simulatePattern(formula, ion);
+        final SimpleSpectrum patternOnlyC12 = cachedOnlyC12.simulatePattern(formula, ion);
+        assertEquals(0, cache.getHits());
+        assertEquals(2, cache.size());
+        assertTrue(patternOnlyC12.getIntensityAt(1) < pattern.getIntensityAt(1) / 10);
+        assertSamePattern(onlyC12.simulatePattern(formula, ion), cachedOnlyC12.simulatePattern(formula, ion));
+        assertSamePattern(pattern, cached.simulatePattern(formula, ion));
+        assertEquals(2, cache.getHits());
+
+        final CachedIsotopePatternGenerator cachedSum = new CachedIsotopePatternGenerator(new FastIsotopePatternGenerator(Normalization.Sum(1d)), cache, null);
+        assertSamePattern(new FastIsotopePatternGenerator(Normalization.Sum(1d)).simulatePattern(formula, ion), cachedSum.simulatePattern(formula, ion));
+        assertEquals(3, cache.size());
+    }
+
+    @Test
+    public void testGeneratorsWithOtherLimitsShareCache() {
+        final IsotopePatternCache cache = new IsotopePatternCache(10);
+        final FastIsotopePatternGenerator twoPeaks = new FastIsotopePatternGenerator(Normalization.Max(1d));
+        twoPeaks.setMaximalNumberOfPeaks(2);
+        final CachedIsotopePatternGenerator cached = new CachedIsotopePatternGenerator(new FastIsotopePatternGenerator(Normalization.Max(1d)), cache, null);
+        final CachedIsotopePatternGenerator cachedTwoPeaks = new CachedIsotopePatternGenerator(twoPeaks, cache, null);
+        final Ionization ion = PrecursorIonType.getPrecursorIonType("[M+H]+").getIonization();
+        final MolecularFormula formula = MolecularFormula.parseOrThrow("C27H42N9O12S");
+
+        final int peaks = cached.simulatePattern(formula, ion).size();
+        assertTrue(peaks > 2);
+        assertEquals(2, cachedTwoPeaks.simulatePattern(formula, ion).size());
+        assertEquals(peaks, cached.simulatePattern(formula, ion).size());
+        assertEquals(2, cachedTwoPeaks.simulatePattern(formula, ion).size());
+        assertEquals(2, cache.size());
+        assertEquals(2, cache.getHits());
+    }
+
+    @Test
+    public void testMissReturnsCachedPattern() {
+        final CachedIsotopePatternGenerator cached = new CachedIsotopePatternGenerator(new FastIsotopePatternGenerator(Normalization.Max(1d)), new IsotopePatternCache(10), null);
+        final Ionization ion = PrecursorIonType.getPrecursorIonType("[M+H]+").getIonization();
+        final MolecularFormula formula = MolecularFormula.parseOrThrow("C20H25N3O");
+        final SimpleSpectrum miss = cached.simulatePattern(formula, ion);
+        final SimpleSpectrum hit = cached.simulatePattern(formula, ion);
+        assertEquals(1, cached.getCache().getHits());
+        assertEquals(miss.size(), hit.size());
+        for (int k = 0; k < miss.size(); ++k) {
+            assertEquals(miss.getMzAt(k), hit.getMzAt(k), 0d);
+            assertEquals(miss.getIntensityAt(k), hit.getIntensityAt(k), 0d);
+        }
+    }
+
+    @Test
+    public void testCacheIsBounded() {
+        final IsotopePatternCache cache = new IsotopePatternCache(20);
+        final FastIsotopePatternGenerator generator = new FastIsotopePatternGenerator(Normalization.Max(1d));
+        final Ionization ion = PrecursorIonType.getPrecursorIonType("[M+H]+").getIonization();
+        for (int c = 1; c < 200; ++c) {
+            final MolecularFormula formula = MolecularFormula.parseOrThrow("C" + c + "H" + (2 * c) + "O");
+            cache.put(generator, formula, ion, generator.simulatePattern(formula, ion));
+        }
+        assertTrue(cache.size() <= 20 + 16);
+    }
+
+    @Test
+    public void testTableRoundTrip() throws IOException {
+        final FastIsotopePatternGenerator generator = new FastIsotopePatternGenerator(Normalization.Max(1d));
+        final Ionization[] ions = {PrecursorIonType.getPrecursorIonType("[M+H]+").getIonization(), PrecursorIonType.getPrecursorIonType("[M+Na]+").getIonization()};
+        final Path file = Files.createTempFile("isotope-patterns", ".table");
+        try {
+            IsotopePatternTable.write(file, generator, 180, 181, new FormulaConstraints("CHNOPS"), ions);
+            final IsotopePatternTable table = IsotopePatternTable.open(file);
+            assertTrue(table.size() > 0);
+            assertTrue(table.isCompatible(generator));
+            assertFalse(table.isCompatible(new FastIsotopePatternGenerator(Normalization.Sum(1d))));
+
+            final MolecularFormula glucose = MolecularFormula.parseOrThrow("C6H12O6");
+            for (Ionization ion : ions)
+                assertSamePattern(generator.simulatePattern(glucose, ion), table.lookup(glucose, ion));
+            assertNull(table.lookup(MolecularFormula.parseOrThrow("C6H12O5Cl"), ions[0]));
+            assertNull(table.lookup(MolecularFormula.parseOrThrow("C6H12O7"), ions[0]));
+            assertNull(table.lookup(glucose, PrecursorIonType.getPrecursorIonType("[M+K]+").getIonization()));
+
+            final CachedIsotopePatternGenerator cached = new CachedIsotopePatternGenerator(generator, new IsotopePatternCache(10), table);
+            assertSamePattern(generator.simulatePattern(glucose, ions[1]), cached.simulatePattern(glucose, ions[1]));
+            assertEquals(0, cached.getCache().size());
+        } finally {
+            Files.deleteIfExists(file);
+        }
+    }
+
+    @Test
+    public void testTooLargeTableIsRejected() throws IOException {
+        final Path file = Files.createTempFile("isotope-patterns", ".table");
+        try {
+            // sparse file, nothing is written to the disk
+            try (RandomAccessFile raf = new RandomAccessFile(file.toFile(), "rw")) {
+                raf.setLength(IsotopePatternTable.MAXIMAL_FILE_SIZE + 1);
+            }
+            try {
+                IsotopePatternTable.open(file);
+                fail("Tables larger than 2 GB cannot be mapped.");
+            } catch (IOException e) {
+                assertTrue(e.getMessage().contains("must not be larger"));
+            }
+        } finally {
+            Files.deleteIfExists(file);
+        }
+    }
+}
@@ -0,0 +1,75 @@
+/*
+ *
+ *  This file is part of the SIRIUS library for analyzing MS and MS/MS data
+ *
+ *  Copyright (C) 2013-2020 Kai Dührkop, Markus Fleischauer, Marcus Ludwig, Martin A. Hoffman and Sebastian Böcker,
+ *  Chair of Bioinformatics, Friedrich-Schilller University.
+ *
+ *  This library is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public
+ *  License as published by the Free Software Foundation; either
+ *  version 3 of the License, or (at your option) any later version.
+ *
+ *  This library is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License along with SIRIUS. If not, see <https://www.gnu.org/licenses/lgpl-3.0.txt>
+ */
+
+package de.unijena.bioinf.IsotopePatternAnalysis;
+
+import de.unijena.bioinf.ChemistryBase.chem.FormulaConstraints;
+import de.unijena.bioinf.ChemistryBase.chem.MolecularFormula;
+import de.unijena.bioinf.ChemistryBase.chem.PrecursorIonType;
+import de.unijena.bioinf.ChemistryBase.ms.Deviation;
+import de.unijena.bioinf.ChemistryBase.ms.MutableMs2Experiment;
+import de.unijena.bioinf.ChemistryBase.ms.utils.SimpleMutableSpectrum;
+import de.unijena.bioinf.ChemistryBase.ms.utils.SimpleSpectrum;
+import de.unijena.bioinf.IsotopePatternAnalysis.scoring.MassDeviationScorer;
+import de.unijena.bioinf.IsotopePatternAnalysis.scoring.MassDifferenceDeviationScorer;
+import de.unijena.bioinf.IsotopePatternAnalysis.scoring.MissingPeakScorer;
+import de.unijena.bioinf.IsotopePatternAnalysis.scoring.NormalDistributedIntensityScorer;
+import org.junit.Test;
+
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class IsotopePatternScoringJobTest {
+
+    @Test
+    public void testTopCandidatesAreKept() throws Exception {
+        final IsotopePatternAnalysis analysis = new IsotopePatternAnalysis();
+        analysis.getIsotopePatternScorers().add(new MassDeviationScorer());
+        analysis.getIsotopePatternScorers().add(new MassDifferenceDeviationScorer());
+        analysis.getIsotopePatternScorers().add(new NormalDistributedIntensityScorer());
+        analysis.getIsotopePatternScorers().add(new MissingPeakScorer());
+        final MutableMs2Experiment experiment = new MutableMs2Experiment();
+        final PrecursorIonType ion = PrecursorIonType.getPrecursorIonType("[M+H]+");
+        final MolecularFormula correct = MolecularFormula.parseOrThrow("C20H17NO6");
+
+        final SimpleSpectrum simulated = analysis.getPatternGenerator().simulatePattern(correct, ion.getIonization());
+        final SimpleMutableSpectrum measured = new SimpleMutableSpectrum();
+        for (int k = 0; k < 4; ++k)
+            measured.addPeak(simulated.getMzAt(k) + 0.0005, simulated.getIntensityAt(k) * (k % 2 == 0 ? 1.02 : 0.98));
+        final SimpleSpectrum spectrum = new SimpleSpectrum(measured);
+
+        final List<MolecularFormula> candidates = analysis.getDecomposer().getDecomposer(new FormulaConstraints("CHNOPSClBrIF").getChemicalAlphabet())
+                .decomposeToFormulas(spectrum.getMzAt(0), ion.getIonization(), new Deviation(20), new FormulaConstraints("CHNOPSClBrIF"));
+        assertTrue(candidates.size() > 100);
+
+        final List<IsotopePattern> all = new IsotopePatternScoringJob(analysis, spectrum, experiment).addCandidates(ion, candidates).score(1);
+        assertEquals(candidates.size(), all.size());
+
+        final IsotopePatternScoringJob topJob = new IsotopePatternScoringJob(analysis, spectrum, experiment).addCandidates(ion, candidates);
+        topJob.setMaximalNumberOfCandidates(10);
+        final List<IsotopePattern> top = topJob.score(1);
+        assertEquals(10, top.size());
+        // the second run takes the patterns from the cache, the first one got them as they are stored in the cache
+        for (int i = 0; i < top.size(); ++i)
+            assertEquals(all.get(i).getScore(), top.get(i).getScore(), 0d);
+    }
+}
@@ -0,0 +1,94 @@
+/*
+ *
+ *  This file is part of the SIRIUS library for analyzing MS and MS/MS data
+ *
+ *  Copyright (C) 2013-2020 Kai Dührkop, Markus Fleischauer, Marcus Ludwig, Martin A. Hoffman and Sebastian Böcker,
+ *  Chair of Bioinformatics, Friedrich-Schilller University.
+ *
+ *  This library is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public
+ *  License as published by the Free Software Foundation; either
+ *  version 3 of the License, or (at your option) any later version.
+ *
+ *  This library is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License along with SIRIUS. If not, see <https://www.gnu.org/licenses/lgpl-3.0.txt>
+ */
+
+package de.unijena.bioinf.io.lcms;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Decoding of Base64 encoded and optionally zlib compressed peak arrays as used by mzML and mzXML.
+ * All methods are thread safe, they are called from the decoding workers of the {@link ScanDecodingPipeline}.
+ */
+final class BinaryDataArrays {
+
+    private BinaryDataArrays() {
+    }
+
+    /**
+     * decodes Base64. Line breaks within the encoded data are allowed.
+     */
+    static byte[] decodeBase64(String content) {
+        try {
+            return Base64.getDecoder().decode(content);
+        } catch (IllegalArgumentException e) {
+            // some writers wrap the encoded data into lines
+            return Base64.getMimeDecoder().decode(content);
+        }
+    }
+
+    /**
+     * @param expectedLength expected number of uncompressed bytes, or 0 if unknown. Is only used as initial buffer size.
+     */
+    static byte[] inflate(byte[] compressed, int expectedLength) throws IOException {
+        final Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(compressed);
+            byte[] buffer = new byte[Math.max(expectedLength, 2 * compressed.length + 16)];
+            int length = 0;
+            while (!inflater.finished()) {
+                if (length == buffer.length)
+                    buffer = Arrays.copyOf(buffer, buffer.length * 2);
+                final int written = inflater.inflate(buffer, length, buffer.length - length);
+                if (written == 0 && (inflater.needsInput() || inflater.needsDictionary()))
+                    break;
+                length += written;
+            }
+            return length == buffer.length ? buffer : Arrays.copyOf(buffer, length);
+        } catch (DataFormatException e) {
+            throw new IOException("Invalid zlib compressed peak data.", e);
+        } finally {
+            inflater.end();
+        }
+    }
+
+    /**
+     * converts the bytes into an array of numbers
+     * @param bytesPerValue 4 or 8
+     * @param floatingPoint true for IEEE floating point numbers, false for integers
+     */
+    static double[] toDoubles(byte[] bytes, ByteOrder order, int bytesPerValue, boolean floatingPoint) {
+        final ByteBuffer buffer = ByteBuffer.wrap(bytes).order(order);
+        final double[] values = new double[bytes.length / bytesPerValue];
+        if (bytesPerValue == 8) {
+            if (floatingPoint) buffer.asDoubleBuffer().get(values);
+            else for (int i = 0; i < values.length; ++i) values[i] = buffer.getLong(8 * i);
+        } else {
+            if (floatingPoint) for (int i = 0; i < values.length; ++i) values[i] = buffer.getFloat(4 * i);
+            else for (int i = 0; i < values.length; ++i) values[i] = buffer.getInt(4 * i);
+        }
+        return values;
+    }
+}
@@ -20,11 +20,13 @@
 
 package de.unijena.bioinf.io.lcms;
 
+import de.unijena.bioinf.lcms.MappedFileStorage;
 import de.unijena.bioinf.lcms.SpectrumStorage;
 import de.unijena.bioinf.model.lcms.LCMSRun;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.Optional;
 
 public class LCMSParsing {
 
@@ -37,6 +39,20 @@ public class LCMSParsing {
         throw new IOException("Illegal file extension. Only .mzml and .mzxml are supported");
     }
 
+    /**
+     * Restores the run from the storage if it was parsed from the same source file before. Otherwise, the source
+     * file is parsed into the (cleared) storage and the run is committed to it.
+     */
+    public static LCMSRun restoreOrParseRun(File source, MappedFileStorage storage) throws IOException {
+        final Optional<LCMSRun> restored = storage.restoreRun(source);
+        if (restored.isPresent())
+            return restored.get();
+        storage.clear();
+        final LCMSRun run = parseRun(source, storage);
+        storage.commit(run, source);
+        return run;
+    }
+
     public static LCMSRun parseRunFromMzXml(File source, SpectrumStorage storage) throws IOException {
         return new MzXMLParser().parse(source, storage);
     }
@@ -36,22 +36,62 @@ import org.slf4j.LoggerFactory;
 import uk.ac.ebi.jmzml.model.mzml.*;
 import uk.ac.ebi.jmzml.xml.io.MzMLUnmarshaller;
 
-import java.io.File;
-import java.io.IOException;
+import java.io.*;
 import java.net.URI;
+import java.net.URISyntaxException;
 import java.net.URL;
 import java.util.*;
+import java.util.function.Supplier;
 import java.util.stream.Collectors;
 
 public class MzMLParser implements LCMSParser {
 
     @Override
     public LCMSRun parse(File file, SpectrumStorage storage) throws IOException {
-        return parse(new DataSource(file), new MzMLUnmarshaller(file), storage);
+        try (final InputStream stream = new BufferedInputStream(new FileInputStream(file))) {
+            return parse(new DataSource(file), stream, storage, () -> new MzMLUnmarshaller(file));
+        }
     }
 
     public LCMSRun parse(URL source, SpectrumStorage storage) throws IOException {
-        return parse(new DataSource(source), new MzMLUnmarshaller(source), storage);
+        try (final InputStream stream = new BufferedInputStream(source.openStream())) {
+            return parse(new DataSource(source), stream, storage, () -> new MzMLUnmarshaller(source));
+        }
+    }
+
+    /**
+     * Streams the document through {@link MzMLStaxParser}. If it finds a binary array it cannot decode
+     * (e.g. MS-Numpress), the storage is cleared and the whole file is read with jmzML instead.
+     */
+    private LCMSRun parse(DataSource source, InputStream stream, SpectrumStorage storage, Supplier<MzMLUnmarshaller> fallback) throws IOException {
+        final LCMSRun run = new LCMSRun(source);
+        final MzMLStaxParser parser = new MzMLStaxParser(run);
+        try (final ScanDecodingPipeline pipeline = new ScanDecodingPipeline(run, storage)) {
+            try {
+                parser.parse(stream, pipeline);
+                pipeline.finish();
+            } catch (MzMLStaxParser.UnsupportedBinaryEncodingException e) {
+                LoggerFactory.getLogger(MzMLParser.class).debug(e.getMessage() + " Fall back to jmzML.");
+                pipeline.close();
+                // scans committed so far are read again
+                if (pipeline.getNumberOfCommittedScans() > 0) storage.clear();
+                return parse(source, fallback.get(), storage);
+            }
+        }
+        try {
+            setReference(run, source, parser.getRunId(), parser.getMzMlId());
+        } catch (URISyntaxException e) {
+            throw new IOException(e);
+        }
+        return run;
+    }
+
+    private static void setReference(LCMSRun run, DataSource source, String runId, String mzMlId) throws URISyntaxException {
+        // get source location oO
+        URI s = source.getUrl().toURI();
+        URI parent = s.getPath().endsWith("/") ? s.resolve("..") : s.resolve(".");
+        String fileName = parent.relativize(s).toString();
+        run.setReference(new MsDataSourceReference(parent, fileName, runId, mzMlId));
     }
 
     public LCMSRun parse(@NotNull DataSource source, @NotNull MzMLUnmarshaller um, @NotNull SpectrumStorage storage) throws IOException {
@@ -62,13 +102,7 @@ public class MzMLParser implements LCMSParser {
             Map<String, String> runAtts = um.getSingleElementAttributes("/run");
             final String runId = runAtts.get("id");
 
-            {
-                // get source location oO
-                URI s = source.getUrl().toURI();
-                URI parent = s.getPath().endsWith("/") ? s.resolve("..") : s.resolve(".");
-                String fileName = parent.relativize(s).toString();
-                run.setReference(new MsDataSourceReference(parent, fileName, runId, mzMlId));
-            }
+            setReference(run, source, runId, mzMlId);
 
             //todo run wide (default instrumentation) may differ from ms2 analyzer?
             // do we have to handle this
@@ -0,0 +1,425 @@
+/*
+ *
+ *  This file is part of the SIRIUS library for analyzing MS and MS/MS data
+ *
+ *  Copyright (C) 2013-2020 Kai Dührkop, Markus Fleischauer, Marcus Ludwig, Martin A. Hoffman and Sebastian Böcker,
+ *  Chair of Bioinformatics, Friedrich-Schilller University.
+ *
+ *  This library is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public
+ *  License as published by the Free Software Foundation; either
+ *  version 3 of the License, or (at your option) any later version.
+ *
+ *  This library is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License along with SIRIUS. If not, see <https://www.gnu.org/licenses/lgpl-3.0.txt>
+ */
+
+package de.unijena.bioinf.io.lcms;
+
+import de.unijena.bioinf.ChemistryBase.ms.IsolationWindow;
+import de.unijena.bioinf.ChemistryBase.ms.MsInstrumentation;
+import de.unijena.bioinf.ChemistryBase.ms.utils.SimpleSpectrum;
+import de.unijena.bioinf.ChemistryBase.ms.utils.Spectrums;
+import de.unijena.bioinf.model.lcms.LCMSRun;
+import de.unijena.bioinf.model.lcms.Polarity;
+import de.unijena.bioinf.model.lcms.Precursor;
+import de.unijena.bioinf.model.lcms.Scan;
+import org.slf4j.LoggerFactory;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteOrder;
+import java.util.*;
+
+/**
+ * Streaming mzML reader. Reads the same information as the jmzML based {@link MzMLParser}, but in a single pass
+ * with StAX. Spectrum metadata is read in the parser thread, the binary data arrays are only cut out of the
+ * document and decoded by the workers of the {@link ScanDecodingPipeline}.
+ */
+class MzMLStaxParser {
+
+    /**
+     * thrown for binary data arrays this reader cannot decode, e.g. MS-Numpress compressed arrays
+     */
+    static class UnsupportedBinaryEncodingException extends IOException {
+        UnsupportedBinaryEncodingException(String message) {
+            super(message);
+        }
+    }
+
+    private static final class CvParam {
+        private final String accession, name, value, unitAccession, unitName;
+
+        private CvParam(XMLStreamReader reader) {
+            this.accession = reader.getAttributeValue(null, "accession");
+            this.name = reader.getAttributeValue(null, "name");
+            this.value = reader.getAttributeValue(null, "value");
+            this.unitAccession = reader.getAttributeValue(null, "unitAccession");
+            this.unitName = reader.getAttributeValue(null, "unitName");
+        }
+    }
+
+    private static final class EncodedArray {
+        private final String data;
+        private final int length, bytesPerValue;
+        private final boolean floatingPoint, zlib;
+
+        private EncodedArray(String data, int length, int bytesPerValue, boolean floatingPoint, boolean zlib) {
+            this.data = data;
+            this.length = length;
+            this.bytesPerValue = bytesPerValue;
+            this.floatingPoint = floatingPoint;
+            this.zlib = zlib;
+        }
+
+        private double[] decode() throws IOException {
+            byte[] bytes = BinaryDataArrays.decodeBase64(data);
+            if (zlib) bytes = BinaryDataArrays.inflate(bytes, length * bytesPerValue);
+            return BinaryDataArrays.toDoubles(bytes, ByteOrder.LITTLE_ENDIAN, bytesPerValue, floatingPoint);
+        }
+    }
+
+    private final LCMSRun run;
+    private final Map<String, List<CvParam>> paramGroups;
+    private final Map<String, String> instruments;
+    // mzML references spectra by id, but scans are identified by index
+    private final Map<String, Integer> idToIndex;
+    private String mzMlId, runId, defaultInstrumentConfiguration;
+    private int numberOfSpectra;
+
+    MzMLStaxParser(LCMSRun run) {
+        this.run = run;
+        this.paramGroups = new HashMap<>();
+        this.instruments = new HashMap<>();
+        this.idToIndex = new HashMap<>();
+    }
+
+    String getMzMlId() {
+        return mzMlId;
+    }
+
+    String getRunId() {
+        return runId;
+    }
+
+    void parse(InputStream stream, ScanDecodingPipeline pipeline) throws IOException {
+        final XMLInputFactory factory = XMLInputFactory.newInstance();
+        factory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+        factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+        try {
+            final XMLStreamReader reader = factory.createXMLStreamReader(stream);
+            try {
+                while (reader.hasNext()) {
+                    if (reader.next() != XMLStreamConstants.START_ELEMENT) continue;
+                    switch (reader.getLocalName()) {
+                        case "mzML":
+                            mzMlId = reader.getAttributeValue(null, "id");
+                            break;
+                        case "referenceableParamGroup":
+                            readParamGroup(reader);
+                            break;
+                        case "instrumentConfiguration":
+                            readInstrumentConfiguration(reader);
+                            break;
+                        case "run":
+                            runId = reader.getAttributeValue(null, "id");
+                            defaultInstrumentConfiguration = reader.getAttributeValue(null, "defaultInstrumentConfigurationRef");
+                            break;
+                        case "spectrum":
+                            readSpectrum(reader, pipeline);
+                            break;
+                    }
+                }
+            } finally {
+                reader.close();
+            }
+        } catch (XMLStreamException e) {
+            throw new IOException(e);
+        }
+
+        final String instrumentInfo = instruments.getOrDefault(defaultInstrumentConfiguration == null ? "" : defaultInstrumentConfiguration, "");
+        run.setInstrument(Arrays.stream(MsInstrumentation.Instrument.values()).map(i -> (MsInstrumentation) i)
+                .filter(i -> i.isInstrument(instrumentInfo)).findFirst().orElse(MsInstrumentation.Unknown)
+        );
+    }
+
+    private void readParamGroup(XMLStreamReader reader) throws XMLStreamException {
+        final List<CvParam> params = new ArrayList<>();
+        paramGroups.put(reader.getAttributeValue(null, "id"), params);
+        int depth = 1;
+        while (depth > 0) {
+            final int event = reader.next();
+            if (event == XMLStreamConstants.START_ELEMENT) {
+                ++depth;
+                if (reader.getLocalName().equals("cvParam")) params.add(new CvParam(reader));
+            } else if (event == XMLStreamConstants.END_ELEMENT) {
+                --depth;
+            }
+        }
+    }
+
+    private void addParams(XMLStreamReader reader, List<CvParam> params) {
+        if (reader.getLocalName().equals("cvParam")) {
+            params.add(new CvParam(reader));
+        } else {
+            params.addAll(paramGroups.getOrDefault(reader.getAttributeValue(null, "ref"), Collections.emptyList()));
+        }
+    }
+
+    private static boolean isParam(String elementName) {
+        return elementName.equals("cvParam") || elementName.equals("referenceableParamGroupRef");
+    }
+
+    private void readInstrumentConfiguration(XMLStreamReader reader) throws XMLStreamException {
+        final String id = reader.getAttributeValue(null, "id");
+        final List<String> description = new ArrayList<>();
+        final List<CvParam> params = new ArrayList<>();
+        final ArrayDeque<String> path = new ArrayDeque<>();
+        path.push("instrumentConfiguration");
+        while (!path.isEmpty()) {
+            final int event = reader.next();
+            if (event == XMLStreamConstants.START_ELEMENT) {
+                final String name = reader.getLocalName();
+                final String parent = path.peek();
+                // as in MzMLParser, only the configuration itself and its analyzers describe the instrument
+                if (parent.equals("instrumentConfiguration") || parent.equals("analyzer")) {
+                    if (name.equals("userParam")) description.add(reader.getAttributeValue(null, "value"));
+                    else if (isParam(name)) addParams(reader, params);
+                }
+                path.push(name);
+            } else if (event == XMLStreamConstants.END_ELEMENT) {
+                path.pop();
+            }
+        }
+        for (CvParam param : params) description.add(param.name);
+        instruments.put(id, String.join(", ", description));
+    }
+
+    private void readSpectrum(XMLStreamReader reader, ScanDecodingPipeline pipeline) throws XMLStreamException, IOException {
+        final String id = reader.getAttributeValue(null, "id");
+        final int index = parseInt(reader.getAttributeValue(null, "index"), numberOfSpectra);
+        final int defaultArrayLength = parseInt(reader.getAttributeValue(null, "defaultArrayLength"), 0);
+        ++numberOfSpectra;
+
+        final List<CvParam> spectrumParams = new ArrayList<>(), scanParams = new ArrayList<>(), isolationWindowParams = new ArrayList<>(),
+                selectedIonParams = new ArrayList<>(), activationParams = new ArrayList<>();
+        String precursorRef = null;
+        int scans = 0, precursors = 0, selectedIons = 0;
+        List<CvParam> arrayParams = null;
+        String arrayData = null;
+        int arrayLength = 0;
+        EncodedArray mzArray = null, intensityArray = null;
+
+        final ArrayDeque<String> path = new ArrayDeque<>();
+        path.push("spectrum");
+        while (!path.isEmpty()) {
+            final int event = reader.next();
+            if (event == XMLStreamConstants.START_ELEMENT) {
+                final String name = reader.getLocalName();
+                final String parent = path.peek();
+                if (isParam(name)) {
+                    // only the first scan, precursor and selected ion are used
+                    switch (parent) {
+                        case "spectrum":
+                            addParams(reader, spectrumParams);
+                            break;
+                        case "scan":
+                            if (scans == 1) addParams(reader, scanParams);
+                            break;
+                        case "isolationWindow":
+                            if (precursors == 1) addParams(reader, isolationWindowParams);
+                            break;
+                        case "selectedIon":
+                            if (precursors == 1 && selectedIons == 1) addParams(reader, selectedIonParams);
+                            break;
+                        case "activation":
+                            if (precursors == 1) addParams(reader, activationParams);
+                            break;
+                        case "binaryDataArray":
+                            addParams(reader, arrayParams);
+                            break;
+                    }
+                } else if (name.equals("scan")) {
+                    ++scans;
+                } else if (name.equals("precursor")) {
+                    if (++precursors == 1) precursorRef = reader.getAttributeValue(null, "spectrumRef");
+                } else if (name.equals("selectedIon")) {
+                    if (precursors == 1) ++selectedIons;
+                } else if (name.equals("binaryDataArray")) {
+                    arrayParams = new ArrayList<>();
+                    arrayData = null;
+                    arrayLength = parseInt(reader.getAttributeValue(null, "arrayLength"), defaultArrayLength);
+                } else if (name.equals("binary")) {
+                    // consumes the end element, so binary is never pushed
+                    arrayData = reader.getElementText();
+                    continue;
+                }
+                path.push(name);
+            } else if (event == XMLStreamConstants.END_ELEMENT) {
+                if (path.pop().equals("binaryDataArray") && arrayParams != null) {
+                    if (hasParam(arrayParams, "MS:1000514"))
+                        mzArray = encodedArray(id, arrayParams, arrayData, arrayLength);
+                    else if (hasParam(arrayParams, "MS:1000515"))
+                        intensityArray = encodedArray(id, arrayParams, arrayData, arrayLength);
+                }
+            }
+        }
+        if (id != null) idToIndex.put(id, index);
+
+        Polarity polarity = Polarity.UNKNOWN;
+        int msLevel = 1;
+        boolean centroided = true;
+        for (CvParam cvParam : spectrumParams) {
+            switch (cvParam.accession) {
+                case "MS:1000129":
+                    polarity = Polarity.NEGATIVE;
+                    break;
+                case "MS:1000130":
+                    polarity = Polarity.POSITIVE;
+                    break;
+                case "MS:1000511":
+                    msLevel = Integer.parseInt(cvParam.value);
+                    break;
+                case "MS:1000127":
+                    centroided = true;
+                    break;
+                case "MS:1000128":
+                    centroided = false;
+                    break;
+            }
+        }
+
+        long retentionTimeMillis = 0L;
+        for (CvParam cvParam : scanParams) {
+            if (cvParam.accession.equals("MS:1000016")) {
+                if (cvParam.unitAccession == null && cvParam.unitName == null)
+                    throw new IOException("Unknown time unit for retention time of spectrum " + id);
+                retentionTimeMillis = Math.round(CVUtils.getTimeInSeconds(cvParam.value, cvParam.unitAccession, cvParam.unitName) * 1000d);
+            }
+        }
+
+        Precursor precursor = null;
+        double collisionEnergy = 0d;
+        if (msLevel > 1 && precursors > 0) {
+            collisionEnergy = activationParams.stream().filter(cv -> cv.accession.equals("MS:1000045"))
+                    .findFirst().map(cv -> Double.parseDouble(cv.value)).orElse(0d);
+            precursor = makePrecursor(precursorRef, isolationWindowParams, selectedIonParams);
+        }
+
+        if (mzArray == null || intensityArray == null) {
+            LoggerFactory.getLogger(MzMLParser.class).warn("No spectrum data found in Spectrum with id: " + id);
+        }
+        final EncodedArray mz = mzArray, intensities = intensityArray;
+        final Polarity scanPolarity = polarity;
+        final long retentionTime = retentionTimeMillis;
+        final double energy = collisionEnergy;
+        final boolean centroidedScan = centroided;
+        final Precursor scanPrecursor = precursor;
+        pipeline.submit(() -> {
+            final double[] mzs = mz == null || intensities == null ? new double[0] : mz.decode();
+            final double[] ints = mz == null || intensities == null ? new double[0] : intensities.decode();
+            final SimpleSpectrum spec = Spectrums.getBaselined(Spectrums.wrap(mzs, ints), 0);
+            final Scan scan = new Scan(index, scanPolarity, retentionTime, energy, spec.size(), Spectrums.calculateTIC(spec), centroidedScan, scanPrecursor);
+            return new ScanDecodingPipeline.DecodedScan(scan, spec);
+        });
+    }
+
+    private static EncodedArray encodedArray(String spectrumId, List<CvParam> params, String data, int length) throws UnsupportedBinaryEncodingException {
+        int bytesPerValue = 0;
+        boolean floatingPoint = true, zlib = false;
+        for (CvParam param : params) {
+            switch (param.accession) {
+                case "MS:1000521": // 32-bit float
+                    bytesPerValue = 4;
+                    floatingPoint = true;
+                    break;
+                case "MS:1000523": // 64-bit float
+                    bytesPerValue = 8;
+                    floatingPoint = true;
+                    break;
+                case "MS:1000519": // 32-bit integer
+                    bytesPerValue = 4;
+                    floatingPoint = false;
+                    break;
+                case "MS:1000522": // 64-bit integer
+                    bytesPerValue = 8;
+                    floatingPoint = false;
+                    break;
+                case "MS:1000574": // zlib compression
+                    zlib = true;
+                    break;
+                case "MS:1000576": // no compression
+                    break;
+                default:
+                    if (param.name != null && param.name.toLowerCase().contains("compression"))
+                        throw new UnsupportedBinaryEncodingException("Unsupported compression '" + param.name + "' in spectrum " + spectrumId + ".");
+            }
+        }
+        if (bytesPerValue == 0)
+            throw new UnsupportedBinaryEncodingException("Unknown data type of binary data array in spectrum " + spectrumId + ".");
+        return new EncodedArray(data == null ? "" : data, length, bytesPerValue, floatingPoint, zlib);
+    }
+
+    private Precursor makePrecursor(String spectrumRef, List<CvParam> isolationWindowParams, List<CvParam> selectedIonParams) {
+        IsolationWindow w = new IsolationWindow(0, Double.NaN);
+        double target_mz = Double.NaN;
+        if (!isolationWindowParams.isEmpty()) {
+            double lower = 0;
+            double higher = 0;
+            for (CvParam cvParam : isolationWindowParams) {
+                switch (cvParam.accession) {
+                    case "MS:1000827": // isolation window target m/z
+                        target_mz = (Double.parseDouble(cvParam.value));
+                        break;
+                    case "MS:1000828":
+                        lower = (Double.parseDouble(cvParam.value));
+                        break;
+                    case "MS:1000829":
+                        higher = (Double.parseDouble(cvParam.value));
+                        break;
+                }
+            }
+            w = IsolationWindow.fromOffsets(lower, higher);
+        }
+
+        double intensity = Double.NaN;
+        double selectedIon_mz = Double.NaN;
+        int chargeState = 0;
+        for (CvParam cvParam : selectedIonParams) {
+            switch (cvParam.accession) {
+                case "MS:1000744": // selected ion m/z
+                    selectedIon_mz = (Double.parseDouble(cvParam.value));
+                    break;
+                case "MS:1000042": // intensity
+                    intensity = (Double.parseDouble(cvParam.value));
+                    break;
+                case "MS:1000041": // charge state
+                    chargeState = Integer.parseInt(cvParam.value);
+                    break;
+            }
+        }
+        //use isolation target m/z if available
+        double mz = !Double.isNaN(target_mz) ? target_mz : selectedIon_mz;
+
+        // precursor spectra precede their fragment spectra, so the referenced id is already known
+        return new Precursor(idToIndex.getOrDefault(spectrumRef, -1), mz, intensity, chargeState, w);
+    }
+
+    private static boolean hasParam(List<CvParam> params, String accession) {
+        for (CvParam param : params)
+            if (accession.equals(param.accession)) return true;
+        return false;
+    }
+
+    private static int parseInt(String value, int defaultValue) {
+        return value == null ? defaultValue : Integer.parseInt(value);
+    }
+}
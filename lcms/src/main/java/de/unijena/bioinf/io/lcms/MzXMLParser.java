@@ -39,10 +39,11 @@ public class MzXMLParser implements LCMSParser{
     @Override
     public LCMSRun parse(File file, SpectrumStorage storage) throws IOException {
         final LCMSRun run = new LCMSRun(new DataSource(file));
-        try {
-            SAXParserFactory.newInstance().newSAXParser().parse(file,new MzXMLSaxParser(run, storage));
+        try (final ScanDecodingPipeline pipeline = new ScanDecodingPipeline(run, storage)) {
+            SAXParserFactory.newInstance().newSAXParser().parse(file,new MzXMLSaxParser(run, pipeline));
+            pipeline.finish();
         } catch (SAXException|ParserConfigurationException e) {
-            throw new IOException(e);
+            throw unwrap(e);
         }
         run.setReference(new MsDataSourceReference(file.getParentFile().toURI(), file.getName(), null, null));
         return run;
@@ -50,10 +51,11 @@ public class MzXMLParser implements LCMSParser{
 
     public LCMSRun parse(DataSource source, InputSource input, SpectrumStorage storage) throws IOException {
         final LCMSRun run = new LCMSRun(source);
-        try {
-            SAXParserFactory.newInstance().newSAXParser().parse(input,new MzXMLSaxParser(run, storage));
+        try (final ScanDecodingPipeline pipeline = new ScanDecodingPipeline(run, storage)) {
+            SAXParserFactory.newInstance().newSAXParser().parse(input,new MzXMLSaxParser(run, pipeline));
+            pipeline.finish();
         } catch (SAXException|ParserConfigurationException e) {
-            throw new IOException(e);
+            throw unwrap(e);
         }
         {
             // get source location
@@ -69,4 +71,10 @@ public class MzXMLParser implements LCMSParser{
         return run;
     }
 
+    private static IOException unwrap(Exception e) {
+        if (e instanceof SAXException && ((SAXException) e).getException() instanceof IOException)
+            return (IOException) ((SAXException) e).getException();
+        return new IOException(e);
+    }
+
 }
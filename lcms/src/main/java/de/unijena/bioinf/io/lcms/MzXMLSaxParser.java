@@ -23,9 +23,7 @@ package de.unijena.bioinf.io.lcms;
 import de.unijena.bioinf.ChemistryBase.ms.MsInstrumentation;
 import de.unijena.bioinf.ChemistryBase.ms.utils.SimpleSpectrum;
 import de.unijena.bioinf.ChemistryBase.ms.utils.Spectrums;
-import de.unijena.bioinf.lcms.SpectrumStorage;
 import de.unijena.bioinf.model.lcms.*;
-import gnu.trove.list.array.TByteArrayList;
 import org.xml.sax.Attributes;
 import org.xml.sax.SAXException;
 import org.xml.sax.helpers.DefaultHandler;
@@ -33,17 +31,12 @@ import org.xml.sax.helpers.DefaultHandler;
 import javax.xml.datatype.DatatypeConfigurationException;
 import javax.xml.datatype.DatatypeFactory;
 import java.io.IOException;
-import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
-import java.nio.DoubleBuffer;
-import java.nio.FloatBuffer;
 import java.util.ArrayList;
-import java.util.Base64;
 import java.util.Calendar;
 import java.util.List;
+import java.util.concurrent.Callable;
 import java.util.function.Function;
-import java.util.zip.DataFormatException;
-import java.util.zip.Inflater;
 
 class MzXMLSaxParser extends DefaultHandler {
 
@@ -51,19 +44,15 @@ class MzXMLSaxParser extends DefaultHandler {
     private Handler handler;
     private StringBuilder buffer;
     private LCMSRun lcms;
-    private SpectrumStorage storage;
+    private ScanDecodingPipeline pipeline;
     private final DatatypeFactory datatypeFactory;
 
-    private final TByteArrayList totalBuffer = new TByteArrayList(1024);
-    private byte[] bytebuffer;
-
-    public MzXMLSaxParser(LCMSRun run, SpectrumStorage storage) throws IOException {
+    public MzXMLSaxParser(LCMSRun run, ScanDecodingPipeline pipeline) throws IOException {
         this.stack = new ArrayList<>();
         this.lcms = run;
         this.handler = new RootHandler();
-        this.storage = storage;
+        this.pipeline = pipeline;
         this.buffer = new StringBuilder();
-        this.bytebuffer = new byte[1024];
         try {
             this.datatypeFactory = DatatypeFactory.newInstance();
         } catch (DatatypeConfigurationException e) {
@@ -121,7 +110,7 @@ class MzXMLSaxParser extends DefaultHandler {
 
         public abstract void enterElement(String elementName, Attributes attrs);
 
-        public abstract void leaveElement(String elementName, String content);
+        public abstract void leaveElement(String elementName, String content) throws SAXException;
 
         public void push(Handler h) {
             stack.add(this);
@@ -211,7 +200,7 @@ class MzXMLSaxParser extends DefaultHandler {
         int precursorScanNumber, charge;
         double precursorIntensity, isolationWindowWidth, precursorMz;
 
-        double[] mzArray, intensityArray;
+        String peaks;
 
         boolean zlib;
 
@@ -246,38 +235,61 @@ class MzXMLSaxParser extends DefaultHandler {
         }
 
         @Override
-        public void leaveElement(String elementName, String content) {
+        public void leaveElement(String elementName, String content) throws SAXException {
             if (elementName.equals("precursorMz")) {
                 precursorMz = Double.parseDouble(content);
                 listen(false);
             } else if (elementName.equals("peaks")) {
-                ByteBuffer W = ByteBuffer.wrap(zlib ? decompress(content) : Base64.getDecoder().decode(content));
-                W.order(ByteOrder.BIG_ENDIAN);
-                if (precision==0) {
-                    // estimate precision from length...
-                    if (W.capacity() == (npeaks*16))
-                        precision = 2;
-                    else
-                        precision = 1;
+                peaks = content;
+                listen(false);
+            } else if (elementName.equals("scan")) {
+                try {
+                    pipeline.submit(decoder());
+                } catch (IOException e) {
+                    throw new SAXException(e);
                 }
-                if (precision==1) {
-                    FloatBuffer f = W.asFloatBuffer();
-                    this.mzArray = new double[f.limit()>>1];
-                    this.intensityArray = new double[f.limit()>>1];
-                    for (int i=0; i < mzArray.length; ++i) {
-                        mzArray[i] = f.get();
-                        intensityArray[i] = f.get();
+                listen(false);
+                pop();
+            }
+        }
+
+        /**
+         * decoding and inflating the peaks is done by the workers of the pipeline, the decoder only captures the
+         * attributes of this scan
+         */
+        private Callable<ScanDecodingPipeline.DecodedScan> decoder() {
+            final String peaks = this.peaks;
+            final boolean zlib = this.zlib;
+            final int npeaks = this.npeaks, scanNumber = this.scanNumber, msLevel = this.msLevel;
+            final Polarity polarity = this.polarity;
+            final long retentionTime = this.retentionTime;
+            final double collisionEnergy = this.collisionEnergy;
+            final boolean centroided = this.centroided;
+            final Precursor prec;
+            if (msLevel>1) {
+                prec = new Precursor(precursorScanNumber,precursorMz,precursorIntensity,charge,isolationWindowWidth);
+            } else prec = null;
+            final int givenPrecision = this.precision;
+            return () -> {
+                double[] mzArray = new double[0], intensityArray = new double[0];
+                if (peaks != null) {
+                    final byte[] bytes = zlib ? BinaryDataArrays.inflate(BinaryDataArrays.decodeBase64(peaks), npeaks * 16) : BinaryDataArrays.decodeBase64(peaks);
+                    int precision = givenPrecision;
+                    if (precision==0) {
+                        // estimate precision from length...
+                        if (bytes.length == (npeaks*16))
+                            precision = 2;
+                        else
+                            precision = 1;
                     }
-                } else {
-                    DoubleBuffer f = W.asDoubleBuffer();
-                    this.mzArray = new double[f.limit()>>1];
-                    this.intensityArray = new double[f.limit()>>1];
+                    final double[] values = precision==1 ? BinaryDataArrays.toDoubles(bytes, ByteOrder.BIG_ENDIAN, 4, true) : BinaryDataArrays.toDoubles(bytes, ByteOrder.BIG_ENDIAN, 8, true);
+                    mzArray = new double[values.length>>1];
+                    intensityArray = new double[values.length>>1];
                     for (int i=0; i < mzArray.length; ++i) {
-                        mzArray[i] = f.get();
-                        intensityArray[i] = f.get();
+                        mzArray[i] = values[2*i];
+                        intensityArray[i] = values[2*i+1];
                     }
                 }
-            } else if (elementName.equals("scan")) {
                 SimpleSpectrum spectrum = new SimpleSpectrum(mzArray, intensityArray);
                 double TIC = 0d;
                 boolean zeroIntensity = false;
@@ -288,31 +300,9 @@ class MzXMLSaxParser extends DefaultHandler {
                 if (zeroIntensity) {
                     spectrum = Spectrums.getBaselined(spectrum,0);
                 }
-                Precursor prec;
-                if (msLevel>1) {
-                    prec = new Precursor(precursorScanNumber,precursorMz,precursorIntensity,charge,isolationWindowWidth);
-                } else prec = null;
                 final Scan scan = new Scan(scanNumber,polarity,retentionTime,collisionEnergy,spectrum.size(), TIC, centroided, prec);
-                storage.add(scan, spectrum);
-                lcms.addScan(scan);
-                listen(false);
-                pop();
-            }
-        }
-
-        private byte[] decompress(String content) {
-            totalBuffer.clearQuick();
-            final Inflater inflater = new Inflater();
-            inflater.setInput(Base64.getDecoder().decode(content));
-            while (true){
-                try {
-                    int written = inflater.inflate(bytebuffer);
-                    if (written==0) return totalBuffer.toArray();
-                    else totalBuffer.add(bytebuffer,0,written);
-                } catch (DataFormatException e) {
-                    throw new RuntimeException(e);
-                }
-            }
+                return new ScanDecodingPipeline.DecodedScan(scan, spectrum);
+            };
         }
 
     }
@@ -0,0 +1,146 @@
+/*
+ *
+ *  This file is part of the SIRIUS library for analyzing MS and MS/MS data
+ *
+ *  Copyright (C) 2013-2020 Kai Dührkop, Markus Fleischauer, Marcus Ludwig, Martin A. Hoffman and Sebastian Böcker,
+ *  Chair of Bioinformatics, Friedrich-Schilller University.
+ *
+ *  This library is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public
+ *  License as published by the Free Software Foundation; either
+ *  version 3 of the License, or (at your option) any later version.
+ *
+ *  This library is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License along with SIRIUS. If not, see <https://www.gnu.org/licenses/lgpl-3.0.txt>
+ */
+
+package de.unijena.bioinf.io.lcms;
+
+import de.unijena.bioinf.ChemistryBase.jobs.SiriusJobs;
+import de.unijena.bioinf.ChemistryBase.ms.utils.SimpleSpectrum;
+import de.unijena.bioinf.jjobs.BasicJJob;
+import de.unijena.bioinf.lcms.SpectrumStorage;
+import de.unijena.bioinf.model.lcms.LCMSRun;
+import de.unijena.bioinf.model.lcms.Scan;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+/**
+ * Decodes the peak arrays of scans in parallel while the parser keeps reading the file. The parser submits one
+ * decoding task per scan, the tasks run as CPU jobs of the global job manager and the decoded scans are
+ * committed to the storage and the run in submission order.
+ * <p>
+ * At most a fixed number of scans is pending at any time, so the memory usage does not depend on the file size.
+ * If the task of the oldest pending scan has not started yet when it has to be committed, it is run in the
+ * parser thread. So parsing never waits for a free worker, even if the parser itself runs inside a job.
+ */
+final class ScanDecodingPipeline implements AutoCloseable {
+
+    static final class DecodedScan {
+        final Scan scan;
+        final SimpleSpectrum spectrum;
+
+        DecodedScan(Scan scan, SimpleSpectrum spectrum) {
+            this.scan = scan;
+            this.spectrum = spectrum;
+        }
+    }
+
+    private final LCMSRun run;
+    private final SpectrumStorage storage;
+    private final int windowSize;
+    private final ArrayDeque<FutureTask<DecodedScan>> window;
+    private int numberOfCommittedScans;
+
+    ScanDecodingPipeline(LCMSRun run, SpectrumStorage storage) {
+        this(run, storage, 4 * SiriusJobs.getCPUThreads());
+    }
+
+    ScanDecodingPipeline(LCMSRun run, SpectrumStorage storage, int windowSize) {
+        if (windowSize < 1)
+            throw new IllegalArgumentException("Decoding window must contain at least one scan but was " + windowSize);
+        this.run = run;
+        this.storage = storage;
+        this.windowSize = windowSize;
+        this.window = new ArrayDeque<>(windowSize + 1);
+        this.numberOfCommittedScans = 0;
+    }
+
+    /**
+     * enqueues the decoding of a scan. Commits the oldest scans if the window is full.
+     */
+    void submit(Callable<DecodedScan> decoder) throws IOException {
+        final FutureTask<DecodedScan> task = new FutureTask<>(decoder);
+        window.add(task);
+        SiriusJobs.getGlobalJobManager().submitJob(new DecodeJob(task));
+        while (window.size() > windowSize)
+            commitFirst();
+    }
+
+    /**
+     * commits all pending scans
+     */
+    void finish() throws IOException {
+        while (!window.isEmpty())
+            commitFirst();
+    }
+
+    int getNumberOfCommittedScans() {
+        return numberOfCommittedScans;
+    }
+
+    /**
+     * drops all pending scans. Scans which are already committed stay in the storage.
+     */
+    @Override
+    public void close() {
+        FutureTask<DecodedScan> task;
+        while ((task = window.poll()) != null)
+            task.cancel(false);
+    }
+
+    private void commitFirst() throws IOException {
+        final FutureTask<DecodedScan> task = window.poll();
+        // does nothing if a worker already started the task
+        task.run();
+        final DecodedScan decoded;
+        try {
+            decoded = task.get();
+        } catch (ExecutionException e) {
+            close();
+            final Throwable cause = e.getCause() != null ? e.getCause() : e;
+            if (cause instanceof IOException) throw (IOException) cause;
+            throw new IOException("Cannot decode scan.", cause);
+        } catch (InterruptedException e) {
+            close();
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while decoding scans.", e);
+        }
+        storage.add(decoded.scan, decoded.spectrum);
+        run.addScan(decoded.scan);
+        ++numberOfCommittedScans;
+    }
+
+    private static class DecodeJob extends BasicJJob<Object> {
+        private final FutureTask<DecodedScan> task;
+
+        private DecodeJob(FutureTask<DecodedScan> task) {
+            super(JobType.CPU);
+            this.task = task;
+        }
+
+        @Override
+        protected Object compute() {
+            task.run();
+            return null;
+        }
+    }
+}
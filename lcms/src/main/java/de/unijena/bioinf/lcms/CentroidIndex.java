@@ -0,0 +1,254 @@
+/*
+ *
+ *  This file is part of the SIRIUS library for analyzing MS and MS/MS data
+ *
+ *  Copyright (C) 2013-2020 Kai Dührkop, Markus Fleischauer, Marcus Ludwig, Martin A. Hoffman and Sebastian Böcker,
+ *  Chair of Bioinformatics, Friedrich-Schilller University.
+ *
+ *  This library is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public
+ *  License as published by the Free Software Foundation; either
+ *  version 3 of the License, or (at your option) any later version.
+ *
+ *  This library is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License along with SIRIUS. If not, see <https://www.gnu.org/licenses/lgpl-3.0.txt>
+ */
+
+package de.unijena.bioinf.lcms;
+
+import de.unijena.bioinf.ChemistryBase.ms.Deviation;
+import de.unijena.bioinf.ChemistryBase.ms.utils.SimpleSpectrum;
+import de.unijena.bioinf.lcms.noise.NoiseModel;
+import de.unijena.bioinf.model.lcms.Scan;
+import gnu.trove.list.array.TDoubleArrayList;
+import gnu.trove.list.array.TFloatArrayList;
+import gnu.trove.list.array.TIntArrayList;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * Column store of all centroids of the MS1 scans of a sample. Centroids are grouped into m/z bins; within a bin
+ * they are ordered by scan and m/z. Thus, all centroids within a m/z window over a range of scans are found with
+ * one binary search per bin, without fetching any spectrum from the {@link SpectrumStorage}.
+ * <p>
+ * Scans are addressed by their position in the index, i.e. the rank of their scan number among all MS1 scans.
+ * Centroids are addressed by their id, which is returned by the search methods.
+ * <p>
+ * Every centroid takes 16 bytes: its m/z as double, its intensity as float and the position of its scan.
+ */
+public class CentroidIndex {
+
+    private static final double BIN_WIDTH = 0.01;
+
+    private final Scan[] scans;
+    private final int[] scanNumbers;
+    private final int firstBin;
+    // centroids of bin b are stored from binOffsets[b-firstBin] (inclusive) to binOffsets[b-firstBin+1] (exclusive)
+    private final int[] binOffsets;
+    private final double[] mz;
+    private final float[] intensity;
+    private final int[] scanPositions;
+
+    private CentroidIndex(Scan[] scans, int firstBin, int[] binOffsets, double[] mz, float[] intensity, int[] scanPositions) {
+        this.scans = scans;
+        this.scanNumbers = Arrays.stream(scans).mapToInt(Scan::getIndex).toArray();
+        this.firstBin = firstBin;
+        this.binOffsets = binOffsets;
+        this.mz = mz;
+        this.intensity = intensity;
+        this.scanPositions = scanPositions;
+    }
+
+    public int numberOfScans() {
+        return scans.length;
+    }
+
+    public int numberOfCentroids() {
+        return mz.length;
+    }
+
+    public Scan getScanAt(int position) {
+        return scans[position];
+    }
+
+    /**
+     * @return position of the scan with the given scan number, or (-(insertion point) - 1) if it is not an MS1 scan of this index
+     */
+    public int positionOf(int scanNumber) {
+        return Arrays.binarySearch(scanNumbers, scanNumber);
+    }
+
+    /**
+     * @return position of the first scan with a scan number not smaller than the given one
+     */
+    public int firstPositionFrom(int scanNumber) {
+        final int i = positionOf(scanNumber);
+        return i >= 0 ? i : -i - 1;
+    }
+
+    public double getMzAt(int centroid) {
+        return mz[centroid];
+    }
+
+    public double getIntensityAt(int centroid) {
+        return intensity[centroid];
+    }
+
+    public int getScanPositionAt(int centroid) {
+        return scanPositions[centroid];
+    }
+
+    public Scan getScanOf(int centroid) {
+        return scans[scanPositions[centroid]];
+    }
+
+    /**
+     * Adds the ids of all centroids with fromMz {@literal <=} m/z {@literal <=} toMz in the scans from position
+     * fromPosition to toPosition (both inclusive) to the given list. Centroids of a single scan are added in
+     * ascending order of their m/z.
+     */
+    public void search(double fromMz, double toMz, int fromPosition, int toPosition, TIntArrayList centroids) {
+        if (mz.length == 0 || fromPosition > toPosition) return;
+        final int fromBin = Math.max(bin(fromMz) - firstBin, 0), toBin = Math.min(bin(toMz) - firstBin, binOffsets.length - 2);
+        for (int b = fromBin; b <= toBin; ++b) {
+            final int end = binOffsets[b + 1];
+            for (int i = firstCentroidOfScan(binOffsets[b], end, fromPosition); i < end && scanPositions[i] <= toPosition; ++i) {
+                if (mz[i] >= fromMz && mz[i] <= toMz) centroids.add(i);
+            }
+        }
+    }
+
+    /**
+     * Same as {@link de.unijena.bioinf.ChemistryBase.ms.utils.Spectrums#mostIntensivePeakWithin} for the scan at the given position.
+     *
+     * @return id of the most intensive centroid within the allowed mass deviation or -1 if there is none
+     */
+    public int mostIntensiveCentroidWithin(int position, double mz, Deviation dev) {
+        final TIntArrayList centroids = new TIntArrayList();
+        final double a = dev.absoluteFor(mz);
+        search(mz - a, mz + a, position, position, centroids);
+        int best = -1;
+        for (int i = 0; i < centroids.size(); ++i) {
+            final int c = centroids.getQuick(i);
+            if (best < 0 || intensity[c] > intensity[best]) best = c;
+        }
+        return best;
+    }
+
+    /**
+     * Same as {@link de.unijena.bioinf.ChemistryBase.ms.utils.Spectrums#binarySearch(de.unijena.bioinf.ChemistryBase.ms.Spectrum, double, Deviation)}
+     * for the scan at the given position.
+     *
+     * @return id of the centroid closest to the given m/z within the allowed mass deviation or -1 if there is none
+     */
+    public int closestCentroidWithin(int position, double mz, Deviation dev) {
+        final TIntArrayList centroids = new TIntArrayList();
+        final double a = dev.absoluteFor(mz);
+        search(mz - a, mz + a, position, position, centroids);
+        int best = -1;
+        double bestDiff = Double.POSITIVE_INFINITY;
+        for (int i = 0; i < centroids.size(); ++i) {
+            final int c = centroids.getQuick(i);
+            final double diff = Math.abs(this.mz[c] - mz);
+            if (diff < bestDiff && (diff < a || diff == 0)) {
+                best = c;
+                bestDiff = diff;
+            }
+        }
+        return best;
+    }
+
+    private int firstCentroidOfScan(int from, int to, int position) {
+        int low = from, high = to;
+        while (low < high) {
+            final int mid = (low + high) >>> 1;
+            if (scanPositions[mid] < position) low = mid + 1;
+            else high = mid;
+        }
+        return low;
+    }
+
+    private static int bin(double mz) {
+        return (int) Math.floor(mz / BIN_WIDTH);
+    }
+
+    /**
+     * Collects the MS1 scans in ascending order of their scan numbers.
+     */
+    public static class Builder {
+
+        private final ArrayList<Scan> scans = new ArrayList<>();
+        private final TDoubleArrayList mz = new TDoubleArrayList();
+        private final TFloatArrayList intensity = new TFloatArrayList();
+        private final TIntArrayList scanPositions = new TIntArrayList();
+
+        public Builder add(Scan scan, SimpleSpectrum spectrum) {
+            if (!scans.isEmpty() && scans.get(scans.size() - 1).getIndex() >= scan.getIndex())
+                throw new IllegalArgumentException("Scans have to be added in ascending order of their scan numbers.");
+            final int position = scans.size();
+            scans.add(scan);
+            for (int k = 0; k < spectrum.size(); ++k) {
+                mz.add(spectrum.getMzAt(k));
+                intensity.add((float) spectrum.getIntensityAt(k));
+                scanPositions.add(position);
+            }
+            return this;
+        }
+
+        public CentroidIndex build() {
+            return build(null, 0d);
+        }
+
+        /**
+         * Builds the index without all centroids with an intensity below minimalSignalToNoise times the noise level of
+         * their scan. Note that traces end in scans without any centroid within the allowed mass deviation.
+         */
+        public CentroidIndex build(NoiseModel noiseModel, double minimalSignalToNoise) {
+            if (noiseModel != null && minimalSignalToNoise > 0) removeNoise(noiseModel, minimalSignalToNoise);
+            final int n = mz.size();
+            int firstBin = Integer.MAX_VALUE, lastBin = Integer.MIN_VALUE;
+            for (int i = 0; i < n; ++i) {
+                final int b = bin(mz.getQuick(i));
+                firstBin = Math.min(firstBin, b);
+                lastBin = Math.max(lastBin, b);
+            }
+            if (n == 0) firstBin = lastBin = 0;
+            // counting sort by bin. It is stable, so centroids stay ordered by scan and m/z within a bin
+            final int[] binOffsets = new int[lastBin - firstBin + 2];
+            for (int i = 0; i < n; ++i) ++binOffsets[bin(mz.getQuick(i)) - firstBin + 1];
+            for (int b = 1; b < binOffsets.length; ++b) binOffsets[b] += binOffsets[b - 1];
+            final int[] next = Arrays.copyOf(binOffsets, binOffsets.length - 1);
+            final double[] sortedMz = new double[n];
+            final float[] sortedIntensity = new float[n];
+            final int[] sortedPositions = new int[n];
+            for (int i = 0; i < n; ++i) {
+                final int j = next[bin(mz.getQuick(i)) - firstBin]++;
+                sortedMz[j] = mz.getQuick(i);
+                sortedIntensity[j] = intensity.getQuick(i);
+                sortedPositions[j] = scanPositions.getQuick(i);
+            }
+            return new CentroidIndex(scans.toArray(Scan[]::new), firstBin, binOffsets, sortedMz, sortedIntensity, sortedPositions);
+        }
+
+        private void removeNoise(NoiseModel noiseModel, double minimalSignalToNoise) {
+            int kept = 0;
+            for (int i = 0, n = mz.size(); i < n; ++i) {
+                final double m = mz.getQuick(i);
+                if (intensity.getQuick(i) < minimalSignalToNoise * noiseModel.getNoiseLevel(scans.get(scanPositions.getQuick(i)).getIndex(), m))
+                    continue;
+                mz.setQuick(kept, m);
+                intensity.setQuick(kept, intensity.getQuick(i));
+                scanPositions.setQuick(kept, scanPositions.getQuick(i));
+                ++kept;
+            }
+            mz.remove(kept, mz.size() - kept);
+            intensity.remove(kept, intensity.size() - kept);
+            scanPositions.remove(kept, scanPositions.size() - kept);
+        }
+    }
+}
@@ -22,10 +22,9 @@ package de.unijena.bioinf.lcms;
 
 import com.google.common.collect.Range;
 import de.unijena.bioinf.ChemistryBase.ms.Deviation;
-import de.unijena.bioinf.ChemistryBase.ms.utils.SimpleSpectrum;
-import de.unijena.bioinf.ChemistryBase.ms.utils.Spectrums;
 import de.unijena.bioinf.model.lcms.*;
 import gnu.trove.list.array.TDoubleArrayList;
+import gnu.trove.list.array.TIntArrayList;
 
 import java.util.Optional;
 
@@ -43,10 +42,12 @@ public class ChromatogramBuilder {
     }
 
     public Optional<ChromatographicPeak> detectExact(Scan startingPoint, double mz) {
-        final SimpleSpectrum spectrum = sample.storage.getScan(startingPoint);
-        int i = Spectrums.binarySearch(spectrum, mz, dev);
+        final CentroidIndex centroids = sample.getCentroidIndex();
+        final int position = centroids.positionOf(startingPoint.getIndex());
+        if (position < 0) return Optional.empty();
+        int i = centroids.closestCentroidWithin(position, mz, dev);
         if (i>=0) {
-            return buildTrace(spectrum, new ScanPoint(startingPoint, spectrum.getMzAt(i), spectrum.getIntensityAt(i)));
+            return buildTrace(new ScanPoint(startingPoint, centroids.getMzAt(i), centroids.getIntensityAt(i)));
         } else {
             return Optional.empty(); // no chromatographic peak detected
         }
@@ -54,35 +55,35 @@ public class ChromatogramBuilder {
 
     public Optional<ChromatographicPeak> detect(Range<Integer> scanRange, double mz) {
         // pick most intensive peak in scan range
-        ScanPoint best = null;
-        SimpleSpectrum bestSpec = null;
-        for (Scan s : sample.run.getScans(scanRange.lowerEndpoint(), scanRange.upperEndpoint()).values()) {
-            if (!s.isMsMs() && scanRange.contains(s.getIndex())) {
-                final SimpleSpectrum spectrum = sample.storage.getScan(s);
-                int i = Spectrums.mostIntensivePeakWithin(spectrum, mz, dev);
-                if (i>=0) {
-                    if (best==null || spectrum.getIntensityAt(i) > best.getIntensity()) {
-                        best = new ScanPoint(s, spectrum.getMzAt(i), spectrum.getIntensityAt(i));
-                        bestSpec = spectrum;
-                    }
-                }
+        final CentroidIndex centroids = sample.getCentroidIndex();
+        final TIntArrayList candidates = new TIntArrayList();
+        final double a = dev.absoluteFor(mz);
+        centroids.search(mz - a, mz + a, centroids.firstPositionFrom(scanRange.lowerEndpoint()), centroids.firstPositionFrom(scanRange.upperEndpoint()) - 1, candidates);
+        int best = -1;
+        for (int k=0; k < candidates.size(); ++k) {
+            final int i = candidates.getQuick(k);
+            if (!scanRange.contains(centroids.getScanOf(i).getIndex())) continue;
+            if (best < 0 || centroids.getIntensityAt(i) > centroids.getIntensityAt(best) || (centroids.getIntensityAt(i) == centroids.getIntensityAt(best) && centroids.getScanPositionAt(i) < centroids.getScanPositionAt(best))) {
+                best = i;
             }
         }
-        if (best==null) return Optional.empty();
-        return buildTrace(bestSpec, best);
+        if (best < 0) return Optional.empty();
+        return buildTrace(new ScanPoint(centroids.getScanOf(best), centroids.getMzAt(best), centroids.getIntensityAt(best)));
     }
 
     public Optional<ChromatographicPeak> detect(Scan startingPoint, double mz) {
-        final SimpleSpectrum spectrum = sample.storage.getScan(startingPoint);
-        int i = Spectrums.mostIntensivePeakWithin(spectrum, mz, dev);
+        final CentroidIndex centroids = sample.getCentroidIndex();
+        final int position = centroids.positionOf(startingPoint.getIndex());
+        if (position < 0) return Optional.empty();
+        int i = centroids.mostIntensiveCentroidWithin(position, mz, dev);
         if (i>=0) {
-            return buildTrace(spectrum, new ScanPoint(startingPoint, spectrum.getMzAt(i), spectrum.getIntensityAt(i)));
+            return buildTrace(new ScanPoint(startingPoint, centroids.getMzAt(i), centroids.getIntensityAt(i)));
         } else {
             return Optional.empty(); // no chromatographic peak detected
         }
     }
 
-    private Optional<ChromatographicPeak> buildTrace(SimpleSpectrum spectrum, ScanPoint scanPoint) {
+    private Optional<ChromatographicPeak> buildTrace(ScanPoint scanPoint) {
         Optional<ChromatographicPeak> peak = cache.retrieve(scanPoint);
         if (peak.isPresent()) {
             return peak;
@@ -91,26 +92,21 @@ public class ChromatogramBuilder {
         final MutableChromatographicPeak leftTrace = new MutableChromatographicPeak();
         rightTrace.extendRight(scanPoint);
         leftTrace.extendRight(scanPoint);
+        final TIntArrayList buffer = new TIntArrayList();
+        final CentroidIndex centroids = sample.getCentroidIndex();
+        final int position = centroids.firstPositionFrom(scanPoint.getScanNumber());
         // extend to the right
-        for (Scan scan  : sample.run.getScansAfter(scanPoint.getScanNumber()).values()) {
-            if (!scan.isMsMs()) {
-                if (tryToExtend(rightTrace, scan)) {
-                    // go on!
-                } else {
-                    // cannot extend further...
-                    break;
-                }
+        for (int p = centroids.firstPositionFrom(scanPoint.getScanNumber() + 1); p < centroids.numberOfScans(); ++p) {
+            if (!tryToExtend(rightTrace, p, buffer)) {
+                // cannot extend further...
+                break;
             }
         }
         // extend to the left
-        for (Scan scan  : sample.run.getScansBefore(scanPoint.getScanNumber()).values()) {
-            if (!scan.isMsMs()) {
-                if (tryToExtend(leftTrace, scan)) {
-                    // go on!
-                } else {
-                    // cannot extend further...
-                    break;
-                }
+        for (int p = position - 1; p >= 0; --p) {
+            if (!tryToExtend(leftTrace, p, buffer)) {
+                // cannot extend further...
+                break;
             }
         }
         MutableChromatographicPeak concat = MutableChromatographicPeak.concat(leftTrace, rightTrace);
@@ -218,36 +214,34 @@ public class ChromatogramBuilder {
 
     }
 
-    private boolean tryToExtend(MutableChromatographicPeak trace, Scan scan) {
+    private boolean tryToExtend(MutableChromatographicPeak trace, int position, TIntArrayList buffer) {
         final ScanPoint previous = trace.getRightEdge();
-        final SimpleSpectrum spec = sample.storage.getScan(scan);
+        final CentroidIndex centroids = sample.getCentroidIndex();
+        final Scan scan = centroids.getScanAt(position);
         final double mz = previous.getMass();
         final double intensity = previous.getIntensity();
         final double mzStd = Math.pow(dev.absoluteFor(mz)/2d,2);
         final double intVar = 1d;
         final double noiseLevel = sample.ms1NoiseModel.getNoiseLevel(scan.getIndex(),mz);
-        final int start = Spectrums.indexOfFirstPeakWithin(spec, mz, dev);
-        if (start < 0) return false;
-        int end;
-        for (end=start; end < spec.size(); ++end) {
-            if (!dev.inErrorWindow(mz, spec.getMzAt(end)) /*|| spec.getIntensityAt(end) < noiseLevel*/)
-                break;
-        }
-        if (end-start == 1) {
-            trace.extendRight(new ScanPoint(scan, spec.getMzAt(start), spec.getIntensityAt(start)));
+        final double a = dev.absoluteFor(mz);
+        buffer.clearQuick();
+        centroids.search(mz - a, mz + a, position, position, buffer);
+        if (buffer.isEmpty()) return false;
+        if (buffer.size() == 1) {
+            final int c = buffer.getQuick(0);
+            trace.extendRight(new ScanPoint(scan, centroids.getMzAt(c), centroids.getIntensityAt(c)));
             return true;
-        } else if (end <= start) {
-            return false;
         } else {
-            int bestIndex=start; double bestScore = 0d;
-            for (int k=start; k < end; ++k) {
-                double sc = score(spec.getMzAt(k)-mz, Math.log((noiseLevel+spec.getIntensityAt(k))/(noiseLevel+intensity)), mzStd, intVar);
+            int bestIndex=buffer.getQuick(0); double bestScore = 0d;
+            for (int k=0; k < buffer.size(); ++k) {
+                final int c = buffer.getQuick(k);
+                double sc = score(centroids.getMzAt(c)-mz, Math.log((noiseLevel+centroids.getIntensityAt(c))/(noiseLevel+intensity)), mzStd, intVar);
                 if (sc > bestScore) {
-                    bestIndex = k;
+                    bestIndex = c;
                     bestScore = sc;
                 }
             }
-            trace.extendRight(new ScanPoint(scan, spec.getMzAt(bestIndex), spec.getIntensityAt(bestIndex)));
+            trace.extendRight(new ScanPoint(scan, centroids.getMzAt(bestIndex), centroids.getIntensityAt(bestIndex)));
             return true;
         }
     }
@@ -32,6 +32,7 @@ import de.unijena.bioinf.lcms.quality.Quality;
 import de.unijena.bioinf.model.lcms.*;
 import de.unijena.bionf.spectral_alignment.CosineQuerySpectrum;
 import gnu.trove.list.array.TDoubleArrayList;
+import gnu.trove.list.array.TIntArrayList;
 import org.jetbrains.annotations.Nullable;
 
 import java.util.*;
@@ -73,14 +74,16 @@ public class CorrelatedPeakDetector {
     public boolean doIAmAnIsotope(ProcessedSample sample, FragmentedIon ion, TDoubleArrayList alreadyAnnotatedMzs) {
         // we assume that the peak might be either the second or the third isotopic peak
         Scan ms1Scan = sample.run.getScanByNumber(ion.getSegment().getApexScanNumber()).get();
-        final SimpleSpectrum ms1 = sample.storage.getScan(ms1Scan);
+        final CentroidIndex ms1 = sample.getCentroidIndex();
+        final int position = ms1.positionOf(ms1Scan.getIndex());
+        if (position < 0) return false;
         final ScanPoint ionPeak = ion.getPeak().getScanPointAt(ion.getSegment().getApexIndex());
-        int peakBefore = Spectrums.mostIntensivePeakWithin(ms1, ionPeak.getMass() - 1.0034d, new Deviation(20,0.01));
+        int peakBefore = ms1.mostIntensiveCentroidWithin(position, ionPeak.getMass() - 1.0034d, new Deviation(20,0.01));
         if (peakBefore < 0) return false;
         double intensity = ms1.getIntensityAt(peakBefore);
         if (intensity/ionPeak.getIntensity() < 0.33) {
             // this is not the second peak. Maybe the third peak of a bromine/chlorine pattern?
-            peakBefore = Spectrums.mostIntensivePeakWithin(ms1, ionPeak.getMass() - 2.0016d, new Deviation(20,0.01));
+            peakBefore = ms1.mostIntensiveCentroidWithin(position, ionPeak.getMass() - 2.0016d, new Deviation(20,0.01));
             if (peakBefore < 0) return false;
             intensity = ms1.getIntensityAt(peakBefore);
             if (intensity/ionPeak.getIntensity() < 0.33)
@@ -165,7 +168,9 @@ public class CorrelatedPeakDetector {
         final Deviation dev = new Deviation(20);
         final Spectrum<Peak> spectrum = ion.getMsMs();
         Scan ms1Scan = sample.run.getScanByNumber(ion.getSegment().getApexScanNumber()).get();
-        final SimpleSpectrum ms1 = sample.storage.getScan(ms1Scan);
+        final CentroidIndex ms1 = sample.getCentroidIndex();
+        final int position = ms1.positionOf(ms1Scan.getIndex());
+        if (position < 0) return;
         final double basePeak = Spectrums.getMaximalIntensity(spectrum);
         double precursor = ion.getMsMsScan().getPrecursor().getMass();
         for (int k=0; k < spectrum.size(); ++k) {
@@ -173,7 +178,7 @@ public class CorrelatedPeakDetector {
                 continue;
             if (spectrum.getIntensityAt(k)/basePeak >= 0.05) {
                 final double peak = spectrum.getMzAt(k);
-                int l = Spectrums.mostIntensivePeakWithin(ms1, peak, dev);
+                int l = ms1.mostIntensiveCentroidWithin(position, peak, dev);
                 if (l<0)
                     continue;
                 final double intensity = ms1.getIntensityAt(l) / ion.getPeak().getIntensityAt(ion.getSegment().getApexIndex());
@@ -341,20 +346,21 @@ public class CorrelatedPeakDetector {
     public double detectIsotopesFor(ProcessedSample sample, ChromatographicPeak peak, ChromatographicPeak.Segment segment, int charge, List<CorrelationGroup> isoPeaks) {
 
         Scan scan = sample.run.getScanByNumber(segment.getApexScanNumber()).get();
-        final SimpleSpectrum spectrum = sample.storage.getScan(scan);
+        final CentroidIndex centroids = sample.getCentroidIndex();
+        final int position = centroids.positionOf(scan.getIndex());
+        final TIntArrayList isotopeCentroids = new TIntArrayList();
         final double mz = peak.getMzAt(segment.getApexIndex());
         double score = 0d;
         forEachIsotopePeak:
         for (int k = 0; k < ISO_RANGES.length; ++k) {
             // try to detect +k isotope peak
             final double maxMz = mz + ISO_RANGES[k].upperEndpoint()/charge;
-            final int a = Spectrums.indexOfFirstPeakWithin(spectrum, mz + ISO_RANGES[k].lowerEndpoint()/charge, maxMz);
-            if ( a < 0) break forEachIsotopePeak;
+            isotopeCentroids.clearQuick();
+            if (position >= 0) centroids.search(mz + ISO_RANGES[k].lowerEndpoint()/charge, maxMz, position, position, isotopeCentroids);
+            if (isotopeCentroids.isEmpty()) break forEachIsotopePeak;
             int nsize = isoPeaks.size();
-            for (int i=a; i < spectrum.size(); ++i) {
-                if (spectrum.getMzAt(i) > maxMz)
-                    break;
-                sample.builder.detectExact(scan, spectrum.getMzAt(i)).map(x->correlate(peak, segment, x)).filter(x->x.map(CorrelationGroup::getCosine).orElse(0d) >= ISOTOPE_COSINE_THRESHOLD).map(Optional::get).ifPresent(isoPeaks::add);
+            for (int i=0; i < isotopeCentroids.size(); ++i) {
+                sample.builder.detectExact(scan, centroids.getMzAt(isotopeCentroids.getQuick(i))).map(x->correlate(peak, segment, x)).filter(x->x.map(CorrelationGroup::getCosine).orElse(0d) >= ISOTOPE_COSINE_THRESHOLD).map(Optional::get).ifPresent(isoPeaks::add);
             }
             if (isoPeaks.size() <= nsize) {
                 break forEachIsotopePeak;
@@ -0,0 +1,137 @@
+/*
+ *
+ *  This file is part of the SIRIUS library for analyzing MS and MS/MS data
+ *
+ *  Copyright (C) 2013-2020 Kai Dührkop, Markus Fleischauer, Marcus Ludwig, Martin A. Hoffman and Sebastian Böcker,
+ *  Chair of Bioinformatics, Friedrich-Schilller University.
+ *
+ *  This library is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public
+ *  License as published by the Free Software Foundation; either
+ *  version 3 of the License, or (at your option) any later version.
+ *
+ *  This library is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License along with SIRIUS. If not, see <https://www.gnu.org/licenses/lgpl-3.0.txt>
+ */
+package de.unijena.bioinf.lcms;
+
+import de.unijena.bioinf.ChemistryBase.jobs.SiriusJobs;
+import de.unijena.bioinf.jjobs.BasicJJob;
+import de.unijena.bioinf.jjobs.BasicMasterJJob;
+import de.unijena.bioinf.jjobs.JJob;
+import de.unijena.bioinf.model.lcms.FragmentedIon;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.function.Function;
+
+/**
+ * Detects the features of several samples concurrently. Each sample is processed by its own sub job, which
+ * additionally distributes the peak shape fitting over the CPU threads. Everything else within a sample runs
+ * sequentially, so the detected ions do not depend on the number of threads or on the order in which the samples
+ * finish. At most {@link #getMaximalNumberOfSamplesInFlight()} samples are processed at the same time, which bounds
+ * the memory spent on chromatograms and intermediate ions.
+ */
+public class FeatureDetectionJob extends BasicMasterJJob<List<ProcessedSample>> {
+
+    /**
+     * number of consecutive ions processed by one job. Fixed to keep the results independent of the number of threads
+     */
+    protected static final int IONS_PER_JOB = 32;
+
+    private final LCMSProccessingInstance instance;
+    private final List<ProcessedSample> samples;
+    private int maximalNumberOfSamplesInFlight;
+
+    public FeatureDetectionJob(LCMSProccessingInstance instance, List<ProcessedSample> samples) {
+        super(JJob.JobType.SCHEDULER);
+        this.instance = instance;
+        this.samples = new ArrayList<>(samples);
+        this.maximalNumberOfSamplesInFlight = Math.max(1, SiriusJobs.getCPUThreads());
+    }
+
+    public int getMaximalNumberOfSamplesInFlight() {
+        return maximalNumberOfSamplesInFlight;
+    }
+
+    public void setMaximalNumberOfSamplesInFlight(int maximalNumberOfSamplesInFlight) {
+        if (maximalNumberOfSamplesInFlight < 1)
+            throw new IllegalArgumentException("At least one sample has to be processed at a time.");
+        this.maximalNumberOfSamplesInFlight = maximalNumberOfSamplesInFlight;
+    }
+
+    @Override
+    protected List<ProcessedSample> compute() throws Exception {
+        final ArrayDeque<BasicJJob<ProcessedSample>> inFlight = new ArrayDeque<>();
+        for (ProcessedSample sample : samples) {
+            checkForInterruption();
+            if (inFlight.size() >= maximalNumberOfSamplesInFlight)
+                inFlight.poll().takeResult();
+            inFlight.add(submitSubJob(new BasicJJob<ProcessedSample>(JobType.CPU) {
+                @Override
+                protected ProcessedSample compute() throws Exception {
+                    instance.detectFeatures(sample);
+                    return sample;
+                }
+            }));
+        }
+        while (!inFlight.isEmpty())
+            inFlight.poll().takeResult();
+        return samples;
+    }
+
+    /**
+     * Applies a function to all ions. Consecutive chunks of ions are submitted as CPU jobs, while the calling thread
+     * processes all chunks no worker has started yet, so this method is safe to call from within another job.
+     * The function has to be safe to call concurrently for different ions.
+     *
+     * @return the results in the same order as the ions
+     */
+    static <T> List<T> mapIons(List<FragmentedIon> ions, Function<FragmentedIon, T> function) {
+        final ArrayList<FutureTask<List<T>>> chunks = new ArrayList<>();
+        for (int from = 0; from < ions.size(); from += IONS_PER_JOB) {
+            final List<FragmentedIon> chunk = ions.subList(from, Math.min(ions.size(), from + IONS_PER_JOB));
+            chunks.add(new FutureTask<>(() -> {
+                final ArrayList<T> results = new ArrayList<>(chunk.size());
+                for (FragmentedIon ion : chunk) results.add(function.apply(ion));
+                return results;
+            }));
+        }
+        // the first chunk is processed by the calling thread anyway
+        for (int k = 1; k < chunks.size(); ++k) {
+            final FutureTask<List<T>> chunk = chunks.get(k);
+            SiriusJobs.getGlobalJobManager().submitJob(new BasicJJob<Object>(JJob.JobType.CPU) {
+                @Override
+                protected Object compute() {
+                    chunk.run();
+                    return null;
+                }
+            });
+        }
+        final ArrayList<T> results = new ArrayList<>(ions.size());
+        for (FutureTask<List<T>> chunk : chunks) {
+            // does nothing if the chunk is already processed by a worker
+            chunk.run();
+            try {
+                results.addAll(chunk.get());
+            } catch (InterruptedException e) {
+                chunks.forEach(c -> c.cancel(false));
+                Thread.currentThread().interrupt();
+                throw new RuntimeException(e);
+            } catch (ExecutionException e) {
+                chunks.forEach(c -> c.cancel(false));
+                if (e.getCause() instanceof RuntimeException) throw (RuntimeException) e.getCause();
+                throw new RuntimeException(e.getCause());
+            }
+        }
+        return results;
+    }
+
+}
@@ -47,6 +47,11 @@ public class InMemoryStorage implements SpectrumStorage {
         return scan2spectrum.get(scan.getIndex());
     }
 
+    @Override
+    public synchronized void clear() {
+        scan2spectrum.clear();
+    }
+
     @Override
     public void close() throws IOException {
         // dummy
@@ -35,6 +35,7 @@ import de.unijena.bioinf.jjobs.JobManager;
 import de.unijena.bioinf.jjobs.ProgressJJob;
 import de.unijena.bioinf.lcms.align.*;
 import de.unijena.bioinf.lcms.ionidentity.IonNetwork;
+import de.unijena.bioinf.lcms.noise.NoiseModel;
 import de.unijena.bioinf.lcms.noise.NoiseStatistics;
 import de.unijena.bioinf.lcms.peakshape.CustomPeakShape;
 import de.unijena.bioinf.lcms.peakshape.CustomPeakShapeFitting;
@@ -49,7 +50,6 @@ import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
 import java.util.*;
-import java.util.concurrent.atomic.AtomicInteger;
 
 public class LCMSProccessingInstance {
     public static final String POSSIBLE_ADDUCTS_KEY = "lcms-align";//LCMSProccessingInstance.class.getSimpleName();
@@ -57,8 +57,11 @@ public class LCMSProccessingInstance {
     protected HashMap<ProcessedSample, SpectrumStorage> storages;
     protected List<ProcessedSample> samples;
     protected MemoryFileStorage ms2Storage;
-    protected AtomicInteger numberOfMs2Scans = new AtomicInteger();
+    // number of MS/MS ids reserved for all samples added so far
+    protected int numberOfMs2Ids = 0;
     protected volatile boolean centroided = true;
+    // centroids below this multiple of the noise level are not indexed, 0 keeps all centroids
+    protected double minimalCentroidSignalToNoise = 0d;
 
     protected Set<PrecursorIonType> detectableIonTypes;
 
@@ -97,12 +100,25 @@ public class LCMSProccessingInstance {
         this.detectableIonTypes = detectableIonTypes;
     }
 
+    public double getMinimalCentroidSignalToNoise() {
+        return minimalCentroidSignalToNoise;
+    }
+
+    /**
+     * Centroids with an intensity below the given multiple of the noise level are not added to the centroid index of
+     * samples added afterwards. This saves memory, but traces end in scans in which the compound is below this
+     * threshold. Default is 0, so all centroids are indexed.
+     */
+    public void setMinimalCentroidSignalToNoise(double minimalCentroidSignalToNoise) {
+        this.minimalCentroidSignalToNoise = minimalCentroidSignalToNoise;
+    }
+
     public MemoryFileStorage getMs2Storage() {
         return ms2Storage;
     }
 
     public FragmentedIon createMs2Ion(ProcessedSample sample, MergedSpectrum merged, MutableChromatographicPeak peak, ChromatographicPeak.Segment segment) {
-        final int id = numberOfMs2Scans.incrementAndGet();
+        final int id = sample.nextMs2Id();
         final SimpleSpectrum spec = merged.finishMerging();
         final SimpleSpectrum spec2 = Spectrums.extractMostIntensivePeaks(spec, 8, 100);
         final Scan scan = new Scan(id, merged.getScans().get(0).getPolarity(),peak.getRetentionTimeAt(segment.getApexIndex()), merged.getScans().get(0).getCollisionEnergy(),spec.size(), Spectrums.calculateTIC(spec), true, merged.getPrecursor());
@@ -151,7 +167,13 @@ public class LCMSProccessingInstance {
 
     public ProcessedSample addSample(LCMSRun run, SpectrumStorage storage) {
         final NoiseStatistics noiseStatisticsMs1 = new NoiseStatistics(100, 0.1), noiseStatisticsMs2 = new NoiseStatistics(10, 0.85);
+        final CentroidIndex.Builder centroids = new CentroidIndex.Builder();
+        int numberOfMsMsScans = 0;
         for (Scan s : run.getScans()) {
+            if (s.isMsMs()) ++numberOfMsMsScans;
+            // chromatograms are extracted from all MS1 scans, so profiled scans are indexed, too
+            final SimpleSpectrum spectrum = s.isMsMs() ? null : storage.getScan(s);
+            if (spectrum != null) centroids.add(s, spectrum);
             if (!s.isCentroided()) {
                 this.centroided = false;
                 LoggerFactory.getLogger(LCMSProccessingInstance.class).warn("Scan " + s + " is in PROFILED mode. SIRIUS does only support centroided spectra. Ignore this scan.");
@@ -160,16 +182,19 @@ public class LCMSProccessingInstance {
             if (s.isMsMs()) {
                 noiseStatisticsMs2.add(s, storage.getScan(s));
             } else {
-                noiseStatisticsMs1.add(s,storage.getScan(s));
+                noiseStatisticsMs1.add(s, spectrum);
             }
         }
+        final NoiseModel ms1NoiseModel = noiseStatisticsMs1.getLocalNoiseModel();
         final ProcessedSample sample = new ProcessedSample(
-                run, noiseStatisticsMs1.getLocalNoiseModel(), noiseStatisticsMs2.getGlobalNoiseModel(),
-                new ChromatogramCache(), storage
+                run, ms1NoiseModel, noiseStatisticsMs2.getGlobalNoiseModel(),
+                new ChromatogramCache(), storage, centroids.build(ms1NoiseModel, minimalCentroidSignalToNoise)
         );
         synchronized (this) {
             this.samples.add(sample);
             this.storages.put(sample, storage);
+            sample.reserveMs2Ids(numberOfMs2Ids, numberOfMsMsScans);
+            numberOfMs2Ids += numberOfMsMsScans;
         }
         return sample;
     }
@@ -289,6 +314,7 @@ public class LCMSProccessingInstance {
     }
 
     public void detectFeatures(ProcessedSample sample) {
+        sample.resetMs2Ids();
         final List<FragmentedIon> ions = new Ms2CosineSegmenter().extractMsMSAndSegmentChromatograms(this, sample);
         ////
         sample.ions.clear(); sample.ions.addAll(ions);
@@ -317,6 +343,7 @@ public class LCMSProccessingInstance {
                 LoggerFactory.getLogger(LCMSProccessingInstance.class).info("Median intensity after precursor in MS/MS: " + intensityAfterPrec[k]);
             }
         }
+        // stays sequential: the detected chromatograms are cached in the sample builder and reused by later ions
         ListIterator<FragmentedIon> iter = ions.listIterator();
         final CorrelatedPeakDetector detector = new CorrelatedPeakDetector(detectableIonTypes);
         while (iter.hasNext()) {
@@ -348,9 +375,7 @@ public class LCMSProccessingInstance {
             peakWidthsToHeight.set(k, Math.pow(peakWidthsToHeight.get(k)-sample.meanPeakWidthToHeightRatio,2));
         }
         sample.meanPeakWidthToHeightRatioStd = Math.sqrt(Statistics.robustAverage(peakWidthsToHeight.toArray()));
-        for (FragmentedIon ion : ions) {
-            fitPeakShape(sample, ion);
-        }
+        FeatureDetectionJob.mapIons(ions, ion -> fitPeakShape(sample, ion));
     }
 
     public PeakShape fitPeakShape(ProcessedSample sample, FragmentedIon ion) {
@@ -396,9 +421,14 @@ public class LCMSProccessingInstance {
     }
 
     public void detectFeatures() {
-        for (ProcessedSample sample : samples) {
-            detectFeatures(sample);
-        }
+        SiriusJobs.getGlobalJobManager().submitJob(detectFeaturesInParallel()).takeResult();
+    }
+
+    /**
+     * @return a job detecting the features of all samples, several samples at the same time
+     */
+    public FeatureDetectionJob detectFeaturesInParallel() {
+        return new FeatureDetectionJob(this, samples);
     }
 
     public Cluster alignAndGapFilling() {
@@ -455,6 +485,8 @@ public class LCMSProccessingInstance {
         clusterJob = new GapFilling().gapFillingInParallel(this, cluster, error, cluster.estimatePeakShapeError(), false);
         manager.submitJob(clusterJob);
         cluster = clusterJob.takeResult();
+        // no chromatograms are extracted after gap filling
+        for (ProcessedSample s : samples) s.releaseCentroidIndex();
 
         final double finalError = cluster.estimateError();
 
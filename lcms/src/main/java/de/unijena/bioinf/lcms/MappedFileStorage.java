@@ -0,0 +1,343 @@
+/*
+ *
+ *  This file is part of the SIRIUS library for analyzing MS and MS/MS data
+ *
+ *  Copyright (C) 2013-2020 Kai Dührkop, Markus Fleischauer, Marcus Ludwig, Martin A. Hoffman and Sebastian Böcker,
+ *  Chair of Bioinformatics, Friedrich-Schilller University.
+ *
+ *  This library is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public
+ *  License as published by the Free Software Foundation; either
+ *  version 3 of the License, or (at your option) any later version.
+ *
+ *  This library is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License along with SIRIUS. If not, see <https://www.gnu.org/licenses/lgpl-3.0.txt>
+ */
+
+package de.unijena.bioinf.lcms;
+
+import de.unijena.bioinf.ChemistryBase.data.DataSource;
+import de.unijena.bioinf.ChemistryBase.ms.IsolationWindow;
+import de.unijena.bioinf.ChemistryBase.ms.MsInstrumentation;
+import de.unijena.bioinf.ChemistryBase.ms.lcms.MsDataSourceReference;
+import de.unijena.bioinf.ChemistryBase.ms.utils.SimpleSpectrum;
+import de.unijena.bioinf.ChemistryBase.ms.utils.Spectrums;
+import de.unijena.bioinf.model.lcms.LCMSRun;
+import de.unijena.bioinf.model.lcms.Polarity;
+import de.unijena.bioinf.model.lcms.Precursor;
+import de.unijena.bioinf.model.lcms.Scan;
+
+import java.io.*;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Stores spectra in a file which is mapped into memory in chunks. Scans are written to the file as soon as they
+ * are added. Reads do not lock: each read works on its own view of the mapped chunk, so scans can be read
+ * concurrently, even while new scans are added.
+ * <p>
+ * Besides the peaks the file contains the scan metadata and, after {@link #commit(LCMSRun, File)}, the
+ * description of the run. Reopening the file restores the run without parsing the source file again
+ * (see {@link #restoreRun(File)}).
+ * <p>
+ * m/z values of peaks are stored as double, their intensities as float. Precursor m/z and intensity are stored as double.
+ */
+public class MappedFileStorage implements SpectrumStorage {
+
+    private static final int MAGIC = 0x53505354, VERSION = 2;
+    protected static final int DEFAULT_CHUNK_BITS = 26;
+
+    // magic, version, chunk bits, end of data
+    private static final int HEADER_SIZE = 4 + 4 + 4 + 8, END_POSITION = 12;
+
+    // every record starts with its kind. The unused rest of a chunk is padding, as a record never spans two chunks
+    private static final byte PADDING = 0, SCAN = 1, RUN = 2;
+
+    // kind, index, spectrum size, has precursor, polarity, centroided, retention time, collision energy, number of peaks, TIC
+    private static final int SCAN_HEADER_SIZE = 1 + 4 + 4 + 1 + 1 + 1 + 8 + 8 + 4 + 8;
+    // index, m/z, intensity, charge, isolation window offset and width
+    private static final int PRECURSOR_SIZE = 4 + 8 + 8 + 4 + 8 + 8;
+
+    private final FileChannel channel;
+    private final boolean temporary;
+    private final int chunkBits;
+    private final long chunkSize;
+    private volatile MappedByteBuffer[] chunks;
+    private final ConcurrentHashMap<Integer, Long> offsets;
+    private long end;
+    private volatile long runOffset;
+
+    /**
+     * Opens the given storage file or creates it, if it does not exist yet.
+     */
+    public MappedFileStorage(File file) throws IOException {
+        this(file, DEFAULT_CHUNK_BITS, false);
+    }
+
+    protected MappedFileStorage(File file, int chunkBits, boolean temporary) throws IOException {
+        this.temporary = temporary;
+        this.offsets = new ConcurrentHashMap<>();
+        this.chunks = new MappedByteBuffer[0];
+        this.runOffset = -1;
+        this.channel = temporary
+                ? FileChannel.open(file.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.CREATE, StandardOpenOption.DELETE_ON_CLOSE)
+                : FileChannel.open(file.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.CREATE);
+        try {
+            final boolean empty = channel.size() == 0;
+            final ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            if (!empty) {
+                while (header.hasRemaining() && channel.read(header, header.position()) >= 0) ;
+                header.flip();
+                if (header.remaining() < HEADER_SIZE || header.getInt() != MAGIC)
+                    throw new IOException(file + " is not a spectrum storage file.");
+                if (header.getInt() != VERSION)
+                    throw new IOException(file + " was written by an incompatible version.");
+                chunkBits = header.getInt();
+            }
+            this.chunkBits = chunkBits;
+            this.chunkSize = 1L << chunkBits;
+            if (empty) {
+                ensureMapped(0);
+                chunks[0].putInt(0, MAGIC).putInt(4, VERSION).putInt(8, chunkBits);
+                setEnd(HEADER_SIZE);
+            } else {
+                final long dataEnd = header.getLong();
+                ensureMapped((dataEnd - 1) >>> chunkBits);
+                readRecords(dataEnd);
+                this.end = dataEnd;
+            }
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * @return a storage in a temporary file which is deleted on close
+     */
+    public static MappedFileStorage temporary() throws IOException {
+        return new MappedFileStorage(File.createTempFile("sirius_spectrum", ".binary"), DEFAULT_CHUNK_BITS, true);
+    }
+
+    @Override
+    public synchronized void add(Scan scan, SimpleSpectrum spectrum) {
+        final Precursor precursor = scan.getPrecursor();
+        final int size = spectrum.size();
+        try {
+            final int recordSize = scanRecordSize(size, precursor != null);
+            final long offset = allocate(recordSize);
+            final ByteBuffer buffer = view(offset);
+            buffer.put(SCAN).putInt(scan.getIndex()).putInt(size).put((byte) (precursor != null ? 1 : 0))
+                    .put((byte) scan.getPolarity().charge).put((byte) (scan.isCentroided() ? 1 : 0))
+                    .putLong(scan.getRetentionTime()).putDouble(scan.getCollisionEnergy())
+                    .putInt(scan.getNumberOfPeaks()).putDouble(scan.getTIC());
+            if (precursor != null) {
+                buffer.putInt(precursor.getIndex()).putDouble(precursor.getMass()).putDouble(precursor.getIntensity())
+                        .putInt(precursor.getCharge()).putDouble(precursor.getIsolationWindowOffset()).putDouble(precursor.getIsolationWindowWidth());
+            }
+            for (int k = 0; k < size; ++k) buffer.putDouble(spectrum.getMzAt(k));
+            for (int k = 0; k < size; ++k) buffer.putFloat((float) spectrum.getIntensityAt(k));
+            setEnd(offset + recordSize);
+            offsets.put(scan.getIndex(), offset);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    @Override
+    public SimpleSpectrum getScan(Scan scan) {
+        final Long offset = offsets.get(scan.getIndex());
+        if (offset == null) return null;
+        final ByteBuffer buffer = view(offset);
+        final int start = buffer.position();
+        final int size = buffer.getInt(start + 5);
+        buffer.position(start + SCAN_HEADER_SIZE + (buffer.get(start + 9) != 0 ? PRECURSOR_SIZE : 0));
+        final double[] mz = new double[size], intensities = new double[size];
+        for (int k = 0; k < size; ++k) mz[k] = buffer.getDouble();
+        for (int k = 0; k < size; ++k) intensities[k] = buffer.getFloat();
+        return new SimpleSpectrum(Spectrums.getAlreadyOrderedSpectrum(Spectrums.wrap(mz, intensities)));
+    }
+
+    public boolean contains(Scan scan) {
+        return offsets.containsKey(scan.getIndex());
+    }
+
+    public int size() {
+        return offsets.size();
+    }
+
+    /**
+     * Stores the description of the run which consists of the scans in this storage. The source file is recorded
+     * by its length and modification time, such that a changed source file is not restored.
+     */
+    public synchronized void commit(LCMSRun run, File source) throws IOException {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (final DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeLong(source.length());
+            out.writeLong(source.lastModified());
+            out.writeUTF(run.getInstrument().description());
+            final MsDataSourceReference reference = run.getReference();
+            writeString(out, reference == null || reference.getSourceLocation() == null ? null : reference.getSourceLocation().toString());
+            writeString(out, reference == null ? null : reference.getFileName());
+            writeString(out, reference == null ? null : reference.getRunId());
+            writeString(out, reference == null ? null : reference.getMzmlId());
+        }
+        final byte[] payload = bytes.toByteArray();
+        final long offset = allocate(1 + 4 + payload.length);
+        view(offset).put(RUN).putInt(payload.length).put(payload);
+        setEnd(offset + 1 + 4 + payload.length);
+        runOffset = offset;
+        if (!temporary) for (MappedByteBuffer chunk : chunks) chunk.force();
+    }
+
+    /**
+     * Restores the run which was committed to this storage.
+     *
+     * @param source the file the run was parsed from
+     * @return the run with all scans of this storage, or nothing if no run was committed or the source file changed
+     */
+    public Optional<LCMSRun> restoreRun(File source) throws IOException {
+        final long offset = runOffset;
+        if (offset < 0) return Optional.empty();
+        final ByteBuffer buffer = view(offset + 1);
+        final byte[] payload = new byte[buffer.getInt()];
+        buffer.get(payload);
+        try (final DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload))) {
+            if (in.readLong() != source.length() || in.readLong() != source.lastModified())
+                return Optional.empty();
+            final String instrument = in.readUTF();
+            final String location = readString(in), fileName = readString(in), runId = readString(in), mzmlId = readString(in);
+
+            final LCMSRun run = new LCMSRun(new DataSource(source));
+            run.setInstrument(Arrays.stream(MsInstrumentation.Instrument.values()).map(i -> (MsInstrumentation) i)
+                    .filter(i -> i.description().equals(instrument)).findFirst().orElse(MsInstrumentation.Unknown));
+            run.setReference(new MsDataSourceReference(location == null ? null : URI.create(location), fileName, runId, mzmlId));
+            offsets.values().forEach(scanOffset -> run.addScan(readScan(scanOffset)));
+            return Optional.of(run);
+        }
+    }
+
+    /**
+     * removes all scans and the run description. The file keeps its size and is overwritten by new scans.
+     */
+    @Override
+    public synchronized void clear() {
+        offsets.clear();
+        runOffset = -1;
+        setEnd(HEADER_SIZE);
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (!channel.isOpen()) return;
+        try {
+            if (!temporary) for (MappedByteBuffer chunk : chunks) chunk.force();
+        } finally {
+            chunks = new MappedByteBuffer[0];
+            channel.close();
+        }
+    }
+
+    private Scan readScan(long offset) {
+        final ByteBuffer buffer = view(offset + 1);
+        final int index = buffer.getInt();
+        buffer.getInt();
+        final boolean hasPrecursor = buffer.get() != 0;
+        final Polarity polarity = Polarity.of(buffer.get());
+        final boolean centroided = buffer.get() != 0;
+        final long retentionTime = buffer.getLong();
+        final double collisionEnergy = buffer.getDouble();
+        final int numberOfPeaks = buffer.getInt();
+        final double tic = buffer.getDouble();
+        Precursor precursor = null;
+        if (hasPrecursor) {
+            final int precursorIndex = buffer.getInt();
+            final double mz = buffer.getDouble(), intensity = buffer.getDouble();
+            final int charge = buffer.getInt();
+            final double windowOffset = buffer.getDouble(), windowWidth = buffer.getDouble();
+            precursor = new Precursor(precursorIndex, mz, intensity, charge, new IsolationWindow(windowOffset, windowWidth));
+        }
+        return new Scan(index, polarity, retentionTime, collisionEnergy, numberOfPeaks, tic, centroided, precursor);
+    }
+
+    private void readRecords(long end) {
+        long offset = HEADER_SIZE;
+        while (offset < end) {
+            final ByteBuffer buffer = view(offset);
+            final byte kind = buffer.get();
+            if (kind == SCAN) {
+                final int index = buffer.getInt(), size = buffer.getInt();
+                offsets.put(index, offset);
+                offset += scanRecordSize(size, buffer.get() != 0);
+            } else if (kind == RUN) {
+                runOffset = offset;
+                offset += 1 + 4 + buffer.getInt();
+            } else {
+                offset = nextChunk(offset);
+            }
+        }
+    }
+
+    private static int scanRecordSize(int size, boolean hasPrecursor) {
+        return SCAN_HEADER_SIZE + (hasPrecursor ? PRECURSOR_SIZE : 0) + size * (8 + 4);
+    }
+
+    private long nextChunk(long offset) {
+        return ((offset >>> chunkBits) + 1) << chunkBits;
+    }
+
+    /**
+     * @return the offset of a new record of the given size
+     */
+    private long allocate(long bytes) throws IOException {
+        if (bytes > chunkSize)
+            throw new IllegalArgumentException("Record of " + bytes + " bytes does not fit into a chunk of " + chunkSize + " bytes.");
+        long offset = end;
+        final long chunkEnd = nextChunk(offset);
+        if (offset + bytes > chunkEnd) {
+            view(offset).put(PADDING);
+            offset = chunkEnd;
+        }
+        ensureMapped((offset + bytes - 1) >>> chunkBits);
+        return offset;
+    }
+
+    private void ensureMapped(long chunk) throws IOException {
+        final MappedByteBuffer[] current = chunks;
+        if (chunk < current.length) return;
+        final MappedByteBuffer[] extended = Arrays.copyOf(current, (int) chunk + 1);
+        for (int i = current.length; i < extended.length; ++i)
+            extended[i] = channel.map(FileChannel.MapMode.READ_WRITE, ((long) i) << chunkBits, chunkSize);
+        chunks = extended;
+    }
+
+    private ByteBuffer view(long offset) {
+        final ByteBuffer buffer = chunks[(int) (offset >>> chunkBits)].duplicate();
+        buffer.position((int) (offset & (chunkSize - 1)));
+        return buffer;
+    }
+
+    private void setEnd(long end) {
+        this.end = end;
+        chunks[0].putLong(END_POSITION, end);
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        out.writeBoolean(value != null);
+        if (value != null) out.writeUTF(value);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        return in.readBoolean() ? in.readUTF() : null;
+    }
+}
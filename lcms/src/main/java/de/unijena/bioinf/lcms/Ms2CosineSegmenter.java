@@ -109,8 +109,9 @@ public class Ms2CosineSegmenter {
      */
     public List<FragmentedIon> extractMsMSAndSegmentChromatograms(LCMSProccessingInstance instance, ProcessedSample sample) {
         final ArrayList<FragmentedIon> ions = new ArrayList<>();
-        // group all MSMS scans into chromatographic peaks
-        final HashMap<MutableChromatographicPeak, ArrayList<Ms2Scan>> scansPerPeak = new HashMap<>();
+        // group all MSMS scans into chromatographic peaks. Peaks are visited in the order of their first MS/MS scan,
+        // so the ions and their MS/MS ids do not depend on identity hash codes
+        final LinkedHashMap<MutableChromatographicPeak, ArrayList<Ms2Scan>> scansPerPeak = new LinkedHashMap<>();
         IsolationWindow isolationWindow = null;
         Scan lastMs1 = null;
         // go over each MS/MS scan and pick the preceeding MS scan
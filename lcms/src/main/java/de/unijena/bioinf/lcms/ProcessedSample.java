@@ -45,6 +45,8 @@ public class ProcessedSample implements Annotated<DataAnnotation> {
     public final NoiseModel ms1NoiseModel, ms2NoiseModel;
     public final ChromatogramCache chromatogramCache;
     public final SpectrumStorage storage;
+    // released after gap filling, as no further chromatograms are extracted
+    private volatile CentroidIndex centroids;
     public final ChromatogramBuilder builder;
     protected double meanPeakWidthToHeightRatioStd;
 
@@ -60,12 +62,16 @@ public class ProcessedSample implements Annotated<DataAnnotation> {
     // can be used for multiple charge detection
     protected RealDistribution intensityAfterPrecursorDistribution;
 
-    ProcessedSample(LCMSRun run, NoiseModel ms1NoiseModel, NoiseModel ms2NoiseModel, ChromatogramCache chromatogramCache, SpectrumStorage storage) {
+    // ids of merged MS/MS spectra are taken from a range reserved when the sample is added
+    private int firstMs2Id, maximalNumberOfMs2Ids, numberOfMs2Ids;
+
+    ProcessedSample(LCMSRun run, NoiseModel ms1NoiseModel, NoiseModel ms2NoiseModel, ChromatogramCache chromatogramCache, SpectrumStorage storage, CentroidIndex centroids) {
         this.run = run;
         this.ms1NoiseModel = ms1NoiseModel;
         this.ms2NoiseModel = ms2NoiseModel;
         this.chromatogramCache = chromatogramCache;
         this.storage = storage;
+        this.centroids = centroids;
         this.builder = new ChromatogramBuilder(this);
         this.ions = new ArrayList<>();
         this.maxRT = run.getScans().stream().max(Comparator.comparingLong(Scan::getRetentionTime)).map(x->x.getRetentionTime()).orElse(1l);
@@ -75,6 +81,48 @@ public class ProcessedSample implements Annotated<DataAnnotation> {
         this.otherIons = new ArrayList<>();
     }
 
+    /**
+     * @return index of all MS1 centroids of this sample
+     * @throws IllegalStateException if the index was already released
+     */
+    public CentroidIndex getCentroidIndex() {
+        final CentroidIndex index = centroids;
+        if (index == null)
+            throw new IllegalStateException("Centroid index of " + this + " is already released. No further chromatograms can be extracted.");
+        return index;
+    }
+
+    /**
+     * Drops the centroid index to free its memory. Afterwards, no chromatograms can be extracted from this sample.
+     */
+    public void releaseCentroidIndex() {
+        centroids = null;
+    }
+
+    /**
+     * Reserves the ids firstMs2Id+1 to firstMs2Id+size for the merged MS/MS spectra of this sample. Each merged
+     * spectrum contains at least one MS/MS scan, so the number of MS/MS scans is sufficient as size. The ids do
+     * not depend on the order in which the samples are processed.
+     */
+    synchronized void reserveMs2Ids(int firstMs2Id, int size) {
+        this.firstMs2Id = firstMs2Id;
+        this.maximalNumberOfMs2Ids = size;
+        this.numberOfMs2Ids = 0;
+    }
+
+    synchronized int nextMs2Id() {
+        if (numberOfMs2Ids >= maximalNumberOfMs2Ids)
+            throw new IllegalStateException("More merged MS/MS spectra than MS/MS scans in " + this);
+        return firstMs2Id + (++numberOfMs2Ids);
+    }
+
+    /**
+     * Restarts the ids of merged MS/MS spectra, e.g. if the features of this sample are detected again.
+     */
+    synchronized void resetMs2Ids() {
+        this.numberOfMs2Ids = 0;
+    }
+
     public RealDistribution getIntensityAfterPrecursorDistribution() {
         return intensityAfterPrecursorDistribution;
     }
@@ -34,4 +34,12 @@ public interface SpectrumStorage extends Closeable,AutoCloseable {
 
     public SimpleSpectrum getScan(Scan scan);
 
+    /**
+     * removes all spectra
+     * @throws UnsupportedOperationException if the storage cannot remove spectra
+     */
+    public default void clear() {
+        throw new UnsupportedOperationException(getClass().getSimpleName() + " does not support removing spectra");
+    }
+
 }
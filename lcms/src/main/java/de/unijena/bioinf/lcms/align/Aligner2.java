@@ -39,38 +39,76 @@ import org.apache.commons.math3.special.Erf;
 import org.jetbrains.annotations.NotNull;
 
 import java.util.*;
-
+import java.util.stream.IntStream;
+
+/**
+ * Progressive alignment of samples: starting with the sample with most ions, in each round all candidate samples
+ * are aligned against the consensus features in parallel and the best aligning sample is merged into them.
+ * <p>
+ * By default, all remaining samples are candidates in each round, i.e. the number of sample alignments grows
+ * quadratically with the number of samples. For large studies, a bounded pool of candidate samples can be used
+ * instead (see {@link #setCandidatePoolSize(int)}): the samples with most ions first, refilled from the remaining
+ * samples. The number of sample alignments then grows linearly, but the alignment of studies with more samples
+ * than the pool might change.
+ */
 public class Aligner2 {
 
+    /**
+     * pool size for studies which are too large to align all remaining samples in each round
+     */
+    public static final int LARGE_STUDY_CANDIDATE_POOL_SIZE = 64;
+
     public Aligner2(double retentionTimeError) {
         this.retentionTimeError = retentionTimeError;
     }
 
     protected double retentionTimeError;
     protected Deviation dev = new Deviation(20);
+    protected int candidatePoolSize = Integer.MAX_VALUE;
+
+    /*
+        only consider features within the retention time and mass windows in which they can be aligned. This never
+        changes the result and is only disabled in tests
+     */
+    boolean pruneCandidates = true;
+
+    public int getCandidatePoolSize() {
+        return candidatePoolSize;
+    }
+
+    /**
+     * @param candidatePoolSize number of samples which are aligned against the consensus features in each round.
+     *                          Integer.MAX_VALUE (the default) aligns all remaining samples in each round.
+     */
+    public void setCandidatePoolSize(int candidatePoolSize) {
+        if (candidatePoolSize < 1)
+            throw new IllegalArgumentException("Candidate pool has to contain at least one sample.");
+        this.candidatePoolSize = candidatePoolSize;
+    }
 
     public BasicMasterJJob<Cluster> align(List<ProcessedSample> samples) {
         return new BasicMasterJJob<Cluster>(JJob.JobType.SCHEDULER) {
             @Override
             protected Cluster compute() throws Exception {
-                final TIntObjectHashMap<TIntArrayList> mass2msms = new TIntObjectHashMap<TIntArrayList>();
-                final ArrayList<ProcessedSample> xs = new ArrayList<>(samples);
-                xs.sort(Comparator.comparingInt((ProcessedSample u) -> u.ions.size()).reversed());
-                AlignedFeatures[] features = init(xs.get(0));
-                xs.remove(0);
+                final ArrayList<ProcessedSample> remaining = new ArrayList<>(samples);
+                remaining.sort(Comparator.comparingInt((ProcessedSample u) -> u.ions.size()).reversed());
+                AlignedFeatures[] features = init(remaining.get(0));
+                final ArrayDeque<ProcessedSample> queue = new ArrayDeque<>(remaining.subList(1, remaining.size()));
+                final ArrayList<ProcessedSample> xs = new ArrayList<>();
                 final ArrayList<BasicJJob<AlignmentResult>> subjobs = new ArrayList<>();
                 double totalScore = 0d;
-                while (xs.size()>0) {
-                    mass2msms.clear();
+                while (xs.size()>0 || !queue.isEmpty()) {
+                    while (xs.size() < candidatePoolSize && !queue.isEmpty())
+                        xs.add(queue.poll());
                     subjobs.clear();
-                    addFeatures(mass2msms,features);
+                    final FeatureIndex index = new FeatureIndex(features);
                     for (int j=0; j < xs.size(); ++j) {
                         int J = j;
                         final AlignedFeatures[] F = features;
                         subjobs.add(submitSubJob(new BasicJJob<AlignmentResult>() {
                             @Override
                             protected AlignmentResult compute() throws Exception {
-                                return computeAlignment(J, F, xs.get(J), mass2msms);
+                                return computeAlignment(J, F, xs.get(J), index);
                             }
                         }));
                     }
@@ -115,20 +153,50 @@ public class Aligner2 {
 
     }
 
-    private void addFeatures(TIntObjectHashMap<TIntArrayList> mass2msms, AlignedFeatures[] features) {
-        for (int i=0; i < features.length; ++i) {
-            final AlignedFeatures f = features[i];
-            int l = (int)Math.floor(f.getMass()*10), h = (int)Math.ceil(f.getMass()*10);
-            if (!mass2msms.containsKey(l)) mass2msms.put(l,new TIntArrayList());
-            mass2msms.get(l).add(i);
-            if (l!=h) {
-                if (!mass2msms.containsKey(h)) mass2msms.put(h, new TIntArrayList());
-                mass2msms.get(h).add(i);
+    /**
+     * Indexes features by 0.1 Da bins. Within each bin, features are sorted by retention time, so only
+     * features within the retention time window of an ion have to be scored.
+     */
+    protected static class FeatureIndex {
+        private final TIntObjectHashMap<int[]> bins;
+        private final AlignedFeatures[] features;
+
+        private FeatureIndex(AlignedFeatures[] features) {
+            this.features = features;
+            final TIntObjectHashMap<TIntArrayList> mass2msms = new TIntObjectHashMap<>();
+            for (int i=0; i < features.length; ++i) {
+                final AlignedFeatures f = features[i];
+                int l = (int)Math.floor(f.getMass()*10), h = (int)Math.ceil(f.getMass()*10);
+                if (!mass2msms.containsKey(l)) mass2msms.put(l,new TIntArrayList());
+                mass2msms.get(l).add(i);
+                if (l!=h) {
+                    if (!mass2msms.containsKey(h)) mass2msms.put(h, new TIntArrayList());
+                    mass2msms.get(h).add(i);
+                }
+            }
+            this.bins = new TIntObjectHashMap<>(mass2msms.size());
+            mass2msms.forEachEntry((key, list) -> {
+                final int[] sorted = Arrays.stream(list.toArray()).boxed().sorted(Comparator.comparingDouble(i -> features[i].rt)).mapToInt(Integer::intValue).toArray();
+                bins.put(key, sorted);
+                return true;
+            });
+        }
+
+        private void addCandidates(TIntHashSet candidates, int key, double fromRt, double toRt) {
+            final int[] bin = bins.get(key);
+            if (bin==null) return;
+            int lo = 0, hi = bin.length;
+            while (lo < hi) {
+                final int mid = (lo+hi) >>> 1;
+                if (features[bin[mid]].rt < fromRt) lo = mid+1;
+                else hi = mid;
             }
+            for (int k=lo; k < bin.length && features[bin[k]].rt <= toRt; ++k)
+                candidates.add(bin[k]);
         }
     }
 
-    protected AlignmentResult computeAlignment(int index, AlignedFeatures[] left, ProcessedSample right, TIntObjectHashMap<TIntArrayList> mass2msms) {
+    protected AlignmentResult computeAlignment(int index, AlignedFeatures[] left, ProcessedSample right, FeatureIndex mass2msms) {
         final TreeSet<Alignment> possibleAlignments = new TreeSet<>();
         final ArrayList<FragmentedIon> allIons = new ArrayList<>(right.ions);
         allIons.addAll(right.gapFilledIons);
@@ -138,10 +206,10 @@ public class Aligner2 {
             candidates.clear();
             final FragmentedIon ion = allIons.get(i);
             int l = (int)Math.floor(ion.getMass()*10), h = (int)Math.ceil(ion.getMass()*10);
-            TIntArrayList cs = mass2msms.get(l);
-            if (cs!=null) cs.forEach(c->{candidates.add(c); return true;});
-            cs = mass2msms.get(h);
-            if (cs!=null) cs.forEach(c->{candidates.add(c); return true;});
+            // features outside of 8 retention time errors are never aligned, see getScore
+            final double rt = right.getRecalibratedRT(ion.getRetentionTime()), window = pruneCandidates ? 9*retentionTimeError : Double.POSITIVE_INFINITY;
+            mass2msms.addCandidates(candidates, l, rt-window, rt+window);
+            if (l!=h) mass2msms.addCandidates(candidates, h, rt-window, rt+window);
             //////////////////////////
             candidates.forEach(c->{
                 final AlignedFeatures f = left[c];
@@ -262,25 +330,8 @@ public class Aligner2 {
         final ArrayList<AlignedFeatures> fs = new ArrayList<>(Arrays.asList(features));
         fs.sort(Comparator.comparingInt((AlignedFeatures u) -> u.features.size()).reversed());
         //fs.sort(Comparator.comparingDouble(AlignedFeatures::getMass).thenComparing((AlignedFeatures::getRetentionTime)));
-        final List<AlignedFeatures[]> toAlign = new ArrayList<>();
-        final ArrayList<AlignedFeatures> dummy = new ArrayList<>();
         final BitSet done = new BitSet(fs.size());
-        for (int i=0; i < fs.size(); ++i) {
-            final AlignedFeatures f = fs.get(i);
-            dummy.clear();
-            dummy.add(f);
-            for (int j=i+1; j < fs.size(); ++j) {
-                AlignedFeatures g = fs.get(j);
-                if (!done.get(j) && dev.inErrorWindow(f.getMass(),g.getMass()) && Math.abs(f.rt-g.rt) < 5*retentionTimeError) {
-                    dummy.add(g);
-                    done.set(j);
-                }
-            }
-            if (dummy.size()>1) {
-                toAlign.add(dummy.toArray(new AlignedFeatures[0]));
-                done.set(i);
-            }
-        }
+        final List<AlignedFeatures[]> toAlign = findFeaturesToRejoin(fs, done);
         for (int k=0; k < fs.size(); ++k) {
             if (done.get(k)) fs.set(k,null);
         }
@@ -301,6 +352,49 @@ public class Aligner2 {
 
     }
 
+    /**
+     * Groups features which are within the mass and retention time window of the first feature of their group and
+     * might be one and the same. All features which are part of a group are marked in done.
+     */
+    List<AlignedFeatures[]> findFeaturesToRejoin(List<AlignedFeatures> fs, BitSet done) {
+        final List<AlignedFeatures[]> toAlign = new ArrayList<>();
+        final ArrayList<AlignedFeatures> dummy = new ArrayList<>();
+        // features ordered by mass, such that only features within the mass window have to be compared
+        final int[] byMass = IntStream.range(0, fs.size()).boxed().sorted(Comparator.comparingDouble(k -> fs.get(k).getMass())).mapToInt(Integer::intValue).toArray();
+        final double[] masses = Arrays.stream(byMass).mapToDouble(k -> fs.get(k).getMass()).toArray();
+        final TIntArrayList neighbours = new TIntArrayList();
+        for (int i=0; i < fs.size(); ++i) {
+            final AlignedFeatures f = fs.get(i);
+            dummy.clear();
+            dummy.add(f);
+            neighbours.clear();
+            final double window = pruneCandidates ? 2*dev.absoluteFor(f.getMass()) : Double.POSITIVE_INFINITY;
+            int lo = 0, hi = masses.length;
+            while (lo < hi) {
+                final int mid = (lo+hi) >>> 1;
+                if (masses[mid] < f.getMass()-window) lo = mid+1;
+                else hi = mid;
+            }
+            for (int k=lo; k < masses.length && masses[k] <= f.getMass()+window; ++k) {
+                if (byMass[k] > i) neighbours.add(byMass[k]);
+            }
+            neighbours.sort();
+            for (int n=0; n < neighbours.size(); ++n) {
+                final int j = neighbours.get(n);
+                AlignedFeatures g = fs.get(j);
+                if (!done.get(j) && dev.inErrorWindow(f.getMass(),g.getMass()) && Math.abs(f.rt-g.rt) < 5*retentionTimeError) {
+                    dummy.add(g);
+                    done.set(j);
+                }
+            }
+            if (dummy.size()>1) {
+                toAlign.add(dummy.toArray(new AlignedFeatures[0]));
+                done.set(i);
+            }
+        }
+        return toAlign;
+    }
+
     private List<AlignedFeatures> tryAlign(AlignedFeatures[] xs) {
         final ArrayList<AlignedFeatures> features = new ArrayList<>();
         final double gamma = 1d/(2*retentionTimeError*retentionTimeError);
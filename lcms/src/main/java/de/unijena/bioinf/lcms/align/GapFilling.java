@@ -26,13 +26,11 @@ import de.unijena.bioinf.jjobs.BasicMasterJJob;
 import de.unijena.bioinf.jjobs.JJob;
 import de.unijena.bioinf.lcms.CorrelatedPeakDetector;
 import de.unijena.bioinf.lcms.LCMSProccessingInstance;
-import de.unijena.bioinf.lcms.MemoryFileStorage;
 import de.unijena.bioinf.lcms.ProcessedSample;
 import de.unijena.bioinf.lcms.peakshape.PeakShape;
 import de.unijena.bioinf.lcms.quality.Quality;
 import de.unijena.bioinf.model.lcms.*;
 
-import java.io.IOException;
 import java.util.*;
 
 public class GapFilling {
@@ -59,8 +57,6 @@ public class GapFilling {
 
     private List<Gaps> gapFill(LCMSProccessingInstance instance, Cluster cluster, double rtError, double peakShapeError, boolean onlyGoodShapes, ProcessedSample sample) {
         final ArrayList<Gaps> gaps = new ArrayList<>();
-        if (sample.storage instanceof MemoryFileStorage)
-            ((MemoryFileStorage) sample.storage).keepInMemory();
         final Set<ChromatographicPeak.Segment> segments = new HashSet<>();
         for (FragmentedIon ion : sample.ions)
             segments.add(ion.getSegment());
@@ -154,13 +150,6 @@ public class GapFilling {
 
             }
         }
-        if (sample.storage instanceof MemoryFileStorage) {
-            try {
-                ((MemoryFileStorage) sample.storage).backOnDisc();
-            } catch (IOException e) {
-                e.printStackTrace();
-            }
-        }
         return gaps;
     }
 
@@ -0,0 +1,122 @@
+package de.unijena.bioinf.io.lcms;
+
+import de.unijena.bioinf.ChemistryBase.data.DataSource;
+import de.unijena.bioinf.ChemistryBase.ms.utils.SimpleSpectrum;
+import de.unijena.bioinf.lcms.InMemoryStorage;
+import de.unijena.bioinf.lcms.SpectrumStorage;
+import de.unijena.bioinf.model.lcms.LCMSRun;
+import de.unijena.bioinf.model.lcms.Polarity;
+import de.unijena.bioinf.model.lcms.Precursor;
+import de.unijena.bioinf.model.lcms.Scan;
+import org.junit.Test;
+import uk.ac.ebi.jmzml.xml.io.MzMLUnmarshaller;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * The fixtures contain the same six spectra: MS1 and MS/MS scans with zlib compressed and uncompressed arrays of 32
+ * and 64 bit floats, precursor references, retention times in seconds, minutes and milliseconds and peaks with zero
+ * intensity. The scan numbers of the mzXML file are the spectrum indices of the mzML file plus one.
+ */
+public class MzMLParserTest {
+
+    private static File fixture(String name) throws URISyntaxException {
+        return new File(MzMLParserTest.class.getResource("/de/unijena/bioinf/io/lcms/" + name).toURI());
+    }
+
+    @Test
+    public void testStaxParserMatchesJmzML() throws Exception {
+        final File file = fixture("parity.mzML");
+        final InMemoryStorage staxStorage = new InMemoryStorage(), jmzmlStorage = new InMemoryStorage();
+        final LCMSRun stax = new MzMLParser().parse(file, staxStorage);
+        final LCMSRun jmzml = new MzMLParser().parse(new DataSource(file), new MzMLUnmarshaller(file), jmzmlStorage);
+        assertSameRun(jmzml, jmzmlStorage, stax, staxStorage, 0);
+        assertEquals(jmzml.getInstrument(), stax.getInstrument());
+    }
+
+    @Test
+    public void testMzXMLMatchesMzML() throws Exception {
+        final InMemoryStorage mzmlStorage = new InMemoryStorage(), mzxmlStorage = new InMemoryStorage();
+        final LCMSRun mzml = new MzMLParser().parse(fixture("parity.mzML"), mzmlStorage);
+        final LCMSRun mzxml = new MzXMLParser().parse(fixture("parity.mzXML"), mzxmlStorage);
+        assertSameRun(mzml, mzmlStorage, mzxml, mzxmlStorage, 1);
+    }
+
+    @Test
+    public void testParsedValues() throws Exception {
+        final InMemoryStorage storage = new InMemoryStorage();
+        final LCMSRun run = new MzMLParser().parse(fixture("parity.mzML"), storage);
+        final List<Scan> scans = new ArrayList<>(run.getScans());
+        assertEquals(6, scans.size());
+        assertEquals(Arrays.asList(60500L, 60600L, 60700L, 60798L, 60900L, 61000L), Arrays.asList(scans.stream().map(Scan::getRetentionTime).toArray(Long[]::new)));
+        assertEquals(Arrays.asList(false, true, false, true, false, true), Arrays.asList(scans.stream().map(Scan::isMsMs).toArray(Boolean[]::new)));
+        for (int k = 0; k < scans.size(); ++k) {
+            final Scan scan = scans.get(k);
+            assertEquals(k, scan.getIndex());
+            assertEquals(Polarity.POSITIVE, scan.getPolarity());
+            assertTrue(scan.isCentroided());
+            final SimpleSpectrum spectrum = storage.getScan(scan);
+            assertEquals(scan.getNumberOfPeaks(), spectrum.size());
+            for (int i = 0; i < spectrum.size(); ++i) assertTrue(spectrum.getIntensityAt(i) > 0);
+            if (scan.isMsMs()) {
+                assertEquals(35d, scan.getCollisionEnergy(), 0d);
+                final Precursor precursor = scan.getPrecursor();
+                assertEquals(k - 1, precursor.getIndex());
+                assertEquals(1, precursor.getCharge());
+                assertEquals(1d, precursor.getIsolationWindowWidth(), 1e-9);
+                // the precursor is the fourth peak of the preceding MS1 scan, its second peak has zero intensity
+                final SimpleSpectrum ms1 = storage.getScan(scans.get(k - 1));
+                assertEquals((float) ms1.getMzAt(2), precursor.getMass(), 0d);
+                assertEquals((float) ms1.getIntensityAt(2), precursor.getIntensity(), 0d);
+            }
+        }
+    }
+
+    @Test
+    public void testStorageIsCleared() throws IOException {
+        final InMemoryStorage storage = new InMemoryStorage();
+        final Scan scan = new Scan(1, Polarity.POSITIVE, 0L, 0d, 1, 1d, true);
+        storage.add(scan, new SimpleSpectrum(new double[]{100d}, new double[]{1d}));
+        storage.clear();
+        assertNull(storage.getScan(scan));
+    }
+
+    private static void assertSameRun(LCMSRun expected, SpectrumStorage expectedStorage, LCMSRun actual, SpectrumStorage actualStorage, int indexOffset) {
+        final List<Scan> as = new ArrayList<>(expected.getScans()), bs = new ArrayList<>(actual.getScans());
+        assertEquals(as.size(), bs.size());
+        for (int k = 0; k < as.size(); ++k) {
+            final Scan a = as.get(k), b = bs.get(k);
+            assertEquals(a.getIndex() + indexOffset, b.getIndex());
+            assertEquals(a.getPolarity(), b.getPolarity());
+            assertEquals(a.getRetentionTime(), b.getRetentionTime());
+            assertEquals(a.getCollisionEnergy(), b.getCollisionEnergy(), 0d);
+            assertEquals(a.isCentroided(), b.isCentroided());
+            assertEquals(a.isMsMs(), b.isMsMs());
+            assertEquals(a.getNumberOfPeaks(), b.getNumberOfPeaks());
+            assertEquals(a.getTIC(), b.getTIC(), 1e-9 * a.getTIC());
+            if (a.getPrecursor() == null) {
+                assertNull(b.getPrecursor());
+            } else {
+                final Precursor p = a.getPrecursor(), q = b.getPrecursor();
+                assertEquals(p.getIndex() + indexOffset, q.getIndex());
+                assertEquals(p.getMass(), q.getMass(), 1e-9);
+                assertEquals(p.getIntensity(), q.getIntensity(), 1e-9);
+                assertEquals(p.getCharge(), q.getCharge());
+                assertEquals(p.getIsolationWindowWidth(), q.getIsolationWindowWidth(), 1e-9);
+            }
+            final SimpleSpectrum x = expectedStorage.getScan(a), y = actualStorage.getScan(b);
+            assertEquals(x.size(), y.size());
+            for (int i = 0; i < x.size(); ++i) {
+                assertEquals(x.getMzAt(i), y.getMzAt(i), 0d);
+                assertEquals(x.getIntensityAt(i), y.getIntensityAt(i), 0d);
+            }
+        }
+    }
+}
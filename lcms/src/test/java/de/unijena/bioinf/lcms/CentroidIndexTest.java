@@ -0,0 +1,137 @@
+package de.unijena.bioinf.lcms;
+
+import de.unijena.bioinf.ChemistryBase.ms.Deviation;
+import de.unijena.bioinf.ChemistryBase.ms.utils.SimpleSpectrum;
+import de.unijena.bioinf.ChemistryBase.ms.utils.Spectrums;
+import de.unijena.bioinf.lcms.noise.GlobalNoiseModel;
+import de.unijena.bioinf.model.lcms.Polarity;
+import de.unijena.bioinf.model.lcms.Scan;
+import gnu.trove.list.array.TIntArrayList;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class CentroidIndexTest {
+
+    private static final int NUMBER_OF_SCANS = 60;
+
+    private final List<Scan> scans = new ArrayList<>();
+    private final List<SimpleSpectrum> spectra = new ArrayList<>();
+
+    public CentroidIndexTest() {
+        final Random r = new Random(7);
+        for (int s = 0; s < NUMBER_OF_SCANS; ++s) {
+            final int n = 1 + r.nextInt(80);
+            final double[] mz = new double[n], intensity = new double[n];
+            for (int k = 0; k < n; ++k) {
+                // a few masses recur in every scan, the remaining ones are random
+                mz[k] = k < 5 ? 100.5 + 50 * k + r.nextGaussian() * 1e-3 : 100 + r.nextDouble() * 400;
+                intensity[k] = 10 + r.nextDouble() * 1000;
+            }
+            final SimpleSpectrum spectrum = new SimpleSpectrum(mz, intensity);
+            // scan numbers with gaps, as MS/MS scans are not indexed
+            scans.add(new Scan(3 * s + 1, Polarity.POSITIVE, 1000L * s, 0d, spectrum.size(), Spectrums.calculateTIC(spectrum), true));
+            spectra.add(spectrum);
+        }
+    }
+
+    private CentroidIndex.Builder builder() {
+        final CentroidIndex.Builder builder = new CentroidIndex.Builder();
+        for (int s = 0; s < scans.size(); ++s) builder.add(scans.get(s), spectra.get(s));
+        return builder;
+    }
+
+    @Test
+    public void testSearchFindsAllCentroidsInWindow() {
+        final CentroidIndex index = builder().build();
+        assertEquals(NUMBER_OF_SCANS, index.numberOfScans());
+        assertEquals(spectra.stream().mapToInt(SimpleSpectrum::size).sum(), index.numberOfCentroids());
+
+        final Random r = new Random(11);
+        final TIntArrayList found = new TIntArrayList();
+        for (int q = 0; q < 200; ++q) {
+            final double from = 100 + r.nextDouble() * 400, to = from + r.nextDouble() * 0.5;
+            final int fromPosition = r.nextInt(NUMBER_OF_SCANS), toPosition = fromPosition + r.nextInt(NUMBER_OF_SCANS - fromPosition);
+            found.clearQuick();
+            index.search(from, to, fromPosition, toPosition, found);
+            int expected = 0;
+            for (int s = fromPosition; s <= toPosition; ++s)
+                for (int k = 0; k < spectra.get(s).size(); ++k)
+                    if (spectra.get(s).getMzAt(k) >= from && spectra.get(s).getMzAt(k) <= to) ++expected;
+            assertEquals(expected, found.size());
+            for (int i = 0; i < found.size(); ++i) {
+                final int c = found.getQuick(i);
+                final int position = index.getScanPositionAt(c);
+                assertTrue(position >= fromPosition && position <= toPosition);
+                final SimpleSpectrum spectrum = spectra.get(position);
+                final int peak = Spectrums.binarySearch(spectrum, index.getMzAt(c));
+                assertTrue(peak >= 0);
+                assertEquals(spectrum.getIntensityAt(peak), index.getIntensityAt(c), spectrum.getIntensityAt(peak) * 1e-6);
+            }
+        }
+    }
+
+    @Test
+    public void testLookupsOfSingleScan() {
+        final CentroidIndex index = builder().build();
+        final Deviation dev = new Deviation(10);
+        for (int s = 0; s < NUMBER_OF_SCANS; ++s) {
+            assertEquals(s, index.positionOf(scans.get(s).getIndex()));
+            assertSame(scans.get(s), index.getScanAt(s));
+            final SimpleSpectrum spectrum = spectra.get(s);
+            for (int k = 0; k < Math.min(5, spectrum.size()); ++k) {
+                final double mz = 100.5 + 50 * k;
+                final int closest = index.closestCentroidWithin(s, mz, dev);
+                final int expected = Spectrums.binarySearch(spectrum, mz, dev);
+                if (expected < 0) assertEquals(-1, closest);
+                else assertEquals(spectrum.getMzAt(expected), index.getMzAt(closest), 0d);
+
+                final int mostIntensive = index.mostIntensiveCentroidWithin(s, mz, dev);
+                final int expectedMostIntensive = Spectrums.mostIntensivePeakWithin(spectrum, mz, dev);
+                if (expectedMostIntensive < 0) assertEquals(-1, mostIntensive);
+                else assertEquals(spectrum.getMzAt(expectedMostIntensive), index.getMzAt(mostIntensive), 0d);
+            }
+        }
+        assertTrue(index.positionOf(2) < 0);
+        assertEquals(1, index.firstPositionFrom(2));
+    }
+
+    @Test
+    public void testRemoveCentroidsBelowNoise() {
+        final CentroidIndex all = builder().build();
+        final CentroidIndex filtered = builder().build(new GlobalNoiseModel(250, 500), 2d);
+        int expected = 0;
+        for (SimpleSpectrum spectrum : spectra)
+            for (int k = 0; k < spectrum.size(); ++k)
+                if (spectrum.getIntensityAt(k) >= 500) ++expected;
+        assertEquals(expected, filtered.numberOfCentroids());
+        assertTrue(filtered.numberOfCentroids() < all.numberOfCentroids());
+        assertEquals(NUMBER_OF_SCANS, filtered.numberOfScans());
+
+        final TIntArrayList found = new TIntArrayList();
+        filtered.search(0, 1000, 0, NUMBER_OF_SCANS - 1, found);
+        assertEquals(expected, found.size());
+        for (int i = 0; i < found.size(); ++i)
+            assertTrue(filtered.getIntensityAt(found.getQuick(i)) >= 500);
+    }
+
+    @Test
+    public void testScansHaveToBeSorted() {
+        final CentroidIndex.Builder builder = new CentroidIndex.Builder().add(scans.get(1), spectra.get(1));
+        try {
+            builder.add(scans.get(0), spectra.get(0));
+            fail();
+        } catch (IllegalArgumentException expected) {
+        }
+        final CentroidIndex empty = new CentroidIndex.Builder().build();
+        assertEquals(0, empty.numberOfScans());
+        assertEquals(0, empty.numberOfCentroids());
+        final TIntArrayList found = new TIntArrayList();
+        empty.search(0, 1000, 0, 0, found);
+        assertTrue(found.isEmpty());
+    }
+}
@@ -0,0 +1,140 @@
+package de.unijena.bioinf.lcms;
+
+import de.unijena.bioinf.ChemistryBase.data.DataSource;
+import de.unijena.bioinf.ChemistryBase.jobs.SiriusJobs;
+import de.unijena.bioinf.ChemistryBase.ms.utils.SimpleMutableSpectrum;
+import de.unijena.bioinf.ChemistryBase.ms.utils.SimpleSpectrum;
+import de.unijena.bioinf.ChemistryBase.ms.utils.Spectrums;
+import de.unijena.bioinf.model.lcms.*;
+import org.junit.Test;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class FeatureDetectionJobTest {
+
+    private static final int NUMBER_OF_SAMPLES = 6, NUMBER_OF_MS1_SCANS = 160, NUMBER_OF_COMPOUNDS = 6;
+
+    /*
+        every sample contains the same compounds with slightly shifted retention times and intensities. Each compound
+        has two isotope peaks and is fragmented three times around its apex.
+     */
+    public static LCMSProccessingInstance newInstance() {
+        final LCMSProccessingInstance instance = new LCMSProccessingInstance();
+        for (int s = 0; s < NUMBER_OF_SAMPLES; ++s) {
+            final Random r = new Random(s);
+            final LCMSRun run = new LCMSRun(new DataSource(new File("sample" + s + ".mzML")));
+            final InMemoryStorage storage = new InMemoryStorage();
+            final int[] apex = new int[NUMBER_OF_COMPOUNDS];
+            final double[] height = new double[NUMBER_OF_COMPOUNDS];
+            for (int c = 0; c < NUMBER_OF_COMPOUNDS; ++c) {
+                apex[c] = 20 + 22 * c + r.nextInt(5);
+                height[c] = 1e5 * (1 + c) * (0.5 + r.nextDouble());
+            }
+            int index = 0;
+            for (int i = 0; i < NUMBER_OF_MS1_SCANS; ++i) {
+                final SimpleMutableSpectrum ms1 = new SimpleMutableSpectrum();
+                for (int k = 0; k < 40; ++k)
+                    ms1.addPeak(100 + r.nextDouble() * 600, 10 + r.nextDouble() * 90);
+                for (int c = 0; c < NUMBER_OF_COMPOUNDS; ++c) {
+                    final double intensity = height[c] * Math.exp(-Math.pow(i - apex[c], 2) / 18d);
+                    if (intensity < 50) continue;
+                    final double mz = mz(c) + r.nextGaussian() * 5e-4;
+                    ms1.addPeak(mz, intensity);
+                    ms1.addPeak(mz + 1.00336, intensity * 0.2);
+                    ms1.addPeak(mz + 2.00671, intensity * 0.03);
+                }
+                final SimpleSpectrum spectrum = new SimpleSpectrum(ms1);
+                final Scan ms1Scan = new Scan(++index, Polarity.POSITIVE, 1000L * i, 0d, spectrum.size(), Spectrums.calculateTIC(spectrum), true);
+                run.addScan(ms1Scan);
+                storage.add(ms1Scan, spectrum);
+                for (int c = 0; c < NUMBER_OF_COMPOUNDS; ++c) {
+                    if (Math.abs(i - apex[c]) > 2 || (i - apex[c]) % 2 != 0) continue;
+                    final SimpleMutableSpectrum ms2 = new SimpleMutableSpectrum();
+                    for (int f = 1; f <= 8; ++f)
+                        ms2.addPeak(mz(c) - 14.01565 * f - 1.00783 * (f % 3), 1000 * f * (0.9 + 0.2 * r.nextDouble()));
+                    ms2.addPeak(mz(c), 500);
+                    final SimpleSpectrum msms = new SimpleSpectrum(ms2);
+                    final double precursorIntensity = height[c] * Math.exp(-Math.pow(i - apex[c], 2) / 18d);
+                    final Scan ms2Scan = new Scan(++index, Polarity.POSITIVE, 1000L * i + 100 + c, 35d, msms.size(), Spectrums.calculateTIC(msms), true,
+                            new Precursor(ms1Scan.getIndex(), mz(c), precursorIntensity, 1, 1d));
+                    run.addScan(ms2Scan);
+                    storage.add(ms2Scan, msms);
+                }
+            }
+            instance.addSample(run, storage);
+        }
+        return instance;
+    }
+
+    private static double mz(int compound) {
+        return 181.0707 + 63.0321 * compound;
+    }
+
+    @Test
+    public void testParallelDetectionMatchesSequentialDetection() {
+        final LCMSProccessingInstance sequential = newInstance();
+        for (ProcessedSample sample : sequential.samples)
+            sequential.detectFeatures(sample);
+
+        final LCMSProccessingInstance parallel = newInstance();
+        final FeatureDetectionJob job = parallel.detectFeaturesInParallel();
+        job.setMaximalNumberOfSamplesInFlight(NUMBER_OF_SAMPLES);
+        SiriusJobs.getGlobalJobManager().submitJob(job).takeResult();
+
+        int numberOfIons = 0;
+        final HashSet<Integer> ms2Ids = new HashSet<>();
+        for (int s = 0; s < NUMBER_OF_SAMPLES; ++s) {
+            final ProcessedSample a = sequential.samples.get(s), b = parallel.samples.get(s);
+            assertEquals(a.ions.size(), b.ions.size());
+            assertEquals(a.meanPeakWidth, b.meanPeakWidth, 0d);
+            assertEquals(a.meanPeakWidthToHeightRatio, b.meanPeakWidthToHeightRatio, 0d);
+            for (int i = 0; i < a.ions.size(); ++i) {
+                final FragmentedIon x = a.ions.get(i), y = b.ions.get(i);
+                assertEquals(x.getMsMsScan().getIndex(), y.getMsMsScan().getIndex());
+                assertTrue("MS/MS ids have to be unique across samples", ms2Ids.add(y.getMsMsScan().getIndex()));
+                assertEquals(x.getMass(), y.getMass(), 0d);
+                assertEquals(x.getRetentionTime(), y.getRetentionTime());
+                assertEquals(x.getSegment().getApexScanNumber(), y.getSegment().getApexScanNumber());
+                assertEquals(x.getMsQuality(), y.getMsQuality());
+                assertEquals(x.getMsMsQuality(), y.getMsMsQuality());
+                assertEquals(x.getDetectedIonType(), y.getDetectedIonType());
+                assertEquals(x.getIsotopes().size(), y.getIsotopes().size());
+                assertEquals(x.getAdducts().size(), y.getAdducts().size());
+                assertEquals(x.getInSourceFragments().size(), y.getInSourceFragments().size());
+                assertEquals(x.getPeakShape().getScore(), y.getPeakShape().getScore(), 0d);
+                assertEquals(sequential.getMs2Storage().getScan(x.getMsMsScan()), parallel.getMs2Storage().getScan(y.getMsMsScan()));
+            }
+            numberOfIons += a.ions.size();
+        }
+        assertTrue(numberOfIons > 0);
+    }
+
+    @Test
+    public void testMs2IdsDoNotDependOnSampleOrder() {
+        final LCMSProccessingInstance forward = newInstance(), backward = newInstance();
+        for (ProcessedSample sample : forward.samples)
+            forward.detectFeatures(sample);
+        final List<ProcessedSample> reversed = new ArrayList<>(backward.samples);
+        for (int s = reversed.size() - 1; s >= 0; --s)
+            backward.detectFeatures(reversed.get(s));
+        for (int s = 0; s < NUMBER_OF_SAMPLES; ++s) {
+            final ProcessedSample a = forward.samples.get(s), b = backward.samples.get(s);
+            assertEquals(a.ions.size(), b.ions.size());
+            for (int i = 0; i < a.ions.size(); ++i)
+                assertEquals(a.ions.get(i).getMsMsScan().getIndex(), b.ions.get(i).getMsMsScan().getIndex());
+        }
+        // detecting the features of a sample again assigns the same ids
+        final ProcessedSample first = forward.samples.get(0);
+        final List<FragmentedIon> before = new ArrayList<>(first.ions);
+        forward.detectFeatures(first);
+        assertEquals(before.size(), first.ions.size());
+        for (int i = 0; i < before.size(); ++i)
+            assertEquals(before.get(i).getMsMsScan().getIndex(), first.ions.get(i).getMsMsScan().getIndex());
+    }
+}
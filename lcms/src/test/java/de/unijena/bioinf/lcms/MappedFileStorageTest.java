@@ -0,0 +1,203 @@
+package de.unijena.bioinf.lcms;
+
+import de.unijena.bioinf.ChemistryBase.ms.IsolationWindow;
+import de.unijena.bioinf.ChemistryBase.ms.MsInstrumentation;
+import de.unijena.bioinf.ChemistryBase.ms.utils.SimpleSpectrum;
+import de.unijena.bioinf.ChemistryBase.ms.utils.Spectrums;
+import de.unijena.bioinf.ChemistryBase.data.DataSource;
+import de.unijena.bioinf.model.lcms.LCMSRun;
+import de.unijena.bioinf.model.lcms.Polarity;
+import de.unijena.bioinf.model.lcms.Precursor;
+import de.unijena.bioinf.model.lcms.Scan;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class MappedFileStorageTest {
+
+    // chunks of 4 KB, so a few scans already fill a chunk
+    private static final int CHUNK_BITS = 12;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final List<Scan> scans = new ArrayList<>();
+    private final List<SimpleSpectrum> spectra = new ArrayList<>();
+
+    public MappedFileStorageTest() {
+        final Random r = new Random(5);
+        for (int i = 0; i < 100; ++i) {
+            // up to 300 peaks of 12 bytes, so records regularly do not fit into the remainder of a chunk
+            final int n = r.nextInt(300);
+            final double[] mz = new double[n], intensity = new double[n];
+            for (int k = 0; k < n; ++k) {
+                mz[k] = 50 + r.nextDouble() * 950;
+                intensity[k] = r.nextDouble() * 1e6;
+            }
+            final SimpleSpectrum spectrum = new SimpleSpectrum(mz, intensity);
+            final boolean msms = i % 3 == 2;
+            final Precursor precursor = msms ? new Precursor(i, 100 + r.nextDouble() * 900, r.nextDouble() * 1e7, 1 + r.nextInt(2), new IsolationWindow(0.1, 1.5)) : null;
+            scans.add(new Scan(i + 1, i % 2 == 0 ? Polarity.POSITIVE : Polarity.NEGATIVE, 1000L * i, msms ? 35d : 0d, spectrum.size(), Spectrums.calculateTIC(spectrum), i % 5 != 0, precursor));
+            spectra.add(spectrum);
+        }
+    }
+
+    private MappedFileStorage open(File file) throws IOException {
+        return new MappedFileStorage(file, CHUNK_BITS, false);
+    }
+
+    private void addAll(MappedFileStorage storage, int from, int to) {
+        for (int i = from; i < to; ++i) storage.add(scans.get(i), spectra.get(i));
+    }
+
+    private void assertStored(MappedFileStorage storage, int from, int to) {
+        assertEquals(to - from, storage.size());
+        for (int i = from; i < to; ++i) {
+            final SimpleSpectrum expected = spectra.get(i), actual = storage.getScan(scans.get(i));
+            assertNotNull(actual);
+            assertEquals(expected.size(), actual.size());
+            for (int k = 0; k < expected.size(); ++k) {
+                assertEquals(expected.getMzAt(k), actual.getMzAt(k), 0d);
+                assertEquals((float) expected.getIntensityAt(k), actual.getIntensityAt(k), 0d);
+            }
+        }
+    }
+
+    private static void assertSameScan(Scan expected, Scan actual) {
+        assertEquals(expected.getIndex(), actual.getIndex());
+        assertEquals(expected.getPolarity(), actual.getPolarity());
+        assertEquals(expected.getRetentionTime(), actual.getRetentionTime());
+        assertEquals(expected.getCollisionEnergy(), actual.getCollisionEnergy(), 0d);
+        assertEquals(expected.getNumberOfPeaks(), actual.getNumberOfPeaks());
+        assertEquals(expected.getTIC(), actual.getTIC(), 0d);
+        assertEquals(expected.isCentroided(), actual.isCentroided());
+        if (expected.getPrecursor() == null) {
+            assertNull(actual.getPrecursor());
+        } else {
+            final Precursor p = expected.getPrecursor(), q = actual.getPrecursor();
+            assertEquals(p.getIndex(), q.getIndex());
+            assertEquals(p.getMass(), q.getMass(), 0d);
+            assertEquals(p.getIntensity(), q.getIntensity(), 0d);
+            assertEquals(p.getCharge(), q.getCharge());
+            assertEquals(p.getIsolationWindowOffset(), q.getIsolationWindowOffset(), 0d);
+            assertEquals(p.getIsolationWindowWidth(), q.getIsolationWindowWidth(), 0d);
+        }
+    }
+
+    private LCMSRun run(File source, int from, int to) {
+        final LCMSRun run = new LCMSRun(new DataSource(source));
+        run.setInstrument(MsInstrumentation.Instrument.ORBI);
+        for (int i = from; i < to; ++i) run.addScan(scans.get(i));
+        return run;
+    }
+
+    @Test
+    public void testRoundTripWithChunkPadding() throws IOException {
+        final File file = folder.newFile("storage.binary"), source = folder.newFile("source.mzML");
+        Files.write(source.toPath(), new byte[]{1, 2, 3});
+        try (MappedFileStorage storage = open(file)) {
+            addAll(storage, 0, scans.size());
+            assertStored(storage, 0, scans.size());
+            storage.commit(run(source, 0, scans.size()), source);
+        }
+        assertTrue("scans have to span several chunks", file.length() > 10L << CHUNK_BITS);
+
+        // the chunk size is read from the file
+        try (MappedFileStorage storage = new MappedFileStorage(file)) {
+            assertStored(storage, 0, scans.size());
+            final LCMSRun run = storage.restoreRun(source).orElseThrow();
+            assertEquals(MsInstrumentation.Instrument.ORBI, run.getInstrument());
+            final List<Scan> restored = new ArrayList<>(run.getScans());
+            assertEquals(scans.size(), restored.size());
+            for (int i = 0; i < scans.size(); ++i)
+                assertSameScan(scans.get(i), restored.get(i));
+        }
+    }
+
+    @Test
+    public void testRecordLargerThanChunk() throws IOException {
+        try (MappedFileStorage storage = open(folder.newFile("storage.binary"))) {
+            final double[] mz = new double[1000], intensity = new double[1000];
+            for (int k = 0; k < mz.length; ++k) {
+                mz[k] = 100 + k;
+                intensity[k] = 1;
+            }
+            final SimpleSpectrum spectrum = new SimpleSpectrum(mz, intensity);
+            try {
+                storage.add(new Scan(1, Polarity.POSITIVE, 0L, 0d, spectrum.size(), 1000d, true), spectrum);
+                fail();
+            } catch (IllegalArgumentException expected) {
+            }
+            addAll(storage, 0, 3);
+            assertStored(storage, 0, 3);
+        }
+    }
+
+    @Test
+    public void testClearAndReopen() throws IOException {
+        final File file = folder.newFile("storage.binary"), source = folder.newFile("source.mzML");
+        try (MappedFileStorage storage = open(file)) {
+            addAll(storage, 0, 80);
+            storage.commit(run(source, 0, 80), source);
+            storage.clear();
+            assertEquals(0, storage.size());
+            assertNull(storage.getScan(scans.get(0)));
+            assertFalse(storage.restoreRun(source).isPresent());
+            // fewer scans than before, so the stale records of the first fill remain behind the end of the data
+            addAll(storage, 80, 90);
+        }
+        try (MappedFileStorage storage = open(file)) {
+            assertStored(storage, 80, 90);
+            assertFalse(storage.contains(scans.get(0)));
+            assertFalse(storage.restoreRun(source).isPresent());
+            storage.commit(run(source, 80, 90), source);
+        }
+        try (MappedFileStorage storage = open(file)) {
+            final LCMSRun run = storage.restoreRun(source).orElseThrow();
+            assertEquals(10, run.getScans().size());
+            assertStored(storage, 80, 90);
+        }
+    }
+
+    @Test
+    public void testChangedSourceIsNotRestored() throws IOException {
+        final File file = folder.newFile("storage.binary"), source = folder.newFile("source.mzML");
+        Files.write(source.toPath(), new byte[]{1, 2, 3});
+        assertTrue(source.setLastModified(100000L));
+        try (MappedFileStorage storage = open(file)) {
+            addAll(storage, 0, 10);
+            storage.commit(run(source, 0, 10), source);
+        }
+        try (MappedFileStorage storage = open(file)) {
+            assertTrue(storage.restoreRun(source).isPresent());
+            assertTrue(source.setLastModified(200000L));
+            assertFalse("modified source must not be restored", storage.restoreRun(source).isPresent());
+            assertTrue(source.setLastModified(100000L));
+            assertTrue(storage.restoreRun(source).isPresent());
+            Files.write(source.toPath(), new byte[]{1, 2, 3, 4});
+            assertTrue(source.setLastModified(100000L));
+            assertFalse("source with another length must not be restored", storage.restoreRun(source).isPresent());
+        }
+    }
+
+    @Test
+    public void testForeignFileIsRejected() throws IOException {
+        final File file = folder.newFile("storage.binary");
+        Files.write(file.toPath(), new byte[64]);
+        try {
+            open(file).close();
+            fail();
+        } catch (IOException expected) {
+        }
+    }
+}
@@ -0,0 +1,135 @@
+package de.unijena.bioinf.lcms.align;
+
+import de.unijena.bioinf.ChemistryBase.jobs.SiriusJobs;
+import de.unijena.bioinf.lcms.FeatureDetectionJobTest;
+import de.unijena.bioinf.lcms.LCMSProccessingInstance;
+import de.unijena.bioinf.lcms.ProcessedSample;
+import de.unijena.bioinf.model.lcms.ConsensusFeature;
+import de.unijena.bioinf.model.lcms.Feature;
+import de.unijena.bioinf.model.lcms.FragmentedIon;
+import org.junit.Test;
+
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+public class Aligner2Test {
+
+    private static LCMSProccessingInstance detectFeatures() {
+        final LCMSProccessingInstance instance = FeatureDetectionJobTest.newInstance();
+        instance.detectFeatures();
+        return instance;
+    }
+
+    private static Cluster align(Aligner2 aligner, List<ProcessedSample> samples) {
+        return SiriusJobs.getGlobalJobManager().submitJob(aligner.align(samples)).takeResult();
+    }
+
+    private static void assertSameCluster(Cluster expected, Cluster actual) {
+        final AlignedFeatures[] xs = expected.getFeatures(), ys = actual.getFeatures();
+        assertEquals(xs.length, ys.length);
+        for (int k = 0; k < xs.length; ++k) {
+            assertEquals(xs[k].getMass(), ys[k].getMass(), 0d);
+            assertEquals(xs[k].getRetentionTime(), ys[k].getRetentionTime(), 0d);
+            assertEquals(xs[k].getFeatures(), ys[k].getFeatures());
+        }
+    }
+
+    private static void assertSameConsensusFeatures(ConsensusFeature[] expected, ConsensusFeature[] actual) {
+        assertEquals(expected.length, actual.length);
+        for (int k = 0; k < expected.length; ++k) {
+            assertEquals(expected[k].getAverageMass(), actual[k].getAverageMass(), 0d);
+            assertEquals(expected[k].getAverageRetentionTime(), actual[k].getAverageRetentionTime());
+            assertEquals(expected[k].getTotalIntensity(), actual[k].getTotalIntensity(), 0d);
+            final Feature[] fs = expected[k].getFeatures(), gs = actual[k].getFeatures();
+            assertEquals(fs.length, gs.length);
+            for (int i = 0; i < fs.length; ++i) {
+                assertEquals(fs[i].getOrigin(), gs[i].getOrigin());
+                assertEquals(fs[i].getMz(), gs[i].getMz(), 0d);
+                assertEquals(fs[i].getIntensity(), gs[i].getIntensity(), 0d);
+            }
+        }
+    }
+
+    @Test
+    public void testAllSamplesAreCandidatesByDefault() {
+        final LCMSProccessingInstance instance = detectFeatures();
+        final List<ProcessedSample> samples = instance.getSamples();
+        final double error = new Aligner(false).estimateErrorTerm(samples);
+        final Aligner2 aligner = new Aligner2(error);
+        assertEquals(Integer.MAX_VALUE, aligner.getCandidatePoolSize());
+        final Cluster withoutPool = align(aligner, samples);
+
+        // a pool which contains all remaining samples gives the same alignment
+        final Aligner2 pooled = new Aligner2(error);
+        pooled.setCandidatePoolSize(samples.size() - 1);
+        final Cluster withPool = align(pooled, samples);
+        assertSameCluster(withoutPool, withPool);
+        assertSameConsensusFeatures(instance.makeConsensusFeatures(withoutPool), instance.makeConsensusFeatures(withPool));
+    }
+
+    @Test
+    public void testSmallPoolAlignsEveryIonOnce() {
+        final LCMSProccessingInstance instance = detectFeatures();
+        final List<ProcessedSample> samples = instance.getSamples();
+        final Aligner2 pooled = new Aligner2(new Aligner(false).estimateErrorTerm(samples));
+        pooled.setCandidatePoolSize(2);
+        final Cluster cluster = align(pooled, samples);
+        final Set<FragmentedIon> aligned = Collections.newSetFromMap(new IdentityHashMap<>());
+        for (AlignedFeatures f : cluster.getFeatures())
+            for (FragmentedIon ion : f.getFeatures().values())
+                assertTrue(aligned.add(ion));
+        int numberOfIons = 0;
+        for (ProcessedSample sample : samples) numberOfIons += sample.ions.size() + sample.gapFilledIons.size();
+        assertEquals(numberOfIons, aligned.size());
+    }
+
+    @Test
+    public void testRetentionTimeAndMassWindowsDoNotChangeAlignment() {
+        final LCMSProccessingInstance instance = detectFeatures();
+        final List<ProcessedSample> samples = instance.getSamples();
+        int numberOfIons = 0;
+        for (ProcessedSample sample : samples) numberOfIons += sample.ions.size();
+        assertTrue(numberOfIons > samples.size());
+        final double error = new Aligner(false).estimateErrorTerm(samples);
+        // small and large retention time errors, such that the retention time window excludes most features in the
+        // first case and none in the second case
+        for (double retentionTimeError : new double[]{error, 10 * error, 100 * error}) {
+            final Aligner2 pruned = new Aligner2(retentionTimeError);
+            final Aligner2 unpruned = new Aligner2(retentionTimeError);
+            unpruned.pruneCandidates = false;
+            final Cluster expected = align(unpruned, samples);
+            final Cluster actual = align(pruned, samples);
+            assertSameCluster(expected, actual);
+            assertSameConsensusFeatures(instance.makeConsensusFeatures(expected), instance.makeConsensusFeatures(actual));
+        }
+    }
+
+    @Test
+    public void testMassWindowDoesNotChangeFeaturesToRejoin() {
+        final LCMSProccessingInstance instance = detectFeatures();
+        final List<ProcessedSample> samples = instance.getSamples();
+        final double error = new Aligner(false).estimateErrorTerm(samples);
+        final Cluster cluster = align(new Aligner2(error), samples);
+        // split each aligned feature into two features with the same mass and retention time, which have to be rejoined
+        final Set<ProcessedSample> firstHalf = new HashSet<>(samples.subList(0, samples.size() / 2)), secondHalf = new HashSet<>(samples.subList(samples.size() / 2, samples.size()));
+        final List<AlignedFeatures> features = new ArrayList<>();
+        for (AlignedFeatures f : cluster.getFeatures()) {
+            f.without(firstHalf).ifPresent(features::add);
+            f.without(secondHalf).ifPresent(features::add);
+        }
+        for (double retentionTimeError : new double[]{error, 100 * error}) {
+            final Aligner2 pruned = new Aligner2(retentionTimeError);
+            final Aligner2 unpruned = new Aligner2(retentionTimeError);
+            unpruned.pruneCandidates = false;
+            final BitSet expectedDone = new BitSet(), actualDone = new BitSet();
+            final List<AlignedFeatures[]> expected = unpruned.findFeaturesToRejoin(features, expectedDone);
+            final List<AlignedFeatures[]> actual = pruned.findFeaturesToRejoin(features, actualDone);
+            assertTrue(expected.size() > 0);
+            assertEquals(expectedDone, actualDone);
+            assertEquals(expected.size(), actual.size());
+            for (int k = 0; k < expected.size(); ++k)
+                assertArrayEquals(expected.get(k), actual.get(k));
+        }
+    }
+}
@@ -22,90 +22,226 @@
 package de.unijena.bioinf.MassDecomposer.Chemistry;
 
 import de.unijena.bioinf.ChemistryBase.chem.ChemicalAlphabet;
+import de.unijena.bioinf.ms.properties.PropertyManager;
+import org.slf4j.LoggerFactory;
 
-import java.util.concurrent.atomic.AtomicInteger;
-import java.util.concurrent.locks.ReentrantLock;
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * caches decomposer and corresponding alphabet. If a dataset contains a small number of different alphabets,
  * the cache creates for each such alphabet an own decomposer instead of creating a new one each time the alphabet changes.
+ * <p>
+ * Lookups of cached alphabets are lock free. If the cache is full, the least recently used decomposer is evicted.
+ * <p>
+ * Optionally, the ERT tables of evicted decomposers are written to a local directory and are memory mapped back if
+ * the alphabet is requested again, so they have not to be recomputed. The disk store is disabled by default. It is
+ * enabled by setting {@code de.unijena.bioinf.decomposer.cache.directory} to a directory that is not shared with
+ * untrusted users, or by passing the directory to {@link #DecomposerCache(int, Path)}. Stored tables that do not
+ * match the discretization of the requested alphabet are ignored and recomputed.
  */
 public class DecomposerCache {
 
-    private ChemicalAlphabet[] alphabets;
-    private MassToFormulaDecomposer[] decomposers;
-    private AtomicInteger[] useCounter;
-    private int dirtyState;
-    private int size;
+    public static final String DISK_STORE_DIRECTORY_KEY = "de.unijena.bioinf.decomposer.cache.directory";
+    private static final String TABLE_SUFFIX = ".ert";
 
-    private ReentrantLock lock = new ReentrantLock();
+    private final int capacity;
+    private final ConcurrentHashMap<ChemicalAlphabet, CacheEntry> decomposers;
+    private final Path diskStore;
+
+    private final AtomicLong clock = new AtomicLong(0);
+    private final AtomicLong hits = new AtomicLong(0), misses = new AtomicLong(0), diskLoads = new AtomicLong(0),
+            builds = new AtomicLong(0), buildTimeNanos = new AtomicLong(0), evictions = new AtomicLong(0);
 
     public DecomposerCache(int size) {
-        this.alphabets = new ChemicalAlphabet[size];
-        this.decomposers = new MassToFormulaDecomposer[size];
-        this.useCounter = new AtomicInteger[size];
-        this.dirtyState = 0;
-        for (int k=0; k < size; ++k) useCounter[k] = new AtomicInteger(0);
-        this.size = 0;
+        this(size, configuredDiskStore());
+    }
+
+    /**
+     * @param size      maximum number of decomposers kept in memory
+     * @param diskStore directory for the ERT tables of evicted decomposers. null disables the disk store.
+     */
+    public DecomposerCache(int size, Path diskStore) {
+        if (size < 1)
+            throw new IllegalArgumentException("Cache size must be positive but was " + size);
+        this.capacity = size;
+        this.decomposers = new ConcurrentHashMap<>(2 * size);
+        this.diskStore = diskStore;
+    }
+
+    public DecomposerCache() {
+        this(10);
     }
 
     public MassToFormulaDecomposer getDecomposer(ChemicalAlphabet alphabet) {
-        while (true) {
-            int state = dirtyState;
-            MassToFormulaDecomposer d = findDecomposer(alphabet,state);
-            if (d == null) {
-                lock.lock();
-                try {
-                    if (state == dirtyState) {
-                        //System.err.println(this.toString() + " will decompose " + alphabet + " from " + Thread.currentThread().getName() + " with state " + state);
-                        d = addNewDecomposer(alphabet);
-                    } else {
-                        //System.err.println(this.toString() + " STATE CHANGED " + alphabet + " from " + Thread.currentThread().getName() + " with state " + state);
-                        continue;
-                    }
-                } finally {
-                    lock.unlock();
-                }
-                return d;
-            } else if (state == dirtyState) return d;
+        CacheEntry entry = decomposers.get(alphabet);
+        if (entry != null) {
+            hits.incrementAndGet();
+        } else {
+            final CacheEntry newEntry = new CacheEntry(alphabet);
+            entry = decomposers.putIfAbsent(alphabet, newEntry);
+            if (entry == null) {
+                misses.incrementAndGet();
+                entry = newEntry;
+                evictIfNecessary(entry);
+            } else {
+                hits.incrementAndGet();
+            }
         }
+        entry.lastUse = clock.incrementAndGet();
+        return entry.getDecomposer();
     }
 
-    private MassToFormulaDecomposer findDecomposer(ChemicalAlphabet alphabet, int state) {
-        for (int i=0; i < size; ++i) {
-            if (alphabets[i].equals(alphabet)) {
-                useCounter[i].incrementAndGet();
-                return decomposers[i];
+    private void evictIfNecessary(CacheEntry keep) {
+        while (decomposers.size() > capacity) {
+            CacheEntry lru = null;
+            for (CacheEntry e : decomposers.values()) {
+                if (e != keep && (lru == null || e.lastUse < lru.lastUse))
+                    lru = e;
+            }
+            if (lru == null) return;
+            if (decomposers.remove(lru.alphabet, lru)) {
+                evictions.incrementAndGet();
+                writeToDisk(lru);
             }
         }
-        //System.err.println("Search " + alphabet + " in " + Arrays.toString(alphabets) + " without success at state " + state + " in thread " + Thread.currentThread().getName() );
-        return null;
     }
 
-    private MassToFormulaDecomposer addNewDecomposer(ChemicalAlphabet alphabet) {
-        ++dirtyState;
+    private void writeToDisk(CacheEntry entry) {
+        final MassToFormulaDecomposer decomposer = entry.decomposer;
+        if (diskStore == null || decomposer == null || !decomposer.isInitialized())
+            return;
+        final Path file = tableFile(entry.alphabet);
         try {
-        if (size < alphabets.length) {
-            decomposers[size] = new MassToFormulaDecomposer(alphabet);
-            decomposers[size].init();
-            alphabets[size] = alphabet;
-            return decomposers[size++];
-        } else {
-            int mindex = 0;
-            for (int i=1; i < useCounter.length; ++i)
-                if (useCounter[i].get() < useCounter[mindex].get()) mindex = i;
-            decomposers[mindex] =  new MassToFormulaDecomposer(alphabet);
-            decomposers[mindex].init();
-            alphabets[mindex] = alphabet;
-            return decomposers[mindex];
-        } } finally {
-            ++dirtyState;
-            //System.err.println(alphabet.toString() + " IS ADDED BY " + Thread.currentThread().getName() + " with state " + dirtyState);
+            Files.createDirectories(diskStore);
+            final Path tmp = Files.createTempFile(diskStore, file.getFileName().toString(), ".tmp");
+            try {
+                try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp)))) {
+                    decomposer.writeTables(out);
+                }
+                Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } finally {
+                Files.deleteIfExists(tmp);
+            }
+        } catch (IOException e) {
+            LoggerFactory.getLogger(DecomposerCache.class).warn("Could not store ERT tables for alphabet " + entry.alphabet + ": " + e.getMessage());
         }
     }
 
-    public DecomposerCache() {
-        this(10);
+    private boolean readFromDisk(MassToFormulaDecomposer decomposer, ChemicalAlphabet alphabet) {
+        if (diskStore == null)
+            return false;
+        final Path file = tableFile(alphabet);
+        if (!Files.isRegularFile(file))
+            return false;
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            if (decomposer.readTables(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size())))
+                return true;
+            LoggerFactory.getLogger(DecomposerCache.class).warn("Stored ERT tables for alphabet " + alphabet + " are incompatible. Recomputing them.");
+        } catch (IOException | RuntimeException e) {
+            LoggerFactory.getLogger(DecomposerCache.class).warn("Could not read stored ERT tables for alphabet " + alphabet + ". Recomputing them. Cause: " + e.getMessage());
+        }
+        return false;
+    }
+
+    private Path tableFile(ChemicalAlphabet alphabet) {
+        return diskStore.resolve(alphabet.toString() + TABLE_SUFFIX);
+    }
+
+    private static Path configuredDiskStore() {
+        final String dir = PropertyManager.getProperty(DISK_STORE_DIRECTORY_KEY);
+        return dir == null || dir.isBlank() ? null : Paths.get(dir);
+    }
+
+    public int size() {
+        return decomposers.size();
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * @return directory for the ERT tables of evicted decomposers or null if the disk store is disabled
+     */
+    public Path getDiskStore() {
+        return diskStore;
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * @return number of misses that were answered by loading the ERT tables from the disk store
+     */
+    public long getDiskLoads() {
+        return diskLoads.get();
+    }
+
+    /**
+     * @return number of misses for which the ERT tables had to be computed
+     */
+    public long getBuilds() {
+        return builds.get();
+    }
+
+    /**
+     * @return total time in milliseconds spent on computing or loading ERT tables
+     */
+    public long getBuildTimeMillis() {
+        return buildTimeNanos.get() / 1_000_000L;
     }
 
+    public long getEvictions() {
+        return evictions.get();
+    }
+
+    @Override
+    public String toString() {
+        return "DecomposerCache{size=" + size() + "/" + capacity + ", hits=" + getHits() + ", misses=" + getMisses()
+                + ", diskLoads=" + getDiskLoads() + ", builds=" + getBuilds() + ", buildTime=" + getBuildTimeMillis()
+                + "ms, evictions=" + getEvictions() + "}";
+    }
+
+    private class CacheEntry {
+        private final ChemicalAlphabet alphabet;
+        private volatile MassToFormulaDecomposer decomposer;
+        private volatile long lastUse;
+
+        private CacheEntry(ChemicalAlphabet alphabet) {
+            this.alphabet = alphabet;
+        }
+
+        // the decomposer is created by the first thread requesting it, all other threads wait until it is ready
+        private MassToFormulaDecomposer getDecomposer() {
+            MassToFormulaDecomposer d = decomposer;
+            if (d != null) return d;
+            synchronized (this) {
+                if (decomposer == null) {
+                    final long start = System.nanoTime();
+                    d = new MassToFormulaDecomposer(alphabet);
+                    if (readFromDisk(d, alphabet)) {
+                        diskLoads.incrementAndGet();
+                    } else {
+                        d.init();
+                        builds.incrementAndGet();
+                    }
+                    buildTimeNanos.addAndGet(System.nanoTime() - start);
+                    decomposer = d;
+                }
+                return decomposer;
+            }
+        }
+    }
 }
@@ -0,0 +1,137 @@
+/*
+ *
+ *  This file is part of the SIRIUS library for analyzing MS and MS/MS data
+ *
+ *  Copyright (C) 2013-2020 Kai Dührkop, Markus Fleischauer, Marcus Ludwig, Martin A. Hoffman and Sebastian Böcker,
+ *  Chair of Bioinformatics, Friedrich-Schilller University.
+ *
+ *  This library is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public
+ *  License as published by the Free Software Foundation; either
+ *  version 3 of the License, or (at your option) any later version.
+ *
+ *  This library is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License along with SIRIUS. If not, see <https://www.gnu.org/licenses/lgpl-3.0.txt>
+ */
+
+package de.unijena.bioinf.MassDecomposer.Chemistry;
+
+import de.unijena.bioinf.ChemistryBase.chem.*;
+import de.unijena.bioinf.MassDecomposer.DecompIterator;
+
+/**
+ * Cursor over the molecular formulas of a mass decomposition. In contrast to
+ * {@link MassToFormulaDecomposer#formulaIterator(double, Ionization, de.unijena.bioinf.ChemistryBase.ms.Deviation, FormulaConstraints)}
+ * the cursor does not allocate anything per decomposition: compomere and amounts are written into buffers which are
+ * only valid until the next call of {@link #next()}. A {@link MolecularFormula} is only created if the formula filter
+ * has to look at it or if {@link #getFormula()} is called.
+ * <p>
+ * Element bounds are applied during the decomposition itself, afterwards the {@link de.unijena.bioinf.MassDecomposer.DecompositionValidator}
+ * (if any) is called on the raw compomere and only the remaining decompositions are checked by the formula filter.
+ */
+public class FormulaCursor {
+
+    private final DecompIterator<Element> decompositions;
+    private final ChemicalAlphabet alphabet;
+    private final Ionization ionization;
+    private final FormulaFilter filter;
+    private final double minMass, maxMass;
+
+    private final double[] characterMasses;
+    private final short[] amounts;
+
+    private double mass;
+    private boolean amountsUpToDate;
+    private MolecularFormula formula;
+
+    /**
+     * @param decompositions iterator over the decompositions of the neutral mass
+     * @param filter         formula filter or null
+     * @param minMass        decompositions with a mass below this value are skipped
+     * @param maxMass        decompositions with a mass equal or above this value are skipped
+     */
+    FormulaCursor(DecompIterator<Element> decompositions, ChemicalAlphabet alphabet, Ionization ionization, FormulaFilter filter, double minMass, double maxMass) {
+        this.decompositions = decompositions;
+        this.alphabet = alphabet;
+        this.ionization = ionization;
+        this.filter = filter;
+        this.minMass = minMass;
+        this.maxMass = maxMass;
+        final int[] order = decompositions.getAlphabetOrder();
+        this.characterMasses = new double[order.length];
+        for (int i = 0; i < order.length; ++i) {
+            characterMasses[i] = decompositions.getAlphabet().weightOf(order[i]);
+        }
+        this.amounts = alphabet.newAmountBuffer();
+    }
+
+    /**
+     * moves the cursor to the next valid decomposition
+     *
+     * @return false, if there are no further decompositions
+     */
+    public boolean next() {
+        while (decompositions.next()) {
+            final int[] compomere = decompositions.getCurrentCompomere();
+            double m = 0d;
+            for (int i = 0; i < compomere.length; ++i) m += compomere[i] * characterMasses[i];
+            if (m < minMass || m >= maxMass) continue;
+            this.mass = m;
+            this.amountsUpToDate = false;
+            this.formula = null;
+            if (filter != null && !filter.isValid(getFormula(), ionization)) continue;
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * @return the current compomere (in the order of {@link #getAlphabetOrder()}). Do not modify this array!
+     */
+    public int[] getCompomere() {
+        return decompositions.getCurrentCompomere();
+    }
+
+    /**
+     * @return mapping of positions in the compomere to element indizes in the chemical alphabet
+     */
+    public int[] getAlphabetOrder() {
+        return decompositions.getAlphabetOrder();
+    }
+
+    /**
+     * @return the amounts of the current decomposition ordered as in the table selection of the alphabet. Do not
+     * modify this array!
+     */
+    public short[] getAmounts() {
+        if (!amountsUpToDate) {
+            alphabet.decompositionToAmounts(decompositions.getCurrentCompomere(), amounts);
+            amountsUpToDate = true;
+        }
+        return amounts;
+    }
+
+    /**
+     * @return the neutral mass of the current decomposition
+     */
+    public double getMass() {
+        return mass;
+    }
+
+    public ChemicalAlphabet getChemicalAlphabet() {
+        return alphabet;
+    }
+
+    /**
+     * @return the current decomposition as molecular formula. The formula is created on the first call and is
+     * independent from the cursor, so it can be kept.
+     */
+    public MolecularFormula getFormula() {
+        if (formula == null) formula = MolecularFormula.fromCompomer(alphabet.getTableSelection(), getAmounts());
+        return formula;
+    }
+}
@@ -23,16 +23,23 @@ package de.unijena.bioinf.MassDecomposer.Chemistry;
 
 import de.unijena.bioinf.ChemistryBase.chem.*;
 import de.unijena.bioinf.ChemistryBase.chem.utils.FormulaFilterList;
+import de.unijena.bioinf.ChemistryBase.jobs.SiriusJobs;
 import de.unijena.bioinf.ChemistryBase.ms.Deviation;
 import de.unijena.bioinf.MassDecomposer.DecompIterator;
+import de.unijena.bioinf.MassDecomposer.DecompositionValidator;
 import de.unijena.bioinf.MassDecomposer.Interval;
 import de.unijena.bioinf.MassDecomposer.RangeMassDecomposer;
 import de.unijena.bioinf.MassDecomposer.ValencyAlphabet;
+import de.unijena.bioinf.jjobs.BasicJJob;
+import de.unijena.bioinf.jjobs.JJob;
+import de.unijena.bioinf.jjobs.JobManager;
 
 import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
 
 public class MassToFormulaDecomposer extends RangeMassDecomposer<Element> {
 
@@ -56,9 +63,7 @@ public class MassToFormulaDecomposer extends RangeMassDecomposer<Element> {
     }
 
     public Iterator<MolecularFormula> formulaIterator(double measuredMass, Ionization ionization,  Deviation deviation, final FormulaConstraints constraints) {
-        final Map<Element, Interval> boundaries = getBoundaries(constraints);
-        final double neutralMass = ionization.subtractFromMass(measuredMass);
-        final DecompIterator<Element> decompIterator = decomposeIterator(neutralMass, deviation, boundaries);
+        final FormulaCursor cursor = formulaCursor(measuredMass, ionization, deviation, constraints);
         return new Iterator<MolecularFormula>() {
 
             MolecularFormula current = fetchNextFormula();
@@ -81,20 +86,127 @@ public class MassToFormulaDecomposer extends RangeMassDecomposer<Element> {
             }
 
             private MolecularFormula fetchNextFormula() {
-                outerLoop:
-                while (decompIterator.next()) {
-                    final MolecularFormula formula = alphabet.decompositionToFormula(decompIterator.getCurrentCompomere());
-                    for (FormulaFilter g : constraints.getFilters()) {
-                        if (!g.isValid(formula, ionization))
-                            continue outerLoop;
-                    }
-                    return formula;
-                }
-                return null;
+                return cursor.next() ? cursor.getFormula() : null;
             }
         };
     }
 
+    public FormulaCursor formulaCursor(double measuredMass, Ionization ionization, Deviation deviation, FormulaConstraints constraints) {
+        return formulaCursor(measuredMass, ionization, deviation, constraints, null);
+    }
+
+    /**
+     * Returns a cursor over all molecular formulas which are decompositions of the given mass and which are valid
+     * for the given constraints. The validator is applied on the raw compomere before the formula filters of the
+     * constraints are checked, so cheap validators avoid creating formula objects for most decompositions.
+     *
+     * @param validator validator for the compomeres or null
+     */
+    public FormulaCursor formulaCursor(double measuredMass, Ionization ionization, Deviation deviation, FormulaConstraints constraints, DecompositionValidator<Element> validator) {
+        final double neutralMass = ionization.subtractFromMass(measuredMass);
+        final double abs = deviation.absoluteFor(neutralMass);
+        return formulaCursor(Math.max(0, neutralMass - abs), Math.max(0, neutralMass + abs), Double.POSITIVE_INFINITY, ionization, getBoundaries(constraints), createFilter(constraints), validator);
+    }
+
+    /**
+     * @param from neutral mass
+     * @param to neutral mass
+     * @param exclusiveTo decompositions with this neutral mass or above are skipped
+     */
+    protected FormulaCursor formulaCursor(double from, double to, double exclusiveTo, Ionization ionization, Map<Element, Interval> boundaries, FormulaFilter filter, DecompositionValidator<Element> validator) {
+        if (to < 0d)
+            throw new IllegalArgumentException("Expect positive mass for decomposition: [" + from + ", " + to + "]");
+        if (to == 0d) // nothing to decompose, but keep the behaviour of decompose()
+            return new FormulaCursor(decomposeIterator(0d, 0d, null, (compomere, characterIds, alphabet) -> false), alphabet, ionization, null, 0d, 0d);
+        return new FormulaCursor(decomposeIterator(from, to, boundaries, validator), alphabet, ionization, filter, from, exclusiveTo);
+    }
+
+    /**
+     * Decomposes all masses in the given range. The mass range is split into chunks which are decomposed in
+     * parallel using the global job manager (see {@link SiriusJobs}). Use this method for very wide mass windows, for typical deviations
+     * {@link #decomposeToFormulas(double, Ionization, Deviation, FormulaConstraints)} is faster.
+     *
+     * @param from smallest measured mass
+     * @param to largest measured mass
+     * @return all molecular formulas with measured masses in the given range (including the boundaries), ordered by chunk
+     */
+    public List<MolecularFormula> parallelDecompose(double from, double to, Ionization ionization, FormulaConstraints constraints) {
+        return parallelDecompose(from, to, ionization, constraints, SiriusJobs.getGlobalJobManager());
+    }
+
+    public List<MolecularFormula> parallelDecompose(double measuredMass, Ionization ionization, Deviation deviation, FormulaConstraints constraints) {
+        final double abs = deviation.absoluteFor(measuredMass);
+        return parallelDecompose(measuredMass - abs, measuredMass + abs, ionization, constraints);
+    }
+
+    /**
+     * Decomposes all masses in the given range using the given job manager. The range is split into at least
+     * as many chunks as the job manager has CPU threads. Chunks are never wider than half of the lightest element
+     * mass, such that also windows of several Dalton are decomposed correctly. All chunks but the first are submitted
+     * as CPU jobs, while the calling thread decomposes every chunk no worker has started yet. So this method does not
+     * block a worker thread when it is called from within another job.
+     */
+    public List<MolecularFormula> parallelDecompose(double from, double to, Ionization ionization, FormulaConstraints constraints, JobManager jobManager) {
+        if (to < from) throw new IllegalArgumentException("Negative range given: [" + from + ", " + to + "]");
+        init();
+        final double neutralFrom = Math.max(0d, ionization.subtractFromMass(from));
+        final double neutralTo = ionization.subtractFromMass(to);
+        if (neutralTo <= 0d) return new ArrayList<>();
+        final Map<Element, Interval> boundaries = getBoundaries(constraints);
+        final FormulaFilter filter = createFilter(constraints);
+
+        final double width = neutralTo - neutralFrom;
+        double lightestElement = Double.POSITIVE_INFINITY;
+        for (Element e : alphabet) lightestElement = Math.min(lightestElement, e.getMass());
+        final double maxChunkWidth = lightestElement / 2d;
+        final int numberOfChunks = width <= 0d ? 1 : Math.max((int) Math.ceil(width / maxChunkWidth), Math.max(1, jobManager.getCPUThreads()));
+        final List<FutureTask<List<MolecularFormula>>> chunks = new ArrayList<>(numberOfChunks);
+        for (int i = 0; i < numberOfChunks; ++i) {
+            final double chunkFrom = neutralFrom + i * width / numberOfChunks;
+            final boolean last = i == numberOfChunks - 1;
+            final double chunkTo = last ? neutralTo : neutralFrom + (i + 1) * width / numberOfChunks;
+            chunks.add(new FutureTask<>(() -> {
+                final FormulaCursor cursor = formulaCursor(chunkFrom, chunkTo, last ? Double.POSITIVE_INFINITY : chunkTo, ionization, boundaries, filter, null);
+                final ArrayList<MolecularFormula> formulas = new ArrayList<>();
+                while (cursor.next()) formulas.add(cursor.getFormula());
+                return formulas;
+            }));
+        }
+        // the first chunk is decomposed by the calling thread anyway
+        for (int i = 1; i < chunks.size(); ++i) {
+            final FutureTask<List<MolecularFormula>> chunk = chunks.get(i);
+            jobManager.submitJob(new BasicJJob<Object>(JJob.JobType.CPU) {
+                @Override
+                protected Object compute() {
+                    chunk.run();
+                    return null;
+                }
+            });
+        }
+        final ArrayList<MolecularFormula> formulas = new ArrayList<>();
+        for (FutureTask<List<MolecularFormula>> chunk : chunks) {
+            // does nothing if a worker already started the chunk
+            chunk.run();
+            try {
+                formulas.addAll(chunk.get());
+            } catch (InterruptedException e) {
+                chunks.forEach(c -> c.cancel(false));
+                Thread.currentThread().interrupt();
+                throw new RuntimeException(e);
+            } catch (ExecutionException e) {
+                chunks.forEach(c -> c.cancel(false));
+                if (e.getCause() instanceof RuntimeException) throw (RuntimeException) e.getCause();
+                throw new RuntimeException(e.getCause());
+            }
+        }
+        return formulas;
+    }
+
+    private static FormulaFilter createFilter(FormulaConstraints constraints) {
+        final List<FormulaFilter> filters = constraints.getFilters();
+        return filters.isEmpty() ? null : FormulaFilterList.create(filters);
+    }
+
     public List<MolecularFormula> decomposeNeutralMassToFormulas(double mass, double massTolerance, FormulaConstraints constraints) {
         final Ionization ionization = PeriodicTable.getInstance().neutralIonization();
         return decomposeToFormulas(mass, ionization, massTolerance, getBoundaries(constraints), FormulaFilterList.create(constraints.getFilters()));
@@ -159,14 +271,8 @@ public class MassToFormulaDecomposer extends RangeMassDecomposer<Element> {
         final Map<Element, Interval> boundaryMap;
         boundaryMap = boundaries;
         double neutralMass = ionization.subtractFromMass(measuredMass);
-        final List<int[]> decompositions = super.decompose(neutralMass, deviation, boundaryMap);
-        final ArrayList<MolecularFormula> formulas = new ArrayList<MolecularFormula>(decompositions.size());
-        for (int[] ary : decompositions) {
-            final MolecularFormula formula = alphabet.decompositionToFormula(ary);
-            if (filter!=null && !filter.isValid(formula, ionization)) continue;
-            formulas.add(formula);
-        }
-        return formulas;
+        final double abs = deviation.absoluteFor(neutralMass);
+        return collect(formulaCursor(Math.max(0, neutralMass - abs), Math.max(0, neutralMass + abs), Double.POSITIVE_INFINITY, ionization, boundaryMap, filter, null));
     }
 
     public List<MolecularFormula> decomposeToFormulas(double measuredMass, Ionization ionization, double massTolerance, Map<Element, Interval> boundaries, final FormulaFilter filter) {
@@ -175,13 +281,12 @@ public class MassToFormulaDecomposer extends RangeMassDecomposer<Element> {
         final Map<Element, Interval> boundaryMap;
         boundaryMap = boundaries;
         double neutralMass = ionization.subtractFromMass(measuredMass);
-        final List<int[]> decompositions = super.decompose(Math.max(0,neutralMass-massTolerance), neutralMass+massTolerance, boundaryMap);
-        final ArrayList<MolecularFormula> formulas = new ArrayList<MolecularFormula>(decompositions.size());
-        for (int[] ary : decompositions) {
-            final MolecularFormula formula = alphabet.decompositionToFormula(ary);
-            if (filter!=null && !filter.isValid(formula, ionization)) continue;
-            formulas.add(formula);
-        }
+        return collect(formulaCursor(Math.max(0,neutralMass-massTolerance), neutralMass+massTolerance, Double.POSITIVE_INFINITY, ionization, boundaryMap, filter, null));
+    }
+
+    private static List<MolecularFormula> collect(FormulaCursor cursor) {
+        final ArrayList<MolecularFormula> formulas = new ArrayList<MolecularFormula>();
+        while (cursor.next()) formulas.add(cursor.getFormula());
         return formulas;
     }
 
@@ -104,6 +104,17 @@ public class MassDecomposer<T> {
         return new DecompIteratorImpl<T>(ERT, interval.getMin(), interval.getMax(), from, to, minValues,  boundsarray, alphabet, weights, orderedCharacterIds.clone());
     }
 
+    /**
+     * Like {@link #decomposeIterator(double, double, Map)}, but skips all decompositions which are rejected by the
+     * validator. The validator is called on the internal buffer of the iterator, so rejected decompositions are
+     * never copied or converted into another representation.
+     */
+    public DecompIterator<T> decomposeIterator(double from, double to, Map<T, Interval> boundaries, DecompositionValidator<T> validator) {
+        final DecompIterator<T> iterator = decomposeIterator(from, to, boundaries);
+        if (validator == null) return iterator;
+        return new ValidatingDecompIterator<T>(iterator, validator);
+    }
+
     protected double findOptimalPrecision() {
         return 1d/5963.337687d; // TODO: check alphabet and mass deviation, define optimal blowup for given alphabet
     }
@@ -361,6 +372,46 @@ public class MassDecomposer<T> {
         }
     }
 
+    protected static class ValidatingDecompIterator<T> implements DecompIterator<T> {
+
+        private final DecompIterator<T> iterator;
+        private final DecompositionValidator<T> validator;
+
+        protected ValidatingDecompIterator(DecompIterator<T> iterator, DecompositionValidator<T> validator) {
+            this.iterator = iterator;
+            this.validator = validator;
+        }
+
+        @Override
+        public boolean next() {
+            while (iterator.next()) {
+                if (validator.validate(iterator.getCurrentCompomere(), iterator.getAlphabetOrder(), iterator.getAlphabet()))
+                    return true;
+            }
+            return false;
+        }
+
+        @Override
+        public int[] getCurrentCompomere() {
+            return iterator.getCurrentCompomere();
+        }
+
+        @Override
+        public Alphabet<T> getAlphabet() {
+            return iterator.getAlphabet();
+        }
+
+        @Override
+        public int[] getAlphabetOrder() {
+            return iterator.getAlphabetOrder();
+        }
+
+        @Override
+        public T getCharacterAt(int index) {
+            return iterator.getCharacterAt(index);
+        }
+    }
+
     protected ArrayList<int[]> integerDecompose(long mass, int[] bounds){
         // Find compomers
         ArrayList<int[]> result = new ArrayList<int[]>();
@@ -21,6 +21,10 @@
 
 package de.unijena.bioinf.MassDecomposer;
 
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.LongBuffer;
 import java.util.*;
 
 /**
@@ -590,4 +594,128 @@ public class RangeMassDecomposer<T> extends MassDecomposer<T> {
             }
         }
     }
+
+    private static final int TABLE_FORMAT_VERSION = 1;
+
+    /**
+     * @return true if the ERT tables are already computed
+     */
+    public boolean isInitialized() {
+        return ERTs.length > 0;
+    }
+
+    /**
+     * Writes all ERT tables computed so far together with the discretized weights of the alphabet. The tables can
+     * be restored with {@link #readTables(ByteBuffer)} which is much faster than recomputing them.
+     * Initializes the decomposer, if not already done.
+     */
+    public void writeTables(DataOutputStream out) throws IOException {
+        init();
+        final long[][][] tables = this.ERTs;
+        out.writeInt(TABLE_FORMAT_VERSION);
+        out.writeDouble(precision);
+        out.writeDouble(minError);
+        out.writeDouble(maxError);
+        out.writeInt(weights.size());
+        for (Weight<T> w : weights) {
+            out.writeDouble(w.getMass());
+            out.writeLong(w.getIntegerMass());
+            out.writeLong(w.getL());
+            out.writeLong(w.getLcm());
+        }
+        out.writeInt(tables.length);
+        out.writeInt(tables[0].length);
+        for (long[][] table : tables)
+            for (long[] row : table)
+                for (long value : row)
+                    out.writeLong(value);
+    }
+
+    /**
+     * Restores ERT tables written by {@link #writeTables(DataOutputStream)} (e.g. from a memory mapped file).
+     * Does nothing if the decomposer is already initialized.
+     *
+     * @return false if the tables were written for another alphabet, with another precision or in an unknown format.
+     * In this case the decomposer is not changed.
+     */
+    public boolean readTables(ByteBuffer buffer) {
+        if (isInitialized()) return true;
+        if (buffer.getInt() != TABLE_FORMAT_VERSION) return false;
+        final double precision = buffer.getDouble(), minError = buffer.getDouble(), maxError = buffer.getDouble();
+        if (buffer.getInt() != weights.size()) return false;
+        final long[][] weightValues = new long[weights.size()][3];
+        for (int i = 0; i < weights.size(); ++i) {
+            if (buffer.getDouble() != weights.get(i).getMass()) return false;
+            weightValues[i][0] = buffer.getLong();
+            weightValues[i][1] = buffer.getLong();
+            weightValues[i][2] = buffer.getLong();
+        }
+        if (!matchesDiscretization(precision, minError, maxError, weightValues)) return false;
+        final int numberOfTables = buffer.getInt(), rows = buffer.getInt();
+        if (numberOfTables < 1 || rows < 1 || rows != weightValues[0][0]) return false;
+
+        final LongBuffer values = buffer.asLongBuffer();
+        if (values.remaining() < (long) numberOfTables * rows * weights.size()) return false;
+        final long[][][] tables = new long[numberOfTables][rows][];
+        for (long[][] table : tables) {
+            for (int r = 0; r < rows; ++r) {
+                table[r] = new long[weights.size()];
+                values.get(table[r]);
+            }
+        }
+
+        synchronized (this) {
+            if (isInitialized()) return true;
+            this.precision = precision;
+            this.minError = minError;
+            this.maxError = maxError;
+            for (int i = 0; i < weights.size(); ++i) {
+                final Weight<T> w = weights.get(i);
+                w.setIntegerMass(weightValues[i][0]);
+                w.setL(weightValues[i][1]);
+                w.setLcm(weightValues[i][2]);
+            }
+            this.ERT = tables[0];
+            this.ERTs = tables;
+        }
+        return true;
+    }
+
+    /*
+        repeats the discretization of init() on copies of the weights. Stored tables are only accepted if they were
+        computed with exactly the precision, integer masses and error bounds this decomposer would compute itself.
+     */
+    private boolean matchesDiscretization(double storedPrecision, double storedMinError, double storedMaxError, long[][] storedWeights) {
+        final int n = weights.size();
+        final long[] integerMasses = new long[n];
+        for (int i = 0; i < n; ++i)
+            integerMasses[i] = (long) (weights.get(i).getMass() / precision);
+        double expectedPrecision = precision;
+        if (n == 1) {
+            expectedPrecision *= integerMasses[0];
+            integerMasses[0] = 1;
+        } else {
+            long d = gcd(integerMasses[0], integerMasses[1]);
+            for (int i = 2; i < n && d != 1; ++i)
+                d = gcd(d, integerMasses[i]);
+            if (d != 1) {
+                expectedPrecision *= d;
+                for (int i = 0; i < n; ++i) integerMasses[i] /= d;
+            }
+        }
+        if (storedPrecision != expectedPrecision) return false;
+
+        double expectedMinError = 0d, expectedMaxError = 0d;
+        for (int i = 0; i < n; ++i) {
+            final long l = i == 0 ? 1 : integerMasses[0] / gcd(integerMasses[0], integerMasses[i]);
+            final long lcm = i == 0 ? integerMasses[0] : l * integerMasses[i];
+            if (storedWeights[i][0] != integerMasses[i] || storedWeights[i][1] != l || storedWeights[i][2] != lcm)
+                return false;
+            final double mass = weights.get(i).getMass();
+            final double error = (expectedPrecision * integerMasses[i] - mass) / mass;
+            expectedMinError = Math.min(expectedMinError, error);
+            expectedMaxError = Math.max(expectedMaxError, error);
+        }
+        return storedMinError == expectedMinError && storedMaxError == expectedMaxError;
+    }
 }
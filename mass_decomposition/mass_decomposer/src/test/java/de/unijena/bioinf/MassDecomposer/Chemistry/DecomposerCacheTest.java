@@ -0,0 +1,143 @@
+/*
+ *
+ *  This file is part of the SIRIUS library for analyzing MS and MS/MS data
+ *
+ *  Copyright (C) 2013-2020 Kai Dührkop, Markus Fleischauer, Marcus Ludwig, Martin A. Hoffman and Sebastian Böcker,
+ *  Chair of Bioinformatics, Friedrich-Schilller University.
+ *
+ *  This library is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public
+ *  License as published by the Free Software Foundation; either
+ *  version 3 of the License, or (at your option) any later version.
+ *
+ *  This library is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License along with SIRIUS. If not, see <https://www.gnu.org/licenses/lgpl-3.0.txt>
+ */
+
+package de.unijena.bioinf.MassDecomposer.Chemistry;
+
+import de.unijena.bioinf.ChemistryBase.chem.ChemicalAlphabet;
+import de.unijena.bioinf.ChemistryBase.chem.MolecularFormula;
+import de.unijena.bioinf.ChemistryBase.chem.PeriodicTable;
+import de.unijena.bioinf.ChemistryBase.ms.Deviation;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashSet;
+import java.util.List;
+import java.util.stream.Stream;
+
+import static org.junit.Assert.*;
+
+public class DecomposerCacheTest {
+
+    @Test
+    public void testTableRoundTrip() throws IOException {
+        final ChemicalAlphabet alphabet = new ChemicalAlphabet(MolecularFormula.parseOrThrow("CHNOPS").elementArray());
+        final MassToFormulaDecomposer decomposer = new MassToFormulaDecomposer(alphabet);
+        final List<MolecularFormula> expected = decomposer.decomposeToFormulas(279.43, PeriodicTable.getInstance().neutralIonization(), new Deviation(20, 1e-3));
+
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            decomposer.writeTables(out);
+        }
+        final MassToFormulaDecomposer restored = new MassToFormulaDecomposer(alphabet);
+        assertTrue(restored.readTables(ByteBuffer.wrap(bytes.toByteArray())));
+        assertTrue(restored.isInitialized());
+        assertEquals(new HashSet<>(expected), new HashSet<>(restored.decomposeToFormulas(279.43, PeriodicTable.getInstance().neutralIonization(), new Deviation(20, 1e-3))));
+
+        final MassToFormulaDecomposer other = new MassToFormulaDecomposer(new ChemicalAlphabet(MolecularFormula.parseOrThrow("CHNO").elementArray()));
+        assertFalse("tables of another alphabet must be rejected", other.readTables(ByteBuffer.wrap(bytes.toByteArray())));
+        assertFalse(other.isInitialized());
+    }
+
+    @Test
+    public void testDecomposerCacheEviction() throws IOException {
+        final Path store = Files.createTempDirectory("decomposer-cache");
+        try {
+            final ChemicalAlphabet chnops = new ChemicalAlphabet(MolecularFormula.parseOrThrow("CHNOPS").elementArray());
+            final ChemicalAlphabet chno = new ChemicalAlphabet(MolecularFormula.parseOrThrow("CHNO").elementArray());
+            final DecomposerCache cache = new DecomposerCache(1, store);
+            final MassToFormulaDecomposer first = cache.getDecomposer(chnops);
+            assertSame(first, cache.getDecomposer(chnops));
+            cache.getDecomposer(chno);
+            assertEquals(1, cache.size());
+            assertEquals(1, cache.getEvictions());
+            final MassToFormulaDecomposer reloaded = cache.getDecomposer(chnops);
+            assertNotSame(first, reloaded);
+            assertEquals(2, cache.getBuilds());
+            assertEquals(1, cache.getDiskLoads());
+            assertEquals(1, cache.getHits());
+            assertEquals(3, cache.getMisses());
+            assertEquals(new HashSet<>(first.decomposeToFormulas(212.11, PeriodicTable.getInstance().neutralIonization(), new Deviation(10))),
+                    new HashSet<>(reloaded.decomposeToFormulas(212.11, PeriodicTable.getInstance().neutralIonization(), new Deviation(10))));
+        } finally {
+            try (Stream<Path> files = Files.list(store)) {
+                for (Path f : (Iterable<Path>) files::iterator) Files.delete(f);
+            }
+            Files.delete(store);
+        }
+    }
+
+    @Test
+    public void testDiskStoreIsOptIn() {
+        final DecomposerCache cache = new DecomposerCache(1);
+        assertNull(cache.getDiskStore());
+        final ChemicalAlphabet chnops = new ChemicalAlphabet(MolecularFormula.parseOrThrow("CHNOPS").elementArray());
+        cache.getDecomposer(chnops);
+        cache.getDecomposer(new ChemicalAlphabet(MolecularFormula.parseOrThrow("CHNO").elementArray()));
+        cache.getDecomposer(chnops);
+        assertEquals(3, cache.getBuilds());
+        assertEquals(0, cache.getDiskLoads());
+    }
+
+    @Test
+    public void testTablesOfOtherPrecisionAreRejected() throws IOException {
+        final ChemicalAlphabet alphabet = new ChemicalAlphabet(MolecularFormula.parseOrThrow("CHNOPS").elementArray());
+        final MassToFormulaDecomposer coarse = new MassToFormulaDecomposer(alphabet) {
+            @Override
+            protected double findOptimalPrecision() {
+                return 1d / 1000d;
+            }
+        };
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            coarse.writeTables(out);
+        }
+        final MassToFormulaDecomposer decomposer = new MassToFormulaDecomposer(alphabet);
+        assertFalse(decomposer.readTables(ByteBuffer.wrap(bytes.toByteArray())));
+        assertFalse(decomposer.isInitialized());
+    }
+
+    @Test
+    public void testTablesWithTamperedBoundsAreRejected() throws IOException {
+        final ChemicalAlphabet alphabet = new ChemicalAlphabet(MolecularFormula.parseOrThrow("CHNOPS").elementArray());
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            new MassToFormulaDecomposer(alphabet).writeTables(out);
+        }
+        final byte[] tables = bytes.toByteArray();
+        assertTrue(new MassToFormulaDecomposer(alphabet).readTables(ByteBuffer.wrap(tables)));
+
+        // format version (4 bytes) is followed by precision, minimal and maximal error and, after the number of
+        // weights, by mass, integer mass, L and lcm of each weight
+        final int[] offsets = {4, 12, 20, 32 + 8, 32 + 16, 32 + 32 + 8};
+        for (int offset : offsets) {
+            final ByteBuffer tampered = ByteBuffer.wrap(tables.clone());
+            if (offset < 32) tampered.putDouble(offset, Math.nextUp(tampered.getDouble(offset)));
+            else tampered.putLong(offset, tampered.getLong(offset) + 1);
+            final MassToFormulaDecomposer decomposer = new MassToFormulaDecomposer(alphabet);
+            assertFalse("tampered value at offset " + offset + " must be rejected", decomposer.readTables(tampered));
+            assertFalse(decomposer.isInitialized());
+        }
+    }
+}
@@ -0,0 +1,144 @@
+/*
+ *
+ *  This file is part of the SIRIUS library for analyzing MS and MS/MS data
+ *
+ *  Copyright (C) 2013-2020 Kai Dührkop, Markus Fleischauer, Marcus Ludwig, Martin A. Hoffman and Sebastian Böcker,
+ *  Chair of Bioinformatics, Friedrich-Schilller University.
+ *
+ *  This library is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public
+ *  License as published by the Free Software Foundation; either
+ *  version 3 of the License, or (at your option) any later version.
+ *
+ *  This library is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License along with SIRIUS. If not, see <https://www.gnu.org/licenses/lgpl-3.0.txt>
+ */
+
+package de.unijena.bioinf.MassDecomposer.Chemistry;
+
+import de.unijena.bioinf.ChemistryBase.chem.*;
+import de.unijena.bioinf.ChemistryBase.chem.utils.FormulaFilterList;
+import de.unijena.bioinf.ChemistryBase.ms.Deviation;
+import de.unijena.bioinf.MassDecomposer.Interval;
+import de.unijena.bioinf.MassDecomposer.ValenceValidator;
+import de.unijena.bioinf.jjobs.BasicJJob;
+import de.unijena.bioinf.jjobs.JobManager;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class FormulaCursorTest {
+
+    @Test
+    public void testCursorMatchesDecomposition() {
+        final FormulaConstraints constraints = new FormulaConstraints("CHNOPSClBr");
+        final MassToFormulaDecomposer decomposer = new MassToFormulaDecomposer(constraints.getChemicalAlphabet());
+        final Ionization ionization = PrecursorIonType.getPrecursorIonType("[M+H]+").getIonization();
+        final Deviation dev = new Deviation(10);
+
+        final List<MolecularFormula> expected = decomposeAndConvert(decomposer, 412.1, ionization, dev, constraints);
+        assertFalse(expected.isEmpty());
+        final FormulaCursor cursor = decomposer.formulaCursor(412.1, ionization, dev, constraints);
+        final List<MolecularFormula> formulas = new ArrayList<>();
+        while (cursor.next()) {
+            final MolecularFormula formula = cursor.getFormula();
+            assertEquals(formula, MolecularFormula.fromCompomer(cursor.getChemicalAlphabet().getTableSelection(), cursor.getAmounts()));
+            assertEquals(formula.getMass(), cursor.getMass(), 1e-9);
+            formulas.add(formula);
+        }
+        assertEquals(expected, formulas);
+
+        // validator is applied before the formula is created
+        final FormulaCursor validated = decomposer.formulaCursor(412.1, ionization, dev, constraints, new ValenceValidator<Element>(2.5));
+        int count = 0;
+        while (validated.next()) {
+            assertTrue(validated.getFormula().doubledRDBE() >= 5);
+            ++count;
+        }
+        assertTrue(count > 0 && count < expected.size());
+    }
+
+    @Test
+    public void testDecomposeToFormulasMatchesDecomposition() {
+        final FormulaConstraints constraints = new FormulaConstraints("CHNOPSClBrI");
+        final MassToFormulaDecomposer decomposer = new MassToFormulaDecomposer(constraints.getChemicalAlphabet());
+        final Random r = new Random(3);
+        for (String ion : new String[]{"[M+H]+", "[M+Na]+", "[M-H]-", "[M]+"}) {
+            final Ionization ionization = PrecursorIonType.getPrecursorIonType(ion).getIonization();
+            for (int k = 0; k < 10; ++k) {
+                final double mass = 50 + r.nextDouble() * 450;
+                final Deviation dev = new Deviation(5 + r.nextInt(15), 1e-3);
+                assertEquals(decomposeAndConvert(decomposer, mass, ionization, dev, constraints), decomposer.decomposeToFormulas(mass, ionization, dev, constraints));
+            }
+        }
+    }
+
+    @Test
+    public void testParallelDecompose() {
+        final FormulaConstraints constraints = new FormulaConstraints("CHNOPS");
+        final MassToFormulaDecomposer decomposer = new MassToFormulaDecomposer(constraints.getChemicalAlphabet());
+        final Ionization ionization = PeriodicTable.getInstance().neutralIonization();
+
+        // wider than the lightest element, so it has to be split into several chunks
+        final double from = 300.5, to = 302.7;
+        final List<MolecularFormula> formulas = decomposer.parallelDecompose(from, to, ionization, constraints);
+        final HashSet<MolecularFormula> parallel = new HashSet<>(formulas);
+        assertEquals("no duplicates at chunk borders", formulas.size(), parallel.size());
+
+        final HashSet<MolecularFormula> sequential = new HashSet<>();
+        for (double mass = from; mass < to; mass += 0.1) {
+            final double end = Math.min(to, mass + 0.1);
+            sequential.addAll(decomposer.decomposeToFormulas((mass + end) / 2, ionization, (end - mass) / 2, constraints));
+        }
+        assertEquals(sequential, parallel);
+    }
+
+    @Test(timeout = 60000)
+    public void testParallelDecomposeWithinJob() throws Exception {
+        final FormulaConstraints constraints = new FormulaConstraints("CHNOPS");
+        final MassToFormulaDecomposer decomposer = new MassToFormulaDecomposer(constraints.getChemicalAlphabet());
+        final Ionization ionization = PeriodicTable.getInstance().neutralIonization();
+        final List<MolecularFormula> expected = decomposer.parallelDecompose(300.5, 302.7, ionization, constraints);
+        // the calling job occupies the only CPU thread, so it has to decompose the chunks itself
+        final JobManager jobManager = new JobManager(1, 1);
+        try {
+            final List<MolecularFormula> formulas = jobManager.submitJob(new BasicJJob<List<MolecularFormula>>() {
+                @Override
+                protected List<MolecularFormula> compute() {
+                    return decomposer.parallelDecompose(300.5, 302.7, ionization, constraints, jobManager);
+                }
+            }).takeResult();
+            assertEquals(new HashSet<>(expected), new HashSet<>(formulas));
+        } finally {
+            jobManager.shutdown();
+        }
+    }
+
+    /*
+        the way formulas were computed before the cursor existed: decompose into compomeres first and convert
+        each of them into a formula afterwards
+     */
+    private static List<MolecularFormula> decomposeAndConvert(MassToFormulaDecomposer decomposer, double measuredMass, Ionization ionization, Deviation dev, FormulaConstraints constraints) {
+        final ChemicalAlphabet alphabet = decomposer.getChemicalAlphabet();
+        final Map<Element, Interval> boundaries = alphabet.toMap();
+        for (int i = 0; i < alphabet.size(); ++i)
+            boundaries.put(alphabet.get(i), new Interval(constraints.getLowerbounds()[i], constraints.getUpperbounds()[i]));
+        final FormulaFilter filter = FormulaFilterList.create(constraints.getFilters());
+        final List<MolecularFormula> formulas = new ArrayList<>();
+        for (int[] compomere : decomposer.decompose(ionization.subtractFromMass(measuredMass), dev, boundaries)) {
+            final MolecularFormula formula = alphabet.decompositionToFormula(compomere);
+            if (filter.isValid(formula, ionization)) formulas.add(formula);
+        }
+        return formulas;
+    }
+}
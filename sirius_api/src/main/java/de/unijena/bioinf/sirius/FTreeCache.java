@@ -0,0 +1,447 @@
+/*
+ *
+ *  This file is part of the SIRIUS library for analyzing MS and MS/MS data
+ *
+ *  Copyright (C) 2013-2020 Kai Dührkop, Markus Fleischauer, Marcus Ludwig, Martin A. Hoffman and Sebastian Böcker,
+ *  Chair of Bioinformatics, Friedrich-Schilller University.
+ *
+ *  This library is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public
+ *  License as published by the Free Software Foundation; either
+ *  version 3 of the License, or (at your option) any later version.
+ *
+ *  This library is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License along with SIRIUS. If not, see <https://www.gnu.org/licenses/lgpl-3.0.txt>
+ */
+package de.unijena.bioinf.sirius;
+
+import com.google.gson.JsonObject;
+import de.unijena.bioinf.ChemistryBase.chem.ChemicalAlphabet;
+import de.unijena.bioinf.ChemistryBase.chem.FormulaConstraints;
+import de.unijena.bioinf.ChemistryBase.chem.FormulaFilter;
+import de.unijena.bioinf.ChemistryBase.chem.Ionization;
+import de.unijena.bioinf.ChemistryBase.chem.utils.ValenceFilter;
+import de.unijena.bioinf.ChemistryBase.data.JSONDocumentType;
+import de.unijena.bioinf.ChemistryBase.ms.*;
+import de.unijena.bioinf.ChemistryBase.ms.ft.FTree;
+import de.unijena.bioinf.ChemistryBase.ms.ft.Ms1IsotopePattern;
+import de.unijena.bioinf.ChemistryBase.ms.ft.model.*;
+import de.unijena.bioinf.FragmentationTreeConstruction.computation.scoring.TreeSizeScorer;
+import de.unijena.bioinf.IsotopePatternAnalysis.IsotopicIntensitySettings;
+import de.unijena.bioinf.babelms.json.FTJsonReader;
+import de.unijena.bioinf.babelms.json.FTJsonWriter;
+import de.unijena.bioinf.ms.properties.PropertyManager;
+import de.unijena.bioinf.sirius.annotations.NoiseThresholdSettings;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.slf4j.LoggerFactory;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Persistent cache for the trees computed by {@link Sirius#identify(Ms2Experiment)}.
+ * <p>
+ * Entries are keyed by a SHA-256 hash over the preprocessed input: its spectra and merged peaks, the precursor ion
+ * type, the scoring parameters the tree computation depends on (see {@code appendParameters})
+ * and the algorithm profile. Metadata like the name or the source file of a compound is not part of the key, so the
+ * same compound is found again across projects. Trees are stored gzipped in the JSON format of {@link FTJsonWriter}.
+ * <p>
+ * If the cache exceeds its maximum size, the least recently used entries are deleted. The cache is enabled by setting
+ * {@code de.unijena.bioinf.sirius.treeCache.directory}; its size can be set in megabytes via
+ * {@code de.unijena.bioinf.sirius.treeCache.maxSize}.
+ */
+public class FTreeCache {
+
+    public static final String DIRECTORY_KEY = "de.unijena.bioinf.sirius.treeCache.directory";
+    public static final String MAX_SIZE_KEY = "de.unijena.bioinf.sirius.treeCache.maxSize";
+    private static final String SUFFIX = ".ftrees.gz";
+    private static final int FORMAT_VERSION = 2;
+
+    private static FTreeCache defaultCache;
+    private static boolean defaultCacheInitialized = false;
+
+    private final Path directory;
+    private final long maxSize;
+    private final ConcurrentHashMap<String, Entry> entries = new ConcurrentHashMap<>();
+    private final AtomicLong size = new AtomicLong(0);
+    private final Map<Profile, String> profileKeys = Collections.synchronizedMap(new WeakHashMap<>());
+
+    private final AtomicLong clock = new AtomicLong(0);
+    private final AtomicLong hits = new AtomicLong(0), misses = new AtomicLong(0), stores = new AtomicLong(0),
+            evictions = new AtomicLong(0), uncacheable = new AtomicLong(0);
+
+    /**
+     * @param directory directory the trees are stored in. Entries already stored in this directory are reused.
+     * @param maxSize   maximum size of the cache in bytes
+     */
+    public FTreeCache(@NotNull Path directory, long maxSize) throws IOException {
+        if (maxSize <= 0)
+            throw new IllegalArgumentException("Cache size must be positive but was " + maxSize);
+        this.directory = directory;
+        this.maxSize = maxSize;
+        Files.createDirectories(directory);
+        try (Stream<Path> files = Files.list(directory)) {
+            files.filter(f -> f.getFileName().toString().endsWith(SUFFIX)).forEach(f -> {
+                try {
+                    final String name = f.getFileName().toString();
+                    final Entry e = new Entry(Files.size(f), Files.getLastModifiedTime(f).toMillis());
+                    entries.put(name.substring(0, name.length() - SUFFIX.length()), e);
+                    size.addAndGet(e.size);
+                } catch (IOException e) {
+                    LoggerFactory.getLogger(FTreeCache.class).warn("Could not read tree cache entry " + f + ": " + e.getMessage());
+                }
+            });
+        }
+        // continue the clock after the entries of previous runs
+        clock.set(entries.values().stream().mapToLong(e -> e.lastUse).max().orElse(0));
+        evictIfNecessary();
+    }
+
+    /**
+     * @return the cache configured via {@link #DIRECTORY_KEY} or null if no cache is configured
+     */
+    @Nullable
+    public static synchronized FTreeCache getDefault() {
+        if (!defaultCacheInitialized) {
+            defaultCacheInitialized = true;
+            final String dir = PropertyManager.getProperty(DIRECTORY_KEY, null, null);
+            if (dir != null && !dir.isBlank()) {
+                try {
+                    defaultCache = new FTreeCache(Paths.get(dir), PropertyManager.getLong(MAX_SIZE_KEY, null, 1024L) * 1024L * 1024L);
+                } catch (IOException | RuntimeException e) {
+                    LoggerFactory.getLogger(FTreeCache.class).warn("Could not open tree cache in " + dir + ". Caching is disabled. Cause: " + e.getMessage());
+                }
+            }
+        }
+        return defaultCache;
+    }
+
+    /**
+     * Computes the cache key of a preprocessed input.
+     *
+     * @return the key or null if the input contains parameters which cannot be hashed reliably
+     */
+    @Nullable
+    public String key(@NotNull ProcessedInput input, @NotNull Profile profile) {
+        try {
+            final StringBuilder buf = new StringBuilder(4096);
+            buf.append(FORMAT_VERSION).append(' ').append(PropertyManager.getProperty("de.unijena.bioinf.sirius.version")).append('\n');
+            buf.append(profileKey(profile)).append('\n');
+            final Ms2Experiment exp = input.getExperimentInformation();
+            buf.append(exp.getIonMass()).append(' ').append(exp.getPrecursorIonType()).append('\n');
+            for (Spectrum<Peak> s : exp.getMs1Spectra()) appendSpectrum(buf.append("MS1 "), s);
+            if (exp.getMergedMs1Spectrum() != null) appendSpectrum(buf.append("MERGED MS1 "), exp.getMergedMs1Spectrum());
+            for (Ms2Spectrum<Peak> s : exp.getMs2Spectra())
+                appendSpectrum(buf.append("MS2 ").append(s.getPrecursorMz()).append(' ').append(s.getCollisionEnergy()).append(' '), s);
+            buf.append("PEAKS");
+            for (ProcessedPeak p : input.getMergedPeaks())
+                buf.append(' ').append(p.getMass()).append(' ').append(p.getRelativeIntensity());
+            buf.append('\n');
+            appendParameters(buf, input);
+            return sha256(buf.toString());
+        } catch (RuntimeException e) {
+            uncacheable.incrementAndGet();
+            LoggerFactory.getLogger(FTreeCache.class).debug("Input " + input.getExperimentInformation().getName() + " cannot be cached: " + e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * @return the trees stored for the given key or null if there is no such entry
+     */
+    @Nullable
+    public List<FTree> get(@NotNull String key) {
+        final Entry e = entries.get(key);
+        if (e != null) {
+            final Path file = file(key);
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(new GZIPInputStream(Files.newInputStream(file))))) {
+                if (in.readInt() == FORMAT_VERSION) {
+                    final FTJsonReader reader = new FTJsonReader();
+                    final int n = in.readInt();
+                    final List<FTree> trees = new ArrayList<>(n);
+                    for (int i = 0; i < n; ++i) {
+                        final double treeWeight = in.readDouble();
+                        final byte[] json = new byte[in.readInt()];
+                        in.readFully(json);
+                        final FTree tree = reader.treeFromJsonString(new String(json, StandardCharsets.UTF_8), null);
+                        // the reader sums up the scores of the annotations, but we want exactly the stored weight
+                        tree.setTreeWeight(treeWeight);
+                        trees.add(tree);
+                    }
+                    e.lastUse = clock.incrementAndGet();
+                    Files.setLastModifiedTime(file, FileTime.fromMillis(System.currentTimeMillis()));
+                    hits.incrementAndGet();
+                    return trees;
+                }
+            } catch (IOException | RuntimeException ex) {
+                LoggerFactory.getLogger(FTreeCache.class).warn("Could not read tree cache entry " + file + ". Entry is removed. Cause: " + ex.getMessage());
+            }
+            remove(key, e);
+        }
+        misses.incrementAndGet();
+        return null;
+    }
+
+    /**
+     * Stores the trees for the given key and evicts the least recently used entries if the cache is full.
+     */
+    public void put(@NotNull String key, @NotNull List<FTree> trees) {
+        final Path file = file(key);
+        try {
+            final Path tmp = Files.createTempFile(directory, key, ".tmp");
+            try {
+                try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new GZIPOutputStream(Files.newOutputStream(tmp))))) {
+                    final FTJsonWriter writer = new FTJsonWriter();
+                    out.writeInt(FORMAT_VERSION);
+                    out.writeInt(trees.size());
+                    for (FTree tree : trees) {
+                        final byte[] json = writer.treeToJsonString(tree).getBytes(StandardCharsets.UTF_8);
+                        out.writeDouble(tree.getTreeWeight());
+                        out.writeInt(json.length);
+                        out.write(json);
+                    }
+                }
+                final Entry e = new Entry(Files.size(tmp), clock.incrementAndGet());
+                Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                final Entry old = entries.put(key, e);
+                size.addAndGet(old == null ? e.size : e.size - old.size);
+                stores.incrementAndGet();
+            } finally {
+                Files.deleteIfExists(tmp);
+            }
+        } catch (IOException | RuntimeException e) {
+            LoggerFactory.getLogger(FTreeCache.class).warn("Could not store trees in tree cache: " + e.getMessage());
+        }
+        evictIfNecessary();
+    }
+
+    private synchronized void evictIfNecessary() {
+        if (size.get() <= maxSize) return;
+        final List<Map.Entry<String, Entry>> lru = new ArrayList<>(entries.entrySet());
+        lru.sort(Comparator.comparingLong(e -> e.getValue().lastUse));
+        for (Map.Entry<String, Entry> e : lru) {
+            if (size.get() <= maxSize) break;
+            if (remove(e.getKey(), e.getValue()))
+                evictions.incrementAndGet();
+        }
+    }
+
+    private boolean remove(String key, Entry e) {
+        if (!entries.remove(key, e)) return false;
+        size.addAndGet(-e.size);
+        try {
+            Files.deleteIfExists(file(key));
+        } catch (IOException ex) {
+            LoggerFactory.getLogger(FTreeCache.class).warn("Could not delete tree cache entry " + key + ": " + ex.getMessage());
+        }
+        return true;
+    }
+
+    private Path file(String key) {
+        return directory.resolve(key + SUFFIX);
+    }
+
+    public Path getDirectory() {
+        return directory;
+    }
+
+    public long getMaxSize() {
+        return maxSize;
+    }
+
+    /**
+     * @return total size of all stored entries in bytes
+     */
+    public long getSize() {
+        return size.get();
+    }
+
+    public int numberOfEntries() {
+        return entries.size();
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public long getStores() {
+        return stores.get();
+    }
+
+    public long getEvictions() {
+        return evictions.get();
+    }
+
+    /**
+     * @return number of inputs for which no key could be computed
+     */
+    public long getUncacheable() {
+        return uncacheable.get();
+    }
+
+    public double getHitRate() {
+        final long h = getHits(), total = h + getMisses();
+        return total == 0 ? 0d : ((double) h) / total;
+    }
+
+    @Override
+    public String toString() {
+        return "FTreeCache{entries=" + numberOfEntries() + ", size=" + getSize() + "/" + maxSize + ", hits=" + getHits()
+                + ", misses=" + getMisses() + ", hitRate=" + getHitRate() + ", stores=" + getStores()
+                + ", evictions=" + getEvictions() + ", uncacheable=" + getUncacheable() + "}";
+    }
+
+    //region KEYS
+
+    private String profileKey(Profile profile) {
+        return profileKeys.computeIfAbsent(profile, p -> {
+            final JSONDocumentType json = new JSONDocumentType();
+            final JsonObject obj = json.newDictionary();
+            if (p.fragmentationPatternAnalysis != null) p.fragmentationPatternAnalysis.writeToProfile(json, obj);
+            if (p.isotopePatternAnalysis != null) p.isotopePatternAnalysis.writeToProfile(json, obj);
+            final StringWriter w = new StringWriter();
+            try {
+                JSONDocumentType.writeJson(json, obj, w);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            return sha256(w.toString());
+        });
+    }
+
+    private static void appendSpectrum(StringBuilder buf, Spectrum<? extends Peak> spec) {
+        for (int i = 0; i < spec.size(); ++i)
+            buf.append(spec.getMzAt(i)).append(' ').append(spec.getIntensityAt(i)).append(' ');
+        buf.append('\n');
+    }
+
+    /**
+     * Writes the scoring parameters the preprocessing and the tree computation depend on. Parameters which are not set
+     * for the input are resolved from the defaults, just as the computation does it. A parameter which influences the
+     * trees has to be added here, otherwise cached trees computed with another value of this parameter are returned.
+     */
+    private static void appendParameters(StringBuilder buf, ProcessedInput input) {
+        final MS1MassDeviation ms1 = input.getAnnotationOrDefault(MS1MassDeviation.class);
+        buf.append("MS1MassDeviation ").append(ms1.allowedMassDeviation).append(' ').append(ms1.standardMassDeviation)
+                .append(' ').append(ms1.massDifferenceDeviation).append('\n');
+        final MS2MassDeviation ms2 = input.getAnnotationOrDefault(MS2MassDeviation.class);
+        buf.append("MS2MassDeviation ").append(ms2.allowedMassDeviation).append(' ').append(ms2.standardMassDeviation)
+                .append(' ').append(ms2.massDifferenceDeviation).append('\n');
+
+        final FormulaSettings formulaSettings = input.getAnnotationOrDefault(FormulaSettings.class);
+        appendConstraints(buf.append("FormulaSettings "), formulaSettings.getEnforcedAlphabet());
+        appendConstraints(buf.append(' '), formulaSettings.getFallbackAlphabet());
+        appendSorted(buf.append(' '), formulaSettings.getAutoDetectionElements());
+        appendConstraints(buf.append("\nFormulaConstraints "), input.getAnnotationOrNull(FormulaConstraints.class));
+        buf.append('\n');
+
+        final AdductSettings adductSettings = input.getAnnotationOrDefault(AdductSettings.class);
+        appendSorted(buf.append("AdductSettings "), adductSettings.getEnforced());
+        appendSorted(buf.append(' '), adductSettings.getDetectable());
+        appendSorted(buf.append(' '), adductSettings.getFallback());
+        final PossibleAdducts possibleAdducts = input.getAnnotationOrNull(PossibleAdducts.class);
+        if (possibleAdducts == null) buf.append("\nPossibleAdducts null");
+        else appendSorted(buf.append("\nPossibleAdducts "), possibleAdducts.getAdducts());
+        final List<String> transitions = new ArrayList<>();
+        for (Map.Entry<Ionization, Set<Ionization>> e : input.getAnnotationOrDefault(PossibleAdductSwitches.class).getTransitions().entrySet())
+            transitions.add(appendSorted(new StringBuilder().append(e.getKey()).append("->"), e.getValue()).toString());
+        appendSorted(buf.append("\nPossibleAdductSwitches "), transitions);
+
+        final Whiteset whiteset = input.getAnnotationOrNull(Whiteset.class);
+        if (whiteset == null) buf.append("\nWhiteset null");
+        else appendSorted(appendSorted(buf.append("\nWhiteset "), whiteset.getNeutralFormulas()).append(' '), whiteset.getMeasuredFormulas());
+
+        final IsotopeSettings isotopeSettings = input.getAnnotationOrDefault(IsotopeSettings.class);
+        buf.append("\nIsotopeSettings ").append(isotopeSettings.isFiltering()).append(' ').append(isotopeSettings.getMultiplier());
+        buf.append("\nIsotopeMs2Settings ").append(input.getAnnotationOrDefault(IsotopeMs2Settings.class).value);
+        final IsotopicIntensitySettings intensitySettings = input.getAnnotationOrDefault(IsotopicIntensitySettings.class);
+        buf.append("\nIsotopicIntensitySettings ").append(intensitySettings.minimalIntensityToConsider).append(' ')
+                .append(intensitySettings.absoluteIntensityError).append(' ').append(intensitySettings.relativeIntensityError);
+        final Ms1IsotopePattern pattern = input.getAnnotationOrNull(Ms1IsotopePattern.class);
+        buf.append("\nMs1IsotopePattern ");
+        if (pattern == null) buf.append("null\n");
+        else appendSpectrum(buf.append(pattern.getScore()).append(' '), pattern.getSpectrum());
+
+        final NoiseThresholdSettings noise = input.getAnnotationOrDefault(NoiseThresholdSettings.class);
+        buf.append("NoiseThresholdSettings ").append(noise.intensityThreshold).append(' ').append(noise.maximalNumberOfPeaks)
+                .append(' ').append(noise.basePeak).append(' ').append(noise.absoluteThreshold);
+        final MedianNoiseIntensity medianNoise = input.getAnnotationOrNull(MedianNoiseIntensity.class);
+        buf.append("\nMedianNoiseIntensity ").append(medianNoise == null ? "null" : String.valueOf(medianNoise.value));
+
+        final Timeout timeout = input.getAnnotationOrDefault(Timeout.class);
+        buf.append("\nTimeout ").append(timeout.getNumberOfSecondsPerInstance()).append(' ').append(timeout.getNumberOfSecondsPerDecomposition());
+        buf.append("\nNumberOfCandidates ").append(input.getAnnotationOrDefault(NumberOfCandidates.class).value);
+        buf.append("\nNumberOfCandidatesPerIon ").append(input.getAnnotationOrDefault(NumberOfCandidatesPerIon.class).value);
+        buf.append("\nForbidRecalibration ").append(input.getAnnotationOrDefault(ForbidRecalibration.class));
+        final TreeSizeScorer.TreeSizeBonus treeSizeBonus = input.getAnnotationOrNull(TreeSizeScorer.TreeSizeBonus.class);
+        buf.append("\nTreeSizeBonus ").append(treeSizeBonus == null ? "null" : String.valueOf(treeSizeBonus.score));
+        buf.append('\n');
+    }
+
+    /*
+     * writes the bounds of all elements and the formula filters. The adducts of a valence filter are not written, as
+     * they are derived from the adduct settings and the possible adducts.
+     */
+    private static void appendConstraints(StringBuilder buf, FormulaConstraints constraints) {
+        if (constraints == null) {
+            buf.append("null");
+            return;
+        }
+        final ChemicalAlphabet alphabet = constraints.getChemicalAlphabet();
+        for (int i = 0; i < alphabet.size(); ++i)
+            buf.append(alphabet.get(i)).append('[').append(constraints.getLowerbounds()[i]).append(',').append(constraints.getUpperbounds()[i]).append(']');
+        for (FormulaFilter filter : constraints.getFilters()) {
+            if (filter instanceof ValenceFilter)
+                buf.append(" ValenceFilter ").append(((ValenceFilter) filter).getMinValence());
+            else
+                throw new IllegalArgumentException("Unknown formula filter " + filter.getClass().getName());
+        }
+    }
+
+    private static StringBuilder appendSorted(StringBuilder buf, Collection<?> values) {
+        final String[] xs = values.stream().map(String::valueOf).sorted().toArray(String[]::new);
+        return buf.append(Arrays.toString(xs));
+    }
+
+    private static String sha256(String value) {
+        try {
+            final byte[] digest = MessageDigest.getInstance("SHA-256").digest(value.getBytes(StandardCharsets.UTF_8));
+            final StringBuilder hex = new StringBuilder(2 * digest.length);
+            for (byte b : digest) hex.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+            return hex.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+    }
+
+    //endregion
+
+    private static class Entry {
+        private final long size;
+        private volatile long lastUse;
+
+        private Entry(long size, long lastUse) {
+            this.size = size;
+            this.lastUse = lastUse;
+        }
+    }
+}
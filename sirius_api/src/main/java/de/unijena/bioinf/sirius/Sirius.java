@@ -36,6 +36,8 @@ import de.unijena.bioinf.FragmentationTreeConstruction.computation.FasterTreeCom
 import de.unijena.bioinf.FragmentationTreeConstruction.computation.FragmentationPatternAnalysis;
 import de.unijena.bioinf.IsotopePatternAnalysis.ExtractedIsotopePattern;
 import de.unijena.bioinf.IsotopePatternAnalysis.IsotopePatternAnalysis;
+import de.unijena.bioinf.IsotopePatternAnalysis.IsotopePatternScoringJob;
+import de.unijena.bioinf.IsotopePatternAnalysis.generation.FastIsotopePatternGenerator;
 import de.unijena.bioinf.IsotopePatternAnalysis.generation.IsotopePatternGenerator;
 import de.unijena.bioinf.jjobs.BasicJJob;
 import de.unijena.bioinf.jjobs.BasicMasterJJob;
@@ -48,6 +50,7 @@ import de.unijena.bioinf.sirius.plugins.*;
 import de.unijena.bioinf.sirius.scores.SiriusScore;
 import de.unijena.bioinf.treemotifs.model.TreeMotifPlugin;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 import org.slf4j.LoggerFactory;
 
 import java.util.*;
@@ -58,6 +61,7 @@ import java.util.stream.Collectors;
 public class Sirius {
     protected Profile profile;
     protected PeriodicTable table;
+    protected FTreeCache treeCache;
 
     public Sirius(@NotNull String profile) {
         this(Profile.fromString(profile));
@@ -89,6 +93,7 @@ public class Sirius {
     public Sirius(@NotNull Profile profile, @NotNull PeriodicTable table) {
         this.profile = profile;
         this.table = table;
+        this.treeCache = FTreeCache.getDefault();
         addDefaultPlugins();
     }
 
@@ -109,6 +114,22 @@ public class Sirius {
         }
     }
 
+    /**
+     * @return the cache for computed trees or null if no cache is used
+     */
+    @Nullable
+    public FTreeCache getTreeCache() {
+        return treeCache;
+    }
+
+    /**
+     * Sets the cache for computed trees. The default is given by {@link FTreeCache#getDefault()}.
+     * @param treeCache cache to use or null to disable caching
+     */
+    public void setTreeCache(@Nullable FTreeCache treeCache) {
+        this.treeCache = treeCache;
+    }
+
     protected FasterTreeComputationInstance getTreeComputationImplementation(FragmentationPatternAnalysis analyzer, ProcessedInput input) {
         return new FasterTreeComputationInstance(analyzer, input);
     }
@@ -554,7 +575,10 @@ public class Sirius {
      * @return spectrum containing the theoretical isotope pattern of this compound
      */
     public Spectrum<Peak> simulateIsotopePattern(MolecularFormula compound, Ionization ion, int numberOfPeaks) {
-        IsotopePatternGenerator gen = getMs1Analyzer().getPatternGenerator();
+        // the pattern generator of the analyzer is shared (and cached), so use an own one for other peak limits
+        final IsotopePatternGenerator shared = getMs1Analyzer().getPatternGenerator();
+        final IsotopePatternGenerator gen = new FastIsotopePatternGenerator(shared.getDistribution(), shared.getMode());
+        gen.setMinimalProbabilityThreshold(shared.getMinimalProbabilityThreshold());
         gen.setMaximalNumberOfPeaks(numberOfPeaks);
         return gen.simulatePattern(compound, ion);
     }
@@ -618,24 +642,37 @@ public class Sirius {
         @Override
         protected List<IdentificationResult<SiriusScore>> compute() throws Exception {
             final ProcessedInput input = preprocessForMs2Analysis(experiment);
-            if (experiment.getAnnotationOrDefault(IsotopeSettings.class).isEnabled())
-                profile.isotopePatternAnalysis.computeAndScoreIsotopePattern(input);
+            final FTreeCache cache = treeCache;
+            final String cacheKey = cache == null ? null : cache.key(input, profile);
+            if (cacheKey != null) {
+                final List<FTree> trees = cache.get(cacheKey);
+                if (trees != null) {
+                    logDebug("Trees of " + experiment.getName() + " are taken from the tree cache.");
+                    return createIdentificationResults(new FasterTreeComputationInstance.FinalResult(trees), input);
+                }
+            }
+            if (experiment.getAnnotationOrDefault(IsotopeSettings.class).isEnabled()) {
+                final IsotopePatternScoringJob isotopeJob = profile.isotopePatternAnalysis.makeIsotopePatternScoringJob(input);
+                if (isotopeJob != null) submitSubJob(isotopeJob).awaitResult();
+            }
             final FasterTreeComputationInstance instance = getTreeComputationImplementation(getMs2Analyzer(), input);
             instance.addPropertyChangeListener(JobProgressEvent.JOB_PROGRESS_EVENT, evt -> updateProgress(0, 105, (int) evt.getNewValue()));
             submitSubJob(instance);
             FasterTreeComputationInstance.FinalResult fr = instance.awaitResult();
+            if (cacheKey != null)
+                cache.put(cacheKey, fr.getResults());
 
-            List<IdentificationResult<SiriusScore>> r = createIdentificationResults(fr, instance);//postprocess results
+            List<IdentificationResult<SiriusScore>> r = createIdentificationResults(fr, instance.getProcessedInput());//postprocess results
             return r;
         }
 
-        private List<IdentificationResult<SiriusScore>> createIdentificationResults(FasterTreeComputationInstance.FinalResult fr, FasterTreeComputationInstance computationInstance) {
+        private List<IdentificationResult<SiriusScore>> createIdentificationResults(FasterTreeComputationInstance.FinalResult fr, ProcessedInput processedInput) {
             List<IdentificationResult<SiriusScore>> irs = fr.getResults().stream()
                     .map(tree -> new IdentificationResult<>(tree, new SiriusScore(FTreeMetricsHelper.getSiriusScore(tree))))
                     .sorted(Comparator.reverseOrder())
                     .collect(Collectors.toList());
 
-            final PrecursorIonType ionType = computationInstance.getProcessedInput().getExperimentInformation().getPrecursorIonType();
+            final PrecursorIonType ionType = processedInput.getExperimentInformation().getPrecursorIonType();
 
             if (!ionType.isIonizationUnknown() && !ionType.getAdduct().isEmpty()) {
                 //resolve in case it has an adduct
@@ -647,7 +684,7 @@ public class Sirius {
             } else {
                 //check if MF is only valid with a certain adduct
                 //todo this only help if there is only a single valid adduct, but does not reduce the list of possible addcuts for subsequent methods
-                ProcessedInput pinput = computationInstance.getProcessedInput();
+                ProcessedInput pinput = processedInput;
                 PossibleAdducts pa = pinput.getAnnotationOrThrow(PossibleAdducts.class);
                 irs = irs.stream()
                         .map(idr-> new IdentificationResult<>(resolveAdductIfPossible(idr.getTree(), pa, pinput), idr.getScoreObject()))
@@ -0,0 +1,101 @@
+package de.unijena.bioinf.FragmentationTreeConstruction.computation;
+
+import de.unijena.bioinf.ChemistryBase.jobs.SiriusJobs;
+import de.unijena.bioinf.ChemistryBase.ms.MutableMs2Experiment;
+import de.unijena.bioinf.ChemistryBase.ms.NumberOfCandidates;
+import de.unijena.bioinf.ChemistryBase.ms.ft.FGraph;
+import de.unijena.bioinf.ChemistryBase.ms.ft.FTree;
+import de.unijena.bioinf.ChemistryBase.ms.ft.model.Decomposition;
+import de.unijena.bioinf.FragmentationTreeConstruction.computation.scoring.TreeSizeScorer;
+import de.unijena.bioinf.babelms.MsExperimentParser;
+import de.unijena.bioinf.sirius.ProcessedInput;
+import de.unijena.bioinf.sirius.Sirius;
+import de.unijena.bioinf.sirius.annotations.DecompositionList;
+import org.junit.Test;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class FasterTreeComputationInstanceTest {
+
+    private final Sirius sirius = new Sirius("qtof");
+
+    private static MutableMs2Experiment experiment(String name) throws Exception {
+        final File file = new File(FasterTreeComputationInstanceTest.class.getResource(name).toURI());
+        return new MutableMs2Experiment(new MsExperimentParser().getParser(file).parseFromFile(file).get(0));
+    }
+
+    @Test
+    public void testUpperBoundIsNeverBelowTreeScore() throws Exception {
+        final FragmentationPatternAnalysis analysis = sirius.getMs2Analyzer();
+        int numberOfTrees = 0;
+        for (String name : new String[]{"/Bicuculline.ms", "/Kaempferol.ms"}) {
+            final ProcessedInput input = analysis.prepareGraphBuilding(sirius.preprocessForMs2Analysis(experiment(name)));
+            for (Decomposition d : input.getAnnotationOrThrow(DecompositionList.class).getDecompositions()) {
+                final FGraph graph = analysis.buildGraph(input, d);
+                final double bound = FasterTreeComputationInstance.upperBound(graph);
+                final FTree tree = analysis.getTreeBuilder().computeTree().solve(input, graph).tree;
+                assertTrue(d.getCandidate() + ": upper bound " + bound + " is below tree score " + tree.getTreeWeight(),
+                        bound >= tree.getTreeWeight() - 1e-9);
+                ++numberOfTrees;
+            }
+        }
+        assertTrue(numberOfTrees > 20);
+    }
+
+    @Test
+    public void testSameTopTreesWithAndWithoutSkipping() throws Exception {
+        // Kaempferol is light enough to be computed with the exact tree builder, which is required for skipping
+        for (int numberOfCandidates : new int[]{10, 3}) {
+            final MutableMs2Experiment experiment = experiment("/Kaempferol.ms");
+            experiment.setAnnotation(NumberOfCandidates.class, new NumberOfCandidates(numberOfCandidates));
+            // recalibration runs on the kept trees after skipping, so it does not contribute to this comparison
+            Sirius.enableRecalibration(experiment, false);
+            final ProcessedInput input = sirius.preprocessForMs2Analysis(experiment);
+            final int numberOfDecompositions = sirius.getMs2Analyzer().performDecomposition(input.clone())
+                    .getAnnotationOrThrow(DecompositionList.class).getDecompositions().size();
+            assertTrue("too few candidates to skip any", numberOfDecompositions > numberOfCandidates + 10);
+
+            final List<FTree> expected = computeTrees(input.clone(), false);
+            final List<FTree> actual = computeTrees(input.clone(), true);
+            assertEquals(expected.size(), actual.size());
+            for (int i = 0; i < expected.size(); ++i) {
+                assertEquals(expected.get(i).getRoot().getFormula(), actual.get(i).getRoot().getFormula());
+                assertEquals(expected.get(i).getTreeWeight(), actual.get(i).getTreeWeight(), 1e-9);
+                assertEquals(expected.get(i).numberOfVertices(), actual.get(i).numberOfVertices());
+            }
+        }
+    }
+
+    @Test
+    public void testIncrementalGraphEqualsRebuiltGraph() throws Exception {
+        final FragmentationPatternAnalysis analysis = sirius.getMs2Analyzer();
+        final TreeSizeScorer tss = FragmentationPatternAnalysis.getByClassName(TreeSizeScorer.class, analysis.getFragmentPeakScorers());
+        final ProcessedInput input = analysis.prepareGraphBuilding(sirius.preprocessForMs2Analysis(experiment("/Kaempferol.ms")));
+        final FasterTreeComputationInstance instance = new FasterTreeComputationInstance(analysis, input);
+        final List<Decomposition> decompositions = input.getAnnotationOrThrow(DecompositionList.class).getDecompositions();
+        final List<FasterTreeComputationInstance.IncrementalGraph> graphs = new ArrayList<>();
+        for (int i = 0; i < Math.min(5, decompositions.size()); ++i)
+            graphs.add(instance.new IncrementalGraph(decompositions.get(i)));
+        double treeSize = input.getAnnotation(TreeSizeScorer.TreeSizeBonus.class, () -> new TreeSizeScorer.TreeSizeBonus(tss.getTreeSizeScore())).score;
+        // the first round builds the graphs, all later rounds rescore them
+        for (int round = 0; round < 4; ++round) {
+            for (int i = 0; i < graphs.size(); ++i) {
+                FragmentationPatternAnalysisTest.assertSameEdgeWeights("round " + round + " " + decompositions.get(i).getCandidate(),
+                        analysis.buildGraph(input, decompositions.get(i)), graphs.get(i).buildGraph(input));
+            }
+            treeSize += 0.5;
+            tss.fastReplace(input, new TreeSizeScorer.TreeSizeBonus(treeSize));
+        }
+    }
+
+    private List<FTree> computeTrees(ProcessedInput input, boolean skipByUpperBound) {
+        final FasterTreeComputationInstance instance = new FasterTreeComputationInstance(sirius.getMs2Analyzer(), input);
+        instance.skipByUpperBound = skipByUpperBound;
+        SiriusJobs.getGlobalJobManager().submitJob(instance);
+        return instance.takeResult().getResults();
+    }
+}
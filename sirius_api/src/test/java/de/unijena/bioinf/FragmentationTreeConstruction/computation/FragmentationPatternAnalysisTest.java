@@ -0,0 +1,82 @@
+package de.unijena.bioinf.FragmentationTreeConstruction.computation;
+
+import de.unijena.bioinf.ChemistryBase.ms.Ms2Experiment;
+import de.unijena.bioinf.ChemistryBase.ms.ft.FGraph;
+import de.unijena.bioinf.ChemistryBase.ms.ft.Fragment;
+import de.unijena.bioinf.ChemistryBase.ms.ft.Loss;
+import de.unijena.bioinf.ChemistryBase.ms.ft.model.Decomposition;
+import de.unijena.bioinf.FragmentationTreeConstruction.computation.scoring.TreeSizeScorer;
+import de.unijena.bioinf.FragmentationTreeConstruction.model.Scoring;
+import de.unijena.bioinf.babelms.MsExperimentParser;
+import de.unijena.bioinf.sirius.ProcessedInput;
+import de.unijena.bioinf.sirius.Sirius;
+import de.unijena.bioinf.sirius.annotations.DecompositionList;
+import org.junit.Test;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+public class FragmentationPatternAnalysisTest {
+
+    private static Ms2Experiment experiment(String name) throws Exception {
+        final File file = new File(FragmentationPatternAnalysisTest.class.getResource(name).toURI());
+        return new MsExperimentParser().getParser(file).parseFromFile(file).get(0);
+    }
+
+    /*
+        edge weights by source and target vertex. A vertex is identified by its color (the peak) and its formula
+     */
+    static Map<String, Double> edgeWeights(FGraph graph) {
+        final HashMap<String, Double> weights = new HashMap<>();
+        final Iterator<Loss> iter = graph.lossIterator();
+        while (iter.hasNext()) {
+            final Loss l = iter.next();
+            assertNull("duplicate edge", weights.put(vertex(l.getSource()) + " -> " + vertex(l.getTarget()), l.getWeight()));
+        }
+        return weights;
+    }
+
+    private static String vertex(Fragment f) {
+        return f.isRoot() ? "root" : f.getColor() + ":" + f.getFormula() + " " + f.getIonization();
+    }
+
+    static void assertSameEdgeWeights(String message, FGraph expected, FGraph actual) {
+        final Map<String, Double> expectedWeights = edgeWeights(expected), actualWeights = edgeWeights(actual);
+        assertEquals(message, expectedWeights.keySet(), actualWeights.keySet());
+        for (Map.Entry<String, Double> e : expectedWeights.entrySet())
+            assertEquals(message + " " + e.getKey(), e.getValue(), actualWeights.get(e.getKey()), 1e-9);
+    }
+
+    @Test
+    public void testRescoredPeaksGiveSameEdgeWeightsAsRebuiltGraph() throws Exception {
+        final Sirius sirius = new Sirius("qtof");
+        final FragmentationPatternAnalysis analysis = sirius.getMs2Analyzer();
+        final TreeSizeScorer tss = FragmentationPatternAnalysis.getByClassName(TreeSizeScorer.class, analysis.getFragmentPeakScorers());
+        assertNotNull(tss);
+        for (String name : new String[]{"/Bicuculline.ms", "/Kaempferol.ms"}) {
+            final ProcessedInput input = analysis.prepareGraphBuilding(sirius.preprocessForMs2Analysis(experiment(name)));
+            final List<Decomposition> decompositions = input.getAnnotationOrThrow(DecompositionList.class).getDecompositions();
+            final int n = Math.min(10, decompositions.size());
+            final FGraph[] graphs = new FGraph[n];
+            for (int i = 0; i < n; ++i) graphs[i] = analysis.buildGraphWithoutReduction(input, decompositions.get(i));
+            double treeSize = input.getAnnotation(TreeSizeScorer.TreeSizeBonus.class, () -> new TreeSizeScorer.TreeSizeBonus(tss.getTreeSizeScore())).score;
+            // increase the tree size bonus as in the beautification rounds, and once decrease it again
+            for (double step : new double[]{0.5, 0.5, 1, -1.5}) {
+                final double[] oldPeakScores = input.getAnnotationOrThrow(Scoring.class).getPeakScores().clone();
+                treeSize += step;
+                tss.fastReplace(input, new TreeSizeScorer.TreeSizeBonus(treeSize));
+                final double[] newPeakScores = input.getAnnotationOrThrow(Scoring.class).getPeakScores();
+                for (int i = 0; i < n; ++i) {
+                    analysis.rescorePeaks(graphs[i], oldPeakScores, newPeakScores);
+                    assertSameEdgeWeights(name + " " + decompositions.get(i).getCandidate() + " with tree size " + treeSize,
+                            analysis.buildGraphWithoutReduction(input, decompositions.get(i)), graphs[i]);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,87 @@
+package de.unijena.bioinf.FragmentationTreeConstruction.computation.scoring;
+
+import de.unijena.bioinf.ChemistryBase.ms.Ms2Experiment;
+import de.unijena.bioinf.ChemistryBase.ms.ft.FGraph;
+import de.unijena.bioinf.ChemistryBase.ms.ft.Loss;
+import de.unijena.bioinf.FragmentationTreeConstruction.computation.FragmentationPatternAnalysis;
+import de.unijena.bioinf.babelms.MsExperimentParser;
+import de.unijena.bioinf.sirius.ProcessedInput;
+import de.unijena.bioinf.sirius.Sirius;
+import de.unijena.bioinf.sirius.annotations.DecompositionList;
+import org.junit.Test;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class LossScorerTest {
+
+    private static Ms2Experiment experiment(String name) throws Exception {
+        final File file = new File(LossScorerTest.class.getResource(name).toURI());
+        return new MsExperimentParser().getParser(file).parseFromFile(file).get(0);
+    }
+
+    /*
+        graphs of the best decompositions of a real spectrum, together with the losses which are scored by the
+        loss scorers (all losses which do not start at the pseudo root)
+     */
+    private static List<FGraph> graphs(Sirius sirius, ProcessedInput input) {
+        final FragmentationPatternAnalysis analysis = sirius.getMs2Analyzer();
+        analysis.prepareGraphBuilding(input);
+        final List<FGraph> graphs = new ArrayList<>();
+        final DecompositionList decompositions = input.getAnnotationOrThrow(DecompositionList.class);
+        for (int i = 0; i < Math.min(10, decompositions.getDecompositions().size()); ++i)
+            graphs.add(analysis.buildGraphWithoutReduction(input, decompositions.getDecompositions().get(i)));
+        return graphs;
+    }
+
+    private static List<Loss> losses(FGraph graph) {
+        final ArrayList<Loss> losses = new ArrayList<>();
+        final Iterator<Loss> iter = graph.lossIterator();
+        while (iter.hasNext()) {
+            final Loss l = iter.next();
+            if (!l.getSource().isRoot()) losses.add(l);
+        }
+        return losses;
+    }
+
+    @Test
+    public void testScoreAllEqualsScoreOfEachLoss() throws Exception {
+        final Sirius sirius = new Sirius("qtof");
+        final List<LossScorer> scorers = new ArrayList<>(Arrays.asList(
+                new DBELossScorer(), new FreeRadicalEdgeScorer(), new CommonLossEdgeScorer(),
+                new StrangeElementLossScorer(), new PhosphorScorer(), new LossSizeScorer(),
+                new PureCarbonNitrogenLossScorer()
+        ));
+        // use the scorers with the parameters of the profile where available
+        for (LossScorer scorer : sirius.getMs2Analyzer().getLossScorers()) {
+            for (int i = 0; i < scorers.size(); ++i)
+                if (scorers.get(i).getClass().equals(scorer.getClass())) scorers.set(i, scorer);
+        }
+        int numberOfLosses = 0;
+        for (String name : new String[]{"/Bicuculline.ms", "/Kaempferol.ms"}) {
+            final ProcessedInput input = sirius.preprocessForMs2Analysis(experiment(name));
+            for (FGraph graph : graphs(sirius, input)) {
+                final LossColumns columns = new LossColumns(losses(graph));
+                assertTrue(columns.size() > 0);
+                numberOfLosses += columns.size();
+                for (LossScorer<Object> scorer : scorers) {
+                    final Object precomputed = scorer.prepare(input, graph);
+                    final double[] scores = new double[columns.size()];
+                    scorer.scoreAll(columns, input, precomputed, scores);
+                    for (int i = 0; i < columns.size(); ++i) {
+                        if (columns.isArtificial(i) && !scorer.processArtificialEdges()) continue;
+                        // scorers have to give exactly the same score, such that edge weights do not change
+                        assertEquals(scorer.getClass().getSimpleName() + " " + columns.getLoss(i),
+                                scorer.score(columns.getLoss(i), input, precomputed), scores[i], 0d);
+                    }
+                }
+            }
+        }
+        assertTrue(numberOfLosses > 1000);
+    }
+}
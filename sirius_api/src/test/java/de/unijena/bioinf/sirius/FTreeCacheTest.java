@@ -0,0 +1,148 @@
+package de.unijena.bioinf.sirius;
+
+import de.unijena.bioinf.ChemistryBase.chem.Ionization;
+import de.unijena.bioinf.ChemistryBase.chem.MolecularFormula;
+import de.unijena.bioinf.ChemistryBase.chem.PrecursorIonType;
+import de.unijena.bioinf.ChemistryBase.ms.Deviation;
+import de.unijena.bioinf.ChemistryBase.ms.MS2MassDeviation;
+import de.unijena.bioinf.ChemistryBase.ms.Ms2Experiment;
+import de.unijena.bioinf.ChemistryBase.ms.MutableMs2Experiment;
+import de.unijena.bioinf.ChemistryBase.ms.MutableMs2Spectrum;
+import de.unijena.bioinf.ChemistryBase.ms.ft.FTree;
+import de.unijena.bioinf.ChemistryBase.ms.ft.model.Timeout;
+import de.unijena.bioinf.ChemistryBase.ms.ft.model.Whiteset;
+import de.unijena.bioinf.babelms.MsExperimentParser;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class FTreeCacheTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final Sirius sirius = new Sirius("qtof");
+
+    private static MutableMs2Experiment experiment() throws Exception {
+        final File file = new File(FTreeCacheTest.class.getResource("/Kaempferol.ms").toURI());
+        return new MutableMs2Experiment(new MsExperimentParser().getParser(file).parseFromFile(file).get(0));
+    }
+
+    private String key(FTreeCache cache, Ms2Experiment experiment) {
+        return cache.key(sirius.preprocessForMs2Analysis(experiment), sirius.profile);
+    }
+
+    private static List<FTree> trees(String... formulas) {
+        final PrecursorIonType ionType = PrecursorIonType.getPrecursorIonType("[M+H]+");
+        final FTree[] trees = new FTree[formulas.length];
+        for (int i = 0; i < formulas.length; ++i) {
+            trees[i] = new FTree(MolecularFormula.parseOrThrow(formulas[i]), ionType.getIonization());
+            trees[i].setAnnotation(PrecursorIonType.class, ionType);
+            trees[i].getOrCreateFragmentAnnotation(Ionization.class).set(trees[i].getRoot(), ionType.getIonization());
+            trees[i].setTreeWeight(10d - i / 3d);
+        }
+        return Arrays.asList(trees);
+    }
+
+    @Test
+    public void testHitAndMiss() throws Exception {
+        final Path directory = folder.newFolder().toPath();
+        final FTreeCache cache = new FTreeCache(directory, 1024 * 1024);
+        final String key = key(cache, experiment());
+        assertNotNull(key);
+        assertNull(cache.get(key));
+        assertEquals(1, cache.getMisses());
+
+        cache.put(key, trees("C15H10O6", "C14H10N2O5"));
+        final List<FTree> cached = cache.get(key);
+        assertEquals(1, cache.getHits());
+        assertEquals(2, cached.size());
+        assertEquals(MolecularFormula.parseOrThrow("C15H10O6"), cached.get(0).getRoot().getFormula());
+        assertEquals(10d - 1 / 3d, cached.get(1).getTreeWeight(), 0d);
+
+        // entries of previous runs are reused
+        final FTreeCache reopened = new FTreeCache(directory, 1024 * 1024);
+        assertEquals(1, reopened.numberOfEntries());
+        assertEquals(key, key(reopened, experiment()));
+        assertNotNull(reopened.get(key));
+        assertEquals(1d, reopened.getHitRate(), 0d);
+    }
+
+    @Test
+    public void testMetadataIsNotPartOfTheKey() throws Exception {
+        final FTreeCache cache = new FTreeCache(folder.newFolder().toPath(), 1024 * 1024);
+        final MutableMs2Experiment renamed = experiment();
+        renamed.setName("other name");
+        assertEquals(key(cache, experiment()), key(cache, renamed));
+    }
+
+    @Test
+    public void testKeyChangesWithParameters() throws Exception {
+        final FTreeCache cache = new FTreeCache(folder.newFolder().toPath(), 1024 * 1024);
+        final String key = key(cache, experiment());
+
+        final MutableMs2Experiment deviation = experiment();
+        deviation.setAnnotation(MS2MassDeviation.class, deviation.getAnnotationOrDefault(MS2MassDeviation.class).withAllowedMassDeviation(new Deviation(3)));
+        assertNotEquals(key, key(cache, deviation));
+
+        final MutableMs2Experiment whiteset = experiment();
+        whiteset.setAnnotation(Whiteset.class, Whiteset.ofNeutralizedFormulas(Collections.singleton(MolecularFormula.parseOrThrow("C15H10O6"))));
+        assertNotEquals(key, key(cache, whiteset));
+
+        final MutableMs2Experiment timeout = experiment();
+        timeout.setAnnotation(Timeout.class, Timeout.newTimeout(100, 10));
+        assertNotEquals(key, key(cache, timeout));
+
+        final MutableMs2Experiment peaks = experiment();
+        final MutableMs2Spectrum spectrum = new MutableMs2Spectrum(peaks.getMs2Spectra().get(0));
+        spectrum.setIntensityAt(0, 2 * spectrum.getIntensityAt(0));
+        peaks.getMs2Spectra().set(0, spectrum);
+        assertNotEquals(key, key(cache, peaks));
+
+        final Sirius other = new Sirius("orbitrap");
+        assertNotEquals(key, cache.key(other.preprocessForMs2Analysis(experiment()), other.profile));
+    }
+
+    @Test
+    public void testCorruptedEntryIsRemoved() throws Exception {
+        final FTreeCache cache = new FTreeCache(folder.newFolder().toPath(), 1024 * 1024);
+        final String key = key(cache, experiment());
+        cache.put(key, trees("C15H10O6"));
+        final Path file = cache.getDirectory().resolve(key + ".ftrees.gz");
+        try (RandomAccessFile raf = new RandomAccessFile(file.toFile(), "rw")) {
+            raf.setLength(raf.length() / 2);
+        }
+        assertNull(cache.get(key));
+        assertEquals(0, cache.numberOfEntries());
+        assertFalse(Files.exists(file));
+        assertEquals(0, cache.getSize());
+    }
+
+    @Test
+    public void testLeastRecentlyUsedEntriesAreEvicted() throws IOException {
+        final FTreeCache cache = new FTreeCache(folder.newFolder().toPath(), 1024 * 1024);
+        cache.put("a", trees("C6H12O6"));
+        final long entrySize = cache.getSize();
+
+        final FTreeCache small = new FTreeCache(folder.newFolder().toPath(), 2 * entrySize + entrySize / 2);
+        small.put("a", trees("C6H12O6"));
+        small.put("b", trees("C6H12O6"));
+        assertNotNull(small.get("a"));
+        small.put("c", trees("C6H12O6"));
+        assertEquals(1, small.getEvictions());
+        assertNotNull(small.get("a"));
+        assertNull(small.get("b"));
+        assertNotNull(small.get("c"));
+    }
+}
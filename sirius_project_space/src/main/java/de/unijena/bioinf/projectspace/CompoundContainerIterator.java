@@ -58,25 +58,34 @@ public class CompoundContainerIterator implements Iterator<CompoundContainer> {
         if (next != null)
             return true;
 
-        if (sourceIterator.hasNext()) {
-            final CompoundContainerId cid = sourceIterator.next();
-            try {
-                CompoundContainer c = space.getCompound(cid, components);
-                if (!filter.test(c)) {
-                    LoggerFactory.getLogger(getClass()).info("Skipping instance " + cid.getDirectoryName() + " because it does not match the Filter criterion.");
-                    return hasNext();
-                } else {
-                    next = c;
-                    return true;
-                }
-            } catch (IOException e) {
-                LoggerFactory.getLogger(getClass()).error("Could not parse Compound with ID '" + cid.getDirectoryName() + "' Skipping it!");
-                return hasNext();
-            }
+        while (sourceIterator.hasNext()) {
+            next = load(space, sourceIterator.next(), filter, components);
+            if (next != null)
+                return true;
         }
         return false;
     }
 
+    /**
+     * Loads the compound with the given components.
+     *
+     * @return the compound or null if it does not match the filter or cannot be read
+     */
+    @Nullable
+    static CompoundContainer load(@NotNull SiriusProjectSpace space, @NotNull CompoundContainerId cid, @NotNull Predicate<CompoundContainer> filter, @NotNull Class<? extends DataAnnotation>[] components) {
+        try {
+            CompoundContainer c = space.getCompound(cid, components);
+            if (!filter.test(c)) {
+                LoggerFactory.getLogger(CompoundContainerIterator.class).info("Skipping instance " + cid.getDirectoryName() + " because it does not match the Filter criterion.");
+                return null;
+            }
+            return c;
+        } catch (IOException e) {
+            LoggerFactory.getLogger(CompoundContainerIterator.class).error("Could not parse Compound with ID '" + cid.getDirectoryName() + "' Skipping it!");
+            return null;
+        }
+    }
+
     @Override
     public CompoundContainer next() {
         try {
@@ -0,0 +1,101 @@
+/*
+ *
+ *  This file is part of the SIRIUS library for analyzing MS and MS/MS data
+ *
+ *  Copyright (C) 2013-2020 Kai Dührkop, Markus Fleischauer, Marcus Ludwig, Martin A. Hoffman and Sebastian Böcker,
+ *  Chair of Bioinformatics, Friedrich-Schilller University.
+ *
+ *  This library is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public
+ *  License as published by the Free Software Foundation; either
+ *  version 3 of the License, or (at your option) any later version.
+ *
+ *  This library is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License along with SIRIUS. If not, see <https://www.gnu.org/licenses/lgpl-3.0.txt>
+ */
+package de.unijena.bioinf.projectspace;
+
+import de.unijena.bioinf.ChemistryBase.utils.IOFunctions;
+
+import java.io.IOException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.function.Function;
+
+/**
+ * {@link ProjectIO} on top of a {@link ProjectContainerFile}. Relative paths are resolved against the current
+ * directory within the container.
+ */
+public class ContainerProjectSpaceIO implements ProjectIO {
+
+    protected final ProjectContainerFile container;
+    protected String dir;
+    protected final Function<Class<ProjectSpaceProperty>, Optional<ProjectSpaceProperty>> propertyGetter;
+
+    public ContainerProjectSpaceIO(ProjectContainerFile container, Function<Class<ProjectSpaceProperty>, Optional<ProjectSpaceProperty>> propertyGetter) {
+        this(container, "", propertyGetter);
+    }
+
+    public ContainerProjectSpaceIO(ProjectContainerFile container, String dir, Function<Class<ProjectSpaceProperty>, Optional<ProjectSpaceProperty>> propertyGetter) {
+        this.container = container;
+        this.dir = ProjectContainerFile.normalize(dir);
+        this.propertyGetter = propertyGetter;
+    }
+
+    @Override
+    public <A extends ProjectSpaceProperty> Optional<A> getProjectSpaceProperty(Class<A> klass) {
+        return (Optional<A>)propertyGetter.apply((Class<ProjectSpaceProperty>)klass);
+    }
+
+    @Override
+    public List<String> list(String globPattern) throws IOException {
+        final PathMatcher matcher = FileSystems.getDefault().getPathMatcher("glob:" + globPattern);
+        final ArrayList<String> content = new ArrayList<>();
+        for (String name : container.list(dir))
+            if (matcher.matches(Paths.get(name)))
+                content.add(name);
+        return content;
+    }
+
+    @Override
+    public boolean exists(String relativePath) {
+        return container.exists(resolve(relativePath));
+    }
+
+    @Override
+    public <T> T inDirectory(String relativePath, IOFunctions.IOCallable<T> ioAction) throws IOException {
+        final String newDir = resolve(relativePath);
+        final String oldDir = dir;
+        try {
+            dir = newDir;
+            return ioAction.call();
+        } finally {
+            dir = oldDir;
+        }
+    }
+
+    /**
+     * There is no file system path for entries of a container. The returned path points into the container file
+     * and can only be used for naming, e.g. as source location of parsed data.
+     */
+    @Override
+    public Path asPath(String relativePath) {
+        return container.getFile().resolve(resolve(relativePath));
+    }
+
+    protected String resolve(String relativePath) {
+        final String path = ProjectContainerFile.normalize(relativePath);
+        if (dir.isEmpty()) return path;
+        if (path.isEmpty()) return dir;
+        return dir + "/" + path;
+    }
+}
@@ -0,0 +1,66 @@
+/*
+ *
+ *  This file is part of the SIRIUS library for analyzing MS and MS/MS data
+ *
+ *  Copyright (C) 2013-2020 Kai Dührkop, Markus Fleischauer, Marcus Ludwig, Martin A. Hoffman and Sebastian Böcker,
+ *  Chair of Bioinformatics, Friedrich-Schilller University.
+ *
+ *  This library is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public
+ *  License as published by the Free Software Foundation; either
+ *  version 3 of the License, or (at your option) any later version.
+ *
+ *  This library is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License along with SIRIUS. If not, see <https://www.gnu.org/licenses/lgpl-3.0.txt>
+ */
+package de.unijena.bioinf.projectspace;
+
+import de.unijena.bioinf.ChemistryBase.utils.FileUtils;
+import de.unijena.bioinf.ChemistryBase.utils.IOFunctions;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.NoSuchFileException;
+import java.util.Optional;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+public class ContainerProjectSpaceReader extends ContainerProjectSpaceIO implements ProjectReader {
+
+    public ContainerProjectSpaceReader(ProjectContainerFile container, Function<Class<ProjectSpaceProperty>, Optional<ProjectSpaceProperty>> propertyGetter) {
+        super(container, propertyGetter);
+    }
+
+    @Override
+    public <A> A textFile(String relativePath, IOFunctions.IOFunction<BufferedReader, A> func) throws IOException {
+        try (final BufferedReader stream = new BufferedReader(new InputStreamReader(new ByteArrayInputStream(content(relativePath)), StandardCharsets.UTF_8))) {
+            return func.apply(stream);
+        }
+    }
+
+    @Override
+    public <A> A binaryFile(String relativePath, IOFunctions.IOFunction<BufferedInputStream, A> func) throws IOException {
+        try (final BufferedInputStream stream = new BufferedInputStream(new ByteArrayInputStream(content(relativePath)))) {
+            return func.apply(stream);
+        }
+    }
+
+    @Override
+    public void table(String relativePath, boolean skipHeader, Consumer<String[]> f) throws IOException {
+        textFile(relativePath, br -> {
+            FileUtils.readTable(br, skipHeader, f);
+            return null;
+        });
+    }
+
+    protected byte[] content(String relativePath) throws IOException {
+        final String path = resolve(relativePath);
+        final byte[] content = container.read(path);
+        if (content == null) throw new NoSuchFileException(path);
+        return content;
+    }
+}
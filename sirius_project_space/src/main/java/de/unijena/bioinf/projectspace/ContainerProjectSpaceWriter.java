@@ -0,0 +1,84 @@
+/*
+ *
+ *  This file is part of the SIRIUS library for analyzing MS and MS/MS data
+ *
+ *  Copyright (C) 2013-2020 Kai Dührkop, Markus Fleischauer, Marcus Ludwig, Martin A. Hoffman and Sebastian Böcker,
+ *  Chair of Bioinformatics, Friedrich-Schilller University.
+ *
+ *  This library is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public
+ *  License as published by the Free Software Foundation; either
+ *  version 3 of the License, or (at your option) any later version.
+ *
+ *  This library is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License along with SIRIUS. If not, see <https://www.gnu.org/licenses/lgpl-3.0.txt>
+ */
+package de.unijena.bioinf.projectspace;
+
+import de.unijena.bioinf.ChemistryBase.utils.FileUtils;
+import de.unijena.bioinf.ChemistryBase.utils.IOFunctions;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.Optional;
+import java.util.function.Function;
+
+/**
+ * Files are buffered in memory and appended to the container when they are complete,
+ * such that a failing serializer does not leave partially written entries.
+ */
+public class ContainerProjectSpaceWriter extends ContainerProjectSpaceIO implements ProjectWriter {
+
+    public ContainerProjectSpaceWriter(ProjectContainerFile container, Function<Class<ProjectSpaceProperty>, Optional<ProjectSpaceProperty>> propertyGetter) {
+        super(container, propertyGetter);
+    }
+
+    @Override
+    public void textFile(String relativePath, IOFunctions.IOConsumer<BufferedWriter> func) throws IOException {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (final BufferedWriter stream = new BufferedWriter(new OutputStreamWriter(bytes, StandardCharsets.UTF_8))) {
+            func.accept(stream);
+        }
+        container.write(resolve(relativePath), bytes.toByteArray());
+    }
+
+    @Override
+    public void binaryFile(String relativePath, IOFunctions.IOConsumer<BufferedOutputStream> func) throws IOException {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (final BufferedOutputStream stream = new BufferedOutputStream(bytes)) {
+            func.accept(stream);
+        }
+        container.write(resolve(relativePath), bytes.toByteArray());
+    }
+
+    @Override
+    public void keyValues(String relativePath, Map<?, ?> map) throws IOException {
+        textFile(relativePath, w -> FileUtils.writeKeyValues(w, map));
+    }
+
+    @Override
+    public void table(String relativePath, @Nullable String[] header, Iterable<String[]> rows) throws IOException {
+        textFile(relativePath, w -> FileUtils.writeTable(w, header, rows));
+    }
+
+    @Override
+    public void delete(String relativePath) throws IOException {
+        container.delete(resolve(relativePath));
+    }
+
+    @Override
+    public void deleteIfExists(String relativePath) throws IOException {
+        container.delete(resolve(relativePath));
+    }
+
+    @Override
+    public void move(String relativeSource, String relativeTarget) throws IOException {
+        container.move(resolve(relativeSource), resolve(relativeTarget));
+    }
+}
@@ -77,6 +77,11 @@ public class FileBasedProjectSpaceWriter extends FileBasedProjectSpaceIO impleme
         Files.deleteIfExists(asPath(relativePath));
     }
 
+    @Override
+    public void move(String relativeSource, String relativeTarget) throws IOException {
+        Files.move(asPath(relativeSource), asPath(relativeTarget));
+    }
+
     protected Path resolveAndMkFilePath(String relativePath) throws IOException {
         Path file = asPath(relativePath);
         Files.createDirectories(file.getParent());
@@ -0,0 +1,98 @@
+/*
+ *
+ *  This file is part of the SIRIUS library for analyzing MS and MS/MS data
+ *
+ *  Copyright (C) 2013-2020 Kai Dührkop, Markus Fleischauer, Marcus Ludwig, Martin A. Hoffman and Sebastian Böcker,
+ *  Chair of Bioinformatics, Friedrich-Schilller University.
+ *
+ *  This library is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public
+ *  License as published by the Free Software Foundation; either
+ *  version 3 of the License, or (at your option) any later version.
+ *
+ *  This library is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License along with SIRIUS. If not, see <https://www.gnu.org/licenses/lgpl-3.0.txt>
+ */
+package de.unijena.bioinf.projectspace;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Converts project-spaces between the directory layout (also mounted zip files) and {@link ProjectContainerFile}s.
+ * The content of the files is copied unchanged, so both layouts can be read with the same serializers.
+ */
+public class ProjectContainerConverter {
+
+    private ProjectContainerConverter() {
+    }
+
+    /**
+     * Converts the project-space directory into a new container file.
+     */
+    public static void toContainer(@NotNull Path projectDirectory, @NotNull Path containerFile) throws IOException {
+        if (Files.exists(containerFile))
+            throw new IOException("Could not convert Project '" + projectDirectory + "' because '" + containerFile + "' already exists.");
+        try (final ProjectContainerFile container = ProjectContainerFile.open(containerFile)) {
+            toContainer(projectDirectory, container);
+        }
+    }
+
+    /**
+     * Converts the container file into a project-space directory. The directory might not exist or has to be empty.
+     */
+    public static void toDirectory(@NotNull Path containerFile, @NotNull Path projectDirectory) throws IOException {
+        if (Files.exists(projectDirectory)) {
+            try (final Stream<Path> s = Files.list(projectDirectory)) {
+                if (s.findAny().isPresent())
+                    throw new IOException("Could not convert Project '" + containerFile + "' because directory '" + projectDirectory + "' is not empty.");
+            }
+        }
+        try (final ProjectContainerFile container = ProjectContainerFile.open(containerFile)) {
+            toDirectory(container, projectDirectory);
+        }
+    }
+
+    public static void toContainer(@NotNull Path projectDirectory, @NotNull ProjectContainerFile target) throws IOException {
+        final List<Path> files;
+        try (final Stream<Path> s = Files.walk(projectDirectory)) {
+            files = s.filter(Files::isRegularFile).sorted().collect(Collectors.toList());
+        }
+        for (Path file : files) {
+            final StringBuilder relativePath = new StringBuilder();
+            for (Path name : projectDirectory.relativize(file)) {
+                if (relativePath.length() > 0) relativePath.append('/');
+                relativePath.append(name.toString());
+            }
+            target.write(relativePath.toString(), Files.readAllBytes(file));
+        }
+        target.flush();
+    }
+
+    public static void toDirectory(@NotNull ProjectContainerFile source, @NotNull Path projectDirectory) throws IOException {
+        Files.createDirectories(projectDirectory);
+        for (String path : source.paths()) {
+            Path file = projectDirectory;
+            for (String name : path.split("/"))
+                file = file.resolve(name);
+            Files.createDirectories(file.getParent());
+            Files.write(file, source.read(path));
+        }
+    }
+
+    public static void copy(@NotNull ProjectContainerFile source, @NotNull ProjectContainerFile target) throws IOException {
+        for (String path : source.paths())
+            target.write(path, source.read(path));
+        target.flush();
+    }
+}
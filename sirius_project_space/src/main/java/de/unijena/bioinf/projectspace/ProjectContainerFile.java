@@ -0,0 +1,428 @@
+/*
+ *
+ *  This file is part of the SIRIUS library for analyzing MS and MS/MS data
+ *
+ *  Copyright (C) 2013-2020 Kai Dührkop, Markus Fleischauer, Marcus Ludwig, Martin A. Hoffman and Sebastian Böcker,
+ *  Chair of Bioinformatics, Friedrich-Schilller University.
+ *
+ *  This library is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public
+ *  License as published by the Free Software Foundation; either
+ *  version 3 of the License, or (at your option) any later version.
+ *
+ *  This library is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License along with SIRIUS. If not, see <https://www.gnu.org/licenses/lgpl-3.0.txt>
+ */
+package de.unijena.bioinf.projectspace;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.slf4j.LoggerFactory;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.NavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.zip.CRC32;
+
+/**
+ * Stores all files of a project-space within a single file. The file is an append-only log of records,
+ * each record either puts the content of a (relative) path or deletes it. An in memory index maps every path to the
+ * offset of its latest content and is rebuilt by scanning the record headers when the file is opened.
+ * Directories are not stored explicitly: a directory exists as long as there is some file below it.
+ * <p>
+ * Overwritten and deleted content stays in the file until {@link #compact()} is called, which rewrites all
+ * live entries into a new file. Closing the container compacts it if more than half of the file is garbage.
+ * <p>
+ * All methods are thread safe. Writes are serialized, reads use positional reads and run concurrently.
+ * Every record carries a CRC32 checksum of its path and content, which is validated when the file is opened and on
+ * read. An incomplete last record (e.g. a crash during a write) is cut off when opening the file, a corrupted record
+ * within the file makes opening fail.
+ */
+public class ProjectContainerFile implements Closeable {
+
+    public static final String FILE_EXTENSION = ".siriusdb";
+
+    private static final int MAGIC = 0x53495053; // SIPS
+    private static final int FORMAT_VERSION = 1;
+    private static final int HEADER_SIZE = 8;
+    private static final byte PUT = 1, DELETE = 2;
+    private static final int SCAN_CHUNK_SIZE = 64 * 1024;
+
+    private final Path file;
+    private FileChannel channel;
+    private final ConcurrentSkipListMap<String, Entry> index;
+    // reads hold the read lock, replacing or closing the channel requires the write lock
+    private final ReentrantReadWriteLock channelLock = new ReentrantReadWriteLock();
+    private long garbageBytes = 0;
+
+    protected static final class Entry {
+        private final long offset;
+        private final int length;
+        private final int recordSize;
+
+        private Entry(long offset, int length, int recordSize) {
+            this.offset = offset;
+            this.length = length;
+            this.recordSize = recordSize;
+        }
+    }
+
+    /**
+     * Opens the given container file or creates a new (empty) one, if the file does not exist.
+     */
+    public static ProjectContainerFile open(@NotNull Path file) throws IOException {
+        final ProjectContainerFile container = new ProjectContainerFile(file);
+        container.init();
+        return container;
+    }
+
+    public static boolean isContainerFile(@NotNull Path file) {
+        if (Files.isDirectory(file)) return false;
+        return file.getFileName().toString().toLowerCase().endsWith(FILE_EXTENSION);
+    }
+
+    private ProjectContainerFile(Path file) {
+        this.file = file;
+        this.index = new ConcurrentSkipListMap<>();
+    }
+
+    private void init() throws IOException {
+        channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        if (channel.size() == 0) {
+            final ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            header.putInt(MAGIC).putInt(FORMAT_VERSION).flip();
+            writeFully(header, 0);
+            return;
+        }
+        final ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        readFully(header, 0);
+        header.flip();
+        if (header.getInt() != MAGIC || header.getInt() != FORMAT_VERSION) {
+            channel.close();
+            throw new IOException("'" + file + "' is not a project-space container file.");
+        }
+        scan();
+    }
+
+    /*
+        rebuild index from the records and validate their checksums. Only an incomplete last record (e.g. crash
+        during a write) is cut off, a corrupted record within the file is an error.
+     */
+    private void scan() throws IOException {
+        final long size = channel.size();
+        long position = HEADER_SIZE;
+        final ByteBuffer head = ByteBuffer.allocate(9);
+        final ByteBuffer chunk = ByteBuffer.allocate(SCAN_CHUNK_SIZE);
+        final CRC32 crc = new CRC32();
+        String incomplete = null;
+        while (position < size) {
+            head.clear();
+            if (!tryReadFully(head, position, size)) {
+                incomplete = "an incomplete record header";
+                break;
+            }
+            head.flip();
+            final byte type = head.get();
+            final int pathLength = head.getInt();
+            final int length = head.getInt();
+            if ((type != PUT && type != DELETE) || pathLength < 0 || length < 0) {
+                // a crash might leave a zero filled tail, anything else is corruption
+                if (!isZero(position, size, chunk))
+                    throw corrupted(position);
+                incomplete = "a zero filled tail";
+                break;
+            }
+            final long recordSize = 9L + pathLength + length + 8;
+            if (position + recordSize > size) {
+                incomplete = "an incomplete record";
+                break;
+            }
+
+            final ByteBuffer pathBytes = ByteBuffer.allocate(pathLength);
+            readFully(pathBytes, position + 9);
+            crc.reset();
+            crc.update(pathBytes.array());
+            final long contentOffset = position + 9 + pathLength;
+            for (long offset = 0; offset < length; ) {
+                chunk.clear();
+                chunk.limit((int) Math.min(chunk.capacity(), length - offset));
+                readFully(chunk, contentOffset + offset);
+                chunk.flip();
+                offset += chunk.remaining();
+                crc.update(chunk);
+            }
+            final ByteBuffer checksum = ByteBuffer.allocate(8);
+            readFully(checksum, contentOffset + length);
+            checksum.flip();
+            if (checksum.getLong() != crc.getValue()) {
+                // the last record might be torn, if the file was extended before its content was written
+                if (position + recordSize < size)
+                    throw corrupted(position);
+                incomplete = "a torn record";
+                break;
+            }
+
+            final String path = new String(pathBytes.array(), StandardCharsets.UTF_8);
+            final Entry old;
+            if (type == PUT) {
+                old = index.put(path, new Entry(contentOffset, length, (int) recordSize));
+            } else {
+                old = index.remove(path);
+                garbageBytes += recordSize;
+            }
+            if (old != null) garbageBytes += old.recordSize;
+            position += recordSize;
+        }
+        if (position < size) {
+            LoggerFactory.getLogger(ProjectContainerFile.class).warn("Project-space container '" + file + "' ends with " + incomplete + ". Truncating " + (size - position) + " bytes.");
+            channel.truncate(position);
+        }
+    }
+
+    private boolean isZero(long position, long size, ByteBuffer chunk) throws IOException {
+        while (position < size) {
+            chunk.clear();
+            chunk.limit((int) Math.min(chunk.capacity(), size - position));
+            readFully(chunk, position);
+            chunk.flip();
+            position += chunk.remaining();
+            while (chunk.hasRemaining())
+                if (chunk.get() != 0) return false;
+        }
+        return true;
+    }
+
+    private IOException corrupted(long position) throws IOException {
+        channel.close();
+        return new IOException("Project-space container '" + file + "' is corrupted at offset " + position + ".");
+    }
+
+    public Path getFile() {
+        return file;
+    }
+
+    public boolean contains(@NotNull String path) {
+        return index.containsKey(normalize(path));
+    }
+
+    /**
+     * @return true if there is a file with the given path or a file below the given path
+     */
+    public boolean exists(@NotNull String path) {
+        final String p = normalize(path);
+        if (p.isEmpty()) return true;
+        return index.containsKey(p) || !below(p).isEmpty();
+    }
+
+    /**
+     * @return content of the given file or null if it does not exist
+     */
+    @Nullable
+    public byte[] read(@NotNull String path) throws IOException {
+        final String p = normalize(path);
+        channelLock.readLock().lock();
+        try {
+            ensureOpen();
+            final Entry entry = index.get(p);
+            if (entry == null) return null;
+            final byte[] content = new byte[entry.length];
+            final ByteBuffer checksum = ByteBuffer.allocate(8);
+            readFully(ByteBuffer.wrap(content), entry.offset);
+            readFully(checksum, entry.offset + entry.length);
+            checksum.flip();
+            if (checksum.getLong() != checksum(p.getBytes(StandardCharsets.UTF_8), content))
+                throw new IOException("Corrupted entry '" + p + "' in project-space container '" + file + "'.");
+            return content;
+        } finally {
+            channelLock.readLock().unlock();
+        }
+    }
+
+    public synchronized void write(@NotNull String path, @NotNull byte[] content) throws IOException {
+        ensureOpen();
+        final String p = normalize(path);
+        final long position = append(PUT, p, content);
+        final byte[] pathBytes = p.getBytes(StandardCharsets.UTF_8);
+        final Entry old = index.put(p, new Entry(position + 9 + pathBytes.length, content.length, 9 + pathBytes.length + content.length + 8));
+        if (old != null) garbageBytes += old.recordSize;
+    }
+
+    /**
+     * Deletes the given file or all files below the given directory.
+     * @return true if anything was deleted
+     */
+    public synchronized boolean delete(@NotNull String path) throws IOException {
+        ensureOpen();
+        final String p = normalize(path);
+        final List<String> toDelete = new ArrayList<>(below(p).keySet());
+        if (index.containsKey(p)) toDelete.add(p);
+        for (String key : toDelete) {
+            final long position = append(DELETE, key, new byte[0]);
+            garbageBytes += channel.size() - position;
+            final Entry old = index.remove(key);
+            if (old != null) garbageBytes += old.recordSize;
+        }
+        return !toDelete.isEmpty();
+    }
+
+    /**
+     * Moves a file or all files below a directory to the given target path.
+     */
+    public synchronized void move(@NotNull String source, @NotNull String target) throws IOException {
+        final String s = normalize(source), t = normalize(target);
+        if (exists(t)) throw new FileAlreadyExistsException(t);
+        final List<String> paths = new ArrayList<>(below(s).keySet());
+        if (index.containsKey(s)) paths.add(s);
+        if (paths.isEmpty()) throw new NoSuchFileException(s);
+        for (String path : paths)
+            write(t + path.substring(s.length()), read(path));
+        delete(s);
+    }
+
+    /**
+     * @return names of all files and directories directly below the given directory
+     */
+    public List<String> list(@NotNull String directory) {
+        final String dir = normalize(directory);
+        final String prefix = dir.isEmpty() ? "" : dir + "/";
+        final ArrayList<String> children = new ArrayList<>();
+        String last = null;
+        for (String path : (dir.isEmpty() ? index.navigableKeySet() : below(dir).navigableKeySet())) {
+            final int end = path.indexOf('/', prefix.length());
+            final String child = end < 0 ? path.substring(prefix.length()) : path.substring(prefix.length(), end);
+            if (!child.equals(last)) children.add(child);
+            last = child;
+        }
+        return children;
+    }
+
+    /**
+     * @return all file paths in the container, in lexicographic order
+     */
+    public List<String> paths() {
+        return new ArrayList<>(index.keySet());
+    }
+
+    public synchronized long getGarbageBytes() {
+        return garbageBytes;
+    }
+
+    /**
+     * Rewrites all live entries into a new file and replaces the container file by it.
+     */
+    public synchronized void compact() throws IOException {
+        channelLock.writeLock().lock();
+        try {
+            compactUnlocked();
+        } finally {
+            channelLock.writeLock().unlock();
+        }
+    }
+
+    private void compactUnlocked() throws IOException {
+        ensureOpen();
+        final Path tmp = Files.createTempFile(file.toAbsolutePath().getParent(), file.getFileName().toString(), ".tmp");
+        try {
+            try (final ProjectContainerFile copy = new ProjectContainerFile(tmp)) {
+                copy.channel = FileChannel.open(tmp, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.READ, StandardOpenOption.WRITE);
+                final ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+                header.putInt(MAGIC).putInt(FORMAT_VERSION).flip();
+                copy.writeFully(header, 0);
+                for (String path : index.keySet())
+                    copy.write(path, read(path));
+                copy.channel.force(false);
+            }
+            channel.close();
+            Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING);
+        } finally {
+            Files.deleteIfExists(tmp);
+        }
+        index.clear();
+        garbageBytes = 0;
+        init();
+    }
+
+    public synchronized void flush() throws IOException {
+        ensureOpen();
+        channel.force(false);
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        channelLock.writeLock().lock();
+        try {
+            if (channel == null || !channel.isOpen()) return;
+            if (garbageBytes > 0 && garbageBytes * 2 > channel.size())
+                compactUnlocked();
+            channel.force(false);
+            channel.close();
+        } finally {
+            channelLock.writeLock().unlock();
+        }
+    }
+
+    private NavigableMap<String, Entry> below(String dir) {
+        // '0' is the character following '/'
+        return index.subMap(dir + "/", true, dir + "0", false);
+    }
+
+    private long append(byte type, String path, byte[] content) throws IOException {
+        final byte[] pathBytes = path.getBytes(StandardCharsets.UTF_8);
+        final ByteBuffer record = ByteBuffer.allocate(9 + pathBytes.length + content.length + 8);
+        record.put(type).putInt(pathBytes.length).putInt(content.length).put(pathBytes).put(content).putLong(checksum(pathBytes, content));
+        record.flip();
+        final long position = channel.size();
+        writeFully(record, position);
+        return position;
+    }
+
+    private static long checksum(byte[] path, byte[] content) {
+        final CRC32 crc = new CRC32();
+        crc.update(path);
+        crc.update(content);
+        return crc.getValue();
+    }
+
+    private void ensureOpen() throws IOException {
+        if (channel == null || !channel.isOpen())
+            throw new IOException("Project-space container '" + file + "' is already closed.");
+    }
+
+    private void writeFully(ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining())
+            position += channel.write(buffer, position);
+    }
+
+    private void readFully(ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            final int read = channel.read(buffer, position);
+            if (read < 0) throw new EOFException("Unexpected end of project-space container '" + file + "'.");
+            position += read;
+        }
+    }
+
+    private boolean tryReadFully(ByteBuffer buffer, long position, long size) throws IOException {
+        if (position + buffer.remaining() > size) return false;
+        readFully(buffer, position);
+        return true;
+    }
+
+    protected static String normalize(String path) {
+        String p = path.replace('\\', '/');
+        while (p.startsWith("./")) p = p.substring(2);
+        while (p.startsWith("/")) p = p.substring(1);
+        while (p.endsWith("/")) p = p.substring(0, p.length() - 1);
+        return p;
+    }
+}
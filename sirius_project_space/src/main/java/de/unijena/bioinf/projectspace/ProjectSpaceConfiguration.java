@@ -49,6 +49,13 @@ public class ProjectSpaceConfiguration {
         return projectSpacePropertySerializers.get(propertyClass);
     }
 
+    public List<Class<? extends ProjectSpaceProperty>> getAllProjectSpaceProperties() {
+        final ArrayList<Class<? extends ProjectSpaceProperty>> properties = new ArrayList<>();
+        for (Class k : projectSpacePropertySerializers.keySet())
+            properties.add(k);
+        return properties;
+    }
+
     public <ID extends ProjectSpaceContainerId, Container extends ProjectSpaceContainer<ID>>
     void registerContainer(Class<Container> container, ContainerSerializer<ID, Container> serializer) {
         containerSerializers.put(container, serializer);
@@ -47,7 +47,11 @@ public class ProjectSpaceIO {
     public SiriusProjectSpace openExistingProjectSpace(Path path) throws IOException {
         final SiriusProjectSpace space;
 
-        if (isZipProjectSpace(path)) {
+        if (isContainerProjectSpace(path)) {
+            if (Files.notExists(path))
+                throw new IOException("Location '" + path + "' is not a valid Project Location");
+            space = new SiriusProjectSpace(configuration, ProjectContainerFile.open(path));
+        } else if (isZipProjectSpace(path)) {
             space = newZipProjectSpace(path, false);
         } else if (isExistingProjectspaceDirectory(path) || (Files.isDirectory(path) && FileUtils.listAndClose(path, Stream::count) == 0)) {
             doTSVConversion(path);
@@ -79,7 +83,14 @@ public class ProjectSpaceIO {
 
     public SiriusProjectSpace createNewProjectSpace(Path path) throws IOException {
         final SiriusProjectSpace space;
-        if (isZipProjectSpace(path)) {
+        if (isContainerProjectSpace(path)) {
+            if (Files.exists(path))
+                throw new IOException("Could not create new Project '" + path + "' because it already exists");
+            if (path.getParent() != null && Files.notExists(path.getParent()))
+                Files.createDirectories(path.getParent());
+
+            space = new SiriusProjectSpace(configuration, ProjectContainerFile.open(path));
+        } else if (isZipProjectSpace(path)) {
             if (path.getParent() != null && Files.notExists(path.getParent()))
                 Files.createDirectories(path.getParent());
 
@@ -135,6 +146,22 @@ public class ProjectSpaceIO {
     public static boolean copyProject(@NotNull final SiriusProjectSpace space, @NotNull final Path copyLocation, final boolean switchToNewLocation) throws IOException {
         //todo zip to zip copy by simple file copy
         return space.withAllLockedDo(() -> {
+            final ProjectContainerFile sourceContainer = space.getContainerFile();
+            if (isContainerProjectSpace(copyLocation)) {
+                if (Files.exists(copyLocation))
+                    throw new IOException("Could not copy Project to '" + copyLocation + "' because it already exists");
+                final ProjectContainerFile nuContainer = ProjectContainerFile.open(copyLocation);
+                if (sourceContainer != null)
+                    ProjectContainerConverter.copy(sourceContainer, nuContainer);
+                else
+                    ProjectContainerConverter.toContainer(space.getRootPath(), nuContainer);
+
+                if (switchToNewLocation)
+                    return space.changeLocation(nuContainer);
+                nuContainer.close();
+                return false;
+            }
+
             @NotNull final Path nuSpaceLocation;
             final boolean isZipTarget = isZipProjectSpace(copyLocation);
             if (isZipTarget) { //create new mounted zip file for target location
@@ -144,7 +171,10 @@ public class ProjectSpaceIO {
                 Files.createDirectories(nuSpaceLocation);
             }
 
-            FileUtils.copyFolder(space.getRootPath(), nuSpaceLocation); //just copy the data -> mounted ZipFS does the rest
+            if (sourceContainer != null)
+                ProjectContainerConverter.toDirectory(sourceContainer, nuSpaceLocation);
+            else
+                FileUtils.copyFolder(space.getRootPath(), nuSpaceLocation); //just copy the data -> mounted ZipFS does the rest
 
             if (switchToNewLocation)
                 return space.changeLocation(nuSpaceLocation);
@@ -156,6 +186,13 @@ public class ProjectSpaceIO {
         });
     }
 
+    /**
+     * Check for a single file (container) project-space by file ending
+     */
+    public static boolean isContainerProjectSpace(Path file) {
+        return ProjectContainerFile.isContainerFile(file);
+    }
+
     /**
      * Check for a compressed project-space by file ending
      */
@@ -58,6 +58,11 @@ public interface ProjectWriter extends ProjectIO {
 
     public void deleteIfExists(String relativePath) throws IOException;
 
+    /**
+     * Moves a file or a directory with all its content. Fails if the target already exists.
+     */
+    public void move(String relativeSource, String relativeTarget) throws IOException;
+
     public static interface ForContainer<S extends ProjectSpaceContainerId,T extends ProjectSpaceContainer<S>> {
         public void writeAllComponents(ProjectWriter writer, T container, IOFunctions.ClassValueProducer producer)  throws IOException;
     }
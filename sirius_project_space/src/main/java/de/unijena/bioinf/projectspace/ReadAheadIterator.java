@@ -0,0 +1,173 @@
+/*
+ *
+ *  This file is part of the SIRIUS library for analyzing MS and MS/MS data
+ *
+ *  Copyright (C) 2013-2020 Kai Dührkop, Markus Fleischauer, Marcus Ludwig, Martin A. Hoffman and Sebastian Böcker,
+ *  Chair of Bioinformatics, Friedrich-Schilller University.
+ *
+ *  This library is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public
+ *  License as published by the Free Software Foundation; either
+ *  version 3 of the License, or (at your option) any later version.
+ *
+ *  This library is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License along with SIRIUS. If not, see <https://www.gnu.org/licenses/lgpl-3.0.txt>
+ */
+
+package de.unijena.bioinf.projectspace;
+
+import de.unijena.bioinf.ChemistryBase.jobs.SiriusJobs;
+import de.unijena.bioinf.ChemistryBase.utils.IOFunctions;
+import de.unijena.bioinf.jjobs.BasicJJob;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * Iterator that loads the elements of a source iterator on the IO pool of the global job manager.
+ * At most {@code readAhead} elements are loaded (or waiting to be consumed) at the same time, so a slow
+ * consumer never causes more than this number of elements to be held in memory (backpressure).
+ * <p>
+ * If {@code keepOrder} is true, elements are returned in the order of the source iterator. Otherwise they
+ * are returned in the order in which they have been loaded.
+ * <p>
+ * If the loader returns null, the element is skipped. An IOException thrown by the loader is rethrown
+ * as {@link UncheckedIOException} when the corresponding element is requested; iteration stops afterwards.
+ * The iterator should be closed if it is not consumed completely, to cancel pending read jobs.
+ *
+ * @param <S> type of the source elements (e.g. {@link CompoundContainerId})
+ * @param <T> type of the loaded elements
+ */
+public class ReadAheadIterator<S, T> implements Iterator<T>, AutoCloseable {
+    private final Iterator<S> source;
+    private final IOFunctions.IOFunction<S, T> loader;
+    private final int readAhead;
+    private final boolean keepOrder;
+
+    // jobs that are submitted but whose result was not yet consumed (in submission order)
+    private final ArrayDeque<ReadJob> window;
+    // finished jobs in completion order, only used if keepOrder is false
+    private final BlockingQueue<ReadJob> completed;
+
+    private T next = null;
+    private volatile boolean closed = false;
+
+    public ReadAheadIterator(@NotNull Iterator<S> source, @NotNull IOFunctions.IOFunction<S, T> loader, int readAhead, boolean keepOrder) {
+        if (readAhead < 1)
+            throw new IllegalArgumentException("Read-ahead window must contain at least one element but was " + readAhead);
+        this.source = source;
+        this.loader = loader;
+        this.readAhead = readAhead;
+        this.keepOrder = keepOrder;
+        this.window = new ArrayDeque<>(readAhead);
+        this.completed = keepOrder ? null : new LinkedBlockingQueue<>();
+    }
+
+    @Override
+    public boolean hasNext() {
+        while (next == null) {
+            if (closed)
+                return false;
+            fillWindow();
+            if (window.isEmpty())
+                return false;
+
+            final ReadJob job = keepOrder ? awaitFirst() : awaitAny();
+            fillWindow();
+            if (job.error != null) {
+                close();
+                if (job.error instanceof IOException)
+                    throw new UncheckedIOException((IOException) job.error);
+                throw (RuntimeException) job.error;
+            }
+            next = job.value;
+        }
+        return true;
+    }
+
+    @Override
+    public T next() {
+        if (!hasNext())
+            throw new NoSuchElementException();
+        final T n = next;
+        next = null;
+        return n;
+    }
+
+    /**
+     * Cancels all pending read jobs. Elements that are already loaded are discarded.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        ReadJob job;
+        while ((job = window.poll()) != null)
+            job.cancel(false);
+        if (completed != null)
+            completed.clear();
+    }
+
+    private void fillWindow() {
+        while (!closed && window.size() < readAhead && source.hasNext())
+            window.add(SiriusJobs.getGlobalJobManager().submitJob(new ReadJob(source.next())));
+    }
+
+    private ReadJob awaitFirst() {
+        final ReadJob job = window.poll();
+        try {
+            job.awaitResult();
+            return job;
+        } catch (ExecutionException e) {
+            close();
+            throw new RuntimeException("Error when reading element '" + job.input + "'.", e.getCause() != null ? e.getCause() : e);
+        }
+    }
+
+    private ReadJob awaitAny() {
+        try {
+            final ReadJob job = completed.take();
+            window.remove(job);
+            return job;
+        } catch (InterruptedException e) {
+            close();
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted while waiting for next element.", e);
+        }
+    }
+
+    private class ReadJob extends BasicJJob<T> {
+        private final S input;
+        private T value = null;
+        private Exception error = null;
+
+        private ReadJob(S input) {
+            super(JobType.IO);
+            this.input = input;
+        }
+
+        @Override
+        protected T compute() {
+            try {
+                if (!closed)
+                    value = loader.apply(input);
+            } catch (IOException | RuntimeException e) {
+                error = e;
+            } finally {
+                if (completed != null)
+                    completed.add(this);
+            }
+            return value;
+        }
+    }
+}
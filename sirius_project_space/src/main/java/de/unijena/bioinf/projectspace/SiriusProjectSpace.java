@@ -28,9 +28,9 @@ import de.unijena.bioinf.ChemistryBase.chem.RetentionTime;
 import de.unijena.bioinf.ChemistryBase.ms.DetectedAdducts;
 import de.unijena.bioinf.ChemistryBase.ms.Ms2Experiment;
 import de.unijena.bioinf.ChemistryBase.ms.ft.FTree;
-import de.unijena.bioinf.ChemistryBase.utils.FileUtils;
 import de.unijena.bioinf.jjobs.TinyBackgroundJJob;
 import de.unijena.bioinf.ms.annotations.DataAnnotation;
+import de.unijena.bioinf.ms.properties.PropertyManager;
 import de.unijena.bioinf.projectspace.sirius.CompoundContainer;
 import de.unijena.bioinf.projectspace.sirius.FormulaResult;
 import de.unijena.bioinf.projectspace.sirius.FormulaResultRankingScore;
@@ -40,8 +40,8 @@ import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 import org.slf4j.LoggerFactory;
 
-import java.io.BufferedWriter;
 import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.nio.file.FileSystem;
 import java.nio.file.FileSystems;
 import java.nio.file.Files;
@@ -51,13 +51,18 @@ import java.util.concurrent.Callable;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
 import java.util.function.IntFunction;
 import java.util.function.Predicate;
 import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 public class SiriusProjectSpace implements Iterable<CompoundContainerId>, AutoCloseable {
 
     private Path root;
+    // single file storage, if null the project-space is stored in the directory (or zip file system) of root
+    @Nullable
+    private ProjectContainerFile container;
 
     protected final ConcurrentHashMap<String, CompoundContainerId> ids;
     protected final ProjectSpaceConfiguration configuration;
@@ -78,10 +83,40 @@ public class SiriusProjectSpace implements Iterable<CompoundContainerId>, AutoCl
         this.formulaResultListener = new ConcurrentLinkedQueue<>();
     }
 
+    protected SiriusProjectSpace(ProjectSpaceConfiguration configuration, ProjectContainerFile container) {
+        this(configuration, container.getFile());
+        this.container = container;
+    }
+
     public synchronized Path getRootPath() {
         return root;
     }
 
+    @Nullable
+    synchronized ProjectContainerFile getContainerFile() {
+        return container;
+    }
+
+    public boolean isContainerBased() {
+        return getContainerFile() != null;
+    }
+
+    protected synchronized ProjectReader newReader() {
+        return newReader(this::getProjectSpaceProperty);
+    }
+
+    protected synchronized ProjectReader newReader(Function<Class<ProjectSpaceProperty>, Optional<ProjectSpaceProperty>> propertyGetter) {
+        if (container != null)
+            return new ContainerProjectSpaceReader(container, propertyGetter);
+        return new FileBasedProjectSpaceReader(root, propertyGetter);
+    }
+
+    protected synchronized ProjectWriter newWriter() {
+        if (container != null)
+            return new ContainerProjectSpaceWriter(container, this::getProjectSpaceProperty);
+        return new FileBasedProjectSpaceWriter(root, this::getProjectSpaceProperty);
+    }
+
     public Path getLocation() {
         if (root.getFileSystem().equals(FileSystems.getDefault()))
             return root;
@@ -110,13 +145,13 @@ public class SiriusProjectSpace implements Iterable<CompoundContainerId>, AutoCl
         ids.clear();
         int maxIndex = -1;
 
-        for (Path dir : FileUtils.listAndClose(root, l -> l.filter(Files::isDirectory).collect(Collectors.toList()))) {
-            final Path expInfo = dir.resolve(SiriusLocations.COMPOUND_INFO);
-            if (Files.exists(expInfo)) {
-                final Map<String, String> keyValues = FileUtils.readKeyValues(expInfo);
+        final ProjectReader reader = newReader();
+        for (String dirName : reader.list("*")) {
+            final String expInfo = dirName + "/" + SiriusLocations.COMPOUND_INFO;
+            if (reader.exists(expInfo)) {
+                final Map<String, String> keyValues = reader.keyValues(expInfo);
                 final int index = Integer.parseInt(keyValues.getOrDefault("index", "-1"));
                 final String name = keyValues.getOrDefault("name", "");
-                final String dirName = dir.getFileName().toString();
                 final Double ionMass = Optional.ofNullable(keyValues.get("ionMass")).map(Double::parseDouble).orElse(null);
                 final RetentionTime rt = Optional.ofNullable(keyValues.get("rt")).map(RetentionTime::fromStringValue).orElse(null);
 
@@ -145,9 +180,13 @@ public class SiriusProjectSpace implements Iterable<CompoundContainerId>, AutoCl
     public synchronized void close() throws IOException {
         try {
             this.ids.clear();
-            final FileSystem fs = root.getFileSystem();
-            if (!fs.equals(FileSystems.getDefault()) && fs.isOpen())
-                fs.close();
+            if (container != null) {
+                container.close();
+            } else {
+                final FileSystem fs = root.getFileSystem();
+                if (!fs.equals(FileSystems.getDefault()) && fs.isOpen())
+                    fs.close();
+            }
         } finally {
             fireProjectSpaceChange(ProjectSpaceEvent.CLOSED);
         }
@@ -257,13 +296,15 @@ public class SiriusProjectSpace implements Iterable<CompoundContainerId>, AutoCl
     protected Optional<CompoundContainerId> tryCreateCompoundContainer(String directoryName, String compoundName, int compoundIndex, double ionMass, PrecursorIonType ionType, RetentionTime rt) {
         if (containsCompound(directoryName)) return Optional.empty();
         synchronized (ids) {
-            if (Files.exists(root.resolve(directoryName)))
+            if (existsInProject(directoryName))
                 return Optional.empty();
             CompoundContainerId id = new CompoundContainerId(directoryName, compoundName, compoundIndex, ionMass, ionType, rt);
             if (ids.put(directoryName, id) != null)
                 return Optional.empty();
             try {
-                Files.createDirectory(root.resolve(directoryName));
+                // directories of a container are implicitly created by writing the compound info
+                if (!isContainerBased())
+                    Files.createDirectory(root.resolve(directoryName));
                 writeCompoundContainerID(id);
                 return Optional.of(id);
             } catch (IOException e) {
@@ -274,6 +315,16 @@ public class SiriusProjectSpace implements Iterable<CompoundContainerId>, AutoCl
         }
     }
 
+    // an unreadable location is treated as existing, so it is never overwritten
+    private boolean existsInProject(String relativePath) {
+        try {
+            return newReader().exists(relativePath);
+        } catch (IOException e) {
+            LoggerFactory.getLogger(getClass()).error("cannot check location " + relativePath, e);
+            return true;
+        }
+    }
+
     public void updateCompoundContainerID(CompoundContainerId cid) throws IOException {
         if (cid == null || ids.get(cid.getDirectoryName()) != cid)
             return;
@@ -287,14 +338,10 @@ public class SiriusProjectSpace implements Iterable<CompoundContainerId>, AutoCl
     }
 
     private void writeCompoundContainerID(CompoundContainerId cid) throws IOException {
-        final Path f = root.resolve(cid.getDirectoryName()).resolve(SiriusLocations.COMPOUND_INFO);
-        Files.deleteIfExists(f);
-        try (final BufferedWriter bw = Files.newBufferedWriter(f)) {
-            for (Map.Entry<String, String> kv : cid.asKeyValuePairs().entrySet()) {
-                bw.write(kv.getKey() + "\t" + kv.getValue());
-                bw.newLine();
-            }
-        }
+        final ProjectWriter writer = newWriter();
+        final String f = cid.getDirectoryName() + "/" + SiriusLocations.COMPOUND_INFO;
+        writer.deleteIfExists(f);
+        writer.keyValues(f, cid.asKeyValuePairs());
         fireProjectSpaceChange(ProjectSpaceEvent.INDEX_UPDATED);
     }
 
@@ -434,13 +481,12 @@ public class SiriusProjectSpace implements Iterable<CompoundContainerId>, AutoCl
                 if (ids.containsKey(newDirName))
                     return false; // rename not possible because key already exists
 
-                final Path file = root.resolve(newDirName);
-                if (Files.exists(file)) {
+                if (existsInProject(newDirName)) {
                     return false; // rename not target directory already exists
                 }
 
                 try {
-                    Files.move(root.resolve(oldId.getDirectoryName()), file);
+                    newWriter().move(oldId.getDirectoryName(), newDirName);
                     //change id only if move was successful
                     ids.remove(oldId.getDirectoryName());
                     oldId.rename(name, newDirName);
@@ -464,8 +510,14 @@ public class SiriusProjectSpace implements Iterable<CompoundContainerId>, AutoCl
     @SafeVarargs
     final <Id extends ProjectSpaceContainerId, Container extends ProjectSpaceContainer<Id>>
     Container getContainer(Class<Container> klass, Id id, Class<? extends DataAnnotation>... components) throws IOException {
+        return getContainer(newReader(), klass, id, components);
+    }
+
+    @SafeVarargs
+    final <Id extends ProjectSpaceContainerId, Container extends ProjectSpaceContainer<Id>>
+    Container getContainer(ProjectReader reader, Class<Container> klass, Id id, Class<? extends DataAnnotation>... components) throws IOException {
         // read container
-        final Container container = configuration.getContainerSerializer(klass).readFromProjectSpace(new FileBasedProjectSpaceReader(root, this::getProjectSpaceProperty), (r, c, f) -> {
+        final Container container = configuration.getContainerSerializer(klass).readFromProjectSpace(reader, (r, c, f) -> {
             // read components
             for (Class k : components) {
                 f.apply((Class<DataAnnotation>) k, (DataAnnotation) configuration.getComponentSerializer(klass, k).read(r, id, c));
@@ -478,7 +530,7 @@ public class SiriusProjectSpace implements Iterable<CompoundContainerId>, AutoCl
     final <Id extends ProjectSpaceContainerId, Container extends ProjectSpaceContainer<Id>>
     void updateContainer(Class<Container> klass, Container container, Class<? extends DataAnnotation>... components) throws IOException {
         // write container
-        configuration.getContainerSerializer(klass).writeToProjectSpace(new FileBasedProjectSpaceWriter(root, this::getProjectSpaceProperty), (r, c, f) -> {
+        configuration.getContainerSerializer(klass).writeToProjectSpace(newWriter(), (r, c, f) -> {
             // write components
             for (Class k : components) {
                 configuration.getComponentSerializer(klass, k)
@@ -495,7 +547,7 @@ public class SiriusProjectSpace implements Iterable<CompoundContainerId>, AutoCl
     final <Id extends ProjectSpaceContainerId, Container extends ProjectSpaceContainer<Id>>
     void deleteFromContainer(Class<Container> klass, Id containerId, List<Class> components) throws IOException {
         //delete container components
-        configuration.getContainerSerializer(klass).deleteFromProjectSpace(new FileBasedProjectSpaceWriter(root, this::getProjectSpaceProperty), (w, id) -> {
+        configuration.getContainerSerializer(klass).deleteFromProjectSpace(newWriter(), (w, id) -> {
             // delete components
             for (Class k : components)
                 configuration.getComponentSerializer(klass, k).delete(w, id);
@@ -531,6 +583,34 @@ public class SiriusProjectSpace implements Iterable<CompoundContainerId>, AutoCl
         return new CompoundContainerIterator(this, prefilter, filter != null ? (c) -> filter.test(c.getAnnotationOrThrow(Ms2Experiment.class)) : null, Ms2Experiment.class);
     }
 
+    /**
+     * Parallel version of {@link #compoundIterator(Class[])}: compounds are read on the IO pool of the global
+     * job manager with a read-ahead window of {@link #getDefaultReadAhead()} compounds. Order is preserved.
+     */
+    @SafeVarargs
+    public final ReadAheadIterator<CompoundContainerId, CompoundContainer> parallelCompoundIterator(@NotNull Class<? extends DataAnnotation>... components) {
+        return parallelCompoundIterator(getDefaultReadAhead(), true, null, null, components);
+    }
+
+    /**
+     * Parallel version of {@link #filteredCompoundIterator(Predicate, Predicate, Class[])}.
+     * At most readAhead compounds are read ahead of the consumer.
+     * The iterator should be closed if it is not consumed completely.
+     *
+     * @param readAhead maximum number of compounds that are loaded in advance
+     * @param keepOrder if true, compounds are returned in the order of {@link #iterator()}, otherwise as soon as they are loaded
+     */
+    @SafeVarargs
+    public final ReadAheadIterator<CompoundContainerId, CompoundContainer> parallelCompoundIterator(int readAhead, boolean keepOrder, @Nullable Predicate<CompoundContainerId> prefilter, @Nullable Predicate<CompoundContainer> filter, @NotNull Class<? extends DataAnnotation>... components) {
+        final Predicate<CompoundContainer> f = filter != null ? filter : (c) -> true;
+        return new ReadAheadIterator<>(prefilter != null ? filteredIterator(prefilter) : iterator(),
+                cid -> CompoundContainerIterator.load(this, cid, f, components), readAhead, keepOrder);
+    }
+
+    public static int getDefaultReadAhead() {
+        return PropertyManager.getInteger("de.unijena.bioinf.projectspace.readAhead", 32);
+    }
+
     public int size() {
         return compoundCounter.get();
     }
@@ -543,7 +623,7 @@ public class SiriusProjectSpace implements Iterable<CompoundContainerId>, AutoCl
                     property = (T) projectSpaceProperties.get(key);
                     if (property != null) return Optional.of(property);
                     try {
-                        T read = configuration.getProjectSpacePropertySerializer(key).read(new FileBasedProjectSpaceReader(root, this::getProjectSpaceProperty), null, null);
+                        T read = configuration.getProjectSpacePropertySerializer(key).read(newReader(), null, null);
                         if (read == null)
                             return Optional.empty();
 
@@ -562,7 +642,7 @@ public class SiriusProjectSpace implements Iterable<CompoundContainerId>, AutoCl
     public final  synchronized <T extends ProjectSpaceProperty> T setProjectSpaceProperty(Class<T> key, T value) {
         synchronized (projectSpaceProperties) {
             try {
-                configuration.getProjectSpacePropertySerializer(key).write(new FileBasedProjectSpaceWriter(root, this::getProjectSpaceProperty), null, null, value != null ? Optional.of(value) : Optional.empty());
+                configuration.getProjectSpacePropertySerializer(key).write(newWriter(), null, null, value != null ? Optional.of(value) : Optional.empty());
             } catch (IOException e) {
                 LoggerFactory.getLogger(SiriusProjectSpace.class).error(e.getMessage(), e);
             }
@@ -598,16 +678,34 @@ public class SiriusProjectSpace implements Iterable<CompoundContainerId>, AutoCl
 
     protected boolean changeLocation(Path nuLocation) throws IOException {
         return withAllLockedDo(() -> {
-            final FileSystem fs = root.getFileSystem();
-            if (!fs.equals(FileSystems.getDefault()) && fs.isOpen())
-                fs.close();
-
+            closeStorage();
             root = nuLocation;
             fireProjectSpaceChange(ProjectSpaceEvent.LOCATION_CHANGED);
             return true;
         });
     }
 
+    protected boolean changeLocation(ProjectContainerFile nuContainer) throws IOException {
+        return withAllLockedDo(() -> {
+            closeStorage();
+            root = nuContainer.getFile();
+            container = nuContainer;
+            fireProjectSpaceChange(ProjectSpaceEvent.LOCATION_CHANGED);
+            return true;
+        });
+    }
+
+    private void closeStorage() throws IOException {
+        if (container != null) {
+            container.close();
+            container = null;
+        } else {
+            final FileSystem fs = root.getFileSystem();
+            if (!fs.equals(FileSystems.getDefault()) && fs.isOpen())
+                fs.close();
+        }
+    }
+
     @FunctionalInterface
     protected interface IOCallable<V> extends Callable<V> {
         @Override
@@ -635,6 +733,39 @@ public class SiriusProjectSpace implements Iterable<CompoundContainerId>, AutoCl
     }
 
 
+    private SummaryData readSummaryData(SummaryRequest request, Class<? extends DataAnnotation>[] annotations) throws IOException {
+        final CompoundContainer c = getContainer(request.reader, CompoundContainer.class, request.id, Ms2Experiment.class);
+        final Class[] comps = Stream.concat(Arrays.stream(annotations), Stream.of(FormulaScoring.class)).distinct().toArray(Class[]::new);
+        final List<FormulaResult> res = new ArrayList<>(c.getResults().size());
+        for (FormulaResultId fid : c.getResults().values())
+            res.add(getContainer(request.reader, FormulaResult.class, fid, comps));
+        return new SummaryData(c, FormulaScoring.rankBy(res, request.id.getRankingScoreTypes(), true));
+    }
+
+    /**
+     * A compound to summarize together with the reader used to load it. Readers are not thread-safe,
+     * so every compound gets its own one.
+     */
+    private static class SummaryRequest {
+        private final CompoundContainerId id;
+        private final ProjectReader reader;
+
+        private SummaryRequest(CompoundContainerId id, ProjectReader reader) {
+            this.id = id;
+            this.reader = reader;
+        }
+    }
+
+    private static class SummaryData {
+        private final CompoundContainer compound;
+        private final List<SScored<FormulaResult, ? extends FormulaScore>> results;
+
+        private SummaryData(CompoundContainer compound, List<SScored<FormulaResult, ? extends FormulaScore>> results) {
+            this.compound = compound;
+            this.results = results;
+        }
+    }
+
     public class SummarizerJob extends TinyBackgroundJJob<Boolean> {
 
         private final Summarizer[] summarizers;
@@ -651,21 +782,44 @@ public class SiriusProjectSpace implements Iterable<CompoundContainerId>, AutoCl
             checkForInterruption();
             return withAllLockedDoRaw(() -> {
                 Class[] annotations = Arrays.stream(summarizers).flatMap(s -> s.requiredFormulaResultAnnotations().stream()).distinct().collect(Collectors.toList()).toArray(Class[]::new);
-                for (CompoundContainerId cid : ids.values()) {
-                    updateProgress(0, max, p.incrementAndGet(), "Collection '" + cid.getCompoundName() + "'...");
-                    checkForInterruption();
-                    final CompoundContainer c = getCompound(cid, Ms2Experiment.class);
-                    final List<SScored<FormulaResult, ? extends FormulaScore>> results = getFormulaResultsOrderedBy(cid, cid.getRankingScoreTypes(), annotations);
-                    for (Summarizer sim : summarizers)
-                        sim.addWriteCompoundSummary(new FileBasedProjectSpaceWriter(root, SiriusProjectSpace.this::getProjectSpaceProperty), c, results);
-                    checkForInterruption();
+                // this thread holds the monitor of the project-space and all container locks. The read jobs must
+                // neither lock containers nor call synchronized methods like newReader() or getProjectSpaceProperty(),
+                // so the properties are loaded in advance and the readers are created here, when the read-ahead
+                // iterator pulls the next compound on this thread.
+                final Map<Class<ProjectSpaceProperty>, Optional<ProjectSpaceProperty>> properties = new HashMap<>();
+                for (Class<? extends ProjectSpaceProperty> k : configuration.getAllProjectSpaceProperties())
+                    properties.put((Class<ProjectSpaceProperty>) k, (Optional<ProjectSpaceProperty>) getProjectSpaceProperty(k));
+                final Function<Class<ProjectSpaceProperty>, Optional<ProjectSpaceProperty>> propertyGetter = k -> properties.getOrDefault(k, Optional.empty());
+                final Iterator<CompoundContainerId> cids = ids.values().iterator();
+                final Iterator<SummaryRequest> requests = new Iterator<>() {
+                    @Override
+                    public boolean hasNext() {
+                        return cids.hasNext();
+                    }
+
+                    @Override
+                    public SummaryRequest next() {
+                        return new SummaryRequest(cids.next(), newReader(propertyGetter));
+                    }
+                };
+                try (ReadAheadIterator<SummaryRequest, SummaryData> it = new ReadAheadIterator<>(requests, r -> readSummaryData(r, annotations), getDefaultReadAhead(), true)) {
+                    while (it.hasNext()) {
+                        final SummaryData data = it.next();
+                        updateProgress(0, max, p.incrementAndGet(), "Collection '" + data.compound.getId().getCompoundName() + "'...");
+                        checkForInterruption();
+                        for (Summarizer sim : summarizers)
+                            sim.addWriteCompoundSummary(newWriter(), data.compound, data.results);
+                        checkForInterruption();
+                    }
+                } catch (UncheckedIOException e) {
+                    throw e.getCause();
                 }
                 checkForInterruption();
                 //write summaries to project space
                 for (Summarizer summarizer : summarizers) {
                     checkForInterruption();
                     updateProgress(0, max, p.incrementAndGet(), "Writing Summary '" + summarizer.getClass().getSimpleName() + "'...");
-                    summarizer.writeProjectSpaceSummary(new FileBasedProjectSpaceWriter(root, SiriusProjectSpace.this::getProjectSpaceProperty));
+                    summarizer.writeProjectSpaceSummary(newWriter());
                 }
                 updateProgress(0, max, max, "DONE!");
                 return true;
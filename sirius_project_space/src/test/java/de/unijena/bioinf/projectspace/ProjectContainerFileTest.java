@@ -0,0 +1,213 @@
+package de.unijena.bioinf.projectspace;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class ProjectContainerFileTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private Path newContainer() throws IOException {
+        return folder.newFolder().toPath().resolve("project" + ProjectContainerFile.FILE_EXTENSION);
+    }
+
+    private static byte[] content(int length, long seed) {
+        final byte[] bytes = new byte[length];
+        new Random(seed).nextBytes(bytes);
+        return bytes;
+    }
+
+    private static byte[] utf8(String s) {
+        return s.getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Test
+    public void testRoundTrip() throws IOException {
+        final Path file = newContainer();
+        final byte[] big = content(200 * 1024, 1);
+        try (ProjectContainerFile c = ProjectContainerFile.open(file)) {
+            c.write("1_a/spectrum.ms", utf8("spectrum"));
+            c.write("/1_a/trees/C6H12O6.json", big);
+            c.write("1_a\\scores/C6H12O6.info", utf8("score"));
+            c.write(".format", new byte[0]);
+            c.write("2_b/spectrum.ms", utf8("other"));
+
+            assertArrayEquals(utf8("spectrum"), c.read("1_a/spectrum.ms"));
+            assertArrayEquals(big, c.read("1_a/trees/C6H12O6.json"));
+            assertTrue(c.exists("1_a/trees"));
+            assertFalse(c.exists("1_a/tree"));
+            assertEquals(Arrays.asList(".format", "1_a", "2_b"), c.list(""));
+            assertEquals(Arrays.asList("scores", "spectrum.ms", "trees"), c.list("1_a"));
+
+            c.move("2_b", "3_c");
+            assertFalse(c.exists("2_b"));
+            assertArrayEquals(utf8("other"), c.read("3_c/spectrum.ms"));
+            assertTrue(c.delete("1_a/scores"));
+            assertFalse(c.delete("1_a/scores"));
+            c.write("1_a/spectrum.ms", utf8("overwritten"));
+        }
+
+        try (ProjectContainerFile c = ProjectContainerFile.open(file)) {
+            assertEquals(Arrays.asList(".format", "1_a/spectrum.ms", "1_a/trees/C6H12O6.json", "3_c/spectrum.ms"), c.paths());
+            assertArrayEquals(utf8("overwritten"), c.read("1_a/spectrum.ms"));
+            assertArrayEquals(big, c.read("1_a/trees/C6H12O6.json"));
+            assertArrayEquals(new byte[0], c.read(".format"));
+            assertNull(c.read("1_a/scores/C6H12O6.info"));
+        }
+    }
+
+    @Test
+    public void testCompaction() throws IOException {
+        final Path file = newContainer();
+        try (ProjectContainerFile c = ProjectContainerFile.open(file)) {
+            for (int i = 0; i < 20; ++i)
+                c.write("compound/tree.json", content(1000, i));
+            c.write("compound/deleted.json", content(1000, 100));
+            c.delete("compound/deleted.json");
+            c.write("other/file", utf8("live"));
+            assertTrue(c.getGarbageBytes() > 20 * 1000);
+
+            final long before = Files.size(file);
+            c.compact();
+            assertEquals(0, c.getGarbageBytes());
+            assertTrue(Files.size(file) < before / 5);
+            assertArrayEquals(content(1000, 19), c.read("compound/tree.json"));
+            assertArrayEquals(utf8("live"), c.read("other/file"));
+            assertNull(c.read("compound/deleted.json"));
+
+            // the container stays writable after compaction
+            c.write("other/file2", utf8("after"));
+        }
+        try (ProjectContainerFile c = ProjectContainerFile.open(file)) {
+            assertEquals(Arrays.asList("compound/tree.json", "other/file", "other/file2"), c.paths());
+            assertEquals(0, c.getGarbageBytes());
+            assertArrayEquals(content(1000, 19), c.read("compound/tree.json"));
+            assertArrayEquals(utf8("after"), c.read("other/file2"));
+        }
+    }
+
+    @Test
+    public void testCompactionOnClose() throws IOException {
+        final Path file = newContainer();
+        try (ProjectContainerFile c = ProjectContainerFile.open(file)) {
+            for (int i = 0; i < 10; ++i)
+                c.write("a", content(1000, i));
+        }
+        try (ProjectContainerFile c = ProjectContainerFile.open(file)) {
+            assertEquals(0, c.getGarbageBytes());
+            assertArrayEquals(content(1000, 9), c.read("a"));
+        }
+    }
+
+    @Test
+    public void testIncompleteRecordIsTruncated() throws IOException {
+        final Path file = newContainer();
+        final long complete = writeTwoRecords(file);
+        for (long cut : new long[]{complete + 3, complete + 20, Files.size(file) - 1}) {
+            final Path copy = folder.newFolder().toPath().resolve("copy" + ProjectContainerFile.FILE_EXTENSION);
+            Files.copy(file, copy);
+            try (RandomAccessFile raf = new RandomAccessFile(copy.toFile(), "rw")) {
+                raf.setLength(cut);
+            }
+            assertRecovered(copy, complete);
+        }
+    }
+
+    @Test
+    public void testZeroFilledTailIsTruncated() throws IOException {
+        final Path file = newContainer();
+        final long complete = writeTwoRecords(file);
+        try (RandomAccessFile raf = new RandomAccessFile(file.toFile(), "rw")) {
+            raf.setLength(complete);
+            raf.setLength(complete + 4096);
+        }
+        assertRecovered(file, complete);
+    }
+
+    @Test
+    public void testTornLastRecordIsTruncated() throws IOException {
+        final Path file = newContainer();
+        final long complete = writeTwoRecords(file);
+        flipByte(file, Files.size(file) - 100);
+        assertRecovered(file, complete);
+    }
+
+    @Test
+    public void testCorruptionWithinFileFailsToOpen() throws IOException {
+        final Path file = newContainer();
+        final long complete = writeTwoRecords(file);
+        flipByte(file, complete - 100);
+        try {
+            ProjectContainerFile.open(file).close();
+            fail("Corrupted container was opened.");
+        } catch (IOException e) {
+            assertTrue(e.getMessage().contains("corrupted"));
+        }
+        // nothing is truncated
+        assertTrue(Files.size(file) > complete);
+    }
+
+    @Test
+    public void testCorruptedHeaderWithinFileFailsToOpen() throws IOException {
+        final Path file = newContainer();
+        final long complete = writeTwoRecords(file);
+        try (RandomAccessFile raf = new RandomAccessFile(file.toFile(), "rw")) {
+            raf.seek(complete);
+            raf.write(7); // unknown record type
+        }
+        try {
+            ProjectContainerFile.open(file).close();
+            fail("Corrupted container was opened.");
+        } catch (IOException e) {
+            assertTrue(e.getMessage().contains("corrupted"));
+        }
+    }
+
+    /*
+        writes a record followed by a second one and returns the offset of the second record
+     */
+    private static long writeTwoRecords(Path file) throws IOException {
+        final long offset;
+        try (ProjectContainerFile c = ProjectContainerFile.open(file)) {
+            c.write("first", content(1000, 1));
+            offset = Files.size(file);
+            c.write("second", content(1000, 2));
+        }
+        return offset;
+    }
+
+    private static void assertRecovered(Path file, long complete) throws IOException {
+        try (ProjectContainerFile c = ProjectContainerFile.open(file)) {
+            assertEquals(complete, Files.size(file));
+            assertEquals(Collections.singletonList("first"), c.paths());
+            assertArrayEquals(content(1000, 1), c.read("first"));
+            c.write("second", utf8("rewritten"));
+        }
+        try (ProjectContainerFile c = ProjectContainerFile.open(file)) {
+            assertEquals(Arrays.asList("first", "second"), c.paths());
+            assertArrayEquals(utf8("rewritten"), c.read("second"));
+        }
+    }
+
+    private static void flipByte(Path file, long position) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file.toFile(), "rw")) {
+            raf.seek(position);
+            final int b = raf.read();
+            raf.seek(position);
+            raf.write(b ^ 0xff);
+        }
+    }
+}
@@ -0,0 +1,132 @@
+package de.unijena.bioinf.projectspace;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.*;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import static org.junit.Assert.*;
+
+public class ReadAheadIteratorTest {
+
+    private static List<Integer> numbers(int n) {
+        return IntStream.range(0, n).boxed().collect(Collectors.toList());
+    }
+
+    private static <T> List<T> drain(Iterator<T> it) {
+        final ArrayList<T> xs = new ArrayList<>();
+        it.forEachRemaining(xs::add);
+        return xs;
+    }
+
+    @Test(timeout = 30000)
+    public void testKeepsSourceOrder() {
+        final Random r = new Random(42);
+        final int[] delays = IntStream.range(0, 200).map(i -> r.nextInt(3)).toArray();
+        try (ReadAheadIterator<Integer, String> it = new ReadAheadIterator<>(numbers(200).iterator(), i -> {
+            sleep(delays[i]);
+            return "x" + i;
+        }, 8, true)) {
+            assertEquals(numbers(200).stream().map(i -> "x" + i).collect(Collectors.toList()), drain(it));
+        }
+    }
+
+    @Test(timeout = 30000)
+    public void testCompletionOrderReturnsAllElements() {
+        try (ReadAheadIterator<Integer, Integer> it = new ReadAheadIterator<>(numbers(200).iterator(), i -> {
+            sleep(i % 3);
+            return i;
+        }, 8, false)) {
+            final List<Integer> xs = drain(it);
+            assertEquals(200, xs.size());
+            assertEquals(new HashSet<>(numbers(200)), new HashSet<>(xs));
+        }
+    }
+
+    @Test(timeout = 30000)
+    public void testNullResultsAreSkipped() {
+        try (ReadAheadIterator<Integer, Integer> it = new ReadAheadIterator<>(numbers(100).iterator(), i -> i % 2 == 0 ? null : i, 4, true)) {
+            assertEquals(numbers(100).stream().filter(i -> i % 2 != 0).collect(Collectors.toList()), drain(it));
+        }
+    }
+
+    @Test(timeout = 30000)
+    public void testEmptySource() {
+        try (ReadAheadIterator<Integer, Integer> it = new ReadAheadIterator<>(Collections.<Integer>emptyIterator(), i -> i, 4, true)) {
+            assertFalse(it.hasNext());
+        }
+    }
+
+    @Test(timeout = 30000)
+    public void testLoaderErrorStopsIteration() {
+        final ReadAheadIterator<Integer, Integer> it = new ReadAheadIterator<>(numbers(100).iterator(), i -> {
+            if (i == 10) throw new IOException("broken " + i);
+            return i;
+        }, 4, true);
+        for (int k = 0; k < 10; ++k)
+            assertEquals(k, (int) it.next());
+        try {
+            it.hasNext();
+            fail("Expected an UncheckedIOException.");
+        } catch (UncheckedIOException e) {
+            assertEquals("broken 10", e.getCause().getMessage());
+        }
+        assertFalse(it.hasNext());
+    }
+
+    @Test(timeout = 30000)
+    public void testReadAheadIsBounded() throws InterruptedException {
+        final int readAhead = 4;
+        final AtomicInteger pulled = new AtomicInteger();
+        final Iterator<Integer> source = new Iterator<>() {
+            int k = 0;
+
+            @Override
+            public boolean hasNext() {
+                return k < 100;
+            }
+
+            @Override
+            public Integer next() {
+                pulled.incrementAndGet();
+                return k++;
+            }
+        };
+        final CountDownLatch loaded = new CountDownLatch(readAhead);
+        try (ReadAheadIterator<Integer, Integer> it = new ReadAheadIterator<>(source, i -> {
+            loaded.countDown();
+            return i;
+        }, readAhead, true)) {
+            assertEquals(0, (int) it.next());
+            assertTrue(loaded.await(10, TimeUnit.SECONDS));
+            // one element consumed, the window holds at most readAhead further ones
+            assertTrue(pulled.get() <= readAhead + 1);
+            for (int k = 1; k < 10; ++k) {
+                assertEquals(k, (int) it.next());
+                assertTrue(pulled.get() <= k + readAhead + 1);
+            }
+        }
+    }
+
+    @Test(timeout = 30000)
+    public void testCloseStopsIteration() {
+        final ReadAheadIterator<Integer, Integer> it = new ReadAheadIterator<>(numbers(100).iterator(), i -> i, 4, true);
+        assertEquals(0, (int) it.next());
+        it.close();
+        assertFalse(it.hasNext());
+    }
+
+    private static void sleep(int millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
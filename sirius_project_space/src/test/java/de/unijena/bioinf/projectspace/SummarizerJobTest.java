@@ -0,0 +1,84 @@
+package de.unijena.bioinf.projectspace;
+
+import de.unijena.bioinf.ChemistryBase.algorithm.scoring.FormulaScore;
+import de.unijena.bioinf.ChemistryBase.algorithm.scoring.SScored;
+import de.unijena.bioinf.ChemistryBase.utils.FileUtils;
+import de.unijena.bioinf.ms.annotations.DataAnnotation;
+import de.unijena.bioinf.projectspace.sirius.CompoundContainer;
+import de.unijena.bioinf.projectspace.sirius.FormulaResult;
+import de.unijena.bioinf.projectspace.sirius.SiriusProjectSpaceConfiguration;
+import org.jetbrains.annotations.NotNull;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class SummarizerJobTest {
+
+    private static final String SUMMARY = "compounds.txt";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test(timeout = 60000)
+    public void testSummaryOfDirectoryProjectSpace() throws IOException {
+        testSummaryOfSeveralCompounds(folder.getRoot().toPath().resolve("project"));
+    }
+
+    @Test(timeout = 60000)
+    public void testSummaryOfContainerProjectSpace() throws IOException {
+        testSummaryOfSeveralCompounds(folder.getRoot().toPath().resolve("project" + ProjectContainerFile.FILE_EXTENSION));
+    }
+
+    private void testSummaryOfSeveralCompounds(Path location) throws IOException {
+        final ProjectSpaceConfiguration configuration = new ProjectSpaceConfiguration();
+        SiriusProjectSpaceConfiguration.configure(configuration);
+        try (SiriusProjectSpace space = new ProjectSpaceIO(configuration).createNewProjectSpace(location)) {
+            final Set<String> names = new HashSet<>();
+            for (int k = 0; k < 50; ++k) {
+                final String name = "compound" + k;
+                assertTrue(space.newCompoundWithUniqueId(name, i -> i + "_" + name).isPresent());
+                names.add(name);
+            }
+
+            final NameSummarizer summarizer = new NameSummarizer();
+            space.updateSummaries(summarizer);
+
+            assertEquals(names, new HashSet<>(summarizer.compounds));
+            assertEquals(names.size(), summarizer.compounds.size());
+            final String[] written = space.newReader().textFile(SUMMARY, FileUtils::readLines);
+            assertEquals(names, new HashSet<>(Arrays.asList(written)));
+        }
+    }
+
+    private static class NameSummarizer implements Summarizer {
+        private final Queue<String> compounds = new ConcurrentLinkedQueue<>();
+
+        @Override
+        public List<Class<? extends DataAnnotation>> requiredFormulaResultAnnotations() {
+            return Collections.emptyList();
+        }
+
+        @Override
+        public void addWriteCompoundSummary(ProjectWriter writer, @NotNull CompoundContainer exp, List<? extends SScored<FormulaResult, ? extends FormulaScore>> results) {
+            compounds.add(exp.getId().getCompoundName());
+        }
+
+        @Override
+        public void writeProjectSpaceSummary(ProjectWriter writer) throws IOException {
+            writer.textFile(SUMMARY, w -> {
+                for (String name : compounds) {
+                    w.write(name);
+                    w.newLine();
+                }
+            });
+        }
+    }
+}